@@ -4,9 +4,15 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import edu.sjsu.moth.util.EmailCodeUtils;
 import edu.sjsu.moth.util.WebFingerUtils;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.ExitCodeGenerator;
 import org.springframework.boot.SpringApplication;
@@ -18,7 +24,17 @@ import picocli.CommandLine.Command;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Properties;
 
 import static edu.sjsu.moth.util.EmailCodeUtils.encodePassword;
@@ -48,6 +64,9 @@ public class Main implements CommandLineRunner, ExitCodeGenerator {
 
     @Command(name = "moth-client", description = "utilities to help admin a moth server.")
     static private class Cli {
+        // must match HomeFeedService.MAX_ENTRIES in the server
+        private static final int HOME_FEED_MAX_ENTRIES = 800;
+
         private static UserHost extractUserHost(String userAtHost) {
             if (userAtHost.startsWith("@")) userAtHost = userAtHost.substring(1);
             var parts = userAtHost.split("@", 2);
@@ -189,5 +208,184 @@ public class Main implements CommandLineRunner, ExitCodeGenerator {
             }
             return 0;
         }
+
+        private MongoDatabase getDatabase(Properties props) {
+            return MongoClients.create("mongodb://%s:27017/".formatted(props.getProperty("db"))).getDatabase("test");
+        }
+
+        // must match HomeFeedService.positionOf() in the server
+        private static long homeFeedPosition(Document status) {
+            try {
+                return Long.parseLong(status.get("_id").toString());
+            } catch (NumberFormatException ignored) {}
+            try {
+                return (Instant.parse(status.getString("createdAt")).toEpochMilli() - EmailCodeUtils.NEW_EPOCH) << 24;
+            } catch (Exception ignored) {}
+            return 0;
+        }
+
+        @Command(description = "rebuild the materialized home feeds from the follow graph", mixinStandardHelpOptions =
+                true)
+        int rebuildHomeFeeds(
+                @CommandLine.Parameters(paramLabel = "mothConfigFile") File cfg,
+                @CommandLine.Option(names = "-u", paramLabel = "username", description = "only rebuild this user")
+                String username,
+                @CommandLine.Option(names = "--no-dryrun", defaultValue = "False") boolean noDryrun) {
+            var props = loadProperties(cfg);
+            var db = getDatabase(props);
+            var accounts = db.getCollection("account");
+            var follows = db.getCollection("follow");
+            var homeFeed = db.getCollection("home_feed");
+            var visibilities = Arrays.asList("public", "unlisted", "private", null);
+            var owners = username == null ? accounts.find() : accounts.find(Filters.eq("acct", username));
+            for (var owner : owners) {
+                var acct = owner.getString("acct");
+                // remote accounts have user@host accts and do not have home feeds
+                if (acct == null || acct.contains("@")) continue;
+                var ownerId = owner.get("_id").toString();
+                var authorAccts = new HashSet<String>();
+                authorAccts.add(acct);
+                for (var follow : follows.find(Filters.eq("_id.follower_id", ownerId))) {
+                    var followedId = follow.get("_id", Document.class).getString("followed_id");
+                    var followed = accounts.find(Filters.eq("_id", followedId)).first();
+                    if (followed != null && followed.getString("acct") != null) {
+                        authorAccts.add(followed.getString("acct"));
+                    }
+                }
+                var filter = Filters.and(Filters.in("account.acct", authorAccts),
+                                         Filters.in("visibility", visibilities));
+                var entries = new ArrayList<Document>();
+                for (var collection : List.of("status", "ExternalStatus")) {
+                    var external = collection.equals("ExternalStatus");
+                    for (var status : db.getCollection(collection).find(filter).sort(Sorts.descending("createdAt"))
+                            .limit(HOME_FEED_MAX_ENTRIES)) {
+                        var statusId = status.get("_id").toString();
+                        entries.add(new Document("_id", ownerId + ":" + statusId).append("ownerId", ownerId)
+                                            .append("statusId", statusId).append("position", homeFeedPosition(status))
+                                            .append("authorAcct", status.get("account", Document.class)
+                                                    .getString("acct")).append("external", external));
+                    }
+                }
+                entries.sort(Comparator.comparingLong((Document d) -> d.getLong("position")).reversed());
+                var feed = entries.subList(0, Math.min(entries.size(), HOME_FEED_MAX_ENTRIES));
+                if (noDryrun) {
+                    homeFeed.deleteMany(Filters.eq("ownerId", ownerId));
+                    if (!feed.isEmpty()) homeFeed.insertMany(feed);
+                    System.out.printf("%s: rebuilt with %d entries from %d accounts\n", acct, feed.size(),
+                                      authorAccts.size());
+                } else {
+                    System.out.printf("%s: would rebuild with %d entries from %d accounts\n", acct, feed.size(),
+                                      authorAccts.size());
+                }
+            }
+            return 0;
+        }
+
+        @Command(description = "show the backfill queue, optionally requeue failures", mixinStandardHelpOptions = true)
+        int backfillJobs(
+                @CommandLine.Parameters(paramLabel = "mothConfigFile") File cfg,
+                @CommandLine.Option(names = "--retry", defaultValue = "False", description = "requeue failed jobs")
+                boolean retry,
+                @CommandLine.Option(names = "--no-dryrun", defaultValue = "False") boolean noDryrun) {
+            var props = loadProperties(cfg);
+            // the states must match BackfillService in the server
+            var jobs = getDatabase(props).getCollection("backfill_job");
+            var pending = Filters.and(Filters.exists("nextAttemptAt"), Filters.exists("leaseOwner", false));
+            var running = Filters.exists("leaseOwner");
+            var failed = Filters.eq("failed", true);
+            var done = Filters.and(Filters.exists("completedAt"), Filters.ne("failed", true));
+            System.out.printf("pending %d, running %d, failed %d, done %d\n", jobs.countDocuments(pending),
+                              jobs.countDocuments(running), jobs.countDocuments(failed), jobs.countDocuments(done));
+            for (var job : jobs.find(running)) {
+                System.out.printf("running %s %s: %d taken, next page %s\n", job.get("type"), job.get("_id"),
+                                  job.get("taken"), job.get("cursor"));
+            }
+            for (var job : jobs.find(pending).sort(Sorts.orderBy(Sorts.descending("priority"),
+                                                                 Sorts.ascending("nextAttemptAt")))) {
+                System.out.printf("pending %s %s: due %s, %s failed attempts\n", job.get("type"), job.get("_id"),
+                                  job.get("nextAttemptAt"), job.get("attempts"));
+            }
+            for (var job : jobs.find(failed)) {
+                System.out.printf("failed %s %s after %s attempts: %s\n", job.get("type"), job.get("_id"),
+                                  job.get("attempts"), job.get("error"));
+            }
+            if (retry) {
+                if (noDryrun) {
+                    var rc = jobs.updateMany(failed, new Document("$set", new Document("attempts", 0).append(
+                            "nextAttemptAt", new Date())).append("$unset", new Document("failed", "").append(
+                            "completedAt", "").append("expireAt", "").append("error", "")));
+                    System.out.printf("requeued %d failed jobs\n", rc.getModifiedCount());
+                } else {
+                    System.out.printf("would requeue %d failed jobs\n", jobs.countDocuments(failed));
+                }
+            }
+            return 0;
+        }
+
+        // the SHA-256 of a GridFS file, from its metadata or by reading it
+        private static String sha256(GridFSBucket bucket, Document file) throws IOException {
+            var metadata = file.get("metadata", Document.class);
+            if (metadata != null && metadata.getString("sha256") != null) return metadata.getString("sha256");
+            try (var in = bucket.openDownloadStream(file.getObjectId("_id"))) {
+                var digest = MessageDigest.getInstance("SHA-256");
+                var buffer = new byte[64 * 1024];
+                for (int n; (n = in.read(buffer)) > 0; ) digest.update(buffer, 0, n);
+                return HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Command(description = "share one GridFS file between media with identical content", mixinStandardHelpOptions =
+                true)
+        int dedupeMedia(
+                @CommandLine.Parameters(paramLabel = "mothConfigFile") File cfg,
+                @CommandLine.Option(names = "--no-dryrun", defaultValue = "False") boolean noDryrun)
+                throws IOException {
+            var props = loadProperties(cfg);
+            var db = getDatabase(props);
+            var bucket = GridFSBuckets.create(db);
+            // the collections must match MediaBlob and MediaAlias in the server
+            var blobs = db.getCollection("media_blob");
+            var aliases = db.getCollection("media_alias");
+            // in a dry run nothing is written, so remember the blobs we would have made
+            var madeBlobs = new HashMap<String, ObjectId>();
+            int files = 0, duplicates = 0;
+            long reclaimed = 0;
+            for (var file : db.getCollection("fs.files").find().sort(Sorts.ascending("uploadDate"))) {
+                var fileId = file.getObjectId("_id");
+                var fileName = file.getString("filename");
+                if (aliases.find(Filters.eq("_id", fileName)).first() != null) continue;
+                var sha256 = sha256(bucket, file);
+                var blob = blobs.find(Filters.eq("_id", sha256)).first();
+                var blobFileId = blob != null ? blob.getObjectId("fileId") : madeBlobs.get(sha256);
+                // the file of a blob whose first alias was released
+                if (fileId.equals(blobFileId)) continue;
+                files++;
+                if (blobFileId == null) {
+                    madeBlobs.put(sha256, fileId);
+                    if (noDryrun) {
+                        db.getCollection("fs.files").updateOne(Filters.eq("_id", fileId), new Document(
+                                "$set", new Document("metadata.sha256", sha256)));
+                        blobs.insertOne(new Document("_id", sha256).append("fileId", fileId).append("refs", 1L));
+                        aliases.insertOne(new Document("_id", fileName).append("blob", sha256)
+                                                  .append("fileId", fileId));
+                    }
+                    continue;
+                }
+                duplicates++;
+                reclaimed += file.get("length", Number.class).longValue();
+                if (noDryrun) {
+                    blobs.updateOne(Filters.eq("_id", sha256), new Document("$inc", new Document("refs", 1L)));
+                    aliases.insertOne(new Document("_id", fileName).append("blob", sha256)
+                                              .append("fileId", blobFileId));
+                    bucket.delete(fileId);
+                }
+                System.out.printf("%s: %s %s\n", fileName, noDryrun ? "now shares" : "would share", blobFileId);
+            }
+            System.out.printf("%d files, %d duplicates, %d bytes %s\n", files, duplicates, reclaimed,
+                              noDryrun ? "reclaimed" : "would be reclaimed");
+            return 0;
+        }
     }
 }
@@ -12,7 +12,9 @@
 //   * changed reblog to Status type
 //   * added @QueryEntity
 //   * added null check in getUri()
-// NOTE: did NOT add pinned and filter (optional/not needed)
+//   * added @Document and the timeline index
+//   * added pinned as a transient, per viewer field
+// NOTE: did NOT add filter (optional/not needed)
 
 package edu.sjsu.moth.generated;
 
@@ -24,17 +26,24 @@ import edu.sjsu.moth.server.controller.MothController;
 import edu.sjsu.moth.server.db.Account;
 import edu.sjsu.moth.server.db.StatusMention;
 import edu.sjsu.moth.server.db.StatusTag;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
+@Document("status")
 @QueryEntity
+@CompoundIndexes({ @CompoundIndex(name = "visibility_createdAt_desc",
+        def = "{ 'visibility': 1, 'createdAt': -1, '_id': -1 }") })
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonPropertyOrder({ "id", "created_at", "in_reply_to_id", "in_reply_to_account_id", "sensitive", "spoiler_text",
         "visibility", "language", "uri", "url", "replies_count", "reblogs_count", "favourites_count", "favourited",
-        "reblogged", "muted", "bookmarked", "content", "reblog", "application", "account", "media_attachments",
-        "mentions", "tags", "emojis", "card", "poll", "text", "edited_at", })
+        "reblogged", "muted", "bookmarked", "pinned", "content", "reblog", "application", "account",
+        "media_attachments", "mentions", "tags", "emojis", "card", "poll", "text", "edited_at", })
 public class Status {
 
     @JsonProperty("id")
@@ -67,6 +76,9 @@ public class Status {
     public Boolean muted;
     @JsonProperty("bookmarked")
     public Boolean bookmarked;
+    @JsonProperty("pinned")
+    @Transient
+    public Boolean pinned;
     @JsonProperty("content")
     public String content;
     @JsonProperty("reblog")
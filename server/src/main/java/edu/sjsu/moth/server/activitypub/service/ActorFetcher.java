@@ -0,0 +1,141 @@
+package edu.sjsu.moth.server.activitypub.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.util.SingleFlight;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * fetches remote actor documents. when a new actor sends us a burst of activities, the key lookup, the inbox
+ * processing and the account conversion all want the same document at about the same time. concurrent fetches of
+ * the same actor share one GET, and the listeners (the public key cache, the actor repository) are fed from that one
+ * response before any of the callers see it.
+ */
+@Service
+@CommonsLog
+public class ActorFetcher {
+    // https://www.w3.org/TR/activitypub/#retrieving-objects
+    public static final String ACTIVITY_JSON = "application/activity+json, application/ld+json; " +
+            "profile=\"https://www.w3.org/ns/activitystreams\"";
+    private static final int FETCH_TIMEOUT_SECONDS = 10;
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    private final SingleFlight<String, Fetched> fetches = new SingleFlight<>();
+    // kept apart from fetches, someone who needs the actor cannot make do with "not modified"
+    private final SingleFlight<String, Fetched> revalidations = new SingleFlight<>();
+    private final List<Function<Fetched, Mono<?>>> listeners = new CopyOnWriteArrayList<>();
+    private final WebClient webClient;
+
+    @Autowired
+    public ActorFetcher(WebClient.Builder webClientBuilder) {
+        this.webClient =
+                webClientBuilder.defaultHeader(HttpHeaders.ACCEPT, ACTIVITY_JSON, MediaType.APPLICATION_JSON_VALUE)
+                        .build();
+    }
+
+    /**
+     * the actor url without the fragment, so that a key id and its actor share a fetch
+     */
+    public static String actorUrlOf(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+
+    /**
+     * listener is called with every actor document we fetch, and the callers wait for it. errors are logged and
+     * otherwise ignored.
+     */
+    public void addListener(Function<Fetched, Mono<?>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * fetch the actor document at url, joining a fetch that is already in progress
+     */
+    public Mono<JsonNode> fetch(String url) {
+        return fetchDocument(url).map(Fetched::actor);
+    }
+
+    /**
+     * like fetch, but with what else we know about the response
+     */
+    public Mono<Fetched> fetchDocument(String url) {
+        var actorUrl = actorUrlOf(url);
+        return fetches.execute(actorUrl, () -> webClient.get().uri(actorUrl).retrieve().toEntity(JsonNode.class)
+                .timeout(Duration.ofSeconds(FETCH_TIMEOUT_SECONDS)).flatMap(entity -> fetched(actorUrl, entity)));
+    }
+
+    /**
+     * fetch the actor document at url only if it changed since the response with etag and lastModified, either of
+     * which may be null. empty if the server says it has not changed.
+     */
+    public Mono<Fetched> fetchDocumentIfModified(String url, String etag, String lastModified) {
+        var actorUrl = actorUrlOf(url);
+        return revalidations.execute(actorUrl, () -> webClient.get().uri(actorUrl).headers(headers -> {
+                    if (etag != null) headers.setIfNoneMatch(etag);
+                    if (lastModified != null) headers.set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+                }).<ResponseEntity<JsonNode>>exchangeToMono(response -> {
+                    if (response.statusCode() == HttpStatus.NOT_MODIFIED) {
+                        return response.releaseBody().then(Mono.empty());
+                    }
+                    return response.statusCode().is2xxSuccessful() ? response.toEntity(JsonNode.class) :
+                            response.createError();
+                }).timeout(Duration.ofSeconds(FETCH_TIMEOUT_SECONDS)).flatMap(entity -> fetched(actorUrl, entity)));
+    }
+
+    // hand a downloaded actor document to the listeners before the callers see it
+    private Mono<Fetched> fetched(String actorUrl, ResponseEntity<JsonNode> entity) {
+        return Mono.justOrEmpty(entity.getBody())
+                .map(node -> new Fetched(actorUrl, node, entity.getHeaders().getETag(),
+                                         entity.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED)))
+                .flatMap(fetched -> Flux.fromIterable(listeners).concatMap(
+                        listener -> Mono.defer(() -> listener.apply(fetched)).onErrorResume(e -> {
+                            log.warn("could not process actor " + actorUrl + ": " + e.getMessage());
+                            return Mono.empty();
+                        })).then(Mono.just(fetched)));
+    }
+
+    public Mono<Actor> fetchActor(String url) {
+        return fetch(url).flatMap(this::toActor);
+    }
+
+    public Mono<Actor> toActor(JsonNode node) {
+        return Mono.fromCallable(() -> objectMapper.treeToValue(node, Actor.class));
+    }
+
+    /**
+     * an actor document as it came back from url, etag and lastModified are null if the server did not send them
+     */
+    public record Fetched(String url, JsonNode actor, String etag, String lastModified) {
+        /**
+         * true if id names this document or a fragment of it. a document only speaks for itself, whatever ids it
+         * claims for other actors or keys.
+         */
+        public boolean isAt(String id) {
+            return id != null && actorUrlOf(id).equals(url);
+        }
+    }
+
+    /**
+     * the number of actors being fetched right now
+     */
+    public int inFlight() {
+        return fetches.size();
+    }
+}
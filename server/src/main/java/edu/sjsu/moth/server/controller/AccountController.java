@@ -4,6 +4,7 @@ import edu.sjsu.moth.generated.CredentialAccount;
 import edu.sjsu.moth.generated.Relationship;
 import edu.sjsu.moth.generated.Source;
 import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.service.StatusHydrationService;
 import edu.sjsu.moth.server.service.StatusService;
 import edu.sjsu.moth.server.annotations.RequestObject;
 import edu.sjsu.moth.server.db.Account;
@@ -54,14 +55,17 @@ public class AccountController {
     private final StatusService statusService;
     private final BlockService blockService;
     private final MuteService muteService;
+    private final StatusHydrationService statusHydrationService;
 
     public AccountController(AccountService accountService, FollowService followService, StatusService statusService,
-                             BlockService blockService, MuteService muteService) {
+                             BlockService blockService, MuteService muteService,
+                             StatusHydrationService statusHydrationService) {
         this.accountService = accountService;
         this.followService = followService;
         this.statusService = statusService;
         this.blockService = blockService;
         this.muteService = muteService;
+        this.statusHydrationService = statusHydrationService;
     }
 
     @PatchMapping(value = "/api/v1/accounts/update_credentials", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
@@ -207,7 +211,8 @@ public class AccountController {
             return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
         }
         return accountService.getAccount(user.getName())
-                .flatMap(acct -> statusService.getFavouritedStatuses(acct.id, max_id, since_id, min_id, limit))
+                .flatMap(acct -> statusService.getFavouritedStatuses(acct.id, max_id, since_id, min_id, limit)
+                        .flatMap(statuses -> statusHydrationService.hydrate(acct.id, statuses)))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.ok(List.of()));
     }
@@ -223,7 +228,8 @@ public class AccountController {
             return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
         }
         return accountService.getAccount(user.getName())
-                .flatMap(acct -> statusService.getBookmarkedStatuses(acct.id, max_id, since_id, min_id, limit))
+                .flatMap(acct -> statusService.getBookmarkedStatuses(acct.id, max_id, since_id, min_id, limit)
+                        .flatMap(statuses -> statusHydrationService.hydrate(acct.id, statuses)))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.ok(List.of()));
     }
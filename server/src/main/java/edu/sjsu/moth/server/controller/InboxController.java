@@ -11,9 +11,10 @@ import edu.sjsu.moth.generated.CustomEmoji;
 import edu.sjsu.moth.server.db.Account;
 import edu.sjsu.moth.server.db.AccountField;
 import edu.sjsu.moth.server.db.ExternalStatus;
+import edu.sjsu.moth.server.filter.HttpSignatureWebFilter;
 import edu.sjsu.moth.server.service.AccountService;
 import edu.sjsu.moth.server.service.ActorService;
-import edu.sjsu.moth.server.service.InboxService;
+import edu.sjsu.moth.server.service.InboxJobService;
 import edu.sjsu.moth.server.service.StatusService;
 import edu.sjsu.moth.server.util.MothConfiguration;
 import edu.sjsu.moth.server.util.Util;
@@ -23,7 +24,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestAttribute;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.reactive.function.client.WebClient;
@@ -39,10 +40,10 @@ import java.util.List;
 public class InboxController {
 
     @Autowired
-    InboxService inboxService;
+    AccountService accountService;
 
     @Autowired
-    AccountService accountService;
+    InboxJobService inboxJobService;
 
     //required to map payload from JSON to a Java Object for data access
     ObjectMapper mappedLoad;
@@ -51,39 +52,26 @@ public class InboxController {
         this.mappedLoad = mappedLoad;
     }
 
+    // the signature has been checked and the body parsed by HttpSignatureWebFilter, the activity is processed by
+    // InboxJobService
     @PostMapping("/inbox")
-    public Mono<ResponseEntity<Object>> inbox(@RequestBody JsonNode inboxNode) {
-        String requestType = inboxNode.get("type").asText();
-        if (requestType.equals("Delete")) {
-            return Mono.empty();
-        } else if (requestType.equals("Create")) {
-            return inboxService.createHandler(inboxNode);
-        } else if (requestType.equals("Update")) {
-            System.out.println("I've seen UPDATE and it is going to be supported soon");
-            return Mono.empty();
-        } else {
-            return Mono.error(new RuntimeException(requestType + " is not supported yet because I've never seen it"));
-        }
+    public Mono<ResponseEntity<Object>> inbox(
+            @RequestAttribute(name = HttpSignatureWebFilter.ACTIVITY_ATTRIBUTE, required = false) JsonNode inboxNode,
+            @RequestAttribute(name = HttpSignatureWebFilter.SIGNER_ATTRIBUTE, required = false) String signer) {
+        return enqueue(null, inboxNode, signer);
     }
 
     @PostMapping("/users/{id}/inbox")
-    public Mono<String> usersInbox(@PathVariable String id, @RequestBody JsonNode inboxNode) {
-        String requestType = inboxNode.get("type").asText();
-        // follow or unfollow requests from other or same instances
-        switch (requestType) {
-            case "Follow" -> {
-                return accountService.followerHandler(id, inboxNode, false);
-            }
-            case "Undo" -> {
-                return accountService.followerHandler(id, inboxNode, true);
-            }
-            case "Accept" -> {
-                return accountService.acceptHandler(id, inboxNode);
-            }
-            default -> {
-                return Mono.empty();
-            }
-        }
+    public Mono<ResponseEntity<Object>> usersInbox(
+            @PathVariable String id,
+            @RequestAttribute(name = HttpSignatureWebFilter.ACTIVITY_ATTRIBUTE, required = false) JsonNode inboxNode,
+            @RequestAttribute(name = HttpSignatureWebFilter.SIGNER_ATTRIBUTE, required = false) String signer) {
+        return enqueue(id, inboxNode, signer);
+    }
+
+    private Mono<ResponseEntity<Object>> enqueue(String target, JsonNode inboxNode, String signer) {
+        if (inboxNode == null) return Mono.just(ResponseEntity.badRequest().build());
+        return inboxJobService.enqueue(target, inboxNode, signer).thenReturn(ResponseEntity.accepted().build());
     }
 
     @GetMapping("/users/{id}/following")
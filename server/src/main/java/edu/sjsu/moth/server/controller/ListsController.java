@@ -7,6 +7,7 @@ import edu.sjsu.moth.server.db.StatusRepository;
 import edu.sjsu.moth.server.db.UserList;
 import edu.sjsu.moth.server.db.UserListRepository;
 import edu.sjsu.moth.server.service.AccountService;
+import edu.sjsu.moth.server.service.StatusHydrationService;
 import edu.sjsu.moth.server.util.Util;
 import edu.sjsu.moth.util.EmailCodeUtils;
 import org.springframework.http.HttpStatus;
@@ -35,13 +36,16 @@ public class ListsController {
     private final AccountRepository accountRepository;
     private final AccountService accountService;
     private final StatusRepository statusRepository;
+    private final StatusHydrationService statusHydrationService;
 
     public ListsController(UserListRepository userListRepository, AccountRepository accountRepository,
-                           AccountService accountService, StatusRepository statusRepository) {
+                           AccountService accountService, StatusRepository statusRepository,
+                           StatusHydrationService statusHydrationService) {
         this.userListRepository = userListRepository;
         this.accountRepository = accountRepository;
         this.accountService = accountService;
         this.statusRepository = statusRepository;
+        this.statusHydrationService = statusHydrationService;
     }
 
     public record ListResponse(String id, String title, String replies_policy, boolean exclusive) {
@@ -257,15 +261,16 @@ public class ListsController {
         int cappedLimit = Util.clamp(limit, 1, 40);
         return accountService.getAccount(user.getName())
                 .flatMap(acct -> userListRepository.findById(id)
-                        .filter(list -> list.owner_id.equals(acct.id)))
-                .flatMap(list -> {
-                    if (list.account_ids.isEmpty()) {
-                        return Mono.just(List.<Status>of());
-                    }
-                    return statusRepository.findByAccountIdIn(list.account_ids)
-                            .take(cappedLimit)
-                            .collectList();
-                })
+                        .filter(list -> list.owner_id.equals(acct.id))
+                        .flatMap(list -> {
+                            if (list.account_ids.isEmpty()) {
+                                return Mono.just(List.<Status>of());
+                            }
+                            return statusRepository.findByAccountIdIn(list.account_ids)
+                                    .take(cappedLimit)
+                                    .collectList()
+                                    .flatMap(statuses -> statusHydrationService.hydrate(acct.id, statuses));
+                        }))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
@@ -1,12 +1,19 @@
 package edu.sjsu.moth.server.controller;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import edu.sjsu.moth.generated.MediaAttachment;
+import edu.sjsu.moth.server.service.MediaProcessingService;
 import edu.sjsu.moth.server.service.MediaService;
 import edu.sjsu.moth.server.util.Util;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.multipart.PartEvent;
@@ -14,15 +21,21 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.imageio.ImageIO;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Principal;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -32,114 +45,212 @@ public class MediaController {
 
     @Autowired
     MediaService mediaService;
+    @Autowired
+    MediaProcessingService mediaProcessingService;
+
+    // a stored file never changes, its name is derived from a unique id
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable();
+
+    private static boolean notModified(HttpHeaders request, String etag, Instant lastModified) {
+        var ifNoneMatch = request.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            // If-None-Match uses the weak comparison
+            return ifNoneMatch.stream().anyMatch(tag -> tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag));
+        }
+        long ifModifiedSince = request.getIfModifiedSince();
+        return ifModifiedSince != -1 && lastModified.getEpochSecond() <= ifModifiedSince / 1000;
+    }
+
+    // a Range only applies if the representation it was computed against is still the one we have
+    private static boolean ifRangeMatches(HttpHeaders request, String etag, Instant lastModified) {
+        var ifRange = request.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+        try {
+            return lastModified.getEpochSecond() == request.getFirstDate(HttpHeaders.IF_RANGE) / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
 
-    private Mono<ResponseEntity<Flux<DataBuffer>>> generateResponseFromGridFSResource(MediaService.GridFSStream gfs) {
-        return Mono.just(ResponseEntity.ok().contentType(
-                        MediaType.parseMediaType(gfs.file().getMetadata().get("_contentType").toString()))
-                                 .contentLength(gfs.file().getLength()).body(gfs.fdb()));
+    /**
+     * serve a GridFS file with validators, immutable caching, and a single byte range if one was asked for. multiple
+     * ranges and invalid Range headers get the whole file, which RFC 9110 allows.
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> serve(String fileName, HttpHeaders request) {
+        return mediaService.findMedia(fileName).map(file -> {
+            var etag = MediaService.etagOf(file);
+            var lastModified = file.getUploadDate().toInstant();
+            if (notModified(request, etag, lastModified)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).lastModified(lastModified)
+                        .cacheControl(IMMUTABLE).<Flux<DataBuffer>>build();
+            }
+            long length = file.getLength();
+            List<HttpRange> ranges;
+            try {
+                ranges = request.getRange();
+            } catch (IllegalArgumentException e) {
+                ranges = List.of();
+            }
+            long start = 0, end = length - 1;
+            boolean partial = ranges.size() == 1 && ifRangeMatches(request, etag, lastModified);
+            if (partial) {
+                start = ranges.get(0).getRangeStart(length);
+                end = ranges.get(0).getRangeEnd(length);
+                if (start >= length || start > end) {
+                    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).<Flux<DataBuffer>>build();
+                }
+            }
+            var response = ResponseEntity.status(partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK).eTag(etag)
+                    .lastModified(lastModified).cacheControl(IMMUTABLE).header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentType(MediaType.parseMediaType(file.getMetadata().get("_contentType").toString()))
+                    .contentLength(end - start + 1);
+            if (partial) response.header(HttpHeaders.CONTENT_RANGE, "bytes %d-%d/%d".formatted(start, end, length));
+            return response.body(mediaService.readRange(file, start, end));
+        }).defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
     @GetMapping("/media/attachments/uploads/{id}")
-    Mono<ResponseEntity<Flux<DataBuffer>>> getMediaAttachment(@PathVariable long id) {
-        return mediaService.getMongoFileInputStreamResource(mediaService.uploadFileNameFromId(id))
-                .flatMap(this::generateResponseFromGridFSResource);
+    Mono<ResponseEntity<Flux<DataBuffer>>> getMediaAttachment(@PathVariable long id,
+                                                              @RequestHeader HttpHeaders headers) {
+        return serve(mediaService.uploadFileNameFromId(id), headers);
     }
 
     @GetMapping("/media/attachments/uploads/{id}/preview")
-    Mono<ResponseEntity<Flux<DataBuffer>>> getMediaAttachmentPreview(@PathVariable long id) {
-        return mediaService.getMongoFileInputStreamResource(mediaService.uploadPreviewNameFromId(id))
-                .flatMap(this::generateResponseFromGridFSResource);
+    Mono<ResponseEntity<Flux<DataBuffer>>> getMediaAttachmentPreview(@PathVariable long id,
+                                                                     @RequestHeader HttpHeaders headers) {
+        return serve(mediaService.uploadPreviewNameFromId(id), headers);
     }
 
     @PostMapping(value = "/api/v2/media", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
     Mono<ResponseEntity<MediaAttachment>> postApiV2Media(Principal user, @RequestBody Flux<PartEvent> allPartsEvents) {
+        if (user == null) return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
         var id = Util.generateUniqueId();
         var fileName = mediaService.uploadFileNameFromId(id);
         var filePreviewName = mediaService.uploadPreviewNameFromId(id);
 
         // this is super tricky since everything comes in in pieces. it's more convenient to use @RequestParts
         // but that causes the creation of temporary files on upload. instead we will reconstruct the structures
-        // ourselves. ctx keeps track of what we glean and the bytes that are getting uploaded.
-        // NOTE: we will have at most one file in memory at a time.
+        // ourselves: the events are split into one window per part, and files are streamed straight into GridFS.
+        // ctx keeps track of what we glean along the way.
+        // NOTE: nothing bigger than MediaService.HEAD_BYTES of an upload is in memory at a time.
         var ctx = new UploadContext();
-        return allPartsEvents.flatMap(pe -> {
-            switch (pe.name()) {
-                case "description" -> ctx.description = ctx.description;
-                case "focus" -> {
-                    var parts = pe.content().toString(UTF_8).split(",");
+        // whatever was stored goes away if the upload fails or the client gives up part way
+        var stored = List.of(fileName, filePreviewName);
+        return allPartsEvents.windowUntil(PartEvent::isLast).concatMap(part -> part.switchOnFirst((first, events) -> {
+            if (!first.hasValue()) return events.then(Mono.<String>empty());
+            var pe = first.get();
+            return switch (pe.name()) {
+                case "description" -> text(events).doOnNext(description -> ctx.description = description)
+                        .then(Mono.empty());
+                case "focus" -> text(events).doOnNext(focus -> {
+                    var parts = focus.split(",");
                     ctx.meta.put("focus", Map.of("x", Integer.parseInt(parts[0]), "y", Integer.parseInt(parts[1])));
-                }
-                case "file" -> {
-                    return processFileUpload(ctx, "original", fileName, pe);
-                }
-                case "thumbnail" -> {
-                    return processFileUpload(ctx, "small", filePreviewName, pe);
-                }
-            }
-            return Mono.empty();
-        }).collectList().flatMap(m -> {
+                }).then(Mono.empty());
+                case "file" -> processFileUpload(ctx, "original", fileName, pe.headers(), events);
+                case "thumbnail" -> processFileUpload(ctx, "small", filePreviewName, pe.headers(), events);
+                default -> text(events).then(Mono.empty());
+            };
+        })).collectList().flatMap(m -> {
             if (!m.contains("original")) return Mono.error(new IOException("no file was uploaded"));
             var attachment =
-                    new FillableMediaAttachment(id, fileName, m.contains("small") ? filePreviewName : "", ctx.meta,
+                    new FillableMediaAttachment(id, m.contains("small") ? filePreviewName : "", ctx.meta,
                                                 ctx.description, ctx.type);
-            // this is a hack that takes advantage of the hope that an attachment upload will proceed a status
-            // post within a few minutes. we need to map the media id to the MediaAttachments
-            // TODO: create a media attachments collection
-            mediaService.cacheAttachment(Long.toString(id), attachment);
-            return Mono.just(ResponseEntity.ok(attachment));
+            // the upload is recorded before we answer, so the id can be attached on any node at any time
+            return mediaService.saveUpload(user.getName(), attachment, stored).map(upload -> {
+                ctx.saved = true;
+                // the url shows up once the preview and blurhash are done, clients poll GET /api/v1/media/:id
+                mediaProcessingService.process(attachment, fileName, MothController.BASE_URL + fileName,
+                                               m.contains("small") ? null : filePreviewName,
+                                               MothController.BASE_URL + filePreviewName).subscribe();
+                return ResponseEntity.status(HttpStatus.ACCEPTED).<MediaAttachment>body(attachment);
+            });
+        }).onErrorResume(e -> discard(stored).then(Mono.error(e))).doOnCancel(() -> {
+            // once the upload is recorded its files belong to it, even if the client does not wait for the answer
+            if (!ctx.saved) discard(stored).subscribe();
+        });
+    }
+
+    // a failed delete must not hide why the upload failed
+    private Mono<Long> discard(List<String> fileNames) {
+        return mediaService.deleteMedia(fileNames).onErrorResume(e -> Mono.empty());
+    }
+
+    // https://docs.joinmastodon.org/methods/media/#get
+    @GetMapping("/api/v1/media/{id}")
+    Mono<ResponseEntity<MediaAttachment>> getApiV1Media(@PathVariable String id) {
+        // 206 means it is still being processed
+        return mediaService.lookupUpload(id).map(upload -> ResponseEntity.status(
+                        upload.attachment.url == null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .body(upload.attachment)).defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    // the value of a form field, they are small so we can join them
+    private static Mono<String> text(Flux<PartEvent> events) {
+        return DataBufferUtils.join(events.map(PartEvent::content)).map(buffer -> {
+            try {
+                return buffer.toString(UTF_8);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
         });
     }
 
     // we use the same logic for the file and preview, the only differences are the file name the key that we are going
     // to use to store the meta data about the file in the media attachment (tracked in ctx)
-    private Mono<String> processFileUpload(UploadContext ctx, String metaKey, String fileName, PartEvent pe) {
-        try {
-            if (ctx.bytesInProcess == null) {
-                // if bytesInProcess is null, the is the first part of a new file
-                if (pe.headers().getContentLength() > InstanceController.IMAGE_SIZE_LIMIT) {
-                    return Mono.error(
-                            new RuntimeException("Upload bigger than " + InstanceController.IMAGE_SIZE_LIMIT));
-                }
-                // we checked the limit earlier so we know we can cast to an int
-                ctx.bytesInProcess = new byte[(int) pe.headers().getContentLength()];
-                ctx.inProcessOffset = 0;
-            }
-            int count = pe.content().readableByteCount();
-            pe.content().read(ctx.bytesInProcess, ctx.inProcessOffset, count);
-            ctx.inProcessOffset += count;
-            if (pe.isLast()) {
-                if (pe.content().readableByteCount() > InstanceController.IMAGE_SIZE_LIMIT) {
-                    return Mono.error(new RuntimeException("image size larger than %dM".formatted(
-                            InstanceController.IMAGE_SIZE_LIMIT / InstanceController.MEG)));
-                }
-                ctx.meta.put(metaKey, processContent(ctx.bytesInProcess, pe.headers().getContentType()));
-                ctx.type = pe.headers().getContentType().getType();
-                ctx.contentType = pe.headers().getContentType();
-
-                var db = new DefaultDataBufferFactory().wrap(ctx.bytesInProcess);
-                // reset for the next upload
-                ctx.bytesInProcess = null;
-                return mediaService.storeMedia(ctx.contentType.toString(), metaKey, fileName, db);
-            }
-        } catch (IOException e) {
-            return Mono.error(e);
+    private Mono<String> processFileUpload(UploadContext ctx, String metaKey, String fileName, HttpHeaders headers,
+                                           Flux<PartEvent> events) {
+        var contentType = headers.getContentType();
+        if (contentType == null || !"image".equals(contentType.getType())) {
+            return Mono.error(new RuntimeException("Cannot handle content: " + contentType));
         }
-        // not last, so there is more to come!
-        return Mono.empty();
+        // the declared length is only a hint, the limit is enforced on the bytes as they arrive
+        if (headers.getContentLength() > InstanceController.IMAGE_SIZE_LIMIT) {
+            return Mono.error(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                                                          "image size larger than %dM".formatted(
+                                                                  InstanceController.IMAGE_SIZE_LIMIT /
+                                                                          InstanceController.MEG)));
+        }
+        return mediaService.storeMedia(contentType.toString(), fileName, events.map(PartEvent::content),
+                                       InstanceController.IMAGE_SIZE_LIMIT)
+                .flatMap(stored -> processContent(fileName, stored.head(), contentType)).map(meta -> {
+                    ctx.meta.put(metaKey, meta);
+                    ctx.type = contentType.getType();
+                    ctx.contentType = contentType;
+                    return metaKey;
+                });
     }
 
-    // extracts key meta-data for the media
+    // the start of the file has the headers of nearly every image. when it does not, say a JPEG with a big EXIF
+    // thumbnail, the stored file is read until the reader has what it needs
+    private Mono<Map<String, Object>> processContent(String fileName, byte[] head, MediaType contentType) {
+        return Mono.fromCallable(() -> processContent(new ByteArrayInputStream(head), contentType))
+                .onErrorResume(IOException.class, e -> head.length < MediaService.HEAD_BYTES ? Mono.error(e) :
+                        mediaService.readMedia(fileName, input -> processContent(input, contentType)));
+    }
+
+    // extracts key meta-data for the media from its headers
     // see https://docs.joinmastodon.org/entities/MediaAttachment/
-    private Map<String, Object> processContent(byte[] content, MediaType contentType) throws IOException {
+    private Map<String, Object> processContent(InputStream content, MediaType contentType) throws IOException {
         if ("image".equals(contentType.getType())) {
-            var image = ImageIO.read(new ByteArrayInputStream(content));
-            if (image != null) {
-                if (image.getHeight() * image.getHeight() > InstanceController.IMAGE_MATRIX_LIMIT)
-                    throw new RuntimeException("image matrix larger than %dM".formatted(
-                            InstanceController.IMAGE_MATRIX_LIMIT / InstanceController.MEG));
-                return Map.of("width", image.getWidth(), "height", image.getHeight(), "size",
-                              image.getWidth() + "x" + image.getHeight(), "aspect",
-                              (float) image.getWidth() / (float) image.getHeight());
+            try (var input = ImageIO.createImageInputStream(content)) {
+                var readers = input == null ? null : ImageIO.getImageReaders(input);
+                if (readers != null && readers.hasNext()) {
+                    var reader = readers.next();
+                    try {
+                        reader.setInput(input, true, true);
+                        int width = reader.getWidth(0);
+                        int height = reader.getHeight(0);
+                        if ((long) width * height > InstanceController.IMAGE_MATRIX_LIMIT)
+                            throw new RuntimeException("image matrix larger than %dM".formatted(
+                                    InstanceController.IMAGE_MATRIX_LIMIT / InstanceController.MEG));
+                        return Map.of("width", width, "height", height, "size", width + "x" + height, "aspect",
+                                      (float) width / (float) height);
+                    } finally {
+                        reader.dispose();
+                    }
+                }
             }
         }
         throw new RuntimeException("Cannot handle content: " + contentType);
@@ -152,9 +263,8 @@ public class MediaController {
          * the first part of the MIME content type: image, video, audio (gifv is an outlier and not yet supported)
          */
         String type;
-        byte[] bytesInProcess;
-        int inProcessOffset;
         Map<String, Object> meta = new HashMap<>();
+        volatile boolean saved;
     }
 
     // this is a big pain! FillableMediaAttachment is supposed to be a helper class.
@@ -167,17 +277,23 @@ public class MediaController {
         // as FillableMediaAttachment rather than MediaAttachment!
         public FillableMediaAttachment() {}
 
-        FillableMediaAttachment(long id, String fileName, String previewFileName, Map<String, Object> meta,
-                                String description, String type) {
+        // url stays null until MediaProcessingService is done with the upload
+        FillableMediaAttachment(long id, String previewFileName, Map<String, Object> meta, String description,
+                                String type) {
             this.id = Long.toString(id);
-            this.url = MothController.BASE_URL + fileName;
-            this.previewUrl = meta.containsKey("small") ? MothController.BASE_URL + previewFileName : url;
+            this.previewUrl = meta.containsKey("small") ? MothController.BASE_URL + previewFileName : null;
             this.meta = meta;
             this.description = description == null ? "" : description;
-            this.blurhash = "";
             this.type = type;
         }
 
+        // clients look for "url": null to know that the media is still being processed
+        @JsonInclude(JsonInclude.Include.ALWAYS)
+        @JsonProperty("url")
+        public String getUrl() {
+            return url;
+        }
+
         public String toString() {
             return "FillableMediaAttachment: " + id + " " + url;
         }
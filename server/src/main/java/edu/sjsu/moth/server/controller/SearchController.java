@@ -4,6 +4,7 @@ import edu.sjsu.moth.generated.SearchResult;
 import edu.sjsu.moth.server.service.AccountService;
 import edu.sjsu.moth.server.service.ActorService;
 import edu.sjsu.moth.server.service.BackfillService;
+import edu.sjsu.moth.server.service.StatusHydrationService;
 import edu.sjsu.moth.server.service.StatusService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -28,6 +29,9 @@ public class SearchController {
     @Autowired
     BackfillService backfillService;
 
+    @Autowired
+    StatusHydrationService statusHydrationService;
+
     @GetMapping("api/v2/search")
     // DOCS FOR SPECS --> https://docs.joinmastodon.org/methods/search/
     public Mono<SearchResult> doSearch(@RequestParam("q") String query, Principal user, // user sending request, must
@@ -41,6 +45,13 @@ public class SearchController {
                                        @RequestParam(required = false) String min_id,
                                        @RequestParam(required = false) Integer limit,
                                        @RequestParam(required = false) Integer offset) {
+        return search(query, user, type, resolve, following, account_id, max_id, min_id, limit, offset).flatMap(
+                result -> statusHydrationService.hydrate(user, result.statuses).thenReturn(result));
+    }
+
+    private Mono<SearchResult> search(String query, Principal user, String type, Boolean resolve, Boolean following,
+                                      String account_id, String max_id, String min_id, Integer limit,
+                                      Integer offset) {
         SearchResult result = new SearchResult();
         if (query.length() < 3) {
             return Mono.just(result);
@@ -7,6 +7,7 @@ import edu.sjsu.moth.generated.StatusSource;
 import edu.sjsu.moth.server.db.Account;
 import edu.sjsu.moth.server.service.AccountService;
 import edu.sjsu.moth.server.service.MediaService;
+import edu.sjsu.moth.server.service.StatusHydrationService;
 import edu.sjsu.moth.server.service.StatusService;
 import edu.sjsu.moth.server.util.Util;
 import edu.sjsu.moth.util.EmailCodeUtils;
@@ -37,12 +38,15 @@ public class StatusController {
     private final StatusService statusService;
     private final AccountService accountService;
     private final MediaService mediaService;
+    private final StatusHydrationService statusHydrationService;
     private final Logger LOG = Logger.getLogger(StatusController.class.getName());
 
-    public StatusController(StatusService statusService, AccountService accountService, MediaService mediaService) {
+    public StatusController(StatusService statusService, AccountService accountService, MediaService mediaService,
+                            StatusHydrationService statusHydrationService) {
         this.statusService = statusService;
         this.accountService = accountService;
         this.mediaService = mediaService;
+        this.statusHydrationService = statusHydrationService;
     }
 
     // Status Editing:
@@ -68,28 +72,20 @@ public class StatusController {
     @GetMapping("/api/v1/statuses/{id}")
     Mono<ResponseEntity<Status>> getApiV1StatusById(Principal user, @PathVariable String id) {
         return statusService.findStatusById(id)
-                .flatMap(status -> {
-                    if (user != null) {
-                        return accountService.getAccount(user.getName())
-                                .flatMap(acct -> statusService.hasUserFavourited(acct.id, id)
-                                        .flatMap(favourited -> statusService.hasUserReblogged(acct.id, id)
-                                                .map(reblogged -> {
-                                                    status.favourited = favourited;
-                                                    status.reblogged = reblogged;
-                                                    return status;
-                                                })))
-                                .switchIfEmpty(Mono.just(status));
-                    }
-                    return Mono.just(status);
-                })
+                .flatMap(status -> statusHydrationService.hydrate(user, status))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
     // Get previous and after statuses in thread
     @GetMapping("/api/v1/statuses/{id}/context")
-    Mono<ResponseEntity<Object>> getApiV1StatusContext(@PathVariable String id) {
+    Mono<ResponseEntity<Object>> getApiV1StatusContext(Principal user, @PathVariable String id) {
         return statusService.getStatusContext(id)
+                .flatMap(context -> {
+                    var all = new ArrayList<>(context.ancestors());
+                    all.addAll(context.descendants());
+                    return statusHydrationService.hydrate(user, all).thenReturn(context);
+                })
                 .map(context -> ResponseEntity.ok((Object) Map.of(
                         "ancestors", context.ancestors(),
                         "descendants", context.descendants())))
@@ -119,7 +115,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.favourite(acct.id, id))
+                .flatMap(acct -> statusService.favourite(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -132,7 +129,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.unfavourite(acct.id, id))
+                .flatMap(acct -> statusService.unfavourite(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -146,7 +144,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.reblog(acct.id, id, visibility))
+                .flatMap(acct -> statusService.reblog(acct.id, id, visibility)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -159,7 +158,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.unreblog(acct.id, id))
+                .flatMap(acct -> statusService.unreblog(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -196,7 +196,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.bookmark(acct.id, id))
+                .flatMap(acct -> statusService.bookmark(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -209,7 +210,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.unbookmark(acct.id, id))
+                .flatMap(acct -> statusService.unbookmark(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -222,7 +224,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.pin(acct.id, id))
+                .flatMap(acct -> statusService.pin(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.unprocessableEntity().build()));
     }
@@ -235,7 +238,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.unpin(acct.id, id))
+                .flatMap(acct -> statusService.unpin(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -248,7 +252,8 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.muteConversation(acct.id, id))
+                .flatMap(acct -> statusService.muteConversation(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
@@ -261,11 +266,38 @@ public class StatusController {
         }
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName())))
-                .flatMap(acct -> statusService.unmuteConversation(acct.id, id))
+                .flatMap(acct -> statusService.unmuteConversation(acct.id, id)
+                        .flatMap(status -> statusHydrationService.hydrate(acct.id, status)))
                 .map(ResponseEntity::ok)
                 .onErrorResume(e -> Mono.just(ResponseEntity.notFound().build()));
     }
 
+    // the media that user uploaded as mediaIds, in the order given. empty if some of it has not finished processing.
+    private Mono<List<MediaAttachment>> mediaAttachments(Principal user, String[] mediaIds) {
+        if (mediaIds == null || mediaIds.length == 0) return Mono.just(List.of());
+        return mediaService.lookupUploads(List.of(mediaIds)).flatMap(uploads -> {
+            var mediaAttachments = new ArrayList<MediaAttachment>();
+            for (var id : mediaIds) {
+                var upload = uploads.get(id);
+                if (upload == null || !user.getName().equals(upload.owner)) continue;
+                if (upload.attachment.url == null) return Mono.empty();
+                mediaAttachments.add(upload.attachment);
+            }
+            return Mono.just(mediaAttachments);
+        });
+    }
+
+    // save status, and keep the uploads it has from being swept
+    private Mono<Status> saveWithMedia(Status status) {
+        return statusService.save(status).flatMap(saved -> mediaService.attachUploads(
+                saved.mediaAttachments.stream().map(attachment -> attachment.id).toList(), saved.id).thenReturn(saved));
+    }
+
+    private static ResponseEntity<Object> stillProcessing() {
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(new AppController.ErrorResponse(
+                "Cannot attach files that have not finished processing. Try again in a moment!"));
+    }
+
     // defined in https://docs.joinmastodon.org/methods/statuses/
     // in that reference it looks like parameters come as form parameters, but in practice they
     // come in as JSON
@@ -291,21 +323,17 @@ public class StatusController {
                                      .body(new AppController.ErrorResponse("scheduled posts are not supported")));
         }
 
-        return accountService.getAccount(user.getName())
-                .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName()))).flatMap(acct -> {
-                    var mediaAttachments = new ArrayList<MediaAttachment>();
-                    if (body.media_ids != null) for (var id : body.media_ids) {
-                        var attachment = mediaService.lookupCachedAttachment(id);
-                        if (attachment != null) mediaAttachments.add(attachment);
-                    }
+        var name = user.getName();
+        return mediaAttachments(user, body.media_ids).flatMap(mediaAttachments -> accountService.getAccount(name)
+                .switchIfEmpty(Mono.error(new UsernameNotFoundException(name))).flatMap(acct -> {
                     // generate a numeric ID for the status
                     var status = new Status(Long.toString(Util.generateUniqueId()), EmailCodeUtils.now(), body.in_reply_to_id, null, body.sensitive,
                                             body.spoiler_text == null ? "" : body.spoiler_text, body.visibility,
                                             body.language, null, null, 0, 0, 0, false, false, false, false, body.status,
                                             null, null, acct, mediaAttachments, new ArrayList<>(), List.of(), List.of(),
                                             null, null, body.status, EmailCodeUtils.now());
-                    return statusService.save(status).map(ResponseEntity::ok);
-                });
+                    return saveWithMedia(status).map(ResponseEntity::<Object>ok);
+                })).switchIfEmpty(Mono.fromSupplier(StatusController::stillProcessing));
     }
 
     @PostMapping(value = "/api/v1/statuses", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -337,13 +365,9 @@ public class StatusController {
                                      .body(new AppController.ErrorResponse("scheduled posts are not supported")));
         }
 
-        return accountService.getAccount(user.getName())
-                .switchIfEmpty(Mono.error(new UsernameNotFoundException(user.getName()))).flatMap(acct -> {
-                    var mediaAttachments = new ArrayList<MediaAttachment>();
-                    if (media_ids != null) for (var id : media_ids) {
-                        var attachment = mediaService.lookupCachedAttachment(id);
-                        if (attachment != null) mediaAttachments.add(attachment);
-                    }
+        var name = user.getName();
+        return mediaAttachments(user, media_ids).flatMap(mediaAttachments -> accountService.getAccount(name)
+                .switchIfEmpty(Mono.error(new UsernameNotFoundException(name))).flatMap(acct -> {
                     // generate a numeric ID for the status
                     var s = new Status(Long.toString(Util.generateUniqueId()), EmailCodeUtils.now(), in_reply_to_id, null,
                                        sensitive != null && sensitive.equals("true"),
@@ -351,8 +375,8 @@ public class StatusController {
                                        0, false, false, false, false, status, null, null, acct, mediaAttachments,
                                        new ArrayList<>(), List.of(), List.of(), null, null, status,
                                        EmailCodeUtils.now());
-                    return statusService.save(s).map(ResponseEntity::ok);
-                });
+                    return saveWithMedia(s).map(ResponseEntity::<Object>ok);
+                })).switchIfEmpty(Mono.fromSupplier(StatusController::stillProcessing));
     }
 
     // Handle form-urlencoded, query params, and empty content-type
@@ -462,7 +486,11 @@ public class StatusController {
                                                              @RequestParam(required = false) String min_id,
                                                              @RequestParam(required = false, defaultValue = "20")
                                                              int limit) {
-        return statusService.getHomeTimeline(user, max_id, since_id, min_id, limit, true).map(ResponseEntity::ok);
+        return statusService.getHomeTimeline(user, max_id, since_id, min_id, limit, true)
+                .flatMap(statuses -> statusHydrationService.hydrate(user, statuses)).map(
+                statuses -> ResponseEntity.ok().headers(
+                        Util.timelineLinkHeaders("/api/v1/timelines/home", statuses.stream().map(s -> s.id).toList(),
+                                                 limit, Map.of())).body(statuses));
     }
 
     // spec: https://docs.joinmastodon.org/methods/accounts/#statuses
@@ -480,24 +508,26 @@ public class StatusController {
         // If the id already looks like a remote handle, go through the remote path
         if (id.contains("@")) {
             return statusService.getStatusesForId(user, id, max_id, since_id, min_id, only_media, exclude_replies,
-                                                  exclude_reblogs, pinned, tagged, limit).map(ResponseEntity::ok);
+                                                  exclude_reblogs, pinned, tagged, limit)
+                    .flatMap(statuses -> statusHydrationService.hydrate(user, statuses)).map(ResponseEntity::ok);
         }
 
         return accountService.getAccountByIdOrAcct(id)
                 .flatMap(acct -> statusService.getStatusesForId(user, acct.username, max_id, since_id, min_id,
                                                                 only_media, exclude_replies, exclude_reblogs, pinned,
                                                                 tagged, limit))
+                .flatMap(statuses -> statusHydrationService.hydrate(user, statuses))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
     @GetMapping("/api/v1/trends/statuses")
-    Mono<ResponseEntity<List<Status>>> getApiV1TrendingStatuses(
+    Mono<ResponseEntity<List<Status>>> getApiV1TrendingStatuses(Principal user,
             @RequestParam(required = false, defaultValue = "0") int offset,
             @RequestParam(required = false, defaultValue = "20") int limit) {
         // spec caps trends at 40; negative values would throw inside skip/take
         return statusService.getAllStatuses(Math.max(0, offset), Util.clamp(limit, 1, 40)).collectList()
-                .map(ResponseEntity::ok);
+                .flatMap(statuses -> statusHydrationService.hydrate(user, statuses)).map(ResponseEntity::ok);
     }
 
     public static class V1PostStatus {
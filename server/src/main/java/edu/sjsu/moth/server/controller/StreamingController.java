@@ -0,0 +1,65 @@
+package edu.sjsu.moth.server.controller;
+
+import edu.sjsu.moth.server.service.StreamingService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * server sent event flavor of the streaming api. the websocket flavor is StreamingWebSocketHandler.
+ * spec: https://docs.joinmastodon.org/methods/streaming/
+ */
+@RestController
+public class StreamingController {
+    private static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(15);
+    private final StreamingService streamingService;
+
+    public StreamingController(StreamingService streamingService) {
+        this.streamingService = streamingService;
+    }
+
+    @GetMapping("/api/v1/streaming/health")
+    Mono<String> getApiV1StreamingHealth() {
+        return Mono.just("OK");
+    }
+
+    // the stream name is the path with : instead of /, e.g. /api/v1/streaming/public/local is public:local
+    @GetMapping(path = { "/api/v1/streaming/{stream}", "/api/v1/streaming/{stream}/{substream}" },
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    Flux<ServerSentEvent<String>> getApiV1Streaming(Principal user, @PathVariable String stream,
+                                                    @PathVariable(required = false) String substream,
+                                                    @RequestParam(required = false) String tag,
+                                                    @RequestParam(required = false) String list,
+                                                    @RequestParam(required = false) String access_token) {
+        var name = substream == null ? stream : stream + ":" + substream;
+        return streamingService.viewerAccountId(user, access_token).map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(viewer -> streamingService.resolve(name, tag, list, viewer.orElse(null)).switchIfEmpty(
+                        Mono.error(new ResponseStatusException(
+                                viewer.isPresent() ? HttpStatus.NOT_FOUND : HttpStatus.UNAUTHORIZED))))
+                .flatMapMany(target -> {
+                    // the payload is already json, so it is written as is
+                    var subscriber = new StreamingService.Subscriber<>(
+                            (event, s) -> ServerSentEvent.builder(event.payload).event(event.event).build());
+                    streamingService.subscribe(subscriber, target);
+                    // the heartbeat stops once the subscriber has been disconnected so that the response completes
+                    var heartbeat = Flux.interval(HEARTBEAT_INTERVAL).takeWhile(i -> !subscriber.isClosed())
+                            .map(i -> ServerSentEvent.<String>builder().comment("thump").build());
+                    return subscriber.flux().mergeWith(heartbeat).doFinally(signal -> {
+                                subscriber.close();
+                                streamingService.unsubscribeAll(subscriber);
+                            });
+                });
+    }
+}
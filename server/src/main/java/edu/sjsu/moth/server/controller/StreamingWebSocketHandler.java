@@ -0,0 +1,78 @@
+package edu.sjsu.moth.server.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.service.StreamingService;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * websocket flavor of the streaming api, mapped to /api/v1/streaming by StreamingWebSocketConfiguration. a
+ * connection can carry several streams: the initial one from the stream query parameter and any that the client
+ * adds with {"type": "subscribe", "stream": ...} messages.
+ * spec: https://docs.joinmastodon.org/methods/streaming/#websocket
+ */
+@Component
+@CommonsLog
+public class StreamingWebSocketHandler implements WebSocketHandler {
+    private final StreamingService streamingService;
+    private final ObjectMapper objectMapper;
+
+    public StreamingWebSocketHandler(StreamingService streamingService, ObjectMapper objectMapper) {
+        this.streamingService = streamingService;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        var params = UriComponentsBuilder.fromUri(session.getHandshakeInfo().getUri()).build().getQueryParams();
+        var token = params.getFirst("access_token");
+        var authorization = session.getHandshakeInfo().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (token == null && authorization != null && authorization.startsWith("Bearer ")) {
+            token = authorization.substring("Bearer ".length());
+        }
+        var subscriber = new StreamingService.Subscriber<>((event, stream) -> event.frame(stream));
+
+        return streamingService.viewerAccountId(null, token).map(Optional::of).defaultIfEmpty(Optional.empty())
+                .flatMap(viewer -> {
+                    var accountId = viewer.orElse(null);
+                    var initial = streamingService.resolve(params.getFirst("stream"), params.getFirst("tag"),
+                                                           params.getFirst("list"), accountId)
+                            .doOnNext(target -> streamingService.subscribe(subscriber, target));
+                    var commands = session.receive().map(WebSocketMessage::getPayloadAsText)
+                            .concatMap(text -> command(subscriber, accountId, text)).then();
+                    var output = session.send(subscriber.flux().map(session::textMessage));
+                    // whichever side finishes first (client went away, or we disconnected a slow client) ends both
+                    return initial.then(Mono.firstWithSignal(commands, output));
+                }).doFinally(signal -> {
+                    subscriber.close();
+                    streamingService.unsubscribeAll(subscriber);
+                });
+    }
+
+    private Mono<Void> command(StreamingService.Subscriber<String> subscriber, String accountId, String text) {
+        JsonNode message;
+        try {
+            message = objectMapper.readTree(text);
+        } catch (Exception e) {
+            log.debug("ignoring unparseable streaming message: " + text);
+            return Mono.empty();
+        }
+        var type = message.path("type").asText();
+        var target = streamingService.resolve(message.path("stream").asText(null), message.path("tag").asText(null),
+                                              message.path("list").asText(null), accountId);
+        return switch (type) {
+            case "subscribe" -> target.doOnNext(t -> streamingService.subscribe(subscriber, t)).then();
+            case "unsubscribe" -> target.doOnNext(t -> streamingService.unsubscribe(subscriber, t)).then();
+            default -> Mono.empty();
+        };
+    }
+}
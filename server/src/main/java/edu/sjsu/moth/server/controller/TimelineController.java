@@ -3,8 +3,10 @@ package edu.sjsu.moth.server.controller;
 import edu.sjsu.moth.generated.Marker;
 import edu.sjsu.moth.generated.Status;
 import edu.sjsu.moth.server.db.StatusRepository;
+import edu.sjsu.moth.server.service.StatusHydrationService;
 import edu.sjsu.moth.server.service.StatusService;
 import edu.sjsu.moth.server.service.TimelineService;
+import edu.sjsu.moth.server.util.Util;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -24,12 +26,14 @@ public class TimelineController {
     private final StatusService statusService;
     private final TimelineService timelineService;
     private final StatusRepository statusRepository;
+    private final StatusHydrationService statusHydrationService;
 
     public TimelineController(StatusService statusService, TimelineService timelineService,
-                              StatusRepository statusRepository) {
+                              StatusRepository statusRepository, StatusHydrationService statusHydrationService) {
         this.statusService = statusService;
         this.timelineService = timelineService;
         this.statusRepository = statusRepository;
+        this.statusHydrationService = statusHydrationService;
     }
 
     @GetMapping("/api/v1/markers")
@@ -55,7 +59,12 @@ public class TimelineController {
                                                              @RequestParam(required = false) boolean local,
                                                              @RequestParam(required = false, defaultValue = "20")
                                                              int limit) {
-        return statusService.getPublicTimeline(user, max_id, since_id, min_id, limit, local).map(ResponseEntity::ok);
+        var extraParams = local ? Map.of("local", "true") : Map.<String, String>of();
+        return statusService.getPublicTimeline(user, max_id, since_id, min_id, limit, local)
+                .flatMap(statuses -> statusHydrationService.hydrate(user, statuses)).map(
+                statuses -> ResponseEntity.ok().headers(
+                        Util.timelineLinkHeaders("/api/v1/timelines/public", statuses.stream().map(s -> s.id).toList(),
+                                                 limit, extraParams)).body(statuses));
     }
 
     // Direct messages timeline (deprecated in Mastodon but still used by some clients)
@@ -103,6 +112,7 @@ public class TimelineController {
                 .filter(status -> "public".equals(status.visibility) || "unlisted".equals(status.visibility))
                 .take(limit)
                 .collectList()
+                .flatMap(statuses -> statusHydrationService.hydrate(user, statuses))
                 .map(ResponseEntity::ok)
                 .defaultIfEmpty(ResponseEntity.ok(List.of()));
     }
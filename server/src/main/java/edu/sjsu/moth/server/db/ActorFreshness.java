@@ -0,0 +1,35 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * how fresh our copy of a remote actor is, and what we need to ask its server whether it has changed. the id is the
+ * actor url.
+ */
+@Document("actor_freshness")
+// ActorRefreshService.lease() seeks to the actors that are due and walks them in this order
+@CompoundIndex(name = "dueAt_lastActiveAt_desc", def = "{ 'dueAt': 1, 'lastActiveAt': -1 }")
+public class ActorFreshness {
+    @Id
+    public String id;
+    public String etag;          // the ETag of the last actor document we downloaded, if the server sent one
+    public String lastModified;  // its Last-Modified header, if the server sent one
+    public Instant fetchedAt;    // when we last downloaded the actor document
+    public Instant checkedAt;    // when we last asked, whatever the answer
+    public Instant lastActiveAt; // roughly when we last received an activity from the actor
+    public Instant dueAt;        // when to ask again, checkedAt + ActorRefreshService.STALE_AFTER
+
+    public ActorFreshness(String id, String etag, String lastModified, Instant fetchedAt, Instant checkedAt,
+                          Instant lastActiveAt) {
+        this.id = id;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.fetchedAt = fetchedAt;
+        this.checkedAt = checkedAt;
+        this.lastActiveAt = lastActiveAt;
+    }
+}
@@ -0,0 +1,32 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * where activities for a remote account are delivered, keyed by the same user@host handle we use as its follower id
+ */
+@Document("actor_inbox")
+public class ActorInbox {
+    @Id
+    public String acct;
+    public String actorId;
+    public String inbox;
+    public String sharedInbox; // endpoints.sharedInbox of the actor, if the server has one
+    public Instant updatedAt;
+
+    public ActorInbox(String acct, String actorId, String inbox, String sharedInbox, Instant updatedAt) {
+        this.acct = acct;
+        this.actorId = actorId;
+        this.inbox = inbox;
+        this.sharedInbox = sharedInbox;
+        this.updatedAt = updatedAt;
+    }
+
+    // one POST to the shared inbox reaches every recipient on that server
+    public String deliveryInbox() {
+        return sharedInbox != null && !sharedInbox.isBlank() ? sharedInbox : inbox;
+    }
+}
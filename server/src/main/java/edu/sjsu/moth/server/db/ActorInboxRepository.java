@@ -0,0 +1,6 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface ActorInboxRepository extends ReactiveMongoRepository<ActorInbox, String> {
+}
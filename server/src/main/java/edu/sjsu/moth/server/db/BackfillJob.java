@@ -0,0 +1,42 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * a request to copy the recent posts of a remote account into our database. the id is the account (user@host or
+ * actor url), so an account has at most one job, and a finished job keeps the account from being backfilled again
+ * until it expires.
+ */
+@Document("backfill_job")
+public class BackfillJob {
+    @Id
+    public String id;
+    public String type;           // FOLLOW or SEARCH, see BackfillService.BackfillType
+    public int priority;          // higher runs first
+    public String host;           // the server we fetch from, requests to it are rate limited
+    public Instant createdAt;     // posts older than the age limit counted from here are skipped
+    public String cursor;         // the next outbox page to fetch, null to start from the outbox
+    public int taken;             // how many activities have been taken so far, they count toward the limit
+    public int attempts;          // number of attempts that failed
+    public String error;          // if failed, the error message
+    public boolean failed;        // true if we gave up on it
+    @Indexed
+    public Instant nextAttemptAt; // when the next attempt is due, unset once finished
+    public String leaseOwner;     // the node that is currently working on it
+    public Instant completedAt;
+    @Indexed(expireAfterSeconds = 0)
+    public Instant expireAt;      // when a finished job is removed, and the account may be backfilled again
+
+    public BackfillJob(String id, String type, int priority, String host, Instant createdAt) {
+        this.id = id;
+        this.type = type;
+        this.priority = priority;
+        this.host = host;
+        this.createdAt = createdAt;
+        this.nextAttemptAt = createdAt;
+    }
+}
@@ -5,6 +5,8 @@ import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface BookmarkRepository extends ReactiveMongoRepository<Bookmark, Bookmark.BookmarkKey> {
 
     @Query("{'_id.account_id': ?0}")
@@ -15,4 +17,7 @@ public interface BookmarkRepository extends ReactiveMongoRepository<Bookmark, Bo
 
     @Query("{'_id.account_id': ?0, '_id.status_id': ?1}")
     Mono<Bookmark> findByAccountIdAndStatusId(String account_id, String status_id);
+
+    @Query("{'_id.account_id': ?0, '_id.status_id': {$in: ?1}}")
+    Flux<Bookmark> findAllByAccountIdAndStatusIdIn(String account_id, Collection<String> status_ids);
 }
@@ -19,7 +19,8 @@ import java.util.List;
 @QueryEntity
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @CompoundIndexes({
-		@CompoundIndex(name = "acct_createdAt_desc", def = "{ 'account.acct': 1, 'createdAt': -1 }")
+		@CompoundIndex(name = "acct_createdAt_desc", def = "{ 'account.acct': 1, 'createdAt': -1 }"),
+		@CompoundIndex(name = "visibility_createdAt_desc", def = "{ 'visibility': 1, 'createdAt': -1, '_id': -1 }")
 })
 public class ExternalStatus extends Status {
     @JsonProperty("uri")
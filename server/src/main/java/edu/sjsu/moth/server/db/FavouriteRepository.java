@@ -1,10 +1,13 @@
 package edu.sjsu.moth.server.db;
 
+import org.springframework.data.mongodb.repository.DeleteQuery;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface FavouriteRepository extends ReactiveMongoRepository<Favourite, Favourite.FavouriteKey> {
 
     @Query("{'_id.account_id': ?0}")
@@ -16,6 +19,13 @@ public interface FavouriteRepository extends ReactiveMongoRepository<Favourite,
     @Query("{'_id.account_id': ?0, '_id.status_id': ?1}")
     Mono<Favourite> findByAccountIdAndStatusId(String account_id, String status_id);
 
+    // the number of favourites deleted, 0 if there was none
+    @DeleteQuery("{'_id.account_id': ?0, '_id.status_id': ?1}")
+    Mono<Long> deleteByAccountIdAndStatusId(String account_id, String status_id);
+
+    @Query("{'_id.account_id': ?0, '_id.status_id': {$in: ?1}}")
+    Flux<Favourite> findAllByAccountIdAndStatusIdIn(String account_id, Collection<String> status_ids);
+
     @Query(value = "{'_id.status_id': ?0}", count = true)
     Mono<Long> countByStatusId(String status_id);
 }
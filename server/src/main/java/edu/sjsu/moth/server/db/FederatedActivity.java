@@ -1,29 +1,46 @@
 package edu.sjsu.moth.server.db;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
-import org.springframework.http.HttpHeaders;
 
+import java.net.URI;
 import java.time.Instant;
 
 @Document("federated_activity")
 public class FederatedActivity {
     @Id
     public String id;
-    public String content; // the message content
+    public String content; // the message content, only set on activities queued before body was introduced
+    public byte[] body;       // the serialized message, exactly the bytes that are digested, signed and sent
+    public String digest;     // the Digest header of body
     public String inboxUrl;   // the inbox URL where we sent it
     public String error;      // if failed, the error message
     public Instant created_at;  // when the message was created
     public int attempts;      // number of send attempts
     public String senderActorId; // the actor ID of the sender;
+    public String host;       // the host of inboxUrl, deliveries are throttled per host
+    @Indexed
+    public Instant nextAttemptAt; // when the next attempt is due. pushed out while a node holds the lease
+    public String leaseOwner; // the node that is currently delivering it
 
-    public FederatedActivity(String inboxUrl, String senderActorId, String content, Instant created_at) {
+    public FederatedActivity(String inboxUrl, String senderActorId, byte[] body, String digest, Instant created_at) {
         this.inboxUrl = inboxUrl;
         this.error = null;
         this.attempts = 0;
-        this.content = content;
+        this.body = body;
+        this.digest = digest;
         this.created_at = created_at;
         this.senderActorId = senderActorId;
+        this.host = hostOf(inboxUrl);
+        this.nextAttemptAt = created_at;
+    }
+
+    public static String hostOf(String inboxUrl) {
+        try {
+            return URI.create(inboxUrl).getHost();
+        } catch (Exception e) {
+            return null;
+        }
     }
 }
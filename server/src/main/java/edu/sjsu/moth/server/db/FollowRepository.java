@@ -2,6 +2,7 @@ package edu.sjsu.moth.server.db;
 
 import java.util.List;
 
+import org.springframework.data.mongodb.repository.DeleteQuery;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
@@ -17,6 +18,10 @@ public interface FollowRepository extends ReactiveMongoRepository<Follow, Follow
     @Query("{'_id.follower_id': ?0, '_id.followed_id': ?1}")
     Mono<Follow> findIfFollows(String followerId, String followedId);
 
+    // the number of follows deleted, 0 if there was none
+    @DeleteQuery("{'_id.follower_id': ?0, '_id.followed_id': ?1}")
+    Mono<Long> deleteIfFollows(String followerId, String followedId);
+
     @Query(value = "{'_id.followed_id': ?0}", count = true)
     Mono<Long> countAllByFollowedId(String followedId);
 
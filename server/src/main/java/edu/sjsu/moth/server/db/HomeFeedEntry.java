@@ -0,0 +1,50 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * one status in the materialized home feed of a local account. entries are written when a status is created
+ * (fan-out-on-write) so that reading a home timeline is a single range query on (ownerId, position).
+ */
+@Document("home_feed")
+@CompoundIndexes({ @CompoundIndex(name = "owner_position_desc", def = "{ 'ownerId': 1, 'position': -1 }"),
+        @CompoundIndex(name = "owner_author", def = "{ 'ownerId': 1, 'authorAcct': 1 }") })
+public class HomeFeedEntry {
+    /**
+     * ownerId:statusId so that fanning out the same status twice is idempotent
+     */
+    @Id
+    public String id;
+    public String ownerId;
+    @Indexed
+    public String statusId;
+    /**
+     * sortable position of the status. local status ids are already time ordered, remote statuses get a position
+     * derived from their creation time.
+     */
+    public long position;
+    public String authorAcct;
+    /**
+     * true if the status lives in ExternalStatus rather than status
+     */
+    public boolean external;
+
+    public HomeFeedEntry() {}
+
+    public HomeFeedEntry(String ownerId, String statusId, long position, String authorAcct, boolean external) {
+        this.id = idFor(ownerId, statusId);
+        this.ownerId = ownerId;
+        this.statusId = statusId;
+        this.position = position;
+        this.authorAcct = authorAcct;
+        this.external = external;
+    }
+
+    public static String idFor(String ownerId, String statusId) {
+        return ownerId + ":" + statusId;
+    }
+}
@@ -0,0 +1,16 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface HomeFeedRepository extends ReactiveMongoRepository<HomeFeedEntry, String> {
+    @Query(value = "{ 'statusId': ?0 }", delete = true)
+    Mono<Long> deleteAllByStatusId(String statusId);
+
+    @Query(value = "{ 'ownerId': ?0, 'authorAcct': ?1 }", delete = true)
+    Mono<Long> deleteAllByOwnerIdAndAuthorAcct(String ownerId, String authorAcct);
+
+    @Query(value = "{ 'ownerId': ?0 }", delete = true)
+    Mono<Long> deleteAllByOwnerId(String ownerId);
+}
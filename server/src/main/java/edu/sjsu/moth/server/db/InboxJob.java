@@ -0,0 +1,43 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * an activity posted to one of our inboxes, waiting to be processed. the id is the activity id, scoped to the server
+ * that signed it if the activity is not from there, so a redelivered activity is recognized and dropped until the
+ * finished job expires.
+ */
+@Document("inbox_job")
+public class InboxJob {
+    // finished jobs are kept this long to recognize redeliveries
+    public static final int RETENTION_SECONDS = 7 * 24 * 60 * 60;
+
+    @Id
+    public String id;
+    public String type;       // the activity type, jobs are throttled per type
+    public String target;     // the user whose inbox it was posted to, null for the shared inbox
+    public String payload;    // the activity as it was posted
+    public String signer;     // the keyId the activity was signed with
+    public Instant receivedAt;
+    public int attempts;      // number of processing attempts
+    public String error;      // if failed, the error message
+    public boolean failed;    // true if we gave up on it
+    @Indexed
+    public Instant nextAttemptAt; // when the next attempt is due, unset once finished
+    public String leaseOwner; // the node that is currently processing it
+    @Indexed(expireAfterSeconds = RETENTION_SECONDS)
+    public Instant completedAt;
+
+    public InboxJob(String id, String type, String target, String payload, Instant receivedAt) {
+        this.id = id;
+        this.type = type;
+        this.target = target;
+        this.payload = payload;
+        this.receivedAt = receivedAt;
+        this.nextAttemptAt = receivedAt;
+    }
+}
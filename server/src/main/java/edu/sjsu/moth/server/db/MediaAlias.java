@@ -0,0 +1,22 @@
+package edu.sjsu.moth.server.db;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * a media file name, as it appears in urls, and the content it refers to. see MediaBlob.
+ */
+@Document("media_alias")
+public class MediaAlias {
+    @Id
+    public String id;       // the file name
+    public String blob;     // the id of the MediaBlob
+    public ObjectId fileId; // the GridFS file of the blob, to serve the name without looking up the blob
+
+    public MediaAlias(String id, String blob, ObjectId fileId) {
+        this.id = id;
+        this.blob = blob;
+        this.fileId = fileId;
+    }
+}
@@ -0,0 +1,31 @@
+package edu.sjsu.moth.server.db;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Map;
+
+/**
+ * stored media content, keyed by its SHA-256. identical uploads share one GridFS file: each file name refers to it
+ * through a MediaAlias, and the file is deleted when the last alias is released. the renditions made from it are
+ * kept here too, so that a re-upload does not have to be processed again.
+ */
+@Document("media_blob")
+public class MediaBlob {
+    @Id
+    public String id;                 // the SHA-256 of the content, in hex
+    @Indexed
+    public ObjectId fileId;           // the GridFS file holding the content
+    public long refs;                 // the number of aliases
+    public String previewId;          // the blob of the preview made from it, null until it is processed
+    public Map<String, Object> small; // the dimensions of that preview
+    public String blurhash;
+
+    public MediaBlob(String id, ObjectId fileId, long refs) {
+        this.id = id;
+        this.fileId = fileId;
+        this.refs = refs;
+    }
+}
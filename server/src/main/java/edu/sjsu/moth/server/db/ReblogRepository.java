@@ -1,10 +1,13 @@
 package edu.sjsu.moth.server.db;
 
+import org.springframework.data.mongodb.repository.DeleteQuery;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface ReblogRepository extends ReactiveMongoRepository<Reblog, Reblog.ReblogKey> {
 
     @Query("{'_id.account_id': ?0}")
@@ -16,6 +19,13 @@ public interface ReblogRepository extends ReactiveMongoRepository<Reblog, Reblog
     @Query("{'_id.account_id': ?0, '_id.status_id': ?1}")
     Mono<Reblog> findByAccountIdAndStatusId(String account_id, String status_id);
 
+    @Query("{'_id.account_id': ?0, '_id.status_id': {$in: ?1}}")
+    Flux<Reblog> findAllByAccountIdAndStatusIdIn(String account_id, Collection<String> status_ids);
+
+    // the reblog that was deleted, empty if there was none
+    @DeleteQuery("{'_id.account_id': ?0, '_id.status_id': ?1}")
+    Mono<Reblog> findAndDeleteByAccountIdAndStatusId(String account_id, String status_id);
+
     @Query(value = "{'_id.status_id': ?0}", count = true)
     Mono<Long> countByStatusId(String status_id);
 
@@ -0,0 +1,33 @@
+package edu.sjsu.moth.server.db;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * the public key of a remote actor as we last fetched it, so that a restarted or new node does not have to fetch
+ * every actor again to check signatures
+ */
+@Document("remote_public_key")
+public class RemotePublicKey {
+    @Id
+    public String keyId;
+    public String owner;      // the actor the key belongs to
+    public String pem;
+    public Instant fetchedAt; // when we last fetched the actor document
+    public String etag;       // the ETag of that actor document, if the server sent one
+    @Indexed
+    public Instant lastUsedAt; // roughly when we last checked a signature with it, the busiest keys are loaded first
+
+    public RemotePublicKey(String keyId, String owner, String pem, Instant fetchedAt, String etag,
+                           Instant lastUsedAt) {
+        this.keyId = keyId;
+        this.owner = owner;
+        this.pem = pem;
+        this.fetchedAt = fetchedAt;
+        this.etag = etag;
+        this.lastUsedAt = lastUsedAt;
+    }
+}
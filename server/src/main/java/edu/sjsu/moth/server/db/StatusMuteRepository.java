@@ -5,6 +5,8 @@ import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface StatusMuteRepository extends ReactiveMongoRepository<StatusMute, StatusMute.StatusMuteKey> {
 
     @Query("{'_id.account_id': ?0}")
@@ -12,4 +14,7 @@ public interface StatusMuteRepository extends ReactiveMongoRepository<StatusMute
 
     @Query("{'_id.account_id': ?0, '_id.status_id': ?1}")
     Mono<StatusMute> findByAccountIdAndStatusId(String account_id, String status_id);
+
+    @Query("{'_id.account_id': ?0, '_id.status_id': {$in: ?1}}")
+    Flux<StatusMute> findAllByAccountIdAndStatusIdIn(String account_id, Collection<String> status_ids);
 }
@@ -0,0 +1,37 @@
+package edu.sjsu.moth.server.db;
+
+import edu.sjsu.moth.generated.MediaAttachment;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * media uploaded through /api/v2/media. the id is the media id that clients pass in media_ids when they post a
+ * status. an upload that is never attached to a status is swept, together with its GridFS files, once it is old
+ * enough (see MediaSweepService).
+ */
+@Document("media_attachments")
+@CompoundIndexes({ @CompoundIndex(name = "owner_createdAt", def = "{ 'owner': 1, 'createdAt': 1 }"),
+        @CompoundIndex(name = "statusId_createdAt", def = "{ 'statusId': 1, 'createdAt': 1 }") })
+public class UploadedMedia {
+    @Id
+    public String id;
+    public String owner;                // the account that uploaded it, only they can attach it
+    public Instant createdAt;
+    public MediaAttachment attachment;  // url is null until processing is done
+    public List<String> fileNames;      // the GridFS files of the original and preview
+    public String statusId;             // the status it is attached to, null until then
+
+    public UploadedMedia(String id, String owner, Instant createdAt, MediaAttachment attachment,
+                         List<String> fileNames) {
+        this.id = id;
+        this.owner = owner;
+        this.createdAt = createdAt;
+        this.attachment = attachment;
+        this.fileNames = fileNames;
+    }
+}
@@ -11,4 +11,7 @@ public interface UserListRepository extends ReactiveMongoRepository<UserList, St
 
     @Query("{'owner_id': ?0, 'account_ids': ?1}")
     Flux<UserList> findByOwnerIdContainingAccount(String owner_id, String account_id);
+
+    @Query("{'account_ids': ?0}")
+    Flux<UserList> findAllContainingAccount(String account_id);
 }
@@ -1,11 +1,15 @@
 package edu.sjsu.moth.server.filter;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.sjsu.moth.server.service.HttpSignatureService;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import edu.sjsu.moth.util.HttpSignature;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.server.PathContainer;
@@ -18,17 +22,38 @@ import org.springframework.web.util.pattern.PathPattern;
 import org.springframework.web.util.pattern.PathPatternParser;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 @CommonsLog
 public class HttpSignatureWebFilter implements WebFilter {
+    /**
+     * the exchange attribute with the JsonNode of a verified inbox POST
+     */
+    public static final String ACTIVITY_ATTRIBUTE = "edu.sjsu.moth.server.filter.HttpSignatureWebFilter.activity";
+    /**
+     * the exchange attribute with the keyId that a verified inbox POST was signed with
+     */
+    public static final String SIGNER_ATTRIBUTE = "edu.sjsu.moth.server.filter.HttpSignatureWebFilter.signer";
 
     private final HttpSignatureService httpSignatureService;
     private final List<PathPattern> protectedPatterns;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final int maxPayloadBytes;
 
     public HttpSignatureWebFilter(HttpSignatureService httpSignatureService) {
+        this(httpSignatureService, MothConfiguration.DEFAULT_INBOX_MAX_PAYLOAD);
+    }
+
+    /**
+     * @param maxPayloadBytes the largest body we accept on an inbox, larger ones get a 413
+     */
+    public HttpSignatureWebFilter(HttpSignatureService httpSignatureService, int maxPayloadBytes) {
         this.httpSignatureService = httpSignatureService;
+        this.maxPayloadBytes = maxPayloadBytes;
         PathPatternParser parser = new PathPatternParser();
         this.protectedPatterns = List.of(parser.parse("/inbox"), parser.parse("/users/{id}/inbox"));
     }
@@ -54,29 +79,117 @@ public class HttpSignatureWebFilter implements WebFilter {
             return exchange.getResponse().setComplete();
         }
 
-        log.info("Attempting signature verification for: " + requestMethod + " " + requestPath);
-        return DataBufferUtils.join(exchange.getRequest().getBody()).flatMap(buf -> {
-            byte[] bytes = new byte[buf.readableByteCount()];
-            buf.read(bytes);
-            DataBufferUtils.release(buf);
+        long contentLength = request.getHeaders().getContentLength();
+        if (contentLength > maxPayloadBytes) {
+            log.warn("Rejecting " + contentLength + " byte POST to " + requestPath.value());
+            exchange.getResponse().setStatusCode(HttpStatus.PAYLOAD_TOO_LARGE);
+            return exchange.getResponse().setComplete();
+        }
 
+        log.debug("Attempting signature verification for: " + requestMethod + " " + requestPath);
+        return readBody(request.getBody(), contentLength).flatMap(body -> {
+            byte[] bytes = body.bytes();
             Flux<DataBuffer> replay = Flux.defer(() -> Mono.just(exchange.getResponse().bufferFactory().wrap(bytes)));
             ServerHttpRequest decorated = new ServerHttpRequestDecorator(exchange.getRequest()) {
                 @Override
                 public @NotNull Flux<DataBuffer> getBody() {return replay;}
             };
             ServerWebExchange mutated = exchange.mutate().request(decorated).build();
+            mutated.getAttributes().put(HttpSignatureService.BODY_DIGEST_ATTRIBUTE, body.sha256());
 
-            return httpSignatureService.verifySignature(mutated, bytes).flatMap(isValid -> {
+            // the verification finishes on the signature-verify threads, which are kept for RSA checks only. the
+            // controller runs on the non-blocking parallel scheduler like any other request continuation.
+            var verified = httpSignatureService.verifySignature(mutated, bytes).publishOn(Schedulers.parallel());
+            return verified.flatMap(isValid -> {
                 if (isValid) {
                     log.debug("HTTP Signature verified successfully for " + requestMethod + " " + requestPath.value());
-                    return chain.filter(mutated);
+                    var signer = HttpSignature.extractFields(request.getHeaders().getFirst("Signature")).get("keyId");
+                    if (signer != null) mutated.getAttributes().put(SIGNER_ATTRIBUTE, signer);
+                    return parseActivity(mutated, bytes) ? chain.filter(mutated) : mutated.getResponse().setComplete();
                 } else {
                     log.warn("HTTP Signature verification failed for : " + requestMethod + " " + requestPath.value());
                     mutated.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
                     return mutated.getResponse().setComplete();
                 }
+            }).onErrorResume(HttpSignatureService.OverloadedException.class, e -> {
+                // senders retry on 503, by then the burst has hopefully passed
+                mutated.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+                mutated.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(e.retryAfterSeconds));
+                return mutated.getResponse().setComplete();
             });
+        }).onErrorResume(PayloadTooLargeException.class, e -> {
+            // the Content-Length was missing or wrong, we stop reading as soon as we have seen too much
+            log.warn("Rejecting POST to " + requestPath.value() + " larger than " + maxPayloadBytes + " bytes");
+            exchange.getResponse().setStatusCode(HttpStatus.PAYLOAD_TOO_LARGE);
+            return exchange.getResponse().setComplete();
+        });
+    }
+
+    /**
+     * read the whole body, hashing it as it comes in, and give up as soon as it is larger than maxPayloadBytes. each
+     * chunk is copied once, into an array sized from the Content-Length, and hashed where it landed.
+     */
+    private Mono<Body> readBody(Flux<DataBuffer> content, long contentLength) {
+        return Mono.defer(() -> {
+            var sha256 = HttpSignature.newSHA256Digest();
+            var out = new BodyBuffer(contentLength > 0 ? (int) contentLength : 1024);
+            return content.<Void>handle((buf, sink) -> {
+                try {
+                    int length = buf.readableByteCount();
+                    if (out.size + length > maxPayloadBytes) {
+                        sink.error(new PayloadTooLargeException());
+                        return;
+                    }
+                    out.ensureCapacity(out.size + length);
+                    buf.read(out.bytes, out.size, length);
+                    sha256.update(out.bytes, out.size, length);
+                    out.size += length;
+                } finally {
+                    DataBufferUtils.release(buf);
+                }
+            }).then(Mono.fromSupplier(() -> new Body(out.toByteArray(), sha256.digest())));
         });
     }
+
+    /**
+     * parse the activity for the controller so that it does not have to parse the body again. an empty body is let
+     * through, anything else that is not JSON gets a 400.
+     */
+    private boolean parseActivity(ServerWebExchange exchange, byte[] bytes) {
+        if (bytes.length == 0) return true;
+        try {
+            exchange.getAttributes().put(ACTIVITY_ATTRIBUTE, objectMapper.readTree(bytes));
+            return true;
+        } catch (IOException e) {
+            log.warn("Signed POST to " + exchange.getRequest().getPath() + " is not JSON: " + e.getMessage());
+            exchange.getResponse().setStatusCode(HttpStatus.BAD_REQUEST);
+            return false;
+        }
+    }
+
+    private record Body(byte[] bytes, byte[] sha256) {}
+
+    // a ByteArrayOutputStream that can be read into directly and hands over its array when it is exactly full
+    private static class BodyBuffer {
+        byte[] bytes;
+        int size;
+
+        BodyBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+
+        byte[] toByteArray() {
+            return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static class PayloadTooLargeException extends RuntimeException {
+        PayloadTooLargeException() {
+            super(null, null, false, false);
+        }
+    }
 }
@@ -2,22 +2,40 @@ package edu.sjsu.moth.server.keyManager;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
+import edu.sjsu.moth.server.db.RemotePublicKey;
 import edu.sjsu.moth.util.HttpSignature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.net.URI;
 import java.security.PublicKey;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 
 //Why? to make HttpSignatureService.verifySignature() becomes a short chain of pure operators;
+// keys are looked up in memory (l1), then in remote_public_key (l2), and only then fetched from the actor. l2 is what
+// keeps a restarted or new node from fetching thousands of actors while the inbox is busy. the most recently used
+// keys are loaded into l1 at startup, and keys fetched more than STALE_AFTER ago are refetched in the background
+// while we keep using them.
+// metrics: moth.publickey.resolve tagged with the source (l1, l2, network or negative)
 @Service
 @CommonsLog
 public class RemotePublicKeyResolver implements PublicKeyResolver {
@@ -28,17 +46,33 @@ public class RemotePublicKeyResolver implements PublicKeyResolver {
     private static final int NEGATIVE_LOOKUP_CACHE_MAX_SIZE = 10_000;
     private static final int NEGATIVE_LOOKUP_CACHE_TTL_MINUTES = 10;
     private static final int REMOTE_KEY_FETCH_TIMEOUT_SECONDS = 5;
+    static final Duration STALE_AFTER = Duration.ofDays(1);
+    // how often we record that a key is still in use
+    private static final Duration TOUCH_INTERVAL = Duration.ofHours(1);
+    private static final int WARM_UP_KEYS = 5_000;
     public final AsyncCache<String, PublicKey> publicKeyCache;
     public final AsyncCache<String, Object> negativeLookupCache;
-    private final WebClient webClient;
+    private final ActorFetcher actorFetcher;
+    private final ReactiveMongoTemplate mongoTemplate; // null if there is no l2
+    private final Cache<String, Boolean> recentlyTouched;
+    private final Counter l1Hits;
+    private final Counter l2Hits;
+    private final Counter networkFetches;
+    private final Counter negativeHits;
 
-    // https://www.w3.org/TR/activitypub/#retrieving-objects
-    @Autowired
     public RemotePublicKeyResolver(WebClient.Builder webClientBuilder) {
-        this.webClient = webClientBuilder.defaultHeader(HttpHeaders.ACCEPT,
-                                                        "application/activity+json, application/activity+json, " +
-                                                                "application/ld+json", MediaType.APPLICATION_JSON_VALUE)
-                .build();
+        this(new ActorFetcher(webClientBuilder));
+    }
+
+    public RemotePublicKeyResolver(ActorFetcher actorFetcher) {
+        this(actorFetcher, null, null);
+    }
+
+    @Autowired
+    public RemotePublicKeyResolver(ActorFetcher actorFetcher, ReactiveMongoTemplate mongoTemplate,
+                                   ObjectProvider<MeterRegistry> meterRegistry) {
+        this.actorFetcher = actorFetcher;
+        this.mongoTemplate = mongoTemplate;
 
         // expires after a year?
         this.publicKeyCache = Caffeine.newBuilder().maximumSize(PUBLIC_KEY_CACHE_MAX_SIZE)
@@ -47,6 +81,108 @@ public class RemotePublicKeyResolver implements PublicKeyResolver {
         this.negativeLookupCache =
                 Caffeine.newBuilder().maximumSize(NEGATIVE_LOOKUP_CACHE_MAX_SIZE) // limits the retry count
                         .expireAfterWrite(Duration.ofMinutes(NEGATIVE_LOOKUP_CACHE_TTL_MINUTES)).buildAsync();
+
+        this.recentlyTouched = Caffeine.newBuilder().maximumSize(PUBLIC_KEY_CACHE_MAX_SIZE)
+                .expireAfterWrite(TOUCH_INTERVAL).build();
+
+        var registry = meterRegistry != null ? meterRegistry.getIfAvailable(SimpleMeterRegistry::new) :
+                new SimpleMeterRegistry();
+        this.l1Hits = registry.counter("moth.publickey.resolve", "source", "l1");
+        this.l2Hits = registry.counter("moth.publickey.resolve", "source", "l2");
+        this.networkFetches = registry.counter("moth.publickey.resolve", "source", "network");
+        this.negativeHits = registry.counter("moth.publickey.resolve", "source", "negative");
+
+        // an actor fetched for any other reason brings its key along, as long as the key is its own. it only goes
+        // into l1, l2 is written by the fetches we made for the key itself
+        actorFetcher.addListener(fetched -> {
+            String keyId = advertisedKeyId(fetched.actor());
+            return keyId != null && isActorKey(keyId, fetched) ? remember(keyId, fetched) : Mono.empty();
+        });
+        warmUp();
+    }
+
+    private static String advertisedKeyId(JsonNode actorNode) {
+        return actorNode.path("publicKey").path("id").textValue();
+    }
+
+    private static String advertisedOwner(JsonNode actorNode) {
+        return actorNode.path("publicKey").path("owner").textValue();
+    }
+
+    // the key of the actor document itself, which needs nothing else fetched to check
+    private static boolean isActorKey(String keyId, ActorFetcher.Fetched fetched) {
+        String advertised = advertisedKeyId(fetched.actor());
+        String owner = advertisedOwner(fetched.actor());
+        return fetched.isAt(keyId) && (advertised == null || advertised.equals(keyId)) &&
+                (owner == null || fetched.isAt(owner));
+    }
+
+    // a key must come from the document at keyId and be the key that document names. the document is either the
+    // actor itself, or a key document (GoToSocial's /main-key) whose owner is an actor on the same server that lists
+    // the key as its own. otherwise any server could hand out keys for actors on other servers and sign as them
+    private Mono<Boolean> isOwnKey(String keyId, ActorFetcher.Fetched fetched) {
+        String advertised = advertisedKeyId(fetched.actor());
+        if (!fetched.isAt(keyId) || (advertised != null && !advertised.equals(keyId))) return Mono.just(false);
+        if (isActorKey(keyId, fetched)) return Mono.just(true);
+        String owner = advertisedOwner(fetched.actor());
+        if (!sameOrigin(owner, fetched.url())) return Mono.just(false);
+        return actorFetcher.fetch(owner).map(actor -> listsKey(actor, keyId)).defaultIfEmpty(false)
+                .onErrorResume(e -> {
+                    log.warn("could not fetch " + owner + " to check the key " + keyId + ": " + e.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    private static boolean sameOrigin(String a, String b) {
+        try {
+            URI first = URI.create(a);
+            URI second = URI.create(b);
+            return first.getHost() != null && first.getHost().equalsIgnoreCase(second.getHost()) &&
+                    Objects.equals(first.getScheme(), second.getScheme()) && first.getPort() == second.getPort();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // publicKey is usually one key, but may be a list of them
+    private static boolean listsKey(JsonNode actorNode, String keyId) {
+        JsonNode publicKey = actorNode.path("publicKey");
+        if (publicKey.isArray()) {
+            for (JsonNode key : publicKey) {
+                if (keyId.equals(key.path("id").textValue())) return true;
+            }
+            return false;
+        }
+        return keyId.equals(publicKey.path("id").textValue());
+    }
+
+    private static Mono<PublicKey> toPublicKey(String keyId, String pem) {
+        return Mono.fromCallable(() -> HttpSignature.pemToPublicKey(pem))
+                .subscribeOn(Schedulers.parallel()) // Conversion is CPU Intensive
+                .onErrorResume(e -> {
+                    log.error("Failed to convert PEM to PublicKey for keyId: " + keyId, e);
+                    return Mono.empty();
+                });
+    }
+
+    private static String pemOf(String keyId, JsonNode actorNode) {
+        JsonNode publicKeyNode = actorNode.path("publicKey").path("publicKeyPem");
+        if (publicKeyNode.isMissingNode() || publicKeyNode.isNull() || !publicKeyNode.isTextual()) {
+            log.warn("publicKeyPem not found or not a string for keyId: " + keyId);
+            return null;
+        }
+        return publicKeyNode.asText();
+    }
+
+    // load the keys that were in use most recently, so that a restart does not start out fetching all of them
+    private void warmUp() {
+        if (mongoTemplate == null) return;
+        mongoTemplate.find(new Query().with(Sort.by(Sort.Direction.DESC, "lastUsedAt")).limit(WARM_UP_KEYS),
+                           RemotePublicKey.class)
+                .flatMap(stored -> toPublicKey(stored.keyId, stored.pem).doOnNext(
+                        publicKey -> publicKeyCache.put(stored.keyId, CompletableFuture.completedFuture(publicKey))))
+                .count().subscribe(count -> log.info("loaded " + count + " remote public keys"),
+                                   e -> log.warn("could not load remote public keys: " + e.getMessage()));
     }
 
     // https://socialhub.activitypub.rocks/t/verifying-deletes-of-users-who-are-gone/240/1
@@ -56,38 +192,45 @@ public class RemotePublicKeyResolver implements PublicKeyResolver {
         // check the positive cache first, if found happy!
         CompletableFuture<PublicKey> cachedKey = publicKeyCache.getIfPresent(keyId);
         if (cachedKey != null) {
+            l1Hits.increment();
+            touch(keyId);
             return Mono.fromFuture(cachedKey);
         }
 
         // check negative cache if not in positive cache
         CompletableFuture<Object> negativelyCached = negativeLookupCache.getIfPresent(keyId);
         if (negativelyCached != null) {
+            negativeHits.increment();
             return Mono.fromFuture(negativelyCached).flatMap(v -> Mono.empty()); // Indicates a known miss
         }
 
+        return loadStored(keyId).switchIfEmpty(Mono.defer(() -> fetch(keyId)));
+    }
+
+    private Mono<PublicKey> loadStored(String keyId) {
+        if (mongoTemplate == null) return Mono.empty();
+        return mongoTemplate.findById(keyId, RemotePublicKey.class)
+                .flatMap(stored -> toPublicKey(keyId, stored.pem).doOnNext(publicKey -> {
+                    l2Hits.increment();
+                    publicKeyCache.put(keyId, CompletableFuture.completedFuture(publicKey));
+                    touch(keyId);
+                    if (isStale(stored)) refresh(keyId);
+                })).onErrorResume(e -> {
+                    log.warn("could not load the stored public key " + keyId + ": " + e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<PublicKey> fetch(String keyId) {
+        networkFetches.increment();
         // https://socialhub.activitypub.rocks/t/authorized-fetch-and-the-instance-actor/3868
         // TODO : use activity pub service to fetch the actor, Authorise fetch?
 
-        String actorUrl;
-        int hash = keyId.indexOf('#');
-        actorUrl = (hash >= 0) ? keyId.substring(0, hash) : keyId;
-        return this.webClient.get().uri(actorUrl).retrieve().bodyToMono(JsonNode.class)
-                .timeout(Duration.ofSeconds(REMOTE_KEY_FETCH_TIMEOUT_SECONDS)).flatMap(actorNode -> {
-                    JsonNode publicKeyNode = actorNode.path("publicKey").path("publicKeyPem");
-                    if (publicKeyNode.isMissingNode() || publicKeyNode.isNull() || !publicKeyNode.isTextual()) {
-                        log.warn("publicKeyPem not found or not a string for keyId: " + keyId);
-                        return Mono.empty();
-                    }
-                    String pem = publicKeyNode.asText();
-                    return Mono.fromCallable(() -> HttpSignature.pemToPublicKey(pem))
-                            .subscribeOn(Schedulers.parallel()) // Conversion is CPU Intensive
-                            .onErrorResume(e -> {
-                                log.error("Failed to convert PEM to PublicKey for keyId: " + keyId, e);
-                                return Mono.empty();
-                            });
-                }).doOnSuccess(publicKey -> {
+        // concurrent lookups of the same actor share one fetch, see ActorFetcher
+        return actorFetcher.fetchDocument(keyId).timeout(Duration.ofSeconds(REMOTE_KEY_FETCH_TIMEOUT_SECONDS))
+                .flatMap(fetched -> keyFrom(keyId, fetched))
+                .doOnSuccess(publicKey -> {
                     if (publicKey != null) {
-                        publicKeyCache.put(keyId, CompletableFuture.completedFuture(publicKey));
                         log.debug("Cached public key for: " + keyId);
                     } else {
                         negativeLookupCache.put(keyId, CompletableFuture.completedFuture(NEGATIVE_CACHE_SENTINEL));
@@ -98,4 +241,56 @@ public class RemotePublicKeyResolver implements PublicKeyResolver {
                     log.warn("Error fetching public key for keyId " + keyId + ", caching negative lookup.", error);
                 }).onErrorResume(e -> Mono.empty());
     }
+
+    // the key from a document we fetched for keyId, put into l1 and l2
+    private Mono<PublicKey> keyFrom(String keyId, ActorFetcher.Fetched fetched) {
+        // the fetch has already remembered the key the actor advertises
+        CompletableFuture<PublicKey> remembered = keyId.equals(advertisedKeyId(fetched.actor())) &&
+                isActorKey(keyId, fetched) ? publicKeyCache.getIfPresent(keyId) : null;
+        return (remembered != null ? Mono.fromFuture(remembered) : remember(keyId, fetched)).flatMap(
+                publicKey -> store(keyId, pemOf(keyId, fetched.actor()), fetched).thenReturn(publicKey));
+    }
+
+    // put the key into l1
+    private Mono<PublicKey> remember(String keyId, ActorFetcher.Fetched fetched) {
+        String pem = pemOf(keyId, fetched.actor());
+        if (pem == null) return Mono.empty();
+        return isOwnKey(keyId, fetched).filter(Boolean::booleanValue).flatMap(own -> toPublicKey(keyId, pem))
+                .doOnNext(publicKey -> {
+                    publicKeyCache.put(keyId, CompletableFuture.completedFuture(publicKey));
+                    negativeLookupCache.synchronous().invalidate(keyId);
+                });
+    }
+
+    private Mono<Void> store(String keyId, String pem, ActorFetcher.Fetched fetched) {
+        if (mongoTemplate == null) return Mono.empty();
+        var now = Instant.now();
+        var owner = fetched.actor().path("publicKey").path("owner").asText(fetched.url());
+        recentlyTouched.put(keyId, Boolean.TRUE);
+        return mongoTemplate.save(new RemotePublicKey(keyId, owner, pem, now, fetched.etag(), now)).then()
+                .onErrorResume(e -> {
+                    log.warn("could not store the public key " + keyId + ": " + e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private static boolean isStale(RemotePublicKey stored) {
+        return stored.fetchedAt == null || stored.fetchedAt.plus(STALE_AFTER).isBefore(Instant.now());
+    }
+
+    // record that the key is in use, at most once per TOUCH_INTERVAL, and refresh it if it is stale
+    private void touch(String keyId) {
+        if (mongoTemplate == null || recentlyTouched.asMap().putIfAbsent(keyId, Boolean.TRUE) != null) return;
+        mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(keyId)),
+                                    Update.update("lastUsedAt", Instant.now()), RemotePublicKey.class)
+                .subscribe(stored -> {
+                    if (isStale(stored)) refresh(keyId);
+                }, e -> log.warn("could not touch the public key " + keyId + ": " + e.getMessage()));
+    }
+
+    // fetch the actor again while we keep using the key we have. if that fails we just keep using it
+    private void refresh(String keyId) {
+        actorFetcher.fetchDocument(keyId).flatMap(fetched -> keyFrom(keyId, fetched))
+                .subscribe(null, e -> log.info("could not refresh the public key " + keyId + ": " + e.getMessage()));
+    }
 }
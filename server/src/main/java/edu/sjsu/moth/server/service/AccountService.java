@@ -23,14 +23,13 @@ import edu.sjsu.moth.server.db.WebfingerAlias;
 import edu.sjsu.moth.server.db.WebfingerRepository;
 import edu.sjsu.moth.server.util.HtmlSanitizer;
 import edu.sjsu.moth.server.util.MothConfiguration;
+import edu.sjsu.moth.server.util.SingleFlight;
 import edu.sjsu.moth.util.WebFingerUtils;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
-import org.springframework.http.HttpHeaders;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -92,6 +91,15 @@ public class AccountService {
     @Autowired
     private BackfillService backfillService;
 
+    @Autowired
+    private HttpSignatureService httpSignatureService;
+
+    @Autowired
+    private RemoteAccountStatsService remoteAccountStatsService;
+
+    // only what is looked up is shared, every caller gets an Account of its own to change
+    private final SingleFlight<String, Conversion> accountConversions = new SingleFlight<>();
+
     static PubKeyPair genPubKeyPair(String acct) {
         var pair = WebFingerUtils.genPubPrivKeyPem();
         return new PubKeyPair(acct, pair.pubKey(), pair.privKey());
@@ -104,7 +112,8 @@ public class AccountService {
                 .then(emailService.assignAccountToEmail(email, username, password))
                 .then(accountRepository.save(new Account(username)))
                 .then(webfingerRepository.save(new WebfingerAlias(username, username, MothController.HOSTNAME)))
-                .then(pubKeyPairRepository.save(genPubKeyPair(username))).then();
+                .then(pubKeyPairRepository.save(genPubKeyPair(username)))
+                .doOnSuccess(pair -> httpSignatureService.invalidateSigningKey(username)).then();
     }
 
     public Mono<Account> getAccount(String acct) {
@@ -272,7 +281,22 @@ public class AccountService {
         if (serverName.equalsIgnoreCase(MothConfiguration.mothConfiguration.getServerName())) {
             return getAccount(actor.preferredUsername);
         }
+        String finalServerName = serverName;
+        if (actor.id == null) return lookUpConversion(actor).map(c -> convertRemoteActor(actor, finalServerName, c));
+        // the same new actor tends to show up in several activities at once, look up its counts only once
+        return accountConversions.execute(actor.id, () -> lookUpConversion(actor))
+                .map(c -> convertRemoteActor(actor, finalServerName, c));
+    }
 
+    // concurrent conversions of the same actor also share the id, so they all describe the same account
+    private record Conversion(String id, RemoteAccountStatsService.Stats stats) {}
+
+    private Mono<Conversion> lookUpConversion(Actor actor) {
+        return remoteAccountStatsService.statsOf(actor)
+                .map(stats -> new Conversion(Long.toString(Util.generateUniqueId()), stats));
+    }
+
+    private Account convertRemoteActor(Actor actor, String serverName, Conversion conversion) {
         ArrayList<AccountField> accountFields = new ArrayList<>();
         for (Attachment attachment : actor.attachment) {
             // field names are plain text, values may carry HTML (e.g. verified links)
@@ -284,30 +308,15 @@ public class AccountService {
         String iconLink = actor.icon != null ? actor.icon.url : "";
         String imageLink = actor.image != null ? actor.image.url : "";
 
-        WebClient webClient =
-                WebClient.builder().defaultHeader(HttpHeaders.ACCEPT, "application/activity+json").build();
-        Mono<JsonNode> outboxResponse = webClient.get().uri(actor.outbox).retrieve().bodyToMono(JsonNode.class);
-        Mono<JsonNode> followersResponse = webClient.get().uri(actor.followers).retrieve().bodyToMono(JsonNode.class);
-        Mono<JsonNode> followingResponse = webClient.get().uri(actor.following).retrieve().bodyToMono(JsonNode.class);
-        String finalServerName = serverName;
-        return outboxResponse.flatMap(jsonNodeOutbox -> {
-            int totalItems = jsonNodeOutbox.get("totalItems").asInt();
-            return followersResponse.flatMap(jsonNodeFollowers -> {
-                int totalItemFollowers = jsonNodeFollowers.get("totalItems").asInt();
-                return followingResponse.map(jsonNodeFollowing -> {
-                    int totalItemFollowing = jsonNodeFollowing.get("totalItems").asInt();
-                    //change avatar, avatar static, header, header static, last status to "" from iconLink and imageLink
-                    //changed last status from null to actor.published
-                    return new Account(Long.toString(Util.generateUniqueId()), actor.preferredUsername,
-                                       actor.preferredUsername + "@" + finalServerName, actor.url,
-                                       HtmlSanitizer.stripHtml(actor.name), HtmlSanitizer.sanitize(actor.summary),
-                                       iconLink, iconLink, imageLink, imageLink,
-                                       actor.manuallyApprovesFollowers, accountFields, new CustomEmoji[0], false, false,
-                                       actor.discoverable, false, false, false, false, actor.published, actor.published,
-                                       totalItems, totalItemFollowers, totalItemFollowing);
-                });
-            });
-        });
+        var stats = conversion.stats();
+        //change avatar, avatar static, header, header static, last status to "" from iconLink and imageLink
+        //changed last status from null to actor.published
+        return new Account(conversion.id(), actor.preferredUsername, actor.preferredUsername + "@" + serverName,
+                           actor.url, HtmlSanitizer.stripHtml(actor.name), HtmlSanitizer.sanitize(actor.summary),
+                           iconLink, iconLink, imageLink, imageLink, actor.manuallyApprovesFollowers, accountFields,
+                           new CustomEmoji[0], false, false, actor.discoverable, false, false, false, false,
+                           actor.published, actor.published, stats.statusesOrZero(), stats.followersOrZero(),
+                           stats.followingOrZero());
         //don't know about custom emojis, bot, and group
         //noindex, moved, suspended, and limited are optional?
         //icon, image, tag, attachment might be null
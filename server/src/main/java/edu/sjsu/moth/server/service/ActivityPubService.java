@@ -3,93 +3,113 @@ package edu.sjsu.moth.server.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.activitypub.message.ActivityPubMessage;
 import edu.sjsu.moth.server.db.FederatedActivity;
 import edu.sjsu.moth.server.db.FederatedActivityRepository;
+import edu.sjsu.moth.util.HttpSignature;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-// orchestrating the sending of signed ActivityPub activities.
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// orchestrating the sending of signed ActivityPub activities. activities are queued in federated_activity and
+// DeliveryService leases them back out and calls deliver(). an activity is serialized and digested once when it is
+// queued, and those bytes are what every delivery signs and sends.
 @Configuration
 @CommonsLog
-public class ActivityPubService implements AutoCloseable {
+public class ActivityPubService {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     HttpSignatureService httpSignatureService;
 
     FederatedActivityRepository federatedActivityRepository;
 
-    ScheduledThreadPoolExecutor threadPool;
+    private final WebClient webClient;
 
-    final int MAX_ATTEMPTS = 3;
-    ActivityPubService(HttpSignatureService httpSignatureService, FederatedActivityRepository federatedActivityRepository) {
+    ActivityPubService(HttpSignatureService httpSignatureService, FederatedActivityRepository federatedActivityRepository,
+                       WebClient.Builder webClientBuilder) {
         this.httpSignatureService = httpSignatureService;
         this.federatedActivityRepository = federatedActivityRepository;
-        this.threadPool = new ScheduledThreadPoolExecutor(1);
-        this.threadPool.scheduleWithFixedDelay(this::scheduled_send, 30, 30, TimeUnit.SECONDS);
+        this.webClient = webClientBuilder.build();
     }
 
-    private Mono<Void> asyncSendActivityPubMessage(JsonNode content, String senderActorId, String targetInbox) {
-        String contentStr = serializeContent(content);
-        FederatedActivity activity = new FederatedActivity(targetInbox, senderActorId, contentStr, Instant.now());;
-        return federatedActivityRepository.save(activity).then();
+    private static String activityIdOf(Object message) {
+        if (message instanceof JsonNode node) return node.path("id").textValue();
+        if (message instanceof ActivityPubMessage activityPubMessage) return activityPubMessage.getId();
+        return null;
     }
 
-    private boolean isValidFederatedActivity(FederatedActivity activity) {
-        return (activity.id != null && activity.content != null && activity.senderActorId != null
-                && activity.inboxUrl != null && activity.attempts < MAX_ATTEMPTS);
+    private Mono<Void> enqueue(FederatedActivity activity) {
+        return federatedActivityRepository.insert(activity).then()
+                .onErrorResume(DuplicateKeyException.class, e -> {
+                    log.debug("already queued " + activity.id);
+                    return Mono.empty();
+                });
     }
 
-    private String serializeContent(JsonNode content) {
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.writeValueAsString(content);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize content: " + e.getMessage(), e);
-            return null;
+    /**
+     * make one delivery attempt of a queued activity. http errors surface as WebClientResponseException so that the
+     * caller can tell a rejected activity from a remote server that is having trouble.
+     */
+    public Mono<Void> deliver(FederatedActivity activity) {
+        if (activity.senderActorId == null || activity.inboxUrl == null) {
+            return Mono.error(new IllegalArgumentException("incomplete federated activity " + activity.id));
         }
-    }
-
-    private JsonNode deserializeContent(String content)  {
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.readTree(content);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to deserialize content: " + e.getMessage(), e);
-            return null;
+        byte[] body = activity.body;
+        String digest = activity.digest;
+        if (body == null) {
+            if (activity.content == null) {
+                return Mono.error(new IllegalArgumentException("incomplete federated activity " + activity.id));
+            }
+            // queued before the body was stored, content was already serialized
+            body = activity.content.getBytes(StandardCharsets.UTF_8);
         }
+        if (digest == null) digest = HttpSignature.digest(body);
+        return sendSignedActivity(body, digest, activity.senderActorId, activity.inboxUrl);
     }
 
-    private void scheduled_send() {
-        federatedActivityRepository.findAll().filter(this::isValidFederatedActivity).parallel().runOn(Schedulers.boundedElastic()).doOnNext(activity -> {
-            JsonNode content = deserializeContent(activity.content);
-            sendSignedActivity(activity.id, content, activity.senderActorId, activity.inboxUrl).publishOn(
-                            Schedulers.boundedElastic())
-                    .doOnSuccess(v -> {
-                        log.info("delete the activity " + activity.id + " after successful send");
-                        federatedActivityRepository.deleteById(activity.id).subscribe();
-                    })
-                    .doOnError(e -> {
-                        log.error("Error sending activity to " + activity.inboxUrl + ": " + e.getMessage());
-                        activity.attempts = activity.attempts + 1;
-                        federatedActivityRepository.save(activity).subscribe();
-                    }).subscribe();
-        }).subscribe();
+    public Mono<Void> sendSignedActivity(Object message, String sendingActorId, String targetInbox) {
+        return sendSignedActivity(message, sendingActorId, List.of(targetInbox));
     }
 
-    public Mono<Void> sendSignedActivity(JsonNode message, String sendingActorId, String targetInbox) {
-       return asyncSendActivityPubMessage(message, sendingActorId, targetInbox);
+    /**
+     * queue message for delivery to every inbox in targetInboxes.
+     */
+    public Mono<Void> sendSignedActivity(Object message, String sendingActorId, Collection<String> targetInboxes) {
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize activity from " + sendingActorId + ": " + e.getMessage(), e);
+            return Mono.error(e);
+        }
+        String digest = HttpSignature.digest(body);
+        String activityId = activityIdOf(message);
+        Instant now = Instant.now();
+        return Flux.fromIterable(new LinkedHashSet<>(targetInboxes)).flatMap(targetInbox -> {
+            FederatedActivity activity = new FederatedActivity(targetInbox, sendingActorId, body, digest, now);
+            // mentions, follower fan-out and group reposts can each ask for the same activity to go to the same
+            // inbox. keying the job on both means only the first one is queued.
+            if (activityId != null) activity.id = activityId + " " + targetInbox;
+            return enqueue(activity);
+        }).then();
     }
 
-    private Mono<Void> sendSignedActivity(String DocId, JsonNode message, String sendingActorId, String targetInbox) {
+    private Mono<Void> sendSignedActivity(byte[] body, String digest, String sendingActorId, String targetInbox) {
         URI targetUri;
         try {
             targetUri = URI.create(targetInbox);
@@ -100,34 +120,18 @@ public class ActivityPubService implements AutoCloseable {
             log.error("Invalid target inbox URI: " + targetInbox, e);
             return Mono.error(new IllegalArgumentException("Invalid target inbox URI: " + targetInbox, e));
         }
-        final URI finalTargetUri = targetUri;
-
-        byte[] bodyBytes;
-        try {
-            bodyBytes = new ObjectMapper().writeValueAsBytes(message);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
 
-        return httpSignatureService.prepareSignedHeaders(HttpMethod.POST, sendingActorId, finalTargetUri, bodyBytes)
+        return httpSignatureService.prepareSignedHeadersForDigest(HttpMethod.POST, sendingActorId, targetUri, digest)
                 .flatMap(headers -> {
-                    WebClient client =
-                            WebClient.builder().defaultHeaders(httpHeaders -> httpHeaders.addAll(headers)).build();
                     log.info("Sending signed activity from " + sendingActorId + " to " + targetInbox);
-
-                    return client.post().uri(targetUri).contentType(MediaType.APPLICATION_JSON).bodyValue(message)
-                            .retrieve().onStatus(HttpStatusCode::is4xxClientError,
-                                                 res -> res.bodyToMono(String.class).flatMap(body -> {
-                                                     log.error("4xx error sending activity to " + targetInbox + ": " +
-                                                                       body);
-                                                     return Mono.error(new RuntimeException("Client error: " + body));
-                                                 })).onStatus(HttpStatusCode::is5xxServerError,
-                                                              res -> res.bodyToMono(String.class).flatMap(body -> {
-                                                                  log.error("5xx error sending activity to " +
-                                                                                    targetInbox + ": " + body);
-                                                                  return Mono.error(new RuntimeException(
-                                                                          "Server error: " + body));
-                                                              })).bodyToMono(String.class)
+                    // the signed headers carry the content type and the digest of exactly these bytes
+                    return webClient.post().uri(targetUri).headers(httpHeaders -> httpHeaders.addAll(headers))
+                            .body(BodyInserters.fromDataBuffers(
+                                    Mono.fromSupplier(() -> DefaultDataBufferFactory.sharedInstance.wrap(body))))
+                            .retrieve().onStatus(HttpStatusCode::isError, res -> res.createException().doOnNext(
+                                    e -> log.error(e.getStatusCode().value() + " error sending activity to " +
+                                                           targetInbox + ": " + e.getResponseBodyAsString())))
+                            .bodyToMono(String.class)
                             .doOnSuccess(response -> log.info("Successfully sent activity to " + targetInbox)).then();
                 }).onErrorResume(e -> {
                     log.error("Failed pipeline before/during sending signed activity to " + targetInbox + ": " +
@@ -135,9 +139,4 @@ public class ActivityPubService implements AutoCloseable {
                     return Mono.error(e);
                 });
     }
-
-    @Override
-    public void close() {
-        this.threadPool.shutdownNow();
-    }
 }
@@ -0,0 +1,146 @@
+package edu.sjsu.moth.server.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
+import edu.sjsu.moth.server.db.ActorFreshness;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps our copies of remote actors fresh. every actor document we download is recorded in actor_freshness with
+ * its ETag and Last-Modified, and once it is older than STALE_AFTER it is revalidated in the background with a
+ * conditional GET. an actor that has not changed costs a 304, no parsing and no writes besides checkedAt and dueAt.
+ * <p>
+ * actors we have received activities from within ACTIVE_WITHIN are revalidated first, at most BATCH_SIZE every
+ * poll. the batch is claimed with findAndModify on dueAt, so several nodes do not revalidate the same actor.
+ * <p>
+ * metrics: moth.actor.refresh (tagged with outcome: not_modified, changed or failed).
+ */
+@Service
+@CommonsLog
+public class ActorRefreshService implements AutoCloseable {
+    static final Duration STALE_AFTER = Duration.ofDays(1);
+    static final Duration ACTIVE_WITHIN = Duration.ofDays(7);
+    static final int BATCH_SIZE = 100;
+    private static final int REFRESH_CONCURRENCY = 8;
+    private static final long POLL_INTERVAL_MILLIS = Duration.ofMinutes(5).toMillis();
+    private static final Duration BATCH_TIMEOUT = Duration.ofMinutes(5);
+    // lastActiveAt only orders the refreshes, it does not need to be more precise than this
+    private static final Duration ACTIVE_PRECISION = Duration.ofHours(1);
+    private static final int RECENTLY_ACTIVE_MAX_SIZE = 100_000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ActorFetcher actorFetcher;
+    private final MeterRegistry registry;
+    private final Cache<String, Boolean> recentlyActive =
+            Caffeine.newBuilder().maximumSize(RECENTLY_ACTIVE_MAX_SIZE).expireAfterWrite(ACTIVE_PRECISION).build();
+    private final ScheduledThreadPoolExecutor threadPool;
+
+    @Autowired
+    public ActorRefreshService(ReactiveMongoTemplate mongoTemplate, ActorFetcher actorFetcher,
+                               ObjectProvider<MeterRegistry> meterRegistry) {
+        this(mongoTemplate, actorFetcher, meterRegistry, POLL_INTERVAL_MILLIS);
+    }
+
+    ActorRefreshService(ReactiveMongoTemplate mongoTemplate, ActorFetcher actorFetcher,
+                        ObjectProvider<MeterRegistry> meterRegistry, long pollIntervalMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.actorFetcher = actorFetcher;
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        // however the document was fetched, remember how to ask whether it changed
+        actorFetcher.addListener(fetched -> {
+            var now = Instant.now();
+            return mongoTemplate.upsert(Query.query(Criteria.where("_id").is(fetched.url())),
+                                        Update.update("etag", fetched.etag())
+                                                .set("lastModified", fetched.lastModified()).set("fetchedAt", now)
+                                                .set("checkedAt", now).set("dueAt", now.plus(STALE_AFTER)),
+                                        ActorFreshness.class);
+        });
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(this::pump, pollIntervalMillis, pollIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * note that we received an activity from actorUrl, so that it is revalidated before the actors we have not
+     * heard from in a while
+     */
+    public Mono<Void> markActive(String actorUrl) {
+        if (actorUrl == null || actorUrl.isBlank()) return Mono.empty();
+        var id = ActorFetcher.actorUrlOf(actorUrl);
+        if (recentlyActive.asMap().putIfAbsent(id, Boolean.TRUE) != null) return Mono.empty();
+        // an actor we have never fetched is due right away
+        return mongoTemplate.upsert(Query.query(Criteria.where("_id").is(id)),
+                                    Update.update("lastActiveAt", Instant.now()).setOnInsert("dueAt", Instant.EPOCH),
+                                    ActorFreshness.class)
+                .onErrorResume(e -> {
+                    log.warn("could not mark " + id + " active: " + e.getMessage());
+                    return Mono.empty();
+                }).then();
+    }
+
+    /**
+     * claim the actor that has been due the longest, preferring the ones we heard from within ACTIVE_WITHIN. both
+     * queries seek to the due actors on the index instead of walking every actor in lastActiveAt order.
+     */
+    Mono<ActorFreshness> lease() {
+        var now = Instant.now();
+        var active = Criteria.where("dueAt").lte(now).and("lastActiveAt").gte(now.minus(ACTIVE_WITHIN));
+        return lease(active, now).switchIfEmpty(Mono.defer(() -> lease(Criteria.where("dueAt").lte(now), now)));
+    }
+
+    private Mono<ActorFreshness> lease(Criteria criteria, Instant now) {
+        var query = Query.query(criteria).with(Sort.by(Sort.Order.asc("dueAt"), Sort.Order.desc("lastActiveAt")));
+        return mongoTemplate.findAndModify(query, Update.update("checkedAt", now).set("dueAt", now.plus(STALE_AFTER)),
+                                           FindAndModifyOptions.options(), ActorFreshness.class);
+    }
+
+    /**
+     * revalidate one actor. the listeners of ActorFetcher save a changed actor and its validators.
+     */
+    Mono<String> refresh(ActorFreshness freshness) {
+        return actorFetcher.fetchDocumentIfModified(freshness.id, freshness.etag, freshness.lastModified)
+                .map(fetched -> "changed").defaultIfEmpty("not_modified").onErrorResume(e -> {
+                    log.debug("could not revalidate " + freshness.id + ": " + e.getMessage());
+                    return Mono.just("failed");
+                }).doOnNext(outcome -> registry.counter("moth.actor.refresh", "outcome", outcome).increment());
+    }
+
+    /**
+     * revalidate a batch of stale actors. this runs on our own thread, so it is fine to block.
+     */
+    void pump() {
+        try {
+            // stop claiming as soon as nothing is stale
+            var count = Mono.defer(this::lease).map(Optional::of).defaultIfEmpty(Optional.empty())
+                    .repeat(BATCH_SIZE - 1).takeWhile(Optional::isPresent).map(Optional::get)
+                    .flatMap(this::refresh, REFRESH_CONCURRENCY).count().block(BATCH_TIMEOUT);
+            if (count != null && count > 0) log.debug("revalidated " + count + " actors");
+        } catch (Exception e) {
+            log.error("could not revalidate actors", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+}
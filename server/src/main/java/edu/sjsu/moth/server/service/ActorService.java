@@ -2,41 +2,165 @@ package edu.sjsu.moth.server.service;
 
 import edu.sjsu.moth.generated.Actor;
 import edu.sjsu.moth.server.activitypub.ActivityPubUtil;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
 import edu.sjsu.moth.server.activitypub.service.WebfingerService;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.ActorInbox;
+import edu.sjsu.moth.server.db.ActorInboxRepository;
 import edu.sjsu.moth.server.db.ExternalActorRepository;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
-import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.net.URI;
-import java.util.List;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 @Service
 @CommonsLog
 public class ActorService {
 
+    private static final int INBOX_CACHE_MAX_SIZE = 100_000;
+    private static final int INBOX_CACHE_TTL_HOURS = 24;
+    private static final int UNRESOLVED_INBOX_TTL_MINUTES = 10;
+    private static final int INBOX_RESOLVE_CONCURRENCY = 8;
+    private static final int INBOX_RESOLVE_TIMEOUT_SECONDS = 10;
     private final ExternalActorRepository externalActorRepository;
+    private final ActorInboxRepository actorInboxRepository;
     private final WebfingerService webfingerService;
-    private final WebClient webClient;
+    private final ActorFetcher actorFetcher;
+    private final AsyncCache<String, ActorInbox> inboxCache;
+    // accounts we could not resolve recently, so that every post does not repeat the webfinger lookup
+    private final Cache<String, Boolean> unresolvedInboxes;
     @Autowired
     @Lazy
     AccountService accountService;
 
-    public ActorService(ExternalActorRepository externalActorRepository, WebfingerService webfingerService,
-                        WebClient.Builder webClientBuilder) {
+    public ActorService(ExternalActorRepository externalActorRepository, ActorInboxRepository actorInboxRepository,
+                        WebfingerService webfingerService, ActorFetcher actorFetcher) {
         this.externalActorRepository = externalActorRepository;
+        this.actorInboxRepository = actorInboxRepository;
         this.webfingerService = webfingerService;
-        this.webClient = webClientBuilder.build();
+        this.actorFetcher = actorFetcher;
+        this.inboxCache = Caffeine.newBuilder().maximumSize(INBOX_CACHE_MAX_SIZE)
+                .expireAfterWrite(Duration.ofHours(INBOX_CACHE_TTL_HOURS)).buildAsync();
+        this.unresolvedInboxes = Caffeine.newBuilder().maximumSize(INBOX_CACHE_MAX_SIZE)
+                .expireAfterWrite(Duration.ofMinutes(UNRESOLVED_INBOX_TTL_MINUTES)).build();
+        // every actor we fetch is saved once, however many callers were waiting for it. a document that claims to be
+        // some other actor is not saved, otherwise any server could overwrite actors it does not host
+        actorFetcher.addListener(fetched -> actorFetcher.toActor(fetched.actor())
+                .filter(actor -> fetched.url().equals(actor.id)).flatMap(this::save));
     }
 
     public Mono<Actor> save(Actor actor) {
-        return externalActorRepository != null ? externalActorRepository.save(actor) : Mono.just(actor);
+        return externalActorRepository != null ?
+                externalActorRepository.save(actor).flatMap(saved -> rememberInbox(saved).thenReturn(saved)) :
+                Mono.just(actor);
+    }
+
+    /**
+     * the handles (user@host) that a remote actor is known by. webfinger gives its preferredUsername at the host of
+     * its id, and a follower whose Follow came in is recorded by the last segment of its id instead (see
+     * ActivityPubUtil.inboxUrlToAcct), which on some servers is an opaque id. a server that answers webfinger for
+     * another domain is remembered under the handle that was looked up, see resolveDeliveryInbox.
+     */
+    static Set<String> acctsOf(Actor actor) {
+        Set<String> accts = new LinkedHashSet<>();
+        if (actor.id == null) return accts;
+        try {
+            URI uri = URI.create(actor.id);
+            String host = uri.getHost();
+            if (host == null) return accts;
+            if (actor.preferredUsername != null && !actor.preferredUsername.isBlank()) {
+                accts.add(actor.preferredUsername + "@" + host);
+            }
+            String path = uri.getPath();
+            String segment = path == null ? "" : path.substring(path.lastIndexOf('/') + 1);
+            if (!segment.isEmpty()) accts.add(segment + "@" + host);
+        } catch (IllegalArgumentException e) {
+            log.debug("not remembering the inbox of " + actor.id + ": " + e.getMessage());
+        }
+        return accts;
+    }
+
+    private static String sharedInboxOf(Actor actor) {
+        return actor.endpoints != null ? actor.endpoints.sharedInbox : null;
+    }
+
+    // keep the inboxes of every actor we save, so that delivery does not have to fetch the actor again
+    private Mono<Void> rememberInbox(Actor actor) {
+        if (actor.inbox == null || actorInboxRepository == null) return Mono.empty();
+        var now = Instant.now();
+        var inboxes = acctsOf(actor).stream()
+                .map(acct -> new ActorInbox(acct, actor.id, actor.inbox, sharedInboxOf(actor), now)).toList();
+        if (inboxes.isEmpty()) return Mono.empty();
+        return actorInboxRepository.saveAll(inboxes).doOnNext(this::cacheInbox).onErrorResume(e -> {
+            log.warn("could not remember the inbox of " + actor.id + ": " + e.getMessage());
+            return Mono.empty();
+        }).then();
+    }
+
+    private void cacheInbox(ActorInbox inbox) {
+        inboxCache.put(inbox.acct, CompletableFuture.completedFuture(inbox));
+        unresolvedInboxes.invalidate(inbox.acct);
+    }
+
+    /**
+     * the distinct inboxes to deliver to so that every account in accts gets the activity. accounts on a server
+     * with a shared inbox collapse into one delivery, the others get their own inbox. known inboxes come from
+     * memory or one query of actor_inbox, the rest are resolved with webfinger. an account we cannot resolve falls
+     * back to https://host/inbox.
+     */
+    public Flux<String> getDeliveryInboxes(Collection<String> accts) {
+        Set<String> keys = accts.stream().filter(acct -> acct != null && acct.indexOf('@') > 0)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (keys.isEmpty()) return Flux.empty();
+        return Mono.fromFuture(inboxCache.getAll(keys, (missing, executor) -> {
+                    Set<String> lookup = missing.stream().filter(acct -> unresolvedInboxes.getIfPresent(acct) == null)
+                            .collect(Collectors.toSet());
+                    return lookup.isEmpty() ? CompletableFuture.completedFuture(Map.<String, ActorInbox>of()) :
+                            actorInboxRepository.findAllById(lookup).collectMap(inbox -> inbox.acct).toFuture();
+                }))
+                .flatMapMany(known -> Flux.fromIterable(keys).flatMap(
+                        acct -> known.containsKey(acct) ? Mono.justOrEmpty(known.get(acct).deliveryInbox()) :
+                                resolveDeliveryInbox(acct), INBOX_RESOLVE_CONCURRENCY))
+                .filter(inbox -> !inbox.isBlank()).distinct();
+    }
+
+    private Mono<String> resolveDeliveryInbox(String acct) {
+        String fallback = "https://" + acct.substring(acct.indexOf('@') + 1) + "/inbox";
+        if (unresolvedInboxes.getIfPresent(acct) != null) return Mono.just(fallback);
+        return webfingerService.discoverProfileUrl(acct).flatMap(url -> fetchRemoteActor(URI.create(url)))
+                .timeout(Duration.ofSeconds(INBOX_RESOLVE_TIMEOUT_SECONDS))
+                .flatMap(actor -> {
+                    // the actor was saved under its own handles, which may not include the one we looked up, so
+                    // it is also kept under that one for the next fan-out and the next restart
+                    var inbox = new ActorInbox(acct, actor.id, actor.inbox, sharedInboxOf(actor), Instant.now());
+                    cacheInbox(inbox);
+                    return actorInboxRepository.save(inbox).onErrorResume(e -> {
+                        log.warn("could not remember the inbox of " + acct + ": " + e.getMessage());
+                        return Mono.just(inbox);
+                    }).flatMap(saved -> Mono.justOrEmpty(saved.deliveryInbox()));
+                })
+                .onErrorResume(e -> {
+                    log.info("could not resolve the inbox of " + acct + ": " + e.getMessage());
+                    return Mono.empty();
+                }).switchIfEmpty(Mono.fromSupplier(() -> {
+                    unresolvedInboxes.put(acct, Boolean.TRUE);
+                    return fallback;
+                }));
     }
 
     public Mono<Actor> getActor(String actor) {
@@ -61,28 +185,19 @@ public class ActorService {
     }
 
     public Mono<Actor> fetchAndSaveActorById(String actorId) {
-        return webClient.get().uri(actorId).accept(MediaType.parseMediaType("application/activity+json")).retrieve()
-                .bodyToMono(Actor.class).flatMap(this::save);
+        return fetchRemoteActor(actorId);
+    }
+
+    /**
+     * fetch the actor at actorUrl and save it. concurrent fetches of the same actor share one request.
+     */
+    public Mono<Actor> fetchRemoteActor(String actorUrl) {
+        return actorFetcher.fetchActor(actorUrl).doOnSuccess(actor -> log.info(
+                "Successfully fetched & saved actor " + (actor != null ? actor.id : "(null)") + " from " + actorUrl));
     }
 
     private Mono<Actor> fetchRemoteActor(URI actorUri) {
-        WebClient client = WebClient.builder().defaultHeaders(httpHeaders -> {
-            httpHeaders.setAccept(List.of(MediaType.valueOf("application/activity+json"), MediaType.valueOf(
-                                                  "application/ld+json; profile=\"https://www.w3" +
-                                                          ".org/ns/activitystreams\""),
-                                          MediaType.APPLICATION_JSON));
-        }).build();
-
-        return client.get().uri(actorUri).retrieve()
-                .onStatus(HttpStatusCode::is4xxClientError, res -> res.bodyToMono(String.class).flatMap(body -> {
-                    log.error("4xx error fetching actor " + actorUri + ": " + body);
-                    return Mono.error(new RuntimeException("Client error: " + body));
-                })).onStatus(HttpStatusCode::is5xxServerError, res -> res.bodyToMono(String.class).flatMap(body -> {
-                    log.error("5xx error fetching actor " + actorUri + ": " + body);
-                    return Mono.error(new RuntimeException("Server error: " + body));
-                })).bodyToMono(Actor.class).flatMap(this::save).doOnSuccess(actor -> log.info(
-                        "Successfully fetched & saved actor " + (actor != null ? actor.id : "(null)") + " from " +
-                                actorUri));
+        return fetchRemoteActor(actorUri.toString());
     }
 
     private Mono<Account> resolveRemoteAccountByHandle(String userHandle) {
@@ -138,8 +253,7 @@ public class ActorService {
 
             // If not found, fetch from remote server
             log.debug("Actor " + url + " not in DB, fetching from remote");
-            return webClient.get().uri(url).accept(MediaType.parseMediaType("application/activity+json")).retrieve()
-                    .bodyToMono(Actor.class).flatMap(actor -> save(actor).then(accountService.convertToAccount(actor)));
+            return fetchRemoteActor(url).flatMap(accountService::convertToAccount);
         }));
     }
 
@@ -2,126 +2,302 @@ package edu.sjsu.moth.server.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.db.BackfillJob;
+import edu.sjsu.moth.server.util.HostRateLimiter;
+import edu.sjsu.moth.server.util.Util;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
+import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * copies the recent posts of remote accounts into our database, when someone follows or looks up the account.
+ * <p>
+ * backfills are queued in backfill_job, one job per account, and leased the same way InboxJobService leases inbox
+ * jobs, so they survive a restart. follows are more urgent than searches and run first. the job remembers the next
+ * outbox page after every page, so an interrupted job carries on where it stopped instead of starting over. a
+ * finished job stays until the cooldown is over, which keeps the same account from being backfilled again and again.
+ * <p>
+ * at most MAX_IN_FLIGHT jobs run at once, and the pages we fetch from each server are rate limited with a token
+ * bucket per host.
+ * <p>
+ * metrics: moth.backfill.queue.depth, moth.backfill.in_flight and moth.backfill.jobs (tagged with outcome).
+ */
 @Service
 @CommonsLog
-public class BackfillService {
+public class BackfillService implements AutoCloseable {
+    public static final int MAX_IN_FLIGHT = 2;
+    public static final int MAX_ATTEMPTS = 5;
+    static final Duration COOLDOWN = Duration.ofMinutes(60);
+    // long enough to look at what went wrong, short enough that the account is retried eventually
+    static final Duration FAILED_RETENTION = Duration.ofDays(1);
+    static final Duration LEASE_DURATION = Duration.ofMinutes(5);
+    static final Duration BASE_BACKOFF = Duration.ofMinutes(1);
+    static final Duration MAX_BACKOFF = Duration.ofHours(6);
+    static final double PAGES_PER_SECOND_PER_HOST = 1;
+    static final int PAGE_BURST_PER_HOST = 5;
+    private static final long POLL_INTERVAL_MILLIS = 5000;
+    private static final int QUEUE_DEPTH_INTERVAL_SECONDS = 15;
 
     private final ActorService actorService;
     private final RemoteOutboxFetcher remoteOutboxFetcher;
     private final RemoteStatusIngestService remoteStatusIngestService;
-    private final int followMaxStatuses;
-    private final int followMaxDays;
-    private final int searchMaxStatuses;
-    private final int searchMaxDays;
-    private final int maxConcurrency;
-    private final int cooldownMinutes;
-    private final Semaphore semaphore;
-    private final Map<String, Instant> lastRunByAcct = new ConcurrentHashMap<>();
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final MeterRegistry registry;
+    private final HostRateLimiter hostRateLimiter =
+            new HostRateLimiter(PAGES_PER_SECOND_PER_HOST, PAGE_BURST_PER_HOST);
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicBoolean pumpQueued = new AtomicBoolean();
+    private final ScheduledThreadPoolExecutor threadPool;
 
     @Autowired
     @Lazy
     AccountService accountService;
 
+    @Autowired
+    @Lazy
+    HomeFeedService homeFeedService;
+
+    @Autowired
     public BackfillService(ActorService actorService, RemoteOutboxFetcher remoteOutboxFetcher,
-                           RemoteStatusIngestService remoteStatusIngestService) {
+                           RemoteStatusIngestService remoteStatusIngestService, ReactiveMongoTemplate mongoTemplate,
+                           ObjectProvider<MeterRegistry> meterRegistry) {
+        this(actorService, remoteOutboxFetcher, remoteStatusIngestService, mongoTemplate, meterRegistry,
+             POLL_INTERVAL_MILLIS);
+    }
+
+    BackfillService(ActorService actorService, RemoteOutboxFetcher remoteOutboxFetcher,
+                    RemoteStatusIngestService remoteStatusIngestService, ReactiveMongoTemplate mongoTemplate,
+                    ObjectProvider<MeterRegistry> meterRegistry, long pollIntervalMillis) {
         this.actorService = actorService;
         this.remoteOutboxFetcher = remoteOutboxFetcher;
         this.remoteStatusIngestService = remoteStatusIngestService;
-
-        this.followMaxStatuses = 500;
-        this.followMaxDays = 30;
-        this.searchMaxStatuses = 150;
-        this.searchMaxDays = this.followMaxDays;
-        this.maxConcurrency = 2;
-        this.cooldownMinutes = 60;
-        this.semaphore = new Semaphore(Math.max(1, this.maxConcurrency));
+        this.mongoTemplate = mongoTemplate;
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        registry.gauge("moth.backfill.queue.depth", queueDepth);
+        registry.gauge("moth.backfill.in_flight", inFlight);
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(this::pump, pollIntervalMillis, pollIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+        this.threadPool.scheduleWithFixedDelay(
+                () -> mongoTemplate.count(Query.query(Criteria.where("nextAttemptAt").exists(true)),
+                                          BackfillJob.class)
+                        .subscribe(count -> queueDepth.set(count.intValue()),
+                                   e -> log.error("could not count backfill jobs", e)), 0,
+                QUEUE_DEPTH_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
+    /**
+     * queue a backfill of acctOrUrl, unless it has one queued or had one within the cooldown. a follow upgrades a
+     * queued search.
+     */
     public void backfillRemoteAcctAsync(String acctOrUrl, BackfillType type) {
         if (acctOrUrl == null || acctOrUrl.isBlank()) return;
+        enqueue(acctOrUrl, type).subscribe(null, e -> log.warn("could not queue backfill of " + acctOrUrl + ": " +
+                                                                        e.getMessage()));
+    }
 
-        // Per-actor cooldown
-        Instant last = lastRunByAcct.get(acctOrUrl);
-        if (last != null && last.isAfter(Instant.now().minus(Duration.ofMinutes(cooldownMinutes)))) {
-            return;
-        }
-        lastRunByAcct.put(acctOrUrl, Instant.now());
-
-        Mono.defer(() -> doBackfill(acctOrUrl, type)).subscribeOn(Schedulers.boundedElastic())
-                .doOnError(e -> log.warn("Backfill failed for " + acctOrUrl + ": " + e.getMessage()))
-                .onErrorResume(e -> Mono.empty()).subscribe();
+    Mono<Void> enqueue(String acctOrUrl, BackfillType type) {
+        var job = new BackfillJob(acctOrUrl, type.name(), type.priority, hostOf(acctOrUrl), Instant.now());
+        return mongoTemplate.insert(job).doOnSuccess(j -> requestPump()).then()
+                .onErrorResume(DuplicateKeyException.class, e -> mongoTemplate.updateFirst(
+                        Query.query(Criteria.where("_id").is(acctOrUrl).and("nextAttemptAt").exists(true)
+                                            .and("priority").lt(type.priority)),
+                        Update.update("type", type.name()).set("priority", type.priority), BackfillJob.class).then());
     }
 
-    private Mono<Integer> doBackfill(String acctOrUrl, BackfillType type) {
-        // find limits for this backfill based on its type
-        int maxStatuses = type == BackfillType.FOLLOW ? followMaxStatuses : searchMaxStatuses;
-        Duration maxAge = Duration.ofDays(type == BackfillType.FOLLOW ? followMaxDays : searchMaxDays);
+    static String hostOf(String acctOrUrl) {
+        if (acctOrUrl.startsWith("http://") || acctOrUrl.startsWith("https://")) {
+            try {
+                return URI.create(acctOrUrl).getHost();
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        int at = acctOrUrl.lastIndexOf('@');
+        return at >= 0 ? acctOrUrl.substring(at + 1) : null;
+    }
 
-        // backfill operation with count + time based filters
-        return acquire().then(resolveActor(acctOrUrl)).flatMap(actor -> {
-            Flux<JsonNode> activities = remoteOutboxFetcher.fetchCreateActivities(actor.outbox, null);
+    /**
+     * lease the most urgent job that is due
+     */
+    Mono<BackfillJob> lease() {
+        var now = Instant.now();
+        var query = Query.query(Criteria.where("nextAttemptAt").lte(now))
+                .with(Sort.by(Sort.Order.desc("priority"), Sort.Order.asc("nextAttemptAt")));
+        var update = Update.update("leaseOwner", nodeId).set("nextAttemptAt", now.plus(LEASE_DURATION));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                                           BackfillJob.class);
+    }
 
-            if (maxAge != null && !maxAge.isZero() && !maxAge.isNegative()) {
-                // only take activities newer than the cutoff date (time based filter)
-                Instant cutoff = Instant.now().minus(maxAge);
-
-                // fetch 'Create' activities from the actor's remote outbox
-                activities = activities.takeWhile(item -> {
-                    String published = text(item.path("published"));
-                    try {
-                        // stop when item is older than the cutoff
-                        return published != null && !published.isBlank() && Instant.parse(published).isAfter(cutoff);
-                    } catch (Exception e) {
-                        return false;
-                    }
-                });
+    /**
+     * lease and start jobs until we are at capacity or nothing is due. this runs on our own thread, so it is fine to
+     * block on the lease.
+     */
+    void pump() {
+        pumpQueued.set(false);
+        try {
+            while (inFlight.get() < MAX_IN_FLIGHT) {
+                var job = lease().block(LEASE_DURATION);
+                if (job == null) return;
+                dispatch(job);
             }
+        } catch (Exception e) {
+            log.error("could not lease backfill jobs", e);
+        }
+    }
 
-            // only take up to the maximum number of statuses (count based filter)
-            if (maxStatuses > 0) {
-                activities = activities.take(maxStatuses);
+    // a new job or a finished one means there may be work we can start right away rather than at the next poll
+    private void requestPump() {
+        if (pumpQueued.compareAndSet(false, true)) {
+            try {
+                threadPool.execute(this::pump);
+            } catch (RejectedExecutionException e) {
+                // shutting down
             }
+        }
+    }
 
-            // pass activities to ingest service to save them to db
-            return remoteStatusIngestService.ingestCreateNotes(activities, actor, accountService::convertToAccount)
-                    .map(list -> list != null ? list.size() : 0);
+    private void dispatch(BackfillJob job) {
+        inFlight.incrementAndGet();
+        Mono.defer(() -> process(job)).then(Mono.defer(() -> processed(job))).onErrorResume(e -> failed(job, e))
+                .doFinally(signal -> {
+                    inFlight.decrementAndGet();
+                    requestPump();
+                })
+                .subscribe(outcome -> registry.counter("moth.backfill.jobs", "outcome", outcome).increment(),
+                           e -> log.error("could not record backfill of " + job.id, e));
+    }
+
+    /**
+     * backfill the account of job page by page, starting from its cursor
+     */
+    Mono<Integer> process(BackfillJob job) {
+        var type = BackfillType.valueOf(job.type);
+        var cutoff = job.createdAt.minus(type.maxAge);
+        return resolveActor(job.id).flatMap(actor -> {
+            var start = job.cursor != null ? job.cursor : actor.outbox;
+            return start == null ? Mono.just(job.taken) : backfillFrom(job, actor, start, type.maxStatuses, cutoff);
+        }).defaultIfEmpty(job.taken);
+    }
 
-        }).doFinally(s -> release()); // release semaphore permit
+    private Mono<Integer> backfillFrom(BackfillJob job, Actor actor, String url, int maxStatuses, Instant cutoff) {
+        int remaining = maxStatuses - job.taken;
+        if (remaining <= 0) return Mono.just(job.taken);
+        return hostRateLimiter.acquire(job.host).then(remoteOutboxFetcher.fetchPage(url)).flatMap(page -> {
+            var activities = withinLimits(Flux.fromIterable(page.items()), cutoff, remaining).collectList();
+            return activities.flatMap(taken -> ingest(taken, actor).flatMap(ingested -> {
+                // anything left out means we reached the age or count limit
+                var done = taken.size() < page.items().size() || page.next() == null;
+                job.taken += taken.size();
+                job.cursor = done ? null : page.next();
+                return progressed(job).then(done ? Mono.just(job.taken) :
+                                                    Mono.defer(() -> backfillFrom(job, actor, page.next(),
+                                                                                  maxStatuses, cutoff)));
+            }));
+        });
     }
 
-    // helpers
+    /**
+     * backfill acctOrUrl now, without going through the queue
+     */
     public Mono<Integer> runBackfillOnce(String acctOrUrl, BackfillType type) {
-        return doBackfill(acctOrUrl, type);
+        return resolveActor(acctOrUrl).flatMap(actor -> {
+            // fetch 'Create' activities from the actor's remote outbox
+            Flux<JsonNode> activities = remoteOutboxFetcher.fetchCreateActivities(actor.outbox, null);
+            return withinLimits(activities, Instant.now().minus(type.maxAge), type.maxStatuses).collectList()
+                    .flatMap(list -> ingest(list, actor));
+        });
     }
 
-    private Mono<Void> acquire() {
-        return Mono.fromCallable(() -> {
+    // only take activities newer than the cutoff date, and at most maxStatuses of them
+    private Flux<JsonNode> withinLimits(Flux<JsonNode> activities, Instant cutoff, int maxStatuses) {
+        return activities.takeWhile(item -> {
+            String published = text(item.path("published"));
             try {
-                semaphore.acquire();
-                return null;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(e);
+                // stop when item is older than the cutoff
+                return published != null && !published.isBlank() && Instant.parse(published).isAfter(cutoff);
+            } catch (Exception e) {
+                return false;
             }
-        }).subscribeOn(Schedulers.boundedElastic()).then();
+        }).take(maxStatuses);
+    }
+
+    // pass activities to ingest service to save them to db and push them into the home feeds of local followers in
+    // one batch
+    private Mono<Integer> ingest(List<JsonNode> activities, Actor actor) {
+        if (activities.isEmpty()) return Mono.just(0);
+        return remoteStatusIngestService.ingestCreateNotes(Flux.fromIterable(activities), actor,
+                                                           accountService::convertToAccount)
+                .flatMap(list -> homeFeedService.fanOut(list).thenReturn(list))
+                .map(list -> list != null ? list.size() : 0);
+    }
+
+    // only touch the job if we still hold the lease, another node may have picked it up if we were too slow
+    private Query leased(BackfillJob job) {
+        return Query.query(Criteria.where("_id").is(job.id).and("leaseOwner").is(nodeId));
+    }
+
+    // remember where we are, and keep the lease while we are making progress
+    private Mono<Void> progressed(BackfillJob job) {
+        var update = Update.update("taken", job.taken).set("nextAttemptAt", Instant.now().plus(LEASE_DURATION));
+        if (job.cursor != null) update.set("cursor", job.cursor);
+        else update.unset("cursor");
+        return mongoTemplate.updateFirst(leased(job), update, BackfillJob.class).then();
     }
 
-    private void release() {
-        semaphore.release();
+    private Mono<String> processed(BackfillJob job) {
+        var now = Instant.now();
+        return mongoTemplate.updateFirst(leased(job), new Update().set("completedAt", now)
+                .set("expireAt", now.plus(COOLDOWN)).unset("nextAttemptAt").unset("leaseOwner")
+                .unset("cursor"), BackfillJob.class).thenReturn("processed");
+    }
+
+    private Mono<String> failed(BackfillJob job, Throwable e) {
+        job.attempts++;
+        job.error = String.valueOf(e.getMessage());
+        var update = Update.update("attempts", job.attempts).set("error", job.error).unset("leaseOwner");
+        if (e instanceof IllegalArgumentException || job.attempts >= MAX_ATTEMPTS) {
+            log.warn("giving up on backfill of " + job.id + " after " + job.attempts + " attempts: " + job.error);
+            var now = Instant.now();
+            return mongoTemplate.updateFirst(leased(job), update.set("failed", true).set("completedAt", now)
+                    .set("expireAt", now.plus(FAILED_RETENTION)).unset("nextAttemptAt"), BackfillJob.class)
+                    .thenReturn("failed");
+        }
+        var next = Instant.now().plus(backoff(job.attempts, ThreadLocalRandom.current().nextDouble()));
+        log.info("backfill of " + job.id + " failed (" + job.error + "), retrying at " + next);
+        return mongoTemplate.updateFirst(leased(job), update.set("nextAttemptAt", next), BackfillJob.class)
+                .thenReturn("retry");
+    }
+
+    static Duration backoff(int attempts, double random) {
+        return Util.backoff(BASE_BACKOFF, MAX_BACKOFF, attempts, random);
     }
 
     // Returns full actor
@@ -145,5 +321,22 @@ public class BackfillService {
         return node != null && node.isTextual() ? node.asText() : null;
     }
 
-    public enum BackfillType {FOLLOW, SEARCH}
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+
+    public enum BackfillType {
+        FOLLOW(2, 500, Duration.ofDays(30)), SEARCH(1, 150, Duration.ofDays(30));
+
+        final int priority;
+        final int maxStatuses;
+        final Duration maxAge;
+
+        BackfillType(int priority, int maxStatuses, Duration maxAge) {
+            this.priority = priority;
+            this.maxStatuses = maxStatuses;
+            this.maxAge = maxAge;
+        }
+    }
 }
@@ -19,13 +19,18 @@ public class BlockService {
     private final AccountRepository accountRepository;
     private final FollowRepository followRepository;
     private final MuteRepository muteRepository;
+    private final FollowSetCache followSetCache;
+    private final HomeFeedService homeFeedService;
 
     public BlockService(BlockRepository blockRepository, AccountRepository accountRepository,
-                        FollowRepository followRepository, MuteRepository muteRepository) {
+                        FollowRepository followRepository, MuteRepository muteRepository,
+                        FollowSetCache followSetCache, HomeFeedService homeFeedService) {
         this.blockRepository = blockRepository;
         this.accountRepository = accountRepository;
         this.followRepository = followRepository;
         this.muteRepository = muteRepository;
+        this.followSetCache = followSetCache;
+        this.homeFeedService = homeFeedService;
     }
 
     public Mono<Relationship> block(String blockerId, String blockedId) {
@@ -37,13 +42,23 @@ public class BlockService {
                             .then(followRepository.findIfFollows(blockerId, blockedId)
                                     .flatMap(follow -> followRepository.delete(follow))
                                     .then())
+                            .doOnSuccess(v -> followSetCache.followRemoved(blockerId, blockedId))
                             .then(followRepository.findIfFollows(blockedId, blockerId)
                                     .flatMap(follow -> followRepository.delete(follow))
                                     .then())
+                            .doOnSuccess(v -> followSetCache.followRemoved(blockedId, blockerId))
+                            .then(removeFromHomeFeeds(blockerId, blockedId))
                             .then(buildRelationship(blockerId, blockedId));
                 }));
     }
 
+    // neither side should see the other's statuses in their home feed anymore
+    private Mono<Void> removeFromHomeFeeds(String blockerId, String blockedId) {
+        return Mono.zip(accountRepository.findById(blockerId), accountRepository.findById(blockedId))
+                .flatMap(accounts -> homeFeedService.removeAuthor(blockerId, accounts.getT2())
+                        .then(homeFeedService.removeAuthor(blockedId, accounts.getT1())));
+    }
+
     public Mono<Relationship> unblock(String blockerId, String blockedId) {
         return blockRepository.findByBlockerIdAndBlockedId(blockerId, blockedId)
                 .flatMap(block -> blockRepository.delete(block)
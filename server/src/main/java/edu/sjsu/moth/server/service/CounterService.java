@@ -0,0 +1,210 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.Favourite;
+import edu.sjsu.moth.server.db.Follow;
+import edu.sjsu.moth.server.db.Reblog;
+import lombok.extern.apachecommons.CommonsLog;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * keeps the denormalized counters on statuses (favourites, reblogs) and accounts (followers, following) with atomic
+ * $inc updates instead of recounting and saving the whole document.
+ * <p>
+ * status counters go through a small write-behind aggregator: the first HOT_THRESHOLD increments to a counter in a
+ * flush interval are written straight away, anything beyond that is added up in memory and written as one $inc when
+ * the interval ends. a periodic reconciliation recounts from the favourite, reblog and follow collections and fixes
+ * any drift (e.g. pending increments lost in a crash).
+ */
+@Service
+@CommonsLog
+public class CounterService implements AutoCloseable {
+    public static final String FAVOURITES = "favouritesCount";
+    public static final String REBLOGS = "reblogsCount";
+    public static final String FOLLOWERS = "followers_count";
+    public static final String FOLLOWING = "following_count";
+    /**
+     * increments to one status counter within a flush interval beyond this many are coalesced
+     */
+    public static final int HOT_THRESHOLD = 8;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int RECONCILE_INTERVAL_HOURS = 6;
+    // only local accounts are counted here, remote ones get their counts from their own server
+    private static final Criteria LOCAL_ACCOUNTS = Criteria.where("acct").not().regex("@");
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final Map<CounterKey, Counter> statusCounters = new ConcurrentHashMap<>();
+    // account counters are always written directly, they are only tracked so reconciliation leaves them alone
+    private final Map<CounterKey, Counter> accountCounters = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor threadPool;
+
+    record CounterKey(String id, String field) {}
+
+    private static class Counter {
+        // increments seen in the current flush interval
+        final AtomicInteger hits = new AtomicInteger();
+        // increments that have not been written yet
+        final LongAdder pending = new LongAdder();
+        // the value after our last write, used to answer while increments are pending
+        volatile int lastKnown;
+    }
+
+    @Autowired
+    public CounterService(ReactiveMongoTemplate mongoTemplate) {
+        this(mongoTemplate, FLUSH_INTERVAL_MILLIS);
+    }
+
+    CounterService(ReactiveMongoTemplate mongoTemplate, long flushIntervalMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(() -> flush().subscribe(null, e -> log.error("counter flush failed", e)),
+                                               flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.threadPool.scheduleWithFixedDelay(
+                () -> reconcile().subscribe(fixed -> log.info("reconciled " + fixed + " counters"),
+                                            e -> log.error("counter reconciliation failed", e)),
+                RECONCILE_INTERVAL_HOURS, RECONCILE_INTERVAL_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * add delta to a status counter (FAVOURITES or REBLOGS).
+     *
+     * @return the new value of the counter. while increments to a hot status are buffered this is our best estimate.
+     */
+    public Mono<Integer> incrementStatus(String statusId, String field, int delta) {
+        var counter = statusCounters.computeIfAbsent(new CounterKey(statusId, field), k -> new Counter());
+        if (counter.hits.incrementAndGet() <= HOT_THRESHOLD) {
+            return increment(Status.class, statusId, field, delta, s -> counterValue(s, field)).doOnNext(
+                    v -> counter.lastKnown = v);
+        }
+        counter.pending.add(delta);
+        return Mono.just(Math.max(0, counter.lastKnown + counter.pending.intValue()));
+    }
+
+    /**
+     * add delta to an account counter (FOLLOWERS or FOLLOWING)
+     *
+     * @return the new value of the counter
+     */
+    public Mono<Integer> incrementAccount(String accountId, String field, int delta) {
+        accountCounters.computeIfAbsent(new CounterKey(accountId, field), k -> new Counter()).hits.incrementAndGet();
+        return increment(Account.class, accountId, field, delta,
+                         a -> FOLLOWERS.equals(field) ? a.followers_count : a.following_count);
+    }
+
+    private <T> Mono<Integer> increment(Class<T> type, String id, String field, int delta,
+                                        Function<T, Integer> value) {
+        var query = Query.query(Criteria.where("_id").is(id));
+        return mongoTemplate.findAndModify(query, new Update().inc(field, delta),
+                                           FindAndModifyOptions.options().returnNew(true), type).map(value);
+    }
+
+    private static Integer counterValue(Status status, String field) {
+        var value = FAVOURITES.equals(field) ? status.favouritesCount : status.reblogsCount;
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * write the buffered increments, one $inc per counter, and start a new interval
+     */
+    Mono<Void> flush() {
+        ReactiveBulkOperations bulk = null;
+        for (var entry : statusCounters.entrySet()) {
+            var counter = entry.getValue();
+            var hits = counter.hits.getAndSet(0);
+            var pending = (int) counter.pending.sumThenReset();
+            if (pending != 0) {
+                if (bulk == null) bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Status.class);
+                bulk.updateOne(Query.query(Criteria.where("_id").is(entry.getKey().id())),
+                               new Update().inc(entry.getKey().field(), pending));
+                counter.lastKnown += pending;
+            } else if (hits == 0) {
+                // idle for a whole interval. an increment racing with this removal still lands on the direct path
+                // since its hit count starts from zero.
+                statusCounters.remove(entry.getKey(), counter);
+            }
+        }
+        accountCounters.forEach((key, counter) -> {
+            if (counter.hits.getAndSet(0) == 0) accountCounters.remove(key, counter);
+        });
+        return bulk == null ? Mono.empty() : bulk.execute().then();
+    }
+
+    /**
+     * recount every counter from the collections it summarizes and fix the ones that are off. counters that are
+     * being written to right now are skipped and picked up on the next run.
+     *
+     * @return the number of counters that were fixed
+     */
+    public Mono<Long> reconcile() {
+        return Flux.concat(reconcile(Favourite.class, "_id.status_id", Status.class, new Criteria(), FAVOURITES,
+                                     statusCounters),
+                           reconcile(Reblog.class, "_id.status_id", Status.class, new Criteria(), REBLOGS,
+                                     statusCounters),
+                           reconcile(Follow.class, "_id.followed_id", Account.class, LOCAL_ACCOUNTS, FOLLOWERS,
+                                     accountCounters),
+                           reconcile(Follow.class, "_id.follower_id", Account.class, LOCAL_ACCOUNTS, FOLLOWING,
+                                     accountCounters)).reduce(0L, Long::sum);
+    }
+
+    private Flux<Long> reconcile(Class<?> source, String sourceKey, Class<?> target, Criteria scope, String field,
+                                 Map<CounterKey, Counter> busy) {
+        // documents that something points at get the real count
+        var pointedAt = new HashSet<String>();
+        var grouped = Aggregation.newAggregation(Aggregation.group(sourceKey).count().as("count"));
+        var counted = mongoTemplate.aggregate(grouped, mongoTemplate.getCollectionName(source), Document.class)
+                .filter(d -> d.get("_id") != null).doOnNext(d -> pointedAt.add(d.get("_id").toString()))
+                .filter(d -> !busy.containsKey(new CounterKey(d.get("_id").toString(), field)))
+                .concatMap(d -> setCount(target, scope, d.get("_id").toString(), field,
+                                         ((Number) d.get("count")).intValue()));
+        // documents with a count that nothing points at anymore go back to 0, all in one update
+        var orphaned = Mono.defer(() -> {
+            var skipped = new HashSet<>(pointedAt);
+            busy.keySet().stream().filter(key -> key.field().equals(field)).forEach(key -> skipped.add(key.id()));
+            var query = new Query(new Criteria().andOperator(scope, Criteria.where(field).gt(0),
+                                                             Criteria.where("_id").nin(skipped)));
+            return mongoTemplate.updateMulti(query, Update.update(field, 0), target)
+                    .map(result -> result.getModifiedCount());
+        });
+        return counted.concatWith(orphaned);
+    }
+
+    private Mono<Long> setCount(Class<?> target, Criteria scope, String id, String field, int count) {
+        var query = new Query(
+                new Criteria().andOperator(scope, Criteria.where("_id").is(id), Criteria.where(field).ne(count)));
+        return mongoTemplate.updateFirst(query, Update.update(field, count), target)
+                .map(result -> result.getModifiedCount());
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+        try {
+            flush().block(Duration.ofSeconds(5));
+        } catch (Exception e) {
+            log.error("could not write pending counters on shutdown", e);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.server.db.FederatedActivity;
+import edu.sjsu.moth.server.util.Util;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * delivers the activities queued in federated_activity.
+ * <p>
+ * a job is leased by atomically pushing its nextAttemptAt out by LEASE_DURATION and stamping our node id on it, so
+ * two nodes never work on the same job and a job whose node died becomes due again once the lease runs out. at most
+ * MAX_IN_FLIGHT deliveries run at once, and at most MAX_IN_FLIGHT_PER_HOST of them go to the same host, so a post
+ * to many followers fans out quickly without piling onto any one server. failed deliveries are retried with
+ * exponential backoff and jitter. after MAX_ATTEMPTS, or when the remote server rejects the activity outright, the
+ * job is moved to federated_activity_dead.
+ * <p>
+ * metrics: moth.delivery.queue.depth, moth.delivery.in_flight, moth.delivery.duration (tagged with the outcome)
+ * and moth.delivery.lag (from queueing to delivery).
+ */
+@Service
+@CommonsLog
+public class DeliveryService implements AutoCloseable {
+    public static final String DEAD_LETTER_COLLECTION = "federated_activity_dead";
+    public static final int MAX_ATTEMPTS = 12;
+    public static final int MAX_IN_FLIGHT = 64;
+    public static final int MAX_IN_FLIGHT_PER_HOST = 4;
+    static final Duration LEASE_DURATION = Duration.ofMinutes(2);
+    static final Duration DELIVERY_TIMEOUT = Duration.ofSeconds(30);
+    static final Duration BASE_BACKOFF = Duration.ofSeconds(30);
+    static final Duration MAX_BACKOFF = Duration.ofHours(6);
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final int QUEUE_DEPTH_INTERVAL_SECONDS = 15;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ActivityPubService activityPubService;
+    private final MeterRegistry registry;
+    private final Timer lag;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<String, Integer> inFlightPerHost = new ConcurrentHashMap<>();
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicBoolean pumpQueued = new AtomicBoolean();
+    private final ScheduledThreadPoolExecutor threadPool;
+
+    @Autowired
+    public DeliveryService(ReactiveMongoTemplate mongoTemplate, ActivityPubService activityPubService,
+                           ObjectProvider<MeterRegistry> meterRegistry) {
+        this(mongoTemplate, activityPubService, meterRegistry, POLL_INTERVAL_MILLIS);
+    }
+
+    DeliveryService(ReactiveMongoTemplate mongoTemplate, ActivityPubService activityPubService,
+                    ObjectProvider<MeterRegistry> meterRegistry, long pollIntervalMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.activityPubService = activityPubService;
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        registry.gauge("moth.delivery.queue.depth", queueDepth);
+        registry.gauge("moth.delivery.in_flight", inFlight);
+        this.lag = Timer.builder("moth.delivery.lag").description("time from queueing an activity to delivering it")
+                .register(registry);
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        // activities queued before jobs had a due time
+        mongoTemplate.updateMulti(Query.query(Criteria.where("nextAttemptAt").exists(false)),
+                                  Update.update("nextAttemptAt", Instant.now()), FederatedActivity.class)
+                .subscribe(null, e -> log.error("could not schedule queued activities", e));
+        this.threadPool.scheduleWithFixedDelay(this::pump, pollIntervalMillis, pollIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+        this.threadPool.scheduleWithFixedDelay(
+                () -> mongoTemplate.count(new Query(), FederatedActivity.class)
+                        .subscribe(queueDepth::set, e -> log.error("could not count federated activities", e)), 0,
+                QUEUE_DEPTH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * the delay before retry number attempts, see Util.backoff
+     *
+     * @param random uniformly distributed in [0, 1)
+     */
+    static Duration backoff(int attempts, double random) {
+        return Util.backoff(BASE_BACKOFF, MAX_BACKOFF, attempts, random);
+    }
+
+    /**
+     * a 4xx means the remote server will never accept this activity, except for timeouts and rate limits
+     */
+    static boolean isPermanentFailure(Throwable e) {
+        return e instanceof WebClientResponseException re && re.getStatusCode().is4xxClientError() &&
+                re.getStatusCode().value() != HttpStatus.REQUEST_TIMEOUT.value() &&
+                re.getStatusCode().value() != HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+    /**
+     * lease the job that has been due the longest, skipping hosts that are already at their limit
+     */
+    Mono<FederatedActivity> lease(Collection<String> busyHosts) {
+        var now = Instant.now();
+        var criteria = Criteria.where("nextAttemptAt").lte(now);
+        if (!busyHosts.isEmpty()) criteria = criteria.and("host").nin(busyHosts);
+        var query = Query.query(criteria).with(Sort.by("nextAttemptAt"));
+        var update = Update.update("leaseOwner", nodeId).set("nextAttemptAt", now.plus(LEASE_DURATION));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                                           FederatedActivity.class);
+    }
+
+    private List<String> busyHosts() {
+        return inFlightPerHost.entrySet().stream().filter(e -> e.getValue() >= MAX_IN_FLIGHT_PER_HOST)
+                .map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * lease and start deliveries until we are at capacity or nothing is due. this runs on our own thread, so it is
+     * fine to block on the lease.
+     */
+    void pump() {
+        pumpQueued.set(false);
+        try {
+            while (inFlight.get() < MAX_IN_FLIGHT) {
+                var job = lease(busyHosts()).block(DELIVERY_TIMEOUT);
+                if (job == null) return;
+                dispatch(job);
+            }
+        } catch (Exception e) {
+            log.error("could not lease federated activities", e);
+        }
+    }
+
+    // a finished delivery frees a slot, so look for more work right away rather than at the next poll
+    private void requestPump() {
+        if (pumpQueued.compareAndSet(false, true)) {
+            try {
+                threadPool.execute(this::pump);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+
+    private void dispatch(FederatedActivity job) {
+        var host = job.host != null ? job.host : String.valueOf(FederatedActivity.hostOf(job.inboxUrl));
+        inFlight.incrementAndGet();
+        inFlightPerHost.merge(host, 1, Integer::sum);
+        var sample = Timer.start(registry);
+        Mono.defer(() -> activityPubService.deliver(job)).timeout(DELIVERY_TIMEOUT)
+                .then(Mono.defer(() -> delivered(job)))
+                .onErrorResume(e -> failed(job, e))
+                .doFinally(signal -> {
+                    inFlight.decrementAndGet();
+                    inFlightPerHost.computeIfPresent(host, (h, count) -> count <= 1 ? null : count - 1);
+                    requestPump();
+                })
+                .subscribe(outcome -> sample.stop(registry.timer("moth.delivery.duration", "outcome", outcome)),
+                           e -> log.error("could not record delivery of " + job.id, e));
+    }
+
+    // only touch the job if we still hold the lease, another node may have picked it up if we were too slow
+    private Query leased(FederatedActivity job) {
+        return Query.query(Criteria.where("_id").is(job.id).and("leaseOwner").is(nodeId));
+    }
+
+    private Mono<String> delivered(FederatedActivity job) {
+        if (job.created_at != null) lag.record(Duration.between(job.created_at, Instant.now()));
+        return mongoTemplate.remove(leased(job), FederatedActivity.class).thenReturn("delivered");
+    }
+
+    private Mono<String> failed(FederatedActivity job, Throwable e) {
+        job.attempts++;
+        job.error = e.getMessage();
+        if (isPermanentFailure(e) || job.attempts >= MAX_ATTEMPTS) {
+            log.warn("giving up on delivering " + job.id + " to " + job.inboxUrl + " after " + job.attempts +
+                             " attempts: " + job.error);
+            job.leaseOwner = null;
+            return mongoTemplate.save(job, DEAD_LETTER_COLLECTION)
+                    .then(mongoTemplate.remove(leased(job), FederatedActivity.class)).thenReturn("dead");
+        }
+        var next = Instant.now().plus(backoff(job.attempts, ThreadLocalRandom.current().nextDouble()));
+        log.info("delivery of " + job.id + " to " + job.inboxUrl + " failed (" + job.error + "), retrying at " + next);
+        return mongoTemplate.updateFirst(leased(job), Update.update("attempts", job.attempts).set("error", job.error)
+                .set("nextAttemptAt", next).unset("leaseOwner"), FederatedActivity.class).thenReturn("retry");
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+}
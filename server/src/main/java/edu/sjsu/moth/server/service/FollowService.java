@@ -16,6 +16,7 @@ import edu.sjsu.moth.util.WebFingerUtils;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
@@ -34,6 +35,12 @@ public class FollowService {
     private ObjectMapper objectMapper;
     @Autowired
     private ActivityPubService activityPubService;
+    @Autowired
+    private HomeFeedService homeFeedService;
+    @Autowired
+    private FollowSetCache followSetCache;
+    @Autowired
+    private CounterService counterService;
 
     private Mono<Account> findAccountByIdOrAcct(String idOrAcct) {
         Mono<Account> byId = accountRepository.findById(idOrAcct);
@@ -145,66 +152,80 @@ public class FollowService {
 
     //followerAccount -> following-- || followedAccount -> followers--
     public Mono<String> removeFollow(Account followerAccount, Account followedAccount) {
-        return followRepository.findIfFollows(followerAccount.id, followedAccount.id).switchIfEmpty(
-                        Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
-                .flatMap(follow -> followRepository.delete(follow))
-                .then(updateFollowerCounts(followedAccount, followerAccount));
+        return followRepository.deleteIfFollows(followerAccount.id, followedAccount.id).filter(deleted -> deleted > 0)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
+                .flatMap(deleted -> updateFollowerCounts(followedAccount, followerAccount, -1))
+                .doOnSuccess(v -> followSetCache.followRemoved(followerAccount.id, followedAccount.id))
+                .then(homeFeedService.removeAuthor(followerAccount.id, followedAccount)).thenReturn("done");
     }
 
     //followerAccount -> following++ || followedAccount -> followers++
     public Mono<String> removeOutgoingRemoteFollow(Account followerAccount, String remoteFollowedId) {
-        return followRepository.findIfFollows(followerAccount.id, remoteFollowedId).switchIfEmpty(
-                        Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
-                .flatMap(follow -> followRepository.delete(follow)).then(updateFollowingCount(followerAccount));
+        return followRepository.deleteIfFollows(followerAccount.id, remoteFollowedId).filter(deleted -> deleted > 0)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
+                .flatMap(deleted -> updateFollowingCount(followerAccount, -1))
+                .doOnSuccess(v -> followSetCache.followRemoved(followerAccount.id, remoteFollowedId))
+                .then(accountRepository.findById(remoteFollowedId)
+                              .flatMap(followed -> homeFeedService.removeAuthor(followerAccount.id, followed)))
+                .thenReturn("done");
     }
 
     //followerAccount -> following++ || followedAccount -> followers++
     public Mono<String> removeIncomingRemoteFollow(String remoteFollowerId, Account followedAccount) {
-        return followRepository.findIfFollows(remoteFollowerId, followedAccount.id).switchIfEmpty(
-                        Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
-                .flatMap(follow -> followRepository.delete(follow)).then(updateFollowersCount(followedAccount));
+        return followRepository.deleteIfFollows(remoteFollowerId, followedAccount.id).filter(deleted -> deleted > 0)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No follow relation exists")))
+                .flatMap(deleted -> updateFollowersCount(followedAccount, -1))
+                .doOnSuccess(v -> followSetCache.followRemoved(remoteFollowerId, followedAccount.id))
+                .thenReturn("done");
     }
 
     //followerAccount -> following++ || followedAccount -> followers++
     public Mono<String> saveFollow(Account followerAccount, Account followedAccount) {
-        return followRepository.findIfFollows(followerAccount.id, followedAccount.id).switchIfEmpty(Mono.defer(() -> {
-            Follow follow = new Follow(followerAccount.id, followedAccount.id);
-            return followRepository.save(follow);
-        })).then(updateFollowerCounts(followedAccount, followerAccount));
+        // only the request that creates the follow counts it, a repeat of it changes nothing
+        return followRepository.insert(new Follow(followerAccount.id, followedAccount.id))
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                .doOnNext(saved -> followSetCache.followAdded(followerAccount.id, followedAccount.id))
+                .flatMap(saved -> updateFollowerCounts(followedAccount, followerAccount, 1).thenReturn(saved))
+                .flatMap(saved -> homeFeedService.mergeAuthor(followerAccount.id, followedAccount).thenReturn(saved))
+                .thenReturn("done");
     }
 
     //followerAccount -> following++ || followedAccount -> followers++
     public Mono<String> saveOutgoingRemoteFollow(Account followerAccount, String remoteFollowedId) {
-        return followRepository.findIfFollows(followerAccount.id, remoteFollowedId).switchIfEmpty(Mono.defer(() -> {
-            Follow follow = new Follow(followerAccount.id, remoteFollowedId);
-            return followRepository.save(follow);
-        })).then(updateFollowingCount(followerAccount));
+        return followRepository.insert(new Follow(followerAccount.id, remoteFollowedId))
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                .doOnNext(saved -> followSetCache.followAdded(followerAccount.id, remoteFollowedId))
+                .flatMap(saved -> updateFollowingCount(followerAccount, 1).thenReturn(saved))
+                // pull in whatever we already have from the remote account, new posts arrive through the inbox
+                .flatMap(saved -> accountRepository.findById(remoteFollowedId)
+                        .flatMap(followed -> homeFeedService.mergeAuthor(followerAccount.id, followed))
+                        .thenReturn(saved))
+                .thenReturn("done");
     }
 
     //followerAccount -> following++ || followedAccount -> followers++
     public Mono<String> saveIncomingRemoteFollow(String remoteFollowerId, Account followedAccount) {
-        return followRepository.findIfFollows(remoteFollowerId, followedAccount.id).switchIfEmpty(Mono.defer(() -> {
-            Follow follow = new Follow(remoteFollowerId, followedAccount.id);
-            return followRepository.save(follow);
-        })).then(updateFollowersCount(followedAccount));
+        return followRepository.insert(new Follow(remoteFollowerId, followedAccount.id))
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                .doOnNext(saved -> followSetCache.followAdded(remoteFollowerId, followedAccount.id))
+                .flatMap(saved -> updateFollowersCount(followedAccount, 1).thenReturn(saved))
+                .thenReturn("done");
     }
 
-    public Mono<String> updateFollowerCounts(Account followedAccount, Account followerAccount) {
-        return updateFollowersCount(followedAccount).then(updateFollowingCount(followerAccount)).thenReturn("done");
+    // the counts are adjusted in place with $inc, the reconciliation in CounterService catches any drift
+    public Mono<String> updateFollowerCounts(Account followedAccount, Account followerAccount, int delta) {
+        return updateFollowersCount(followedAccount, delta).then(updateFollowingCount(followerAccount, delta))
+                .thenReturn("done");
     }
 
-    public Mono<String> updateFollowersCount(Account account) {
-        return followRepository.countAllByFollowedId(account.id).flatMap(count -> {
-            account.followers_count = count.intValue();
-            return accountRepository.save(account);
-        }).thenReturn("done");
+    public Mono<String> updateFollowersCount(Account account, int delta) {
+        return counterService.incrementAccount(account.id, CounterService.FOLLOWERS, delta)
+                .doOnNext(count -> account.followers_count = count).thenReturn("done");
     }
 
-    public Mono<String> updateFollowingCount(Account account) {
-        return followRepository.countAllByFollowerId(account.id).flatMap(count -> {
-            account.following_count = count.intValue();
-            return accountRepository.save(account);
-        }).thenReturn("done");
+    public Mono<String> updateFollowingCount(Account account, int delta) {
+        return counterService.incrementAccount(account.id, CounterService.FOLLOWING, delta)
+                .doOnNext(count -> account.following_count = count).thenReturn("done");
     }
 
     public Mono<String> getPrivateKey(String id, boolean addIfMissing) {
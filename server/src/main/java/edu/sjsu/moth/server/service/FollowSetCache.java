@@ -0,0 +1,69 @@
+package edu.sjsu.moth.server.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.sjsu.moth.server.db.FollowRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * caches the set of account ids each account follows so that visibility checks are a hash lookup rather than a
+ * scan of the follow collection. every code path that writes the follow collection must call followAdded() or
+ * followRemoved() after the write completes. hit/miss counts are published as the cache.* metrics with
+ * cache=follow_set.
+ */
+@Service
+public class FollowSetCache {
+    private static final int FOLLOW_SET_CACHE_MAX_SIZE = 100_000;
+    private static final int FOLLOW_SET_CACHE_IDLE_MINUTES = 60;
+    private final AsyncCache<String, Set<String>> followedIds;
+    private final FollowRepository followRepository;
+
+    public FollowSetCache(FollowRepository followRepository, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.followRepository = followRepository;
+        this.followedIds = Caffeine.newBuilder().maximumSize(FOLLOW_SET_CACHE_MAX_SIZE)
+                .expireAfterAccess(Duration.ofMinutes(FOLLOW_SET_CACHE_IDLE_MINUTES)).recordStats().buildAsync();
+        meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, followedIds, "follow_set"));
+    }
+
+    /**
+     * the ids followed by followerId. concurrent misses for the same follower share one database read.
+     */
+    public Mono<Set<String>> getFollowedIds(String followerId) {
+        return Mono.fromFuture(followedIds.get(followerId, (id, executor) -> followRepository.findAllByFollowerId(id)
+                .map(follow -> follow.id.followed_id).collect(Collectors.toUnmodifiableSet()).toFuture()));
+    }
+
+    public Mono<Boolean> follows(String followerId, String followedId) {
+        return getFollowedIds(followerId).map(ids -> ids.contains(followedId));
+    }
+
+    public void followAdded(String followerId, String followedId) {
+        update(followerId, followedId, true);
+    }
+
+    public void followRemoved(String followerId, String followedId) {
+        update(followerId, followedId, false);
+    }
+
+    // cached sets are immutable, so we swap in an updated copy. a load that is still in flight may have read the
+    // collection before the write, so we drop it and let the next lookup reload.
+    private void update(String followerId, String followedId, boolean add) {
+        followedIds.asMap().computeIfPresent(followerId, (id, future) -> {
+            if (!future.isDone() || future.isCompletedExceptionally()) return null;
+            var ids = new HashSet<>(future.join());
+            if (add) ids.add(followedId);
+            else ids.remove(followedId);
+            return CompletableFuture.completedFuture(Set.copyOf(ids));
+        });
+    }
+}
@@ -0,0 +1,278 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.ExternalStatus;
+import edu.sjsu.moth.server.db.ExternalStatusRepository;
+import edu.sjsu.moth.server.db.FollowRepository;
+import edu.sjsu.moth.server.db.HomeFeedEntry;
+import edu.sjsu.moth.server.db.HomeFeedRepository;
+import edu.sjsu.moth.server.db.StatusRepository;
+import edu.sjsu.moth.server.util.Util;
+import edu.sjsu.moth.util.EmailCodeUtils;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * maintains the materialized home feed of each local account. statuses are pushed into the feeds of the author and
+ * the author's local followers when they are created (fan-out-on-write), so reading a home timeline is one indexed
+ * range query on home_feed plus one lookup per status collection.
+ */
+@Service
+@CommonsLog
+public class HomeFeedService implements AutoCloseable {
+    /**
+     * feeds are capped to this many entries. older entries are trimmed periodically.
+     */
+    public static final int MAX_ENTRIES = 800;
+    private static final int BULK_BATCH_SIZE = 1000;
+    private static final int TRIM_INTERVAL_MINUTES = 10;
+    private static final List<String> HOME_FEED_VISIBILITIES = Arrays.asList("public", "unlisted", "private", null);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final HomeFeedRepository homeFeedRepository;
+    private final FollowRepository followRepository;
+    private final AccountRepository accountRepository;
+    private final StatusRepository statusRepository;
+    private final ExternalStatusRepository externalStatusRepository;
+    private final StreamingService streamingService;
+    private final ScheduledThreadPoolExecutor threadPool;
+    // the feeds written to since the last trim, no other feed can have grown past MAX_ENTRIES
+    private final Set<String> written = ConcurrentHashMap.newKeySet();
+
+    public HomeFeedService(ReactiveMongoTemplate mongoTemplate, HomeFeedRepository homeFeedRepository,
+                           FollowRepository followRepository, AccountRepository accountRepository,
+                           StatusRepository statusRepository, ExternalStatusRepository externalStatusRepository,
+                           StreamingService streamingService) {
+        this.mongoTemplate = mongoTemplate;
+        this.homeFeedRepository = homeFeedRepository;
+        this.followRepository = followRepository;
+        this.accountRepository = accountRepository;
+        this.statusRepository = statusRepository;
+        this.externalStatusRepository = externalStatusRepository;
+        this.streamingService = streamingService;
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(
+                () -> trimWritten().subscribe(null, e -> log.error("home feed trim failed", e)),
+                TRIM_INTERVAL_MINUTES, TRIM_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * the position of a status in a feed. local ids come from Util.generateUniqueId() and are already time ordered.
+     * remote ids are URLs or ObjectIds, so we place them using the same layout (millis since NEW_EPOCH << 24).
+     */
+    public static long positionOf(Status status) {
+        try {
+            return Long.parseLong(status.id);
+        } catch (NumberFormatException ignored) {}
+        try {
+            return (Instant.parse(status.createdAt).toEpochMilli() - EmailCodeUtils.NEW_EPOCH) << 24;
+        } catch (Exception ignored) {}
+        return 0;
+    }
+
+    public static boolean isHomeFeedVisible(String visibility) {
+        return HOME_FEED_VISIBILITIES.contains(visibility);
+    }
+
+    // remote followers are stored by their user@host handle, local ones by account id
+    private static boolean isLocalAccountId(String id) {
+        return id != null && !id.contains("@");
+    }
+
+    /**
+     * push a newly created status into the feeds of its author (if local) and the author's local followers, and
+     * stream it to them.
+     */
+    public Mono<Void> fanOut(Status status) {
+        if (!canFanOut(status)) return Mono.empty();
+        return fanOutAuthor(List.of(status)).flatMap(owners -> streamingService.publishStatus(status, owners));
+    }
+
+    private static boolean canFanOut(Status s) {
+        return s != null && s.id != null && s.account != null && s.account.acct != null &&
+                isHomeFeedVisible(s.visibility);
+    }
+
+    /**
+     * push a batch of statuses into the feeds of their authors' local followers. followers are looked up once per
+     * author, which matters for backfills where the whole batch comes from the same account. batches are old news,
+     * so they are not streamed.
+     */
+    public Mono<Void> fanOut(Collection<? extends Status> statuses) {
+        Map<String, List<Status>> byAuthor = statuses.stream().map(s -> (Status) s)
+                .filter(HomeFeedService::canFanOut)
+                .collect(Collectors.groupingBy(s -> s.account.acct, Collectors.toList()));
+        return Flux.fromIterable(byAuthor.values()).concatMap(this::fanOutAuthor).then();
+    }
+
+    // returns the ids of the feeds that were written to
+    private Mono<List<String>> fanOutAuthor(List<Status> statuses) {
+        Status first = statuses.get(0);
+        Flux<String> owners = localFollowerIds(first.account);
+        if (!(first instanceof ExternalStatus) && isLocalAccountId(first.account.id)) {
+            owners = owners.startWith(first.account.id);
+        }
+        return owners.distinct().collectList().flatMap(ownerIds -> Flux.fromIterable(ownerIds)
+                        .flatMapIterable(owner -> statuses.stream().map(s -> entryFor(owner, s)).toList())
+                        .buffer(BULK_BATCH_SIZE).concatMap(this::upsertAll).then(Mono.just(ownerIds)))
+                .doOnError(e -> log.error("home feed fan-out failed for " + first.account.acct, e));
+    }
+
+    private HomeFeedEntry entryFor(String ownerId, Status status) {
+        return new HomeFeedEntry(ownerId, status.id, positionOf(status), status.account.acct,
+                                 status instanceof ExternalStatus);
+    }
+
+    // remote statuses carry a freshly converted account, so we also go through the stored account for the acct
+    private Flux<String> localFollowerIds(Account author) {
+        Flux<String> authorIds = Mono.justOrEmpty(author.id).flux();
+        if (author.acct != null) {
+            authorIds = authorIds.concatWith(accountRepository.findItemByAcct(author.acct).map(a -> a.id));
+        }
+        return authorIds.filter(Objects::nonNull).distinct().concatMap(followRepository::findAllByFollowedId)
+                .map(f -> f.id.follower_id).filter(HomeFeedService::isLocalAccountId);
+    }
+
+    private Mono<Void> upsertAll(List<HomeFeedEntry> entries) {
+        if (entries.isEmpty()) return Mono.empty();
+        entries.forEach(e -> written.add(e.ownerId));
+        var bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HomeFeedEntry.class);
+        for (var e : entries) {
+            bulk.upsert(Query.query(Criteria.where("_id").is(e.id)),
+                        Update.update("ownerId", e.ownerId).set("statusId", e.statusId).set("position", e.position)
+                                .set("authorAcct", e.authorAcct).set("external", e.external));
+        }
+        return bulk.execute().then();
+    }
+
+    /**
+     * a page of the home feed of ownerId, newest first. max_id, since_id and min_id may be status ids or positions.
+     */
+    public Mono<List<Status>> getHomeFeed(String ownerId, String max_id, String since_id, String min_id, int limit) {
+        int count = Util.clamp(limit, 1, 40);
+        return Mono.zip(resolveCursor(ownerId, max_id), resolveCursor(ownerId, since_id),
+                        resolveCursor(ownerId, min_id)).flatMap(cursors -> {
+            var max = cursors.getT1();
+            var since = cursors.getT2();
+            var min = cursors.getT3();
+            var criteria = Criteria.where("ownerId").is(ownerId);
+            if (max.isPresent() || since.isPresent() || min.isPresent()) {
+                var position = Criteria.where("position");
+                max.ifPresent(position::lt);
+                // min_id pages forward from the cursor, since_id jumps to the newest page above it
+                min.or(() -> since).ifPresent(position::gt);
+                criteria = criteria.andOperator(position);
+            }
+            var direction = min.isPresent() ? Sort.Direction.ASC : Sort.Direction.DESC;
+            var query = Query.query(criteria).with(Sort.by(direction, "position")).limit(count);
+            return mongoTemplate.find(query, HomeFeedEntry.class).collectList().map(entries -> {
+                if (direction == Sort.Direction.ASC) entries.sort((a, b) -> Long.compare(b.position, a.position));
+                return entries;
+            });
+        }).flatMap(this::loadStatuses);
+    }
+
+    private Mono<Optional<Long>> resolveCursor(String ownerId, String statusId) {
+        if (statusId == null || statusId.isBlank()) return Mono.just(Optional.empty());
+        try {
+            return Mono.just(Optional.of(Long.parseLong(statusId)));
+        } catch (NumberFormatException ignored) {}
+        return homeFeedRepository.findById(HomeFeedEntry.idFor(ownerId, statusId)).map(e -> Optional.of(e.position))
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    private Mono<List<Status>> loadStatuses(List<HomeFeedEntry> entries) {
+        var localIds = entries.stream().filter(e -> !e.external).map(e -> e.statusId).toList();
+        var externalIds = entries.stream().filter(e -> e.external).map(e -> e.statusId).toList();
+        Mono<Map<String, Status>> local = localIds.isEmpty() ? Mono.just(Map.of()) :
+                statusRepository.findAllById(localIds).collectMap(s -> s.id, s -> s);
+        Mono<Map<String, Status>> external = externalIds.isEmpty() ? Mono.just(Map.of()) :
+                externalStatusRepository.findAllById(externalIds).collectMap(s -> s.id, s -> (Status) s);
+        return Mono.zip(local, external).map(t -> {
+            var statuses = new ArrayList<Status>(entries.size());
+            for (var e : entries) {
+                // the status may have been deleted since it was fanned out
+                var status = (e.external ? t.getT2() : t.getT1()).get(e.statusId);
+                if (status != null) statuses.add(status);
+            }
+            return statuses;
+        });
+    }
+
+    /**
+     * pull the recent statuses of a newly followed account into the follower's feed.
+     */
+    public Mono<Void> mergeAuthor(String ownerId, Account author) {
+        if (!isLocalAccountId(ownerId) || author == null || author.acct == null) return Mono.empty();
+        var query = Query.query(
+                        Criteria.where("account.acct").is(author.acct).and("visibility").in(HOME_FEED_VISIBILITIES))
+                .with(Sort.by(Sort.Direction.DESC, "createdAt")).limit(MAX_ENTRIES);
+        return Flux.merge(mongoTemplate.find(query, Status.class), mongoTemplate.find(query, ExternalStatus.class))
+                .map(s -> entryFor(ownerId, s)).buffer(BULK_BATCH_SIZE).concatMap(this::upsertAll).then();
+    }
+
+    /**
+     * drop an unfollowed account's statuses from the follower's feed.
+     */
+    public Mono<Void> removeAuthor(String ownerId, Account author) {
+        if (author == null || author.acct == null) return Mono.empty();
+        return homeFeedRepository.deleteAllByOwnerIdAndAuthorAcct(ownerId, author.acct).then();
+    }
+
+    public Mono<Void> removeStatus(String statusId) {
+        return homeFeedRepository.deleteAllByStatusId(statusId).then();
+    }
+
+    /**
+     * trim the feeds written to since the last time, rather than looking through every feed for the overfull ones
+     */
+    Mono<Void> trimWritten() {
+        return Flux.defer(() -> {
+            var owners = List.copyOf(written);
+            owners.forEach(written::remove);
+            return Flux.fromIterable(owners);
+        }).concatMap(owner -> trim(owner).onErrorResume(e -> {
+            // try again next time
+            written.add(owner);
+            log.warn("could not trim the home feed of " + owner + ": " + e.getMessage());
+            return Mono.empty();
+        })).then();
+    }
+
+    Mono<Void> trim(String ownerId) {
+        var oldestKept = Query.query(Criteria.where("ownerId").is(ownerId))
+                .with(Sort.by(Sort.Direction.DESC, "position")).skip(MAX_ENTRIES - 1).limit(1);
+        return mongoTemplate.findOne(oldestKept, HomeFeedEntry.class).flatMap(oldest -> mongoTemplate.remove(
+                Query.query(Criteria.where("ownerId").is(ownerId).and("position").lt(oldest.position)),
+                HomeFeedEntry.class)).then();
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+}
@@ -1,5 +1,8 @@
 package edu.sjsu.moth.server.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.sjsu.moth.server.db.PubKeyPairRepository;
 import edu.sjsu.moth.server.keyManager.PublicKeyResolver;
 import edu.sjsu.moth.server.util.MothConfiguration;
@@ -12,10 +15,15 @@ import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.time.Duration;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -27,10 +35,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @CommonsLog
-public class HttpSignatureService {
+public class HttpSignatureService implements AutoCloseable {
     private static final int TIMESTAMP_TOLERANCE_SECONDS = 12 * 60 * 60; // TODO : should be configurable
     private static final int SHA256_DIGEST_LENGTH_BYTES = 32;
     private static final DateTimeFormatter RFC_1123_COMPLIANT_FORMATTER =
@@ -40,6 +50,38 @@ public class HttpSignatureService {
     // https://docs.joinmastodon.org/spec/security/
     private final List<String> baseHeadersToSign = List.of(HttpSignature.REQUEST_TARGET, "host", "date");
     private final PublicKeyResolver keyResolver;
+    private static final int SIGNING_KEY_CACHE_MAX_SIZE = 10_000;
+    private static final int SIGNING_KEY_CACHE_TTL_HOURS = 1;
+    // decoding the PEM is far more expensive than the RSA signature itself, and a post is signed once per inbox.
+    // the TTL is a backstop in case a key is replaced without calling invalidateSigningKey()
+    private final AsyncCache<String, PrivateKey> signingKeys =
+            Caffeine.newBuilder().maximumSize(SIGNING_KEY_CACHE_MAX_SIZE)
+                    .expireAfterWrite(Duration.ofHours(SIGNING_KEY_CACHE_TTL_HOURS)).buildAsync();
+
+    // RSA verification and hashing the body take long enough that they must not run on the event loop, which is
+    // also serving the client API. at most MAX_PENDING_VERIFICATIONS requests may be waiting for a verification,
+    // beyond that we ask the sender to come back later rather than queueing without bound.
+    static final int VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int MAX_PENDING_VERIFICATIONS = VERIFY_THREADS * 64;
+    // resolving a key may fetch the actor from its server. that waits on the network rather than on the verify
+    // threads, so those lookups have their own limit and do not hold a verification slot while they wait.
+    public static final int MAX_PENDING_KEY_LOOKUPS = MAX_PENDING_VERIFICATIONS * 4;
+    private static final int RETRY_AFTER_SECONDS = 30;
+    /**
+     * the exchange attribute with the SHA-256 of the request body, set by whoever read the body so that it is not
+     * hashed twice
+     */
+    public static final String BODY_DIGEST_ATTRIBUTE = "edu.sjsu.moth.server.service.HttpSignatureService.bodySha256";
+    private final Scheduler verifyScheduler = Schedulers.newParallel("signature-verify", VERIFY_THREADS, true);
+    private final AtomicInteger pendingVerifications = new AtomicInteger();
+    private final AtomicInteger pendingKeyLookups = new AtomicInteger();
+    // servers redeliver an activity with the same signature when they did not hear back from us in time. a
+    // signature only counts as the same if it signed exactly the same headers, so the signed bytes are part of the key
+    private static final int RECENTLY_VERIFIED_MAX_SIZE = 100_000;
+    private static final int RECENTLY_VERIFIED_TTL_MINUTES = 10;
+    private final Cache<String, Boolean> recentlyVerified =
+            Caffeine.newBuilder().maximumSize(RECENTLY_VERIFIED_MAX_SIZE)
+                    .expireAfterWrite(Duration.ofMinutes(RECENTLY_VERIFIED_TTL_MINUTES)).build();
 
     public HttpSignatureService(PubKeyPairRepository pubKeyPairRepository, PublicKeyResolver keyResolver) {
         this.pubKeyPairRepository = pubKeyPairRepository;
@@ -47,6 +89,20 @@ public class HttpSignatureService {
         this.serverName = MothConfiguration.mothConfiguration.getServerName();
     }
 
+    // the decoded private key of a local actor. concurrent misses share one database read.
+    private Mono<PrivateKey> signingKey(String acct) {
+        return Mono.fromFuture(signingKeys.get(acct, (id, executor) -> pubKeyPairRepository.findItemByAcct(id)
+                .map(keyPair -> Objects.requireNonNull(HttpSignature.pemToPrivateKey(keyPair.privateKeyPEM)))
+                .toFuture()), true);
+    }
+
+    /**
+     * must be called whenever the key pair of acct is written
+     */
+    public void invalidateSigningKey(String acct) {
+        signingKeys.synchronous().invalidate(acct);
+    }
+
     // format date
     // https://stackoverflow.com/questions/45829799/java-time-format-datetimeformatter-rfc-1123-date-time-fails-to-parse-time-zone-n
     // RFC 1123 = HTTP Date Format (https://github.com/mastodon/mastodon/blob/main/app/lib/request.rb)
@@ -56,11 +112,23 @@ public class HttpSignatureService {
 
     public Mono<HttpHeaders> prepareSignedHeaders(HttpMethod method, String sendingActorId, URI targetUri,
                                                   byte[] bodyBytes) {
-        return pubKeyPairRepository.findItemByAcct(sendingActorId).switchIfEmpty(
+        String digest =
+                method == HttpMethod.POST ? HttpSignature.digest(bodyBytes != null ? bodyBytes : new byte[0]) : null;
+        return prepareSignedHeadersForDigest(method, sendingActorId, targetUri, digest);
+    }
+
+    /**
+     * sign a request whose body has already been digested, so a body sent to many inboxes is only hashed once
+     *
+     * @param digest the Digest header of the body, see HttpSignature.digest()
+     */
+    public Mono<HttpHeaders> prepareSignedHeadersForDigest(HttpMethod method, String sendingActorId, URI targetUri,
+                                                           String digest) {
+        return signingKey(sendingActorId).onErrorMap(e -> new RuntimeException("Failed to prepare signed headers", e))
+                .switchIfEmpty(
                         Mono.error(() -> new RuntimeException("Private key not found for actor: " + sendingActorId)))
-                .handle((keyPair, sink) -> {
+                .handle((privateKey, sink) -> {
                     try {
-                        PrivateKey privateKey = HttpSignature.pemToPrivateKey(keyPair.privateKeyPEM);
                         String keyId = "https://" + serverName + "/users/" + sendingActorId + "#main-key";
                         String targetHost = targetUri.getHost();
                         if (targetHost == null) {
@@ -78,7 +146,7 @@ public class HttpSignatureService {
                         if (method == HttpMethod.POST) {
                             headers.setContentType(MediaType.valueOf(
                                     "application/ld+json; profile=\"https://www.w3.org/ns/activitystreams\""));
-                            HttpSignature.addDigest(headers, bodyBytes != null ? bodyBytes : new byte[0]);
+                            headers.add("Digest", digest);
                             headersToSign.add("digest");
                         }
                         String signatureHeaderValue =
@@ -167,39 +235,67 @@ public class HttpSignatureService {
 
         // Digest verification
         // https://github.com/mastodon/mastodon/blob/main/app/controllers/concerns/signature_verification.rb#L123C7-L123C25
-        Mono<Boolean> digestCheckResult;
-        if (headersToVerifyList.contains("digest")) {
-            String digestHeaderValue = headers.getFirst("Digest");
-            digestCheckResult = checkRequestDigest(digestHeaderValue, bodyBytes);
-        } else {
-            digestCheckResult = Mono.just(true);
-        }
-
-        return digestCheckResult.filter(Boolean::booleanValue).switchIfEmpty(Mono.defer(() -> {
-                    log.warn("Digest verification failed or header mismatch.");
-                    return Mono.just(false);
-                })).flatMap(ignored -> keyResolver.resolve(keyId)) // digest verified, good to go for the signature
-                .flatMap(publicKey -> {
+        boolean checkDigest = headersToVerifyList.contains("digest");
+        String digestHeaderValue = headers.getFirst("Digest");
+        byte[] bodySha256 = exchange.getAttribute(BODY_DIGEST_ATTRIBUTE);
+        byte[] signed = HttpSignature.generateHeadersToSign(method.name(), exchange.getRequest().getURI(), headers,
+                                                            List.of(headersToVerify.split(" ")));
+        String replayKey = keyId + "\n" + signature + "\n" + new String(signed, StandardCharsets.UTF_8);
+        // the body still has to match the digest of a redelivered request, only the RSA check is skipped
+        Mono<Boolean> verified = recentlyVerified.getIfPresent(replayKey) != null ?
+                offload(keyId, () -> !checkDigest || checkRequestDigest(digestHeaderValue, bodyBytes, bodySha256)) :
+                resolveKey(keyId).flatMap(publicKey -> offload(keyId, () -> {
+                    if (checkDigest && !checkRequestDigest(digestHeaderValue, bodyBytes, bodySha256)) {
+                        log.warn("Digest verification failed or header mismatch.");
+                        return false;
+                    }
+                    // digest verified, good to go for the signature
                     try {
-                        log.info("Validating signature for keyId: " + keyId);
-                        boolean isValid =
-                                HttpSignature.validateSignatureHeader(exchange.getRequest().getMethod().name(),
-                                                                      exchange.getRequest().getURI(), headers,
-                                                                      headersToVerify, publicKey, signature);
-                        if (!isValid) {
+                        log.debug("Validating signature for keyId: " + keyId);
+                        boolean isValid = HttpSignature.validateSignature(signed, publicKey, signature);
+                        if (isValid) {
+                            recentlyVerified.put(replayKey, Boolean.TRUE);
+                        } else {
                             log.warn("Invalid signature value for request from keyId: " + keyId);
                         }
-                        return Mono.just(isValid);
+                        return isValid;
                     } catch (Exception e) {
                         log.error("Error during signature validation for keyId: " + keyId, e);
-                        return Mono.just(false);
+                        return false;
                     }
-                }).defaultIfEmpty(false);
+                }));
+        return verified.defaultIfEmpty(false);
+    }
+
+    private Mono<PublicKey> resolveKey(String keyId) {
+        return Mono.defer(() -> {
+            if (pendingKeyLookups.incrementAndGet() > MAX_PENDING_KEY_LOOKUPS) {
+                pendingKeyLookups.decrementAndGet();
+                log.warn("too many keys being looked up, turning away " + keyId);
+                return Mono.error(new OverloadedException(RETRY_AFTER_SECONDS));
+            }
+            return keyResolver.resolve(keyId).doFinally(signal -> pendingKeyLookups.decrementAndGet());
+        });
+    }
+
+    // run work on the verify threads, unless too much is already waiting for them
+    private <T> Mono<T> offload(String keyId, Callable<T> work) {
+        return Mono.defer(() -> {
+            if (pendingVerifications.incrementAndGet() > MAX_PENDING_VERIFICATIONS) {
+                pendingVerifications.decrementAndGet();
+                log.warn("too many signatures waiting to be verified, turning away " + keyId);
+                return Mono.error(new OverloadedException(RETRY_AFTER_SECONDS));
+            }
+            return Mono.fromCallable(work).subscribeOn(verifyScheduler)
+                    .doFinally(signal -> pendingVerifications.decrementAndGet());
+        });
     }
 
-    private Mono<Boolean> checkRequestDigest(String digestHeaderValue, @Nullable byte[] bytes) {
+    // bodySha256 is the hash of bytes if the caller already has it
+    private boolean checkRequestDigest(String digestHeaderValue, @Nullable byte[] bytes,
+                                       @Nullable byte[] bodySha256) {
         String expectedValueBase64;
-        if (digestHeaderValue == null) return Mono.just(false);
+        if (digestHeaderValue == null) return false;
         String[] parts = digestHeaderValue.trim().split("=", 2); // Split into max 2 parts
 
         // Check format and algorithm in digest header
@@ -207,7 +303,7 @@ public class HttpSignatureService {
             expectedValueBase64 = parts[1].trim();
         } else {
             log.warn("Digest header is not in the expected 'SHA-256=value' format. Received: " + digestHeaderValue);
-            return Mono.just(false); // Fail if not exactly SHA-256=value
+            return false; // Fail if not exactly SHA-256=value
         }
 
         // Base64 validity and SHA-256 length (32 bytes)
@@ -217,23 +313,24 @@ public class HttpSignatureService {
             if (decodedDigestBytes.length != SHA256_DIGEST_LENGTH_BYTES) {
                 log.warn("Invalid Digest value. Decoded value length is not 32 bytes (SHA-256). Header value: " +
                                  expectedValueBase64);
-                return Mono.just(false);
+                return false;
             }
         } catch (IllegalArgumentException e) {
             log.warn("Invalid Digest value. Not a valid Base64 string. Header value: " + expectedValueBase64);
-            return Mono.just(false);
+            return false;
         }
 
         try {
-            MessageDigest sha256 = HttpSignature.newSHA256Digest();
-            if (sha256 == null) {
-                log.error("SHA-256 MessageDigest algorithm not available.");
-                return Mono.just(false);
+            byte[] actualDigestBytes = bodySha256;
+            if (actualDigestBytes == null) {
+                MessageDigest sha256 = HttpSignature.newSHA256Digest();
+                if (sha256 == null) {
+                    log.error("SHA-256 MessageDigest algorithm not available.");
+                    return false;
+                }
+                actualDigestBytes = sha256.digest(bytes != null ? bytes : new byte[0]);
             }
 
-            byte[] bodyToDigest = (bytes != null) ? bytes : new byte[0];
-            byte[] actualDigestBytes = sha256.digest(bodyToDigest);
-
             String actualDigestBase64 = Base64.getEncoder().encodeToString(actualDigestBytes);
             boolean match = Objects.equals(actualDigestBase64, expectedValueBase64);
             if (!match) {
@@ -242,10 +339,10 @@ public class HttpSignatureService {
             } else {
                 log.trace("Digest matched.");
             }
-            return Mono.just(match);
+            return match;
         } catch (Exception e) {
             log.error("Error calculating request body digest", e);
-            return Mono.just(false);
+            return false;
         }
     }
 
@@ -265,4 +362,21 @@ public class HttpSignatureService {
             return false;
         }
     }
+
+    @Override
+    public void close() {
+        verifyScheduler.dispose();
+    }
+
+    /**
+     * there are too many signatures waiting to be verified, the request should be retried later
+     */
+    public static class OverloadedException extends RuntimeException {
+        public final int retryAfterSeconds;
+
+        public OverloadedException(int retryAfterSeconds) {
+            super("too many signatures waiting to be verified");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
 }
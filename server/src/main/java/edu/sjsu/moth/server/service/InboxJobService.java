@@ -0,0 +1,313 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.db.FederatedActivity;
+import edu.sjsu.moth.server.db.InboxJob;
+import edu.sjsu.moth.server.util.Util;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import javax.security.auth.login.AccountNotFoundException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * processes the activities posted to our inboxes.
+ * <p>
+ * the inbox endpoints only check the signature, queue the activity in inbox_job and answer 202, so a slow remote
+ * server that we have to ask about an actor never holds up the server that is delivering to us. the job id is the
+ * activity id, so a redelivered activity is dropped for as long as the finished job is kept. an id that is not on the
+ * server that signed the activity is scoped to that server, so nobody can claim the id of someone else's activity.
+ * <p>
+ * jobs are leased the same way DeliveryService leases deliveries. at most MAX_IN_FLIGHT jobs run at once, and each
+ * activity type has its own limit so that a flood of one type, say Creates from a busy server, cannot starve the
+ * Follows. failed jobs are retried with backoff, and after MAX_ATTEMPTS they are marked failed. an Undo waits while
+ * the job of the activity it undoes is still queued, so a retried Follow cannot land after its own Undo.
+ * <p>
+ * metrics: moth.inbox.queue.depth, moth.inbox.in_flight and moth.inbox.duration (tagged with type and outcome).
+ */
+@Service
+@CommonsLog
+public class InboxJobService implements AutoCloseable {
+    public static final int MAX_ATTEMPTS = 5;
+    public static final int MAX_IN_FLIGHT = 32;
+    public static final Map<String, Integer> MAX_IN_FLIGHT_PER_TYPE = Map.of("Create", 16);
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_TYPE = 8;
+    static final Duration LEASE_DURATION = Duration.ofMinutes(2);
+    static final Duration PROCESSING_TIMEOUT = Duration.ofMinutes(1);
+    static final Duration BASE_BACKOFF = Duration.ofSeconds(10);
+    static final Duration MAX_BACKOFF = Duration.ofHours(1);
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final int QUEUE_DEPTH_INTERVAL_SECONDS = 15;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final InboxService inboxService;
+    private final AccountService accountService;
+    private final ActorRefreshService actorRefreshService;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry registry;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<String, Integer> inFlightPerType = new ConcurrentHashMap<>();
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicBoolean pumpQueued = new AtomicBoolean();
+    private final ScheduledThreadPoolExecutor threadPool;
+
+    @Autowired
+    public InboxJobService(ReactiveMongoTemplate mongoTemplate, InboxService inboxService,
+                           AccountService accountService, ActorRefreshService actorRefreshService,
+                           ObjectMapper objectMapper, ObjectProvider<MeterRegistry> meterRegistry) {
+        this(mongoTemplate, inboxService, accountService, actorRefreshService, objectMapper, meterRegistry,
+             POLL_INTERVAL_MILLIS);
+    }
+
+    InboxJobService(ReactiveMongoTemplate mongoTemplate, InboxService inboxService, AccountService accountService,
+                    ActorRefreshService actorRefreshService, ObjectMapper objectMapper,
+                    ObjectProvider<MeterRegistry> meterRegistry, long pollIntervalMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.inboxService = inboxService;
+        this.accountService = accountService;
+        this.actorRefreshService = actorRefreshService;
+        this.objectMapper = objectMapper;
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        registry.gauge("moth.inbox.queue.depth", queueDepth);
+        registry.gauge("moth.inbox.in_flight", inFlight);
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(this::pump, pollIntervalMillis, pollIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+        this.threadPool.scheduleWithFixedDelay(
+                () -> mongoTemplate.count(Query.query(Criteria.where("nextAttemptAt").exists(true)), InboxJob.class)
+                        .subscribe(queueDepth::set, e -> log.error("could not count inbox jobs", e)), 0,
+                QUEUE_DEPTH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * true if we do something with activities of this type posted to the shared inbox (target is null) or to the
+     * inbox of target. there is no point in queueing the rest.
+     */
+    public static boolean isHandled(String target, String type) {
+        if (target == null) return "Create".equals(type);
+        return "Follow".equals(type) || "Undo".equals(type) || "Accept".equals(type);
+    }
+
+    static int maxInFlight(String type) {
+        return MAX_IN_FLIGHT_PER_TYPE.getOrDefault(type, DEFAULT_MAX_IN_FLIGHT_PER_TYPE);
+    }
+
+    /**
+     * queue an activity posted to the inbox of target, or to the shared inbox if target is null. completes once the
+     * job is stored, or right away if the activity is not one we handle or has already been queued. signer is the
+     * keyId it was signed with.
+     */
+    public Mono<Void> enqueue(String target, JsonNode activity, String signer) {
+        var type = activity.path("type").asText();
+        if (!isHandled(target, type)) {
+            log.debug("ignoring " + type + " posted to " + (target == null ? "the shared inbox" : target));
+            return Mono.empty();
+        }
+        var job = new InboxJob(jobId(signer, activity.path("id").asText(null)), type, target, activity.toString(),
+                               Instant.now());
+        job.signer = signer;
+        return mongoTemplate.insert(job).doOnSuccess(j -> requestPump()).then()
+                .onErrorResume(DuplicateKeyException.class, e -> {
+                    log.debug("already received " + job.id);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * the job id of the activity id signed by signer. the id is taken as it is only if it is on the server that
+     * signed it, anything else is prefixed with the signer's host.
+     */
+    static String jobId(String signer, String id) {
+        if (id == null) return UUID.randomUUID().toString();
+        var signerHost = FederatedActivity.hostOf(signer);
+        var idHost = FederatedActivity.hostOf(id);
+        if (signerHost == null) signerHost = "unsigned";
+        return idHost != null && idHost.equalsIgnoreCase(signerHost) ? id : signerHost + " " + id;
+    }
+
+    /**
+     * lease the job that has been due the longest, skipping types that are already at their limit
+     */
+    Mono<InboxJob> lease(Collection<String> busyTypes) {
+        var now = Instant.now();
+        var criteria = Criteria.where("nextAttemptAt").lte(now);
+        if (!busyTypes.isEmpty()) criteria = criteria.and("type").nin(busyTypes);
+        var query = Query.query(criteria).with(Sort.by("nextAttemptAt"));
+        var update = Update.update("leaseOwner", nodeId).set("nextAttemptAt", now.plus(LEASE_DURATION));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                                           InboxJob.class);
+    }
+
+    private List<String> busyTypes() {
+        return inFlightPerType.entrySet().stream().filter(e -> e.getValue() >= maxInFlight(e.getKey()))
+                .map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * lease and start jobs until we are at capacity or nothing is due. this runs on our own thread, so it is fine to
+     * block on the lease.
+     */
+    void pump() {
+        pumpQueued.set(false);
+        try {
+            while (inFlight.get() < MAX_IN_FLIGHT) {
+                var job = lease(busyTypes()).block(PROCESSING_TIMEOUT);
+                if (job == null) return;
+                dispatch(job);
+            }
+        } catch (Exception e) {
+            log.error("could not lease inbox jobs", e);
+        }
+    }
+
+    // a new job or a finished one means there may be work we can start right away rather than at the next poll
+    private void requestPump() {
+        if (pumpQueued.compareAndSet(false, true)) {
+            try {
+                threadPool.execute(this::pump);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+
+    private void dispatch(InboxJob job) {
+        var type = String.valueOf(job.type);
+        inFlight.incrementAndGet();
+        inFlightPerType.merge(type, 1, Integer::sum);
+        var sample = Timer.start(registry);
+        heldBack(job).flatMap(held -> held ? deferred(job) : Mono.defer(() -> process(job))
+                        .timeout(PROCESSING_TIMEOUT).then(Mono.defer(() -> processed(job))))
+                .onErrorResume(e -> failed(job, e))
+                .doFinally(signal -> {
+                    inFlight.decrementAndGet();
+                    inFlightPerType.computeIfPresent(type, (t, count) -> count <= 1 ? null : count - 1);
+                    requestPump();
+                })
+                .subscribe(outcome -> sample.stop(registry.timer("moth.inbox.duration", "type", type, "outcome",
+                                                                 outcome)),
+                           e -> log.error("could not record processing of " + job.id, e));
+    }
+
+    /**
+     * true if job is an Undo of an activity whose own job is still queued, it has to wait for that one to finish
+     */
+    Mono<Boolean> heldBack(InboxJob job) {
+        if (!"Undo".equals(job.type)) return Mono.just(false);
+        JsonNode object;
+        try {
+            object = objectMapper.readTree(job.payload).path("object");
+        } catch (JsonProcessingException e) {
+            // process will fail it
+            return Mono.just(false);
+        }
+        var undone = object.isTextual() ? object.asText() : object.path("id").asText(null);
+        if (undone == null) return Mono.just(false);
+        return mongoTemplate.exists(
+                Query.query(Criteria.where("_id").is(jobId(job.signer, undone)).and("nextAttemptAt").exists(true)),
+                InboxJob.class);
+    }
+
+    // not an attempt, so it does not count towards MAX_ATTEMPTS
+    private Mono<String> deferred(InboxJob job) {
+        log.debug("holding back " + job.id + " until the activity it undoes has been processed");
+        return mongoTemplate.updateFirst(leased(job), new Update().set("nextAttemptAt", Instant.now().plus(
+                BASE_BACKOFF)).unset("leaseOwner"), InboxJob.class).thenReturn("deferred");
+    }
+
+    /**
+     * do what the inbox endpoints used to do inline
+     */
+    Mono<Void> process(InboxJob job) {
+        JsonNode activity;
+        try {
+            activity = objectMapper.readTree(job.payload);
+        } catch (JsonProcessingException e) {
+            return Mono.error(e);
+        }
+        // the actors we hear from are the ones whose profiles are worth keeping fresh
+        return actorRefreshService.markActive(activity.path("actor").asText(null)).then(handle(job, activity));
+    }
+
+    private Mono<Void> handle(InboxJob job, JsonNode activity) {
+        if (job.target == null) {
+            return "Create".equals(job.type) ? inboxService.createHandler(activity).then() : Mono.empty();
+        }
+        return switch (job.type) {
+            case "Follow" -> accountService.followerHandler(job.target, activity, false).then();
+            case "Undo" -> accountService.followerHandler(job.target, activity, true).then();
+            case "Accept" -> accountService.acceptHandler(job.target, activity).then();
+            default -> Mono.empty();
+        };
+    }
+
+    // the activity will not make more sense the next time around
+    static boolean isPermanentFailure(Throwable e) {
+        return e instanceof JsonProcessingException || e instanceof AccountNotFoundException;
+    }
+
+    // only touch the job if we still hold the lease, another node may have picked it up if we were too slow
+    private Query leased(InboxJob job) {
+        return Query.query(Criteria.where("_id").is(job.id).and("leaseOwner").is(nodeId));
+    }
+
+    // the id stays behind until completedAt expires so that redeliveries are recognized
+    private Mono<String> processed(InboxJob job) {
+        return mongoTemplate.updateFirst(leased(job), new Update().set("completedAt", Instant.now())
+                .unset("nextAttemptAt").unset("leaseOwner").unset("payload"), InboxJob.class).thenReturn("processed");
+    }
+
+    private Mono<String> failed(InboxJob job, Throwable e) {
+        job.attempts++;
+        job.error = String.valueOf(e.getMessage());
+        var update = Update.update("attempts", job.attempts).set("error", job.error).unset("leaseOwner");
+        if (isPermanentFailure(e) || job.attempts >= MAX_ATTEMPTS) {
+            log.warn("giving up on " + job.type + " " + job.id + " after " + job.attempts + " attempts: " +
+                             job.error);
+            return mongoTemplate.updateFirst(leased(job), update.set("failed", true).set("completedAt", Instant.now())
+                    .unset("nextAttemptAt"), InboxJob.class).thenReturn("failed");
+        }
+        var next = Instant.now().plus(backoff(job.attempts, ThreadLocalRandom.current().nextDouble()));
+        log.info("processing " + job.type + " " + job.id + " failed (" + job.error + "), retrying at " + next);
+        return mongoTemplate.updateFirst(leased(job), update.set("nextAttemptAt", next), InboxJob.class)
+                .thenReturn("retry");
+    }
+
+    static Duration backoff(int attempts, double random) {
+        return Util.backoff(BASE_BACKOFF, MAX_BACKOFF, attempts, random);
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+}
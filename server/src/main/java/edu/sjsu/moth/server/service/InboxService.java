@@ -6,10 +6,8 @@ import edu.sjsu.moth.server.db.ExternalStatus;
 import edu.sjsu.moth.server.util.HtmlSanitizer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
 import java.util.HashSet;
@@ -26,6 +24,8 @@ public class InboxService {
     AccountService accountService;
     @Autowired
     ActorService actorService;
+    @Autowired
+    HomeFeedService homeFeedService;
 
     public static String getVisibility(JsonNode activity) {
         // Extract recipients from outer Create activity
@@ -134,7 +134,7 @@ public class InboxService {
         //Making an actor and then converting to account
         String accountLink = node.get("actor").asText();
 
-        return actorService.getActor(accountLink).switchIfEmpty(createActor(accountLink))
+        return actorService.getActor(accountLink).switchIfEmpty(Mono.defer(() -> createActor(accountLink)))
                 .flatMap(actor -> accountService.convertToAccount(actor)).flatMap(account -> {
                     // build media attachments
                     var media = new java.util.ArrayList<edu.sjsu.moth.generated.MediaAttachment>();
@@ -186,18 +186,18 @@ public class InboxService {
 
                     // saving it to ExternalStatuses db
                     ExternalStatus status =
-                            new ExternalStatus(null, createdAt, null, null, sensitive, "", "direct", language, null,
+                            new ExternalStatus(null, createdAt, null, null, sensitive, "", visibility, language, null,
                                                null, 0, 0, 0, false, false, false, false, content, null, null, account,
                                                media, List.of(), List.of(), List.of(), null, null, content,
                                                node.get("published").asText());
-                    return statusService.saveExternal(status).map(ResponseEntity::ok);
+                    return statusService.saveExternal(status)
+                            .flatMap(saved -> homeFeedService.fanOut(saved).thenReturn(saved))
+                            .map(ResponseEntity::ok);
                 });
     }
 
+    // shares the fetch with the signature check and anyone else who is looking up the same actor
     public Mono<Actor> createActor(String accountLink) {
-        WebClient webClient =
-                WebClient.builder().defaultHeader(HttpHeaders.ACCEPT, "application/activity+json").build();
-        Mono<Actor> response = webClient.get().uri(accountLink).retrieve().bodyToMono(Actor.class);
-        return response.flatMap(actor -> actorService.save(actor));
+        return actorService.fetchRemoteActor(accountLink);
     }
 }
@@ -0,0 +1,189 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.MediaAttachment;
+import edu.sjsu.moth.server.controller.InstanceController;
+import edu.sjsu.moth.server.db.MediaBlob;
+import edu.sjsu.moth.server.util.Blurhash;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.imageio.ImageIO;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the slow part of a media upload: decoding the image, writing a downscaled preview into GridFS and computing the
+ * blurhash. this runs on its own small pool so that uploads never tie up the event loop, and an upload is answered
+ * with url: null until its processing is done (see the async contract of /api/v2/media).
+ * <p>
+ * images are decoded with subsampling, so a large original is never held at full resolution.
+ * <p>
+ * the renditions are recorded on the MediaBlob of the original, so a re-upload of the same bytes reuses them.
+ */
+@Service
+@CommonsLog
+public class MediaProcessingService implements AutoCloseable {
+    static final int PREVIEW_SIZE = 640;
+    private static final int BLURHASH_SIZE = 32;
+    private static final int BLURHASH_X_COMPONENTS = 4;
+    private static final int BLURHASH_Y_COMPONENTS = 3;
+    private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int MAX_QUEUED = 1000;
+
+    private final MediaService mediaService;
+    private final Scheduler workers = Schedulers.newBoundedElastic(WORKERS, MAX_QUEUED, "media-processing");
+
+    public MediaProcessingService(MediaService mediaService) {
+        this.mediaService = mediaService;
+    }
+
+    // scale so that the longer side is at most size, never up
+    private static BufferedImage scale(BufferedImage image, int size) {
+        double ratio = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        boolean alpha = image.getColorModel().hasAlpha();
+        var scaled = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        var graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static Map<String, Object> dimensions(BufferedImage image) {
+        return Map.of("width", image.getWidth(), "height", image.getHeight(), "size",
+                      image.getWidth() + "x" + image.getHeight(), "aspect",
+                      (float) image.getWidth() / (float) image.getHeight());
+    }
+
+    /**
+     * decode the image just finely enough for a preview of PREVIEW_SIZE. this blocks, only call it on workers.
+     */
+    private static BufferedImage decode(InputStream content) throws IOException {
+        try (var input = ImageIO.createImageInputStream(content)) {
+            var readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) throw new IOException("not an image we can read");
+            var reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                var param = reader.getDefaultReadParam();
+                // skip pixels while decoding, but keep at least twice the preview size for a smooth downscale
+                int subsampling = Math.max(1, longest / (PREVIEW_SIZE * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * make the preview and blurhash of an uploaded image, and save the finished attachment with its url set.
+     * if processing fails the attachment is still finished, just without them, since the original itself was
+     * checked when it was uploaded. if the same bytes have been processed before, their preview and blurhash are
+     * reused and nothing is decoded or stored.
+     *
+     * @param fileName        where the original is stored
+     * @param url             the url of the original, published once processing is done
+     * @param previewFileName where to store the preview, or null if the client uploaded its own
+     * @param previewUrl      the url of the preview we store
+     */
+    public Mono<MediaAttachment> process(MediaAttachment attachment, String fileName, String url,
+                                         String previewFileName, String previewUrl) {
+        // without its blob the renditions can still be made, they just cannot be shared
+        return mediaService.findBlob(fileName).onErrorResume(e -> Mono.empty()).flatMap(
+                        blob -> reuse(blob, attachment, url, previewFileName, previewUrl).switchIfEmpty(Mono.defer(
+                                () -> render(attachment, fileName, url, previewFileName, previewUrl, blob.id))))
+                .switchIfEmpty(Mono.defer(() -> render(attachment, fileName, url, previewFileName, previewUrl, null)))
+                .flatMap(finished -> mediaService.updateUpload(finished).thenReturn(finished));
+    }
+
+    // finish with the renditions of an earlier upload of the same bytes, empty if they are not there
+    private Mono<MediaAttachment> reuse(MediaBlob blob, MediaAttachment attachment, String url, String previewFileName,
+                                        String previewUrl) {
+        if (blob.blurhash == null) return Mono.empty();
+        if (previewFileName == null) {
+            return Mono.just(finished(attachment, url, attachment.previewUrl, attachment.meta, blob.blurhash));
+        }
+        if (blob.previewId == null) return Mono.empty();
+        return mediaService.aliasMedia(previewFileName, blob.previewId).map(preview -> {
+            var meta = new HashMap<>(attachment.meta);
+            meta.put("small", blob.small);
+            return finished(attachment, url, previewUrl, meta, blob.blurhash);
+        }).onErrorResume(e -> Mono.empty());
+    }
+
+    // decode the original and make its renditions, recording them on its blob if it has one
+    private Mono<MediaAttachment> render(MediaAttachment attachment, String fileName, String url,
+                                         String previewFileName, String previewUrl, String sha256) {
+        // streamed rather than joined, so each worker holds only what its decoder has not consumed yet
+        return mediaService.readMedia(fileName, input -> render(input, previewFileName != null), workers)
+                .switchIfEmpty(Mono.error(new IOException("could not find " + fileName))).flatMap(rendition -> {
+                    if (rendition.preview() != null) {
+                        var meta = new HashMap<>(attachment.meta);
+                        var small = dimensions(rendition.previewImage());
+                        meta.put("small", small);
+                        return mediaService.storeMedia(rendition.contentType(), previewFileName,
+                                                       Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(
+                                                               rendition.preview())),
+                                                       InstanceController.IMAGE_SIZE_LIMIT)
+                                .flatMap(preview -> saveRenditions(sha256, preview.sha256(), small,
+                                                                   rendition.blurhash()))
+                                .thenReturn(finished(attachment, url, previewUrl, meta, rendition.blurhash()));
+                    }
+                    return saveRenditions(sha256, null, null, rendition.blurhash()).thenReturn(
+                            finished(attachment, url, attachment.previewUrl, attachment.meta, rendition.blurhash()));
+                }).onErrorResume(e -> {
+                    log.warn("could not process media " + attachment.id + ": " + e.getMessage());
+                    return Mono.just(finished(attachment, url, previewFileName != null ? url : attachment.previewUrl,
+                                              attachment.meta, null));
+                });
+    }
+
+    private Mono<Void> saveRenditions(String sha256, String previewId, Map<String, Object> small, String blurhash) {
+        if (sha256 == null) return Mono.empty();
+        return mediaService.saveRenditions(sha256, previewId, small, blurhash);
+    }
+
+    // a new attachment rather than updating the one being processed, that one may still be being serialized
+    private MediaAttachment finished(MediaAttachment attachment, String url, String previewUrl,
+                                     Map<String, Object> meta, String blurhash) {
+        return new MediaAttachment(attachment.id, attachment.type, url, previewUrl, attachment.remoteUrl,
+                                   attachment.textUrl, meta, attachment.description, blurhash);
+    }
+
+    private Rendition render(InputStream content, boolean makePreview) throws IOException {
+        var image = decode(content);
+        if (image == null) throw new IOException("not an image we can read");
+        var blurhash = Blurhash.encode(scale(image, BLURHASH_SIZE), BLURHASH_X_COMPONENTS, BLURHASH_Y_COMPONENTS);
+        if (!makePreview) return new Rendition(null, null, null, blurhash);
+        var preview = scale(image, PREVIEW_SIZE);
+        // jpeg cannot hold transparency
+        var format = preview.getColorModel().hasAlpha() ? "png" : "jpeg";
+        var bytes = new ByteArrayOutputStream();
+        if (!ImageIO.write(preview, format, bytes)) throw new IOException("could not write a " + format + " preview");
+        return new Rendition(bytes.toByteArray(), "image/" + format, preview, blurhash);
+    }
+
+    @Override
+    public void close() {
+        workers.dispose();
+    }
+
+    private record Rendition(byte[] preview, String contentType, BufferedImage previewImage, String blurhash) {}
+}
@@ -1,26 +1,102 @@
 package edu.sjsu.moth.server.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import edu.sjsu.moth.generated.MediaAttachment;
-import edu.sjsu.moth.server.util.Util;
+import edu.sjsu.moth.server.db.MediaAlias;
+import edu.sjsu.moth.server.db.MediaBlob;
+import edu.sjsu.moth.server.db.UploadedMedia;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DefaultDataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Configuration
 public class MediaService {
+    // enough for the headers of the image formats we take, including a JPEG with a thumbnail in its EXIF
+    public static final int HEAD_BYTES = 64 * 1024;
+    private static final String GRIDFS_FILES_COLLECTION = "fs.files";
+    private static final String GRIDFS_CHUNKS_COLLECTION = "fs.chunks";
+    // a GridFS chunk is 255K, so this keeps about a megabyte of a file in flight
+    private static final int CHUNKS_PER_BATCH = 4;
+    // download buffers of 8K that readMedia keeps ahead of its reader
+    private static final int READ_PREFETCH = 32;
+    private static final int MAX_CACHED_FILES = 10_000;
+    private static final int MAX_CACHED_UPLOADS = 10_000;
+    // an upload is usually attached within minutes, after that it is only looked at when someone polls for it
+    private static final Duration UPLOAD_CACHE_IDLE = Duration.ofMinutes(30);
+    // an upload that is still processing is finished by the node that processes it, so the others only keep it for
+    // as long as a client waits between polls
+    private static final Duration PROCESSING_UPLOAD_TTL = Duration.ofSeconds(2);
+    private static final Expiry<String, UploadedMedia> UPLOAD_EXPIRY = new Expiry<>() {
+        @Override
+        public long expireAfterCreate(String id, UploadedMedia upload, long currentTime) {
+            return isProcessing(upload) ? PROCESSING_UPLOAD_TTL.toNanos() : UPLOAD_CACHE_IDLE.toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String id, UploadedMedia upload, long currentTime, long currentDuration) {
+            return expireAfterCreate(id, upload, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String id, UploadedMedia upload, long currentTime, long currentDuration) {
+            return isProcessing(upload) ? currentDuration : UPLOAD_CACHE_IDLE.toNanos();
+        }
+    };
+
     @Autowired
     ReactiveGridFsTemplate mongoStorage;
+    @Autowired
+    ReactiveMongoTemplate mongoTemplate;
 
-    Util.TTLHashMap<String, MediaAttachment> idToMedia = new Util.TTLHashMap<>(1, TimeUnit.HOURS);
+    // read-through cache of media_attachments, concurrent misses for the same id share one read
+    private final AsyncCache<String, UploadedMedia> uploads =
+            Caffeine.newBuilder().maximumSize(MAX_CACHED_UPLOADS).expireAfter(UPLOAD_EXPIRY).buildAsync();
+    // stored media never changes, so the files document of a name can be kept until it is evicted
+    private final Cache<String, GridFSFile> files = Caffeine.newBuilder().maximumSize(MAX_CACHED_FILES).build();
 
     public String uploadFileNameFromId(long id) {
         return "/media/attachments/uploads/%d".formatted(id);
@@ -31,22 +107,319 @@ public class MediaService {
     }
 
     public Mono<GridFSStream> getMongoFileInputStreamResource(String filename) {
-        return mongoStorage.findOne(new Query(Criteria.where("filename").is(filename))).flatMap(
-                f -> mongoStorage.getResource(f).map(r -> r.getDownloadStream(8192))
-                        .map(fda -> new GridFSStream(f, fda)));
+        return findMedia(filename).flatMap(f -> mongoStorage.getResource(f).map(r -> r.getDownloadStream(8192))
+                .map(fda -> new GridFSStream(f, fda)));
+    }
+
+    /**
+     * run reader on the content stored as filename. the content is streamed into it rather than loaded, and the
+     * stream is cancelled as soon as reader returns, so a reader that only needs the headers only fetches those.
+     * reader blocks, so it runs on boundedElastic.
+     */
+    public <T> Mono<T> readMedia(String filename, ContentReader<T> reader) {
+        return readMedia(filename, reader, Schedulers.boundedElastic());
+    }
+
+    /**
+     * like readMedia, but reader runs on scheduler, so a scheduler with few threads also bounds how much is read
+     * at once.
+     */
+    public <T> Mono<T> readMedia(String filename, ContentReader<T> reader, Scheduler scheduler) {
+        return getMongoFileInputStreamResource(filename).flatMap(stored -> Mono.using(
+                () -> stored.fdb().toStream(READ_PREFETCH), chunks -> Mono.fromCallable(() -> {
+                    var buffers = chunks.iterator();
+                    return reader.read(new SequenceInputStream(new Enumeration<>() {
+                        @Override
+                        public boolean hasMoreElements() {
+                            return buffers.hasNext();
+                        }
+
+                        @Override
+                        public InputStream nextElement() {
+                            return buffers.next().asInputStream(true);
+                        }
+                    }));
+                }), Stream::close).subscribeOn(scheduler));
+    }
+
+    /**
+     * the GridFS file stored as filename, without its content
+     */
+    public Mono<GridFSFile> findMedia(String filename) {
+        var cached = files.getIfPresent(filename);
+        if (cached != null) return Mono.just(cached);
+        return mongoTemplate.findById(filename, MediaAlias.class)
+                .flatMap(alias -> mongoStorage.findOne(new Query(Criteria.where("_id").is(alias.fileId))))
+                // stored before media was deduplicated
+                .switchIfEmpty(Mono.defer(
+                        () -> mongoStorage.findOne(new Query(Criteria.where("filename").is(filename)))))
+                .doOnNext(file -> files.put(filename, file));
+    }
+
+    /**
+     * a strong ETag for file: its content hash, or for files stored before we hashed uploads, its id, which is just
+     * as good since a stored file is never changed
+     */
+    public static String etagOf(GridFSFile file) {
+        var metadata = file.getMetadata();
+        var sha256 = metadata == null ? null : metadata.getString("sha256");
+        return "\"" + (sha256 != null ? sha256 : file.getObjectId().toHexString()) + "\"";
+    }
+
+    /**
+     * bytes start to end, inclusive, of file. only the GridFS chunks that overlap the range are read, a few at a time.
+     */
+    public Flux<DataBuffer> readRange(GridFSFile file, long start, long end) {
+        if (end < start) return Flux.empty();
+        int chunkSize = file.getChunkSize();
+        var query = new Query(Criteria.where("files_id").is(file.getObjectId()).and("n").gte((int) (start / chunkSize))
+                                      .lte((int) (end / chunkSize))).with(Sort.by("n"))
+                .cursorBatchSize(CHUNKS_PER_BATCH);
+        return mongoTemplate.find(query, Document.class, GRIDFS_CHUNKS_COLLECTION).map(chunk -> {
+            long chunkStart = (long) chunk.getInteger("n") * chunkSize;
+            var data = chunk.get("data", Binary.class).getData();
+            int from = (int) Math.max(0, start - chunkStart);
+            int to = (int) Math.min(data.length, end - chunkStart + 1);
+            return DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(data, from, to - from));
+        });
+    }
+
+    /**
+     * stream content into GridFS as fileName. nothing but the first HEAD_BYTES is kept on the heap: the length is
+     * checked against maxBytes and the SHA-256 is computed as the bytes go by, and the upload fails as soon as it is
+     * too big. the digest is saved in the metadata of the file once it is stored.
+     * <p>
+     * storage is content addressed: if the same bytes are already stored, fileName becomes another alias of that file
+     * and the copy we just wrote is dropped. the id of the returned media is the file that is kept.
+     */
+    public Mono<StoredMedia> storeMedia(String contentType, String fileName, Flux<DataBuffer> content, long maxBytes) {
+        return Mono.defer(() -> {
+            var upload = new UploadDigest(maxBytes);
+            return mongoStorage.store(content.doOnNext(upload::update), fileName, contentType).flatMap(id -> {
+                var stored = new StoredMedia(id, upload.length, HexFormat.of().formatHex(upload.sha256.digest()),
+                                             upload.head.toByteArray());
+                return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(id)),
+                                                 new Update().set("metadata.sha256", stored.sha256()),
+                                                 GRIDFS_FILES_COLLECTION).then(claim(stored)).flatMap(
+                        fileId -> mongoTemplate.save(new MediaAlias(fileName, stored.sha256(), fileId))
+                                .doOnNext(alias -> files.invalidate(fileName))
+                                .thenReturn(new StoredMedia(fileId, stored.length(), stored.sha256(), stored.head())));
+            });
+        });
+    }
+
+    /**
+     * make stored the blob of its content, or if there already is one, take a reference to it and delete stored.
+     * returns the GridFS file of the blob.
+     */
+    private Mono<ObjectId> claim(StoredMedia stored) {
+        return mongoTemplate.insert(new MediaBlob(stored.sha256(), stored.id(), 1)).map(blob -> blob.fileId)
+                .onErrorResume(DuplicateKeyException.class, e -> reference(stored.sha256())
+                        .flatMap(blob -> deleteMedia(stored.id()).thenReturn(blob.fileId))
+                        // the last reference was released while we were looking, so ours takes its place
+                        .switchIfEmpty(Mono.defer(() -> claim(stored))));
+    }
+
+    private Mono<MediaBlob> reference(String sha256) {
+        return mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(sha256)), new Update().inc("refs", 1),
+                                           FindAndModifyOptions.options().returnNew(true), MediaBlob.class);
+    }
+
+    /**
+     * the blob that fileName refers to, empty for media stored before media was deduplicated
+     */
+    public Mono<MediaBlob> findBlob(String fileName) {
+        return mongoTemplate.findById(fileName, MediaAlias.class)
+                .flatMap(alias -> mongoTemplate.findById(alias.blob, MediaBlob.class));
+    }
+
+    /**
+     * make fileName another alias of the blob sha256, without storing anything. empty if there is no such blob.
+     */
+    public Mono<MediaBlob> aliasMedia(String fileName, String sha256) {
+        return reference(sha256).flatMap(blob -> mongoTemplate.save(new MediaAlias(fileName, blob.id, blob.fileId))
+                .doOnNext(alias -> files.invalidate(fileName)).thenReturn(blob));
     }
 
-    public Mono<String> storeMedia(String contentType, String metaKey, String fileName, DefaultDataBuffer db) {
-        return mongoStorage.store(Mono.just(db), fileName, contentType).map(oid -> metaKey);
+    /**
+     * remember what was made from the blob sha256, so that the next upload of the same bytes can reuse it
+     *
+     * @param previewId the blob of the preview, or null if the client uploaded its own
+     */
+    public Mono<Void> saveRenditions(String sha256, String previewId, Map<String, Object> small, String blurhash) {
+        var update = new Update().set("blurhash", blurhash);
+        if (previewId != null) update.set("previewId", previewId).set("small", small);
+        return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(sha256)), update, MediaBlob.class).then();
     }
 
-    public void cacheAttachment(String id, MediaAttachment attachment) {
-        idToMedia.put(id, attachment);
+    public Mono<Void> deleteMedia(ObjectId id) {
+        return mongoStorage.delete(new Query(Criteria.where("_id").is(id)))
+                .doOnSuccess(v -> files.asMap().values().removeIf(file -> file.getObjectId().equals(id)));
     }
 
-    public MediaAttachment lookupCachedAttachment(String id) {
-        return idToMedia.get(id);
+    /**
+     * release the files named fileNames. the references of their blobs are dropped with one bulk update, and the
+     * blobs nobody refers to anymore are deleted along with files stored before media was deduplicated, with one
+     * delete each for their chunks and their files documents.
+     */
+    public Mono<Long> deleteMedia(Collection<String> fileNames) {
+        if (fileNames.isEmpty()) return Mono.just(0L);
+        return mongoTemplate.findAllAndRemove(new Query(Criteria.where("_id").in(fileNames)), MediaAlias.class)
+                .collectList().flatMap(aliases -> {
+                    var legacy = new HashSet<>(fileNames);
+                    aliases.forEach(alias -> legacy.remove(alias.id));
+                    return release(aliases).concatWith(legacyFileIds(legacy)).collectList();
+                }).flatMap(ids -> {
+                    if (ids.isEmpty()) return Mono.just(0L);
+                    return mongoTemplate.remove(new Query(Criteria.where("files_id").in(ids)),
+                                                GRIDFS_CHUNKS_COLLECTION)
+                            .then(mongoTemplate.remove(new Query(Criteria.where("_id").in(ids)),
+                                                       GRIDFS_FILES_COLLECTION))
+                            .map(result -> result.getDeletedCount());
+                }).doOnSuccess(deleted -> files.invalidateAll(fileNames));
+    }
+
+    // drop the references of aliases, the files of the blobs that are no longer referenced come out
+    private Flux<Object> release(List<MediaAlias> aliases) {
+        if (aliases.isEmpty()) return Flux.empty();
+        var released = aliases.stream().collect(Collectors.groupingBy(alias -> alias.blob, Collectors.counting()));
+        var bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MediaBlob.class);
+        released.forEach((blob, count) -> bulk.updateOne(new Query(Criteria.where("_id").is(blob)),
+                                                         new Update().inc("refs", -count)));
+        var unreferenced = Criteria.where("_id").in(released.keySet()).and("refs").lte(0);
+        return bulk.execute().thenMany(mongoTemplate.find(new Query(unreferenced), MediaBlob.class))
+                // only delete a blob if it was not referenced again in the meantime
+                .flatMap(blob -> mongoTemplate.remove(
+                                new Query(Criteria.where("_id").is(blob.id).and("refs").lte(0)), MediaBlob.class)
+                        .filter(result -> result.getDeletedCount() > 0).map(result -> (Object) blob.fileId));
+    }
+
+    // the files stored under fileNames before media was deduplicated. a blob's file keeps the name it was first
+    // stored as, so those are left alone.
+    private Flux<Object> legacyFileIds(Collection<String> fileNames) {
+        if (fileNames.isEmpty()) return Flux.empty();
+        var byName = new Query(Criteria.where("filename").in(fileNames));
+        byName.fields().include("_id");
+        return mongoTemplate.find(byName, Document.class, GRIDFS_FILES_COLLECTION).map(file -> file.get("_id"))
+                .collectList().flatMapMany(ids -> {
+                    if (ids.isEmpty()) return Flux.empty();
+                    return mongoTemplate.find(new Query(Criteria.where("fileId").in(ids)), MediaBlob.class)
+                            .map(blob -> (Object) blob.fileId).collectList().flatMapIterable(blobs -> {
+                                var legacy = new ArrayList<>(ids);
+                                legacy.removeAll(blobs);
+                                return legacy;
+                            });
+                });
+    }
+
+    /**
+     * record a new upload of owner. its files must be stored, but it may still be processing.
+     */
+    public Mono<UploadedMedia> saveUpload(String owner, MediaAttachment attachment, Collection<String> fileNames) {
+        return mongoTemplate.insert(
+                        new UploadedMedia(attachment.id, owner, Instant.now(), attachment, List.copyOf(fileNames)))
+                .doOnNext(upload -> uploads.put(upload.id, CompletableFuture.completedFuture(upload)));
+    }
+
+    /**
+     * replace the attachment of an upload, for when its processing is done
+     */
+    public Mono<UploadedMedia> updateUpload(MediaAttachment attachment) {
+        return mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(attachment.id)),
+                                           new Update().set("attachment", attachment),
+                                           FindAndModifyOptions.options().returnNew(true), UploadedMedia.class)
+                .doOnNext(upload -> uploads.put(upload.id, CompletableFuture.completedFuture(upload)));
+    }
+
+    // processing is done when the attachment gets its url
+    private static boolean isProcessing(UploadedMedia upload) {
+        return upload.attachment == null || upload.attachment.url == null;
+    }
+
+    public Mono<UploadedMedia> lookupUpload(String id) {
+        return Mono.fromFuture(
+                uploads.get(id, (key, executor) -> mongoTemplate.findById(key, UploadedMedia.class).toFuture()));
+    }
+
+    /**
+     * the uploads with ids, with one query for those that are not cached. ids that are not found are left out.
+     */
+    public Mono<Map<String, UploadedMedia>> lookupUploads(Collection<String> ids) {
+        if (ids.isEmpty()) return Mono.just(Map.of());
+        return Mono.fromFuture(uploads.getAll(ids, (missing, executor) -> mongoTemplate.find(
+                        new Query(Criteria.where("_id").in(missing)), UploadedMedia.class)
+                .collectMap(upload -> upload.id).toFuture()));
+    }
+
+    /**
+     * mark the uploads with ids as attached to statusId, so that they are kept
+     */
+    public Mono<Void> attachUploads(Collection<String> ids, String statusId) {
+        if (ids.isEmpty()) return Mono.empty();
+        return mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(ids)),
+                                         new Update().set("statusId", statusId), UploadedMedia.class)
+                .doOnSuccess(result -> uploads.synchronous().invalidateAll(ids)).then();
+    }
+
+    /**
+     * delete at most limit uploads that were made before cutoff and never attached to a status, along with their
+     * files. returns how many were deleted, so the caller can tell if there are more.
+     */
+    public Mono<Integer> sweepUploads(Instant cutoff, int limit) {
+        var unattached = new Query(Criteria.where("statusId").is(null).and("createdAt").lt(cutoff)).limit(limit);
+        return mongoTemplate.findAllAndRemove(unattached, UploadedMedia.class).collectList().flatMap(swept -> {
+            swept.forEach(upload -> uploads.synchronous().invalidate(upload.id));
+            return deleteMedia(swept.stream().flatMap(upload -> upload.fileNames.stream()).toList())
+                    .thenReturn(swept.size());
+        });
     }
 
     public record GridFSStream(GridFSFile file, Flux<DataBuffer> fdb) {}
+
+    /**
+     * reads what it needs from a media file, see readMedia
+     */
+    public interface ContentReader<T> {
+        T read(InputStream input) throws IOException;
+    }
+
+    /**
+     * a file stored in GridFS, with its first bytes so that the caller can look at the headers of the format
+     */
+    public record StoredMedia(ObjectId id, long length, String sha256, byte[] head) {}
+
+    private static class UploadDigest {
+        final long maxBytes;
+        final MessageDigest sha256;
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        long length;
+
+        UploadDigest(long maxBytes) {
+            this.maxBytes = maxBytes;
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(DataBuffer buffer) {
+            length += buffer.readableByteCount();
+            if (length > maxBytes) {
+                DataBufferUtils.release(buffer);
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "upload larger than " + maxBytes);
+            }
+            try (var iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    var bytes = iterator.next();
+                    if (head.size() < HEAD_BYTES) {
+                        var chunk = new byte[Math.min(HEAD_BYTES - head.size(), bytes.remaining())];
+                        bytes.duplicate().get(chunk);
+                        head.writeBytes(chunk);
+                    }
+                    sha256.update(bytes);
+                }
+            }
+        }
+    }
 }
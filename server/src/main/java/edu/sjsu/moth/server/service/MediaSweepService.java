@@ -0,0 +1,73 @@
+package edu.sjsu.moth.server.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * garbage-collects uploads that were never attached to a status. once an upload is older than ORPHAN_AFTER it is
+ * removed from media_attachments and its GridFS files are deleted, BATCH_SIZE uploads at a time. sweeping is
+ * idempotent, so it does not matter if several nodes sweep at once.
+ * <p>
+ * metrics: moth.media.swept.
+ */
+@Service
+@CommonsLog
+public class MediaSweepService implements AutoCloseable {
+    // clients attach media within minutes of the upload, a day leaves plenty of room for a slow draft
+    static final Duration ORPHAN_AFTER = Duration.ofDays(1);
+    static final int BATCH_SIZE = 500;
+    private static final long POLL_INTERVAL_MILLIS = Duration.ofHours(1).toMillis();
+    private static final Duration BATCH_TIMEOUT = Duration.ofMinutes(5);
+
+    private final MediaService mediaService;
+    private final MeterRegistry registry;
+    private final ScheduledThreadPoolExecutor threadPool;
+
+    @Autowired
+    public MediaSweepService(MediaService mediaService, ObjectProvider<MeterRegistry> meterRegistry) {
+        this(mediaService, meterRegistry, POLL_INTERVAL_MILLIS);
+    }
+
+    MediaSweepService(MediaService mediaService, ObjectProvider<MeterRegistry> meterRegistry,
+                      long pollIntervalMillis) {
+        this.mediaService = mediaService;
+        this.registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        this.threadPool = new ScheduledThreadPoolExecutor(1);
+        this.threadPool.scheduleWithFixedDelay(this::sweep, pollIntervalMillis, pollIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sweep batches until there are no orphans left. this runs on our own thread, so it is fine to block.
+     */
+    void sweep() {
+        try {
+            var cutoff = Instant.now().minus(ORPHAN_AFTER);
+            int total = 0;
+            Integer swept;
+            do {
+                swept = mediaService.sweepUploads(cutoff, BATCH_SIZE).block(BATCH_TIMEOUT);
+                if (swept == null) break;
+                total += swept;
+                registry.counter("moth.media.swept").increment(swept);
+            } while (swept == BATCH_SIZE);
+            if (total > 0) log.info("swept " + total + " unattached uploads");
+        } catch (Exception e) {
+            log.error("could not sweep unattached uploads", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.threadPool.shutdownNow();
+    }
+}
@@ -0,0 +1,140 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * parses an outbox page as it arrives, without ever holding the whole page. each element of orderedItems is
+ * buffered on its own and handed out as soon as it is complete, and the next link is reported as soon as it is seen,
+ * so the following page can be requested while this one is still being read. the outbox collection itself has no next,
+ * its first link is reported once it has been read. everything else on the page is skipped.
+ * <p>
+ * not thread safe, the chunks of a page are fed one after another.
+ */
+class OutboxPageParser {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private final ObjectMapper objectMapper;
+    private final JsonParser parser;
+    private final long maxBytes;
+    private final Predicate<JsonNode> keep;
+    private final Consumer<String> onLink;
+    private long bytes;
+    private int depth;
+    private String field;
+    private boolean inItems;
+    private TokenBuffer item;
+    private String first;
+    private boolean linkSeen;
+
+    /**
+     * @param maxBytes the largest page we are willing to read
+     * @param keep     which items to hand out, the rest are dropped as soon as they are parsed
+     * @param onLink   called at most once, with the url of the page after this one
+     */
+    OutboxPageParser(ObjectMapper objectMapper, long maxBytes, Predicate<JsonNode> keep, Consumer<String> onLink) {
+        this.objectMapper = objectMapper;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        this.onLink = onLink;
+        try {
+            this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * parse the next chunk of the page and return the items it completed. the chunk is released.
+     */
+    List<JsonNode> feed(DataBuffer buffer) {
+        byte[] chunk;
+        try {
+            chunk = new byte[buffer.readableByteCount()];
+            buffer.read(chunk);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+        bytes += chunk.length;
+        if (bytes > maxBytes) throw new DataBufferLimitException("outbox page is larger than " + maxBytes + " bytes");
+        try {
+            ((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).feedInput(chunk, 0, chunk.length);
+            return parse();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * the page has been read completely, fail if it was cut short
+     */
+    List<JsonNode> finish() {
+        try {
+            parser.getNonBlockingInputFeeder().endOfInput();
+            var items = parse();
+            if (depth != 0 || bytes == 0) throw new IOException("truncated outbox page");
+            if (!linkSeen && first != null) link(first);
+            return items;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            try {
+                parser.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private List<JsonNode> parse() throws IOException {
+        var items = new ArrayList<JsonNode>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if (item != null) {
+                item.copyCurrentEvent(parser);
+                if (token.isStructEnd() && --depth == 2) {
+                    JsonNode node = objectMapper.readTree(item.asParser(objectMapper));
+                    item = null;
+                    if (keep.test(node)) items.add(node);
+                } else if (token.isStructStart()) {
+                    depth++;
+                }
+                continue;
+            }
+            if (token.isStructStart()) {
+                depth++;
+                if (inItems && depth == 3 && token == JsonToken.START_OBJECT) {
+                    item = new TokenBuffer(parser);
+                    item.copyCurrentEvent(parser);
+                } else if (depth == 2 && "orderedItems".equals(field) && token == JsonToken.START_ARRAY) {
+                    inItems = true;
+                }
+            } else if (token.isStructEnd()) {
+                if (--depth == 1) inItems = false;
+            } else if (token == JsonToken.FIELD_NAME) {
+                if (depth == 1) field = parser.currentName();
+            } else if (depth == 1 && token == JsonToken.VALUE_STRING && !parser.getText().isBlank()) {
+                if ("next".equals(field) && !linkSeen) link(parser.getText());
+                else if ("first".equals(field)) first = parser.getText();
+            }
+        }
+        return items;
+    }
+
+    private void link(String url) {
+        linkSeen = true;
+        onLink.accept(url);
+    }
+}
@@ -0,0 +1,86 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
+import edu.sjsu.moth.server.util.SingleFlight;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * the post, follower and following counts of remote actors. they are only read from the totalItems of the actor's
+ * collections, which costs three requests, so they are kept for a while: a stale count is returned right away and
+ * refreshed in the background, only an actor we have never seen waits for the requests.
+ */
+@Service
+@CommonsLog
+public class RemoteAccountStatsService {
+    private static final int STATS_CACHE_MAX_SIZE = 100_000;
+    private static final int STATS_CACHE_TTL_HOURS = 24;
+    static final Duration REFRESH_AFTER = Duration.ofHours(1);
+    private static final int FETCH_TIMEOUT_SECONDS = 5;
+    private final WebClient webClient;
+    private final Cache<String, Stats> stats = Caffeine.newBuilder().maximumSize(STATS_CACHE_MAX_SIZE)
+            .expireAfterWrite(Duration.ofHours(STATS_CACHE_TTL_HOURS)).build();
+    private final SingleFlight<String, Stats> statsFetches = new SingleFlight<>();
+    // an actor without cached counts may be converted by several activities at once
+    private final SingleFlight<String, Integer> collectionFetches = new SingleFlight<>();
+
+    public RemoteAccountStatsService(WebClient.Builder webClientBuilder) {
+        this.webClient = webClientBuilder.defaultHeader(HttpHeaders.ACCEPT, ActorFetcher.ACTIVITY_JSON,
+                                                        MediaType.APPLICATION_JSON_VALUE).build();
+    }
+
+    /**
+     * the counts of actor, from the cache if we have them
+     */
+    public Mono<Stats> statsOf(Actor actor) {
+        if (actor.id == null) return fetchStats(actor);
+        var cached = stats.getIfPresent(actor.id);
+        if (cached == null) return statsFetches.execute(actor.id, () -> fetchStats(actor).doOnNext(fetched -> {
+            if (fetched.complete()) stats.put(actor.id, fetched);
+        }));
+        if (cached.fetchedAt().plus(REFRESH_AFTER).isBefore(Instant.now())) {
+            statsFetches.execute(actor.id, () -> fetchStats(actor).filter(Stats::complete)
+                    .doOnNext(fetched -> stats.put(actor.id, fetched))).subscribe();
+        }
+        return Mono.just(cached);
+    }
+
+    private Mono<Stats> fetchStats(Actor actor) {
+        return Mono.zip(totalItems(actor.outbox), totalItems(actor.followers), totalItems(actor.following))
+                .map(t -> new Stats(t.getT1(), t.getT2(), t.getT3(), Instant.now()));
+    }
+
+    // -1 if we could not find out, so that a server that is down does not have its counts cached as zero
+    private Mono<Integer> totalItems(String collection) {
+        if (collection == null) return Mono.just(0);
+        return collectionFetches.execute(collection, () -> webClient.get().uri(collection).retrieve()
+                .bodyToMono(JsonNode.class).timeout(Duration.ofSeconds(FETCH_TIMEOUT_SECONDS))
+                .map(node -> node.path("totalItems").asInt(0)).defaultIfEmpty(0).onErrorResume(e -> {
+                    log.debug("could not count " + collection + ": " + e.getMessage());
+                    return Mono.just(-1);
+                }));
+    }
+
+    public record Stats(int statuses, int followers, int following, Instant fetchedAt) {
+        public boolean complete() {
+            return statuses >= 0 && followers >= 0 && following >= 0;
+        }
+
+        public int statusesOrZero() {return Math.max(statuses, 0);}
+
+        public int followersOrZero() {return Math.max(followers, 0);}
+
+        public int followingOrZero() {return Math.max(following, 0);}
+    }
+}
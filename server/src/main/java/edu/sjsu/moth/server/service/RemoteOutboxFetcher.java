@@ -1,71 +1,124 @@
 package edu.sjsu.moth.server.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 
 /**
  * Fetches activities from a remote actor's outbox.
+ * <p>
+ * pages are parsed as they stream in (see OutboxPageParser), and while one page is being consumed the pages after it
+ * are already being fetched, up to pipelineDepth pages at a time. cancelling the flux, with take() for instance,
+ * cancels the page requests in flight.
  */
 @Service
 public class RemoteOutboxFetcher {
+    static final int DEFAULT_PIPELINE_DEPTH = 2;
+    // we never hold a whole page, but a page this big is not an outbox page
+    private static final long MAX_PAGE_BYTES = 5 * 1024 * 1024;
+    // the items of a prefetched page that are held while the page before it is consumed. outbox pages have 20 to
+    // 40 items, so a prefetched page is normally read to the end
+    private static final int PREFETCH_ITEMS = 200;
+    private static final Duration PAGE_TIMEOUT = Duration.ofSeconds(20);
 
     private final WebClient webClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final int pipelineDepth;
 
+    @Autowired
     public RemoteOutboxFetcher(WebClient.Builder builder) {
-        // increased memory limit to 5MB to handle large ActivityPub outbox pages
-        ExchangeStrategies strategies =
-                ExchangeStrategies.builder().codecs(cfg -> cfg.defaultCodecs().maxInMemorySize(5 * 1024 * 1024))
-                        .build();
+        this(builder, MothConfiguration.mothConfiguration == null ? DEFAULT_PIPELINE_DEPTH :
+                MothConfiguration.mothConfiguration.getOutboxPipelineDepth());
+    }
+
+    /**
+     * @param pipelineDepth how many pages may be fetched at once, 1 fetches a page only after the previous one has
+     *                      been consumed
+     */
+    public RemoteOutboxFetcher(WebClient.Builder builder, int pipelineDepth) {
         this.webClient = builder.defaultHeader(HttpHeaders.ACCEPT, "application/activity+json")
                 .defaultHeader(HttpHeaders.USER_AGENT, "Moth-Backfill/0.1")  // Identify our req
-                .exchangeStrategies(strategies).build();
+                .build();
+        this.pipelineDepth = Math.max(1, pipelineDepth);
     }
 
     public Flux<JsonNode> fetchCreateActivities(String outboxUrl, Integer limit) {
         // apply limit to the flux, or do nothing if the limit is null
         UnaryOperator<Flux<JsonNode>> takeOperator = f -> limit == null ? f : f.take(limit);
-
-        return fetch(outboxUrl).flatMapMany(root -> {
-            String type = text(root.path("type"));
-            if ("OrderedCollection".equals(type)) {
-                String first = text(root.path("first"));
-                if (first == null || first.isBlank()) {
-                    return Flux.empty();
-                }
-                return fetchAllPages(first);
-            } else {
-                return itemsFromPage(root);
-            }
-        }).filter(this::isCreateNote).transform(takeOperator);
+        return fetchAllPages(outboxUrl).transform(takeOperator);
     }
 
-    private Mono<JsonNode> fetch(String url) {
-        return webClient.get().uri(url).retrieve().bodyToMono(JsonNode.class).timeout(java.time.Duration.ofSeconds(20));
+    /**
+     * fetch one page of an outbox, or the outbox itself, keeping only the Create(Note) activities. the outbox
+     * collection is treated as an empty page whose next page is its first page, so a caller can walk an outbox one
+     * page at a time and remember where it got to.
+     */
+    public Mono<OutboxPage> fetchPage(String url) {
+        return Mono.defer(() -> {
+            var next = new AtomicReference<String>();
+            return streamPage(url, next::set).collectList().map(items -> new OutboxPage(items, next.get()));
+        });
     }
 
+    /**
+     * the Create(Note) activities of url and of every page after it. a page is requested as soon as the page before
+     * it has given its next link, as long as no more than pipelineDepth pages are in flight, and the items come out
+     * in page order.
+     */
     private Flux<JsonNode> fetchAllPages(String url) {
-        return fetch(url).flatMapMany(page -> {
-            Flux<JsonNode> items = itemsFromPage(page);
-            String next = text(page.path("next"));
-            if (next != null && !next.isBlank()) {
-                return items.concatWith(fetchAllPages(next));
-            } else {
-                return items;
-            }
+        return Flux.defer(() -> {
+            // each page adds the url of the page after it, or ends the walk
+            Sinks.Many<String> pages = Sinks.many().unicast().onBackpressureBuffer();
+            Set<String> seen = ConcurrentHashMap.newKeySet();
+            seen.add(url);
+            pages.tryEmitNext(url);
+            // a prefetched page is read ahead by up to PREFETCH_ITEMS while the page before it is being consumed,
+            // which is all of a normal page, so that our own backpressure does not trip its timeout. a longer page
+            // waits for the consumer like the first one does.
+            return pages.asFlux().flatMapSequential(pageUrl -> {
+                var linked = new AtomicBoolean();
+                return streamPage(pageUrl, next -> {
+                    // a link back to a page we have already read would loop forever
+                    if (seen.add(next)) {
+                        linked.set(true);
+                        pages.tryEmitNext(next);
+                    }
+                }).doOnComplete(() -> {
+                    if (!linked.get()) pages.tryEmitComplete();
+                });
+            }, pipelineDepth, PREFETCH_ITEMS);
         });
     }
 
-    private Flux<JsonNode> itemsFromPage(JsonNode page) {
-        JsonNode items = page.path("orderedItems");
-        if (items == null || !items.isArray()) return Flux.empty();
-        return Flux.fromIterable(items);
+    /**
+     * the Create(Note) activities on the page at url, parsed as the page arrives. onLink gets the url of the
+     * following page if there is one.
+     */
+    private Flux<JsonNode> streamPage(String url, Consumer<String> onLink) {
+        return Flux.defer(() -> {
+            var parser = new OutboxPageParser(objectMapper, MAX_PAGE_BYTES, this::isCreateNote, onLink);
+            return webClient.get().uri(url).retrieve().bodyToFlux(DataBuffer.class).timeout(PAGE_TIMEOUT)
+                    .concatMapIterable(parser::feed).concatWith(Flux.defer(() -> Flux.fromIterable(parser.finish())))
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
     }
 
     private boolean isCreateNote(JsonNode item) {
@@ -75,4 +128,9 @@ public class RemoteOutboxFetcher {
     private String text(JsonNode node) {
         return node != null && node.isTextual() ? node.asText() : null;
     }
+
+    /**
+     * the Create(Note) activities on a page of an outbox, next is null on the last page
+     */
+    public record OutboxPage(List<JsonNode> items, String next) {}
 }
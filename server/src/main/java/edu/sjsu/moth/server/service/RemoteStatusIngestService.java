@@ -9,38 +9,92 @@ import edu.sjsu.moth.server.db.ExternalStatusRepository;
 import edu.sjsu.moth.server.db.StatusMention;
 import edu.sjsu.moth.server.db.StatusTag;
 import edu.sjsu.moth.server.util.HtmlSanitizer;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
+/**
+ * stores the notes of remote Create activities as ExternalStatus documents.
+ * <p>
+ * activities are ingested in windows of up to WINDOW_SIZE: one $in query finds the notes we already have, the new
+ * ones are sanitized and mapped on the parallel scheduler, and they are written with one unordered bulk of upserts
+ * keyed on the note id. the upserts only set fields on insert, so a note stored concurrently by someone else is left
+ * alone.
+ */
 @Service
 public class RemoteStatusIngestService {
+    static final int WINDOW_SIZE = 100;
+    // a window that is not full is flushed after this long, so a slow stream of activities is not held back
+    private static final Duration WINDOW_TIMEOUT = Duration.ofMillis(200);
+    private static final int WINDOW_CONCURRENCY = 2;
 
     private final ExternalStatusRepository externalStatusRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
 
-    public RemoteStatusIngestService(ExternalStatusRepository repo) {
+    public RemoteStatusIngestService(ExternalStatusRepository repo, ReactiveMongoTemplate mongoTemplate) {
         this.externalStatusRepository = repo;
+        this.mongoTemplate = mongoTemplate;
     }
 
     public Mono<List<ExternalStatus>> ingestCreateNotes(Flux<JsonNode> createActivities, Actor actor, Function<Actor,
             Mono<Account>> accountProvider) {
-        return accountProvider.apply(actor).flatMap(account -> createActivities.flatMap(item -> {
-            JsonNode obj = item.path("object");
-            String id = text(obj.path("id"));
-            if (id == null || id.isBlank()) return Mono.empty();
-
-            return externalStatusRepository.findById(id).switchIfEmpty(mapNoteToExternal(obj, item, account))
-                    .flatMap(existingOrNew -> Mono.just(existingOrNew));
-        }).collectList());
+        return accountProvider.apply(actor).flatMap(
+                account -> createActivities.bufferTimeout(WINDOW_SIZE, WINDOW_TIMEOUT)
+                        .flatMapSequential(window -> ingestWindow(window, account), WINDOW_CONCURRENCY)
+                        .flatMapIterable(Function.identity()).collectList());
     }
 
-    private Mono<ExternalStatus> mapNoteToExternal(JsonNode note, JsonNode create, Account acc) {
+    private Mono<List<ExternalStatus>> ingestWindow(List<JsonNode> window, Account account) {
+        // the Create activities by note id, the same note can show up twice in a window
+        var creates = new LinkedHashMap<String, JsonNode>();
+        for (var item : window) {
+            String id = text(item.path("object").path("id"));
+            if (id != null && !id.isBlank()) creates.putIfAbsent(id, item);
+        }
+        if (creates.isEmpty()) return Mono.just(List.of());
+        return externalStatusRepository.findAllById(List.copyOf(creates.keySet())).collectList().flatMap(existing -> {
+            existing.forEach(status -> creates.remove(status.id));
+            if (creates.isEmpty()) return Mono.just(existing);
+            return Flux.fromIterable(creates.values()).parallel().runOn(Schedulers.parallel())
+                    .map(create -> mapNoteToExternal(create.path("object"), create, account)).sequential()
+                    .collectList().flatMap(this::upsertAll).map(added -> {
+                        var statuses = new ArrayList<ExternalStatus>(existing);
+                        statuses.addAll(added);
+                        return statuses;
+                    });
+        });
+    }
+
+    private Mono<List<ExternalStatus>> upsertAll(List<ExternalStatus> statuses) {
+        var bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ExternalStatus.class);
+        for (var status : statuses) {
+            var document = new Document();
+            mongoTemplate.getConverter().write(status, document);
+            var update = new Update();
+            document.forEach((field, value) -> {
+                if (!"_id".equals(field)) update.setOnInsert(field, value);
+            });
+            bulk.upsert(Query.query(Criteria.where("_id").is(status.id)), update);
+        }
+        return bulk.execute().thenReturn(statuses);
+    }
+
+    private ExternalStatus mapNoteToExternal(JsonNode note, JsonNode create, Account acc) {
         String id = text(note.path("id"));
         String published = text(create.path("published"));
         boolean sensitive = note.path("sensitive").asBoolean(false);
@@ -55,11 +109,9 @@ public class RemoteStatusIngestService {
         var tags = new ArrayList<StatusTag>();
         extractTags(note.path("tag"), mentions, tags);
 
-        ExternalStatus status =
-                new ExternalStatus(id, published, null, null, sensitive, "", "public", language, id, id, 0, 0, 0, false,
-                                   false, false, false, content, null, null, acc, media, mentions, tags, List.of(),
-                                   null, null, content, published);
-        return externalStatusRepository.save(status);
+        return new ExternalStatus(id, published, null, null, sensitive, "", "public", language, id, id, 0, 0, 0, false,
+                                  false, false, false, content, null, null, acc, media, mentions, tags, List.of(),
+                                  null, null, content, published);
     }
 
     private ArrayList<MediaAttachment> buildMediaAttachments(JsonNode attachments, String fallbackId) {
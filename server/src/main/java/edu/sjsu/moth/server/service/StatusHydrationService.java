@@ -0,0 +1,107 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.BookmarkRepository;
+import edu.sjsu.moth.server.db.FavouriteRepository;
+import edu.sjsu.moth.server.db.PinRepository;
+import edu.sjsu.moth.server.db.ReblogRepository;
+import edu.sjsu.moth.server.db.StatusMuteRepository;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.security.Principal;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * fills in the viewer relative flags of a status (favourited, reblogged, bookmarked, muted, pinned). they are not
+ * properties of the shared status document, so they are computed per request: one $in query per relation
+ * collection for the whole page, no matter how many statuses are on it.
+ */
+@Service
+public class StatusHydrationService {
+    private final AccountRepository accountRepository;
+    private final FavouriteRepository favouriteRepository;
+    private final ReblogRepository reblogRepository;
+    private final BookmarkRepository bookmarkRepository;
+    private final StatusMuteRepository statusMuteRepository;
+    private final PinRepository pinRepository;
+
+    public StatusHydrationService(AccountRepository accountRepository, FavouriteRepository favouriteRepository,
+                                  ReblogRepository reblogRepository, BookmarkRepository bookmarkRepository,
+                                  StatusMuteRepository statusMuteRepository, PinRepository pinRepository) {
+        this.accountRepository = accountRepository;
+        this.favouriteRepository = favouriteRepository;
+        this.reblogRepository = reblogRepository;
+        this.bookmarkRepository = bookmarkRepository;
+        this.statusMuteRepository = statusMuteRepository;
+        this.pinRepository = pinRepository;
+    }
+
+    private record ViewerState(Set<String> favourited, Set<String> reblogged, Set<String> bookmarked,
+                               Set<String> muted, Set<String> pinned) {
+        static final ViewerState NONE = new ViewerState(Set.of(), Set.of(), Set.of(), Set.of(), Set.of());
+    }
+
+    public Mono<List<Status>> hydrate(Principal user, List<Status> statuses) {
+        if (user == null) return hydrate((String) null, statuses);
+        return accountRepository.findItemByAcct(user.getName()).map(account -> account.id)
+                .flatMap(accountId -> hydrate(accountId, statuses)).switchIfEmpty(Mono.defer(
+                        () -> hydrate((String) null, statuses)));
+    }
+
+    public Mono<Status> hydrate(Principal user, Status status) {
+        return hydrate(user, List.of(status)).thenReturn(status);
+    }
+
+    public Mono<Status> hydrate(String accountId, Status status) {
+        return hydrate(accountId, List.of(status)).thenReturn(status);
+    }
+
+    /**
+     * set the flags of statuses (and of the statuses they reblog) for the viewer accountId. an anonymous viewer
+     * (null) gets false for everything.
+     */
+    public Mono<List<Status>> hydrate(String accountId, List<Status> statuses) {
+        var ids = new LinkedHashSet<String>();
+        for (var status : statuses) {
+            if (status == null) continue;
+            if (status.id != null) ids.add(status.id);
+            if (status.reblog != null && status.reblog.id != null) ids.add(status.reblog.id);
+        }
+        var state = accountId == null || ids.isEmpty() ? Mono.just(ViewerState.NONE) : Mono.zip(
+                toSet(favouriteRepository.findAllByAccountIdAndStatusIdIn(accountId, ids).map(f -> f.id.status_id)),
+                toSet(reblogRepository.findAllByAccountIdAndStatusIdIn(accountId, ids).map(r -> r.id.status_id)),
+                toSet(bookmarkRepository.findAllByAccountIdAndStatusIdIn(accountId, ids).map(b -> b.id.status_id)),
+                toSet(statusMuteRepository.findAllByAccountIdAndStatusIdIn(accountId, ids).map(m -> m.id.status_id)),
+                toSet(pinRepository.findAllByAccountIdAndStatusIdIn(accountId, ids).map(p -> p.id.status_id))).map(
+                t -> new ViewerState(t.getT1(), t.getT2(), t.getT3(), t.getT4(), t.getT5()));
+        return state.map(s -> {
+            for (var status : statuses) {
+                if (status == null) continue;
+                apply(status, s, accountId);
+                if (status.reblog != null) apply(status.reblog, s, accountId);
+            }
+            return statuses;
+        });
+    }
+
+    private static Mono<Set<String>> toSet(Flux<String> ids) {
+        return ids.collect(Collectors.toSet());
+    }
+
+    private static void apply(Status status, ViewerState state, String accountId) {
+        var id = status.id == null ? "" : status.id;
+        status.favourited = state.favourited().contains(id);
+        status.reblogged = state.reblogged().contains(id);
+        status.bookmarked = state.bookmarked().contains(id);
+        status.muted = state.muted().contains(id);
+        // pinned only makes sense on the viewer's own statuses
+        boolean own = accountId != null && status.account != null && accountId.equals(status.account.id);
+        status.pinned = own ? state.pinned().contains(id) : null;
+    }
+}
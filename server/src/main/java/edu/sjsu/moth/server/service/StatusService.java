@@ -1,7 +1,5 @@
 package edu.sjsu.moth.server.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.querydsl.core.types.Ops;
 import com.querydsl.core.types.Path;
 import com.querydsl.core.types.dsl.BooleanExpression;
@@ -14,6 +12,7 @@ import edu.sjsu.moth.generated.StatusSource;
 import edu.sjsu.moth.server.activitypub.message.CreateMessage;
 import edu.sjsu.moth.server.activitypub.service.OutboxService;
 import edu.sjsu.moth.server.db.AccountField;
+import edu.sjsu.moth.server.db.Account;
 import edu.sjsu.moth.server.db.AccountRepository;
 import edu.sjsu.moth.server.db.ExternalStatus;
 import edu.sjsu.moth.server.db.ExternalStatusRepository;
@@ -42,7 +41,11 @@ import lombok.extern.apachecommons.CommonsLog;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -51,15 +54,18 @@ import reactor.core.scheduler.Schedulers;
 import java.net.URI;
 import java.security.Principal;
 import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Optional;
 
 @Configuration
 @CommonsLog
 public class StatusService {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
     @Autowired
     StatusRepository statusRepository;
     @Autowired
@@ -96,6 +102,14 @@ public class StatusService {
     private RemoteOutboxFetcher remoteOutboxFetcher;
     @Autowired
     private RemoteStatusIngestService remoteStatusIngestService;
+    @Autowired
+    private HomeFeedService homeFeedService;
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+    @Autowired
+    private StreamingService streamingService;
+    @Autowired
+    private CounterService counterService;
 
     public Mono<ArrayList<StatusEdit>> findHistory(String id) {
         return statusHistoryRepository.findById(id).map(edits -> edits.collection);
@@ -186,18 +200,20 @@ public class StatusService {
 
         return mono.then(statusRepository.save(status)).flatMap(savedStatus -> {
             CreateMessage createMessage = outboxService.buildCreateActivity(savedStatus);
-            Flux<Void> fanOut = outboxRepository.save(createMessage)
-                    .thenMany(getRemoteFollowerInboxes(savedStatus.account.id).flatMapMany(Flux::fromIterable))
-                    .flatMap(inboxUrl -> sendCreate(createMessage, inboxUrl));
+            Mono<Void> fanOut = outboxRepository.save(createMessage)
+                    .then(getRemoteFollowerInboxes(savedStatus.account.id))
+                    .flatMap(inboxUrls -> sendCreate(createMessage, inboxUrls));
 
             // schedule it on boundedElastic, Invoke and forget (but don't lose errors silently)
             fanOut.subscribeOn(Schedulers.boundedElastic())
                     .subscribe(null, e -> log.error("federation fan-out failed for status " + savedStatus.id, e));
 
             return Mono.just(savedStatus);  // immediately return savedStatus
-        }).flatMap(savedStatus -> statusHistoryRepository.findById(savedStatus.id)
-                .defaultIfEmpty(new StatusEditCollection(savedStatus.id))
-                .flatMap(sh -> statusHistoryRepository.save(sh.addEdit(savedStatus))).thenReturn(savedStatus));
+        }).flatMap(savedStatus -> homeFeedService.fanOut(savedStatus).thenReturn(savedStatus)).flatMap(
+                savedStatus -> statusHistoryRepository.findById(savedStatus.id)
+                        .defaultIfEmpty(new StatusEditCollection(savedStatus.id))
+                        .flatMap(sh -> statusHistoryRepository.save(sh.addEdit(savedStatus)))
+                        .thenReturn(savedStatus));
 
     }
 
@@ -206,7 +222,8 @@ public class StatusService {
     }
 
     public Mono<Void> delete(Status status) {
-        return statusRepository.delete(status);
+        return statusRepository.delete(status).then(homeFeedService.removeStatus(status.id))
+                .doOnSuccess(v -> streamingService.publishDelete(status.id));
     }
 
     public Mono<Status> findStatusById(String id) {
@@ -215,23 +232,11 @@ public class StatusService {
 
     public Mono<List<Status>> getHomeTimeline(Principal user, String max_id, String since_id, String min_id,
                                               int limit, boolean isFollowingTimeline) {
-        var qStatus = QStatus.status;
-        var predicate = qStatus.content.isNotNull();
-        predicate = addRangeQueries(predicate, max_id, since_id, max_id);
-        Mono<List<Status>> external = externalStatusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.homefeedViewable(user, status)).take(limit).collectList();
-        Mono<List<Status>> internal = statusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.homefeedViewable(user, status)).take(limit).collectList();
-
-        return Mono.zip(external, internal).map(tuple -> {
-            Stream<Status> merged = mergeByCreatedAtDesc(tuple.getT1(), tuple.getT2());
-            return merged.limit(limit).toList();
-        });
-    }
-
-    private Stream<Status> mergeByCreatedAtDesc(List<Status> externalStatus, List<Status> internalStatus) {
-        return Stream.concat(externalStatus.stream().map(e -> (Status) e), internalStatus.stream())
-                .sorted((a, b) -> Instant.parse(b.createdAt).compareTo(Instant.parse(a.createdAt)));
+        if (user == null) return Mono.just(List.of());
+        // the home feed is materialized by HomeFeedService when statuses are created, so this is a single range read
+        return accountService.getAccount(user.getName())
+                .flatMap(account -> homeFeedService.getHomeFeed(account.id, max_id, since_id, min_id, limit))
+                .defaultIfEmpty(List.of());
     }
 
     public Mono<List<Status>> getPublicTimeline(Principal user, String max_id, String since_id, String min_id,
@@ -242,40 +247,107 @@ public class StatusService {
 
     public Mono<List<Status>> getLocalPublicTimeline(Principal user, String max_id, String since_id, String min_id,
                                                      int limit) {
-        var qStatus = QStatus.status;
-        var predicate = qStatus.content.isNotNull();
-        predicate = addRangeQueries(predicate, max_id, since_id, min_id);
-        return statusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.publicTimelinesViewable(status)).take(limit).collectList();
+        return getTimelinePage(publicTimelineCriteria(), false, max_id, since_id, min_id, limit);
     }
 
     public Mono<List<Status>> getAllPublicTimeline(Principal user, String max_id, String since_id, String min_id,
                                                    int limit) {
-        var qStatus = QStatus.status;
-        var predicate = qStatus.content.isNotNull();
-        predicate = addRangeQueries(predicate, max_id, since_id, min_id);
-        Mono<List<Status>> external = externalStatusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.publicTimelinesViewable(status)).collectList();
-        Mono<List<Status>> internal = statusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.publicTimelinesViewable(status)).collectList();
-
-        return Mono.zip(external, internal).map(tuple -> {
-            Stream<Status> merged = mergeByCreatedAtDesc(tuple.getT1(), tuple.getT2());
-            return merged.limit(limit).toList();
-        });
+        return getTimelinePage(publicTimelineCriteria(), true, max_id, since_id, min_id, limit);
+    }
+
+    private static Criteria publicTimelineCriteria() {
+        return Criteria.where("visibility").is("public").and("content").ne(null);
+    }
+
+    /**
+     * the (createdAt, id) key that timelines are ordered by. createdAt is an ISO-8601 string, so it sorts as a
+     * string, and the id breaks ties between statuses created in the same second.
+     */
+    record TimelineKey(String createdAt, String id) {
+        static final Comparator<Status> NEWEST_FIRST =
+                Comparator.comparing((Status s) -> s.createdAt, Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparing(s -> s.id, Comparator.nullsFirst(Comparator.naturalOrder())).reversed();
+
+        Criteria before() {
+            return new Criteria().orOperator(Criteria.where("createdAt").lt(createdAt),
+                                             Criteria.where("createdAt").is(createdAt).and("_id").lt(id));
+        }
+
+        Criteria after() {
+            return new Criteria().orOperator(Criteria.where("createdAt").gt(createdAt),
+                                             Criteria.where("createdAt").is(createdAt).and("_id").gt(id));
+        }
+    }
+
+    /**
+     * one page of a timeline using mastodon's keyset pagination: max_id pages back in time, since_id returns the
+     * newest statuses after the cursor and min_id returns the statuses immediately after the cursor. the filter,
+     * cursor and limit are pushed into mongo for each collection and the sorted results are merged lazily, so each
+     * collection returns at most limit documents no matter how large it is.
+     */
+    Mono<List<Status>> getTimelinePage(Criteria filter, boolean includeExternal, String max_id, String since_id,
+                                       String min_id, int limit) {
+        int count = Util.clamp(limit, 1, 40);
+        return Mono.zip(resolveTimelineKey(max_id), resolveTimelineKey(since_id), resolveTimelineKey(min_id))
+                .flatMap(keys -> {
+                    var max = keys.getT1();
+                    var since = keys.getT2();
+                    var min = keys.getT3();
+                    var criteria = new ArrayList<Criteria>();
+                    criteria.add(filter);
+                    max.ifPresent(k -> criteria.add(k.before()));
+                    // min_id wins over since_id, they both mean "newer than"
+                    min.or(() -> since).ifPresent(k -> criteria.add(k.after()));
+                    boolean oldestFirst = min.isPresent();
+                    var direction = oldestFirst ? Sort.Direction.ASC : Sort.Direction.DESC;
+                    var query = Query.query(new Criteria().andOperator(criteria))
+                            .with(Sort.by(direction, "createdAt", "id")).limit(count);
+                    var order = oldestFirst ? TimelineKey.NEWEST_FIRST.reversed() : TimelineKey.NEWEST_FIRST;
+
+                    Flux<Status> statuses = mongoTemplate.find(query, Status.class);
+                    if (includeExternal) {
+                        statuses = Flux.mergeComparing(order, statuses,
+                                                       mongoTemplate.find(query, ExternalStatus.class));
+                    }
+                    return statuses.take(count).collectList().map(page -> {
+                        if (oldestFirst) Collections.reverse(page);
+                        return page;
+                    });
+                });
+    }
+
+    private Mono<Optional<TimelineKey>> resolveTimelineKey(String id) {
+        if (id == null || id.isBlank()) return Mono.just(Optional.empty());
+        return statusRepository.findById(id).map(s -> (Status) s)
+                .switchIfEmpty(Mono.defer(() -> externalStatusRepository.findById(id)))
+                .map(s -> Optional.of(new TimelineKey(s.createdAt, s.id)))
+                .switchIfEmpty(Mono.fromSupplier(() -> timelineKeyFromId(id)));
+    }
+
+    /**
+     * clients may hand us a cursor for a status we no longer have. local ids encode their creation time
+     * (see Util.generateUniqueId()), so we can still page from there.
+     */
+    static Optional<TimelineKey> timelineKeyFromId(String id) {
+        try {
+            var millis = (Long.parseLong(id) >> 24) + EmailCodeUtils.NEW_EPOCH;
+            var createdAt = EmailCodeUtils.dateFormatter.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+            return Optional.of(new TimelineKey(createdAt, id));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
     }
 
     private BooleanExpression addRangeQueries(BooleanExpression predicate, String max_id, String since_id,
                                               String min_id) {
-        // Use String comparison for numeric IDs (padded for correct ordering)
+        // local ids are stored unpadded and generated ids have the same number of digits, so they compare as strings.
+        // callers sort ascending when min_id is given so that they get the page right after it.
         Path<String> statusIdPath = Expressions.path(String.class, QStatus.status.id.getMetadata());
-        if (max_id != null) predicate = predicate.and(
-                Expressions.predicate(Ops.LT, statusIdPath, Expressions.constant(padNumericId(max_id))));
-        if (since_id != null) predicate = predicate.and(Expressions.predicate(Ops.GT, statusIdPath,
-                                                                              Expressions.constant(padNumericId(since_id))));
-        // this isn't right. i'm not sure how to express close
-        if (min_id != null) predicate = predicate.and(
-                Expressions.predicate(Ops.GT, statusIdPath, Expressions.constant(padNumericId(min_id))));
+        if (max_id != null)
+            predicate = predicate.and(Expressions.predicate(Ops.LT, statusIdPath, Expressions.constant(max_id)));
+        var after = min_id != null ? min_id : since_id;
+        if (after != null)
+            predicate = predicate.and(Expressions.predicate(Ops.GT, statusIdPath, Expressions.constant(after)));
         return predicate;
     }
 
@@ -363,8 +435,13 @@ public class StatusService {
 
         // now apply the limit
         int count = limit == null || limit > 40 || limit < 1 ? 40 : limit;
-        return statusRepository.findAll(predicate, Sort.by(Sort.Direction.DESC, "id"))
-                .flatMap(status -> visibilityService.profileViewable(user, status)).take(count).collectList();
+        var direction = min_id != null ? Sort.Direction.ASC : Sort.Direction.DESC;
+        return statusRepository.findAll(predicate, Sort.by(direction, "id"))
+                .flatMap(status -> visibilityService.profileViewable(user, status)).take(count).collectList()
+                .map(page -> {
+                    if (direction == Sort.Direction.ASC) Collections.reverse(page);
+                    return page;
+                });
     }
 
     public Flux<Status> getAllStatuses(int offset, int limit) {
@@ -406,50 +483,26 @@ public class StatusService {
                 });
     }
 
-    /**
-     * Pad numeric IDs to 20 characters for correct string comparison ordering.
-     * Our IDs are 15-17 digit numbers, so padding to 20 ensures correct ordering.
-     */
-    private String padNumericId(String id) {
-        return String.format("%1$20s", id).replace(' ', '0');
-    }
-
+    // one inbox per remote server that has a shared inbox, so a post reaches all followers there in one delivery
     private Mono<List<String>> getRemoteFollowerInboxes(String accountId) {
         String localDomain = MothConfiguration.mothConfiguration.getServerName();
 
-        return followRepository.findAllByFollowedId(accountId)       // Flux<Follow>
-                // get the raw “acct” handle
-                .map(f -> f.id.follower_id)                              // Mono<String> of "username@domain"
-                // extract the domain part
-                .map(handle -> {
+        return followRepository.findAllByFollowedId(accountId)
+                // remote followers are stored by their "username@domain" handle
+                .map(f -> f.id.follower_id).filter(handle -> {
                     int at = handle.indexOf('@');
-                    if (at < 0 || at == handle.length() - 1) {
-                        // invalid handle, drop it
-                        return null;
-                    }
-                    return handle.substring(at + 1);
-                })
-                // drop any nulls or locals
-                .filter(domain -> domain != null && !domain.equals(localDomain))
-                // build the inbox URL
-                .map(domain -> "https://" + domain + "/inbox")
-                // avoid duplicates
-                .distinct()
-                // collect into a List<String>
-                .collectList();
+                    return at > 0 && at < handle.length() - 1 && !handle.substring(at + 1).equals(localDomain);
+                }).collectList().flatMap(handles -> actorService.getDeliveryInboxes(handles).collectList());
     }
 
-    public Mono<Void> sendCreate(CreateMessage create, String inboxUrl) {
-        // 1) build the JSON tree for signing & sending
-        ObjectNode createJson = objectMapper.valueToTree(create);
-
-        // 2) extract the local actor name from the actor URL
+    public Mono<Void> sendCreate(CreateMessage create, Collection<String> inboxUrls) {
+        // extract the local actor name from the actor URL
         String actorUrl = create.getActor();
         String actorName = URI.create(actorUrl).getPath()          // "/users/alice"
                 .substring("/users/".length());
 
-        // 3) fetch the actor’s private key, then sign & send
-        return activityPubService.sendSignedActivity(createJson, actorName, inboxUrl);
+        // serialized once for all inboxes, each delivery signs the same bytes with the actor's private key
+        return activityPubService.sendSignedActivity(create, actorName, inboxUrls);
     }
 
     private boolean isBefore(String a, String b) {
@@ -467,34 +520,26 @@ public class StatusService {
     public Mono<Status> favourite(String accountId, String statusId) {
         return statusRepository.findById(statusId)
                 .switchIfEmpty(Mono.error(new RuntimeException("Status not found: " + statusId)))
-                .flatMap(status -> favouriteRepository.findByAccountIdAndStatusId(accountId, statusId)
-                        .flatMap(existing -> Mono.just(status))
-                        .switchIfEmpty(Mono.defer(() -> {
-                            var fav = new Favourite(accountId, statusId, EmailCodeUtils.now());
-                            return favouriteRepository.save(fav)
-                                    .then(favouriteRepository.countByStatusId(statusId))
-                                    .flatMap(count -> {
-                                        status.favouritesCount = count.intValue();
-                                        status.favourited = true;
-                                        return statusRepository.save(status);
-                                    });
+                // only the request that creates the favourite counts it, a repeat of it changes nothing
+                .flatMap(status -> favouriteRepository.insert(new Favourite(accountId, statusId, EmailCodeUtils.now()))
+                        .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                        .flatMap(added -> counterService.incrementStatus(statusId, CounterService.FAVOURITES, 1))
+                        .doOnNext(count -> status.favouritesCount = count).then(Mono.fromSupplier(() -> {
+                            status.favourited = true;
+                            return status;
                         })));
     }
 
     public Mono<Status> unfavourite(String accountId, String statusId) {
         return statusRepository.findById(statusId)
                 .switchIfEmpty(Mono.error(new RuntimeException("Status not found: " + statusId)))
-                .flatMap(status -> favouriteRepository.findByAccountIdAndStatusId(accountId, statusId)
-                        .flatMap(existing -> favouriteRepository.delete(existing)
-                                .then(favouriteRepository.countByStatusId(statusId))
-                                .flatMap(count -> {
-                                    status.favouritesCount = count.intValue();
-                                    status.favourited = false;
-                                    return statusRepository.save(status);
-                                }))
-                        .switchIfEmpty(Mono.defer(() -> {
+                // only the request that deletes the favourite counts it
+                .flatMap(status -> favouriteRepository.deleteByAccountIdAndStatusId(accountId, statusId)
+                        .filter(deleted -> deleted > 0)
+                        .flatMap(deleted -> counterService.incrementStatus(statusId, CounterService.FAVOURITES, -1))
+                        .doOnNext(count -> status.favouritesCount = count).then(Mono.fromSupplier(() -> {
                             status.favourited = false;
-                            return Mono.just(status);
+                            return status;
                         })));
     }
 
@@ -503,47 +548,54 @@ public class StatusService {
                 .switchIfEmpty(Mono.error(new RuntimeException("Account not found: " + accountId)))
                 .flatMap(account -> statusRepository.findById(statusId)
                         .switchIfEmpty(Mono.error(new RuntimeException("Status not found: " + statusId)))
-                        .flatMap(originalStatus -> reblogRepository.findByAccountIdAndStatusId(accountId, statusId)
-                                .flatMap(existing -> statusRepository.findById(existing.reblog_status_id)
-                                        .switchIfEmpty(Mono.just(originalStatus)))
-                                .switchIfEmpty(Mono.defer(() -> {
-                                    var reblogStatus = new Status(
-                                            Long.toString(Util.generateUniqueId()), EmailCodeUtils.now(), null, null,
-                                            originalStatus.sensitive, originalStatus.spoilerText,
-                                            visibility != null ? visibility : "public",
-                                            originalStatus.language, null, null,
-                                            0, 0, 0, false, false, false, false,
-                                            "", originalStatus, null, account,
-                                            new ArrayList<>(), new ArrayList<>(), List.of(), List.of(),
-                                            null, null, "", EmailCodeUtils.now()
-                                    );
-                                    return statusRepository.save(reblogStatus).flatMap(savedReblog -> {
-                                        var reblog = new Reblog(accountId, statusId, savedReblog.id, EmailCodeUtils.now());
-                                        return reblogRepository.save(reblog)
-                                                .then(reblogRepository.countByStatusId(statusId))
-                                                .flatMap(count -> {
-                                                    originalStatus.reblogsCount = count.intValue();
-                                                    originalStatus.reblogged = true;
-                                                    return statusRepository.save(originalStatus)
-                                                            .thenReturn(savedReblog);
-                                                });
-                                    });
-                                }))));
+                        .flatMap(originalStatus -> {
+                            // only the request that creates the reblog makes its status and counts it, a repeat
+                            // of it gets the status that request made
+                            var reblog = new Reblog(accountId, statusId, Long.toString(Util.generateUniqueId()),
+                                                    EmailCodeUtils.now());
+                            return reblogRepository.insert(reblog)
+                                    .flatMap(added -> saveReblogStatus(added, account, originalStatus, visibility))
+                                    .onErrorResume(DuplicateKeyException.class, e -> reblogRepository
+                                            .findByAccountIdAndStatusId(accountId, statusId)
+                                            .flatMap(existing -> statusRepository.findById(existing.reblog_status_id))
+                                            .defaultIfEmpty(originalStatus));
+                        }));
+    }
+
+    // the status of a reblog that was just recorded. if it cannot be saved the reblog goes too, so it can be retried
+    private Mono<Status> saveReblogStatus(Reblog reblog, Account account, Status originalStatus, String visibility) {
+        var reblogStatus = new Status(
+                reblog.reblog_status_id, reblog.created_at, null, null,
+                originalStatus.sensitive, originalStatus.spoilerText,
+                visibility != null ? visibility : "public",
+                originalStatus.language, null, null,
+                0, 0, 0, false, false, false, false,
+                "", originalStatus, null, account,
+                new ArrayList<>(), new ArrayList<>(), List.of(), List.of(),
+                null, null, "", EmailCodeUtils.now()
+        );
+        return statusRepository.save(reblogStatus)
+                .onErrorResume(e -> reblogRepository.delete(reblog).then(Mono.error(e)))
+                .flatMap(saved -> homeFeedService.fanOut(saved)
+                        .then(counterService.incrementStatus(reblog.id.status_id, CounterService.REBLOGS, 1))
+                        .thenReturn(saved));
     }
 
     public Mono<Status> unreblog(String accountId, String statusId) {
         return statusRepository.findById(statusId)
                 .switchIfEmpty(Mono.error(new RuntimeException("Status not found: " + statusId)))
-                .flatMap(originalStatus -> reblogRepository.findByAccountIdAndStatusId(accountId, statusId)
+                // only the request that deletes the reblog removes its status and counts it
+                .flatMap(originalStatus -> reblogRepository.findAndDeleteByAccountIdAndStatusId(accountId, statusId)
                         .flatMap(reblog -> statusRepository.findById(reblog.reblog_status_id)
                                 .flatMap(reblogStatus -> statusRepository.delete(reblogStatus)
-                                        .then(reblogRepository.delete(reblog))
-                                        .then(reblogRepository.countByStatusId(statusId))
-                                        .flatMap(count -> {
-                                            originalStatus.reblogsCount = count.intValue();
-                                            originalStatus.reblogged = false;
-                                            return statusRepository.save(originalStatus);
-                                        })))
+                                        .then(homeFeedService.removeStatus(reblogStatus.id))
+                                        .doOnSuccess(v -> streamingService.publishDelete(reblogStatus.id)))
+                                .then(counterService.incrementStatus(statusId, CounterService.REBLOGS, -1))
+                                .map(count -> {
+                                    originalStatus.reblogsCount = count;
+                                    originalStatus.reblogged = false;
+                                    return originalStatus;
+                                }))
                         .switchIfEmpty(Mono.defer(() -> {
                             originalStatus.reblogged = false;
                             return Mono.just(originalStatus);
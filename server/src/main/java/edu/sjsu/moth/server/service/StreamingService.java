@@ -0,0 +1,292 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.ExternalStatus;
+import edu.sjsu.moth.server.db.TokenRepository;
+import edu.sjsu.moth.server.db.UserListRepository;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * in-process publish/subscribe hub behind the mastodon streaming api.
+ * <p>
+ * subscribers register under stream keys (user:{accountId}, public, hashtag:{tag}, list:{listId}, ...). an event is
+ * serialized once when it is published and the same payload string is handed to every subscriber it reaches.
+ * each subscriber has a bounded buffer: events are dropped while it is full and a subscriber that keeps falling
+ * behind is disconnected.
+ * <p>
+ * spec: https://docs.joinmastodon.org/methods/streaming/
+ */
+@Service
+@CommonsLog
+public class StreamingService {
+    public static final int SUBSCRIBER_BUFFER_SIZE = 256;
+    /**
+     * a subscriber that has dropped this many events in a row is disconnected
+     */
+    public static final int MAX_CONSECUTIVE_DROPS = 64;
+    public static final String PUBLIC_KEY = "public";
+    public static final String PUBLIC_LOCAL_KEY = "public:local";
+    public static final String PUBLIC_REMOTE_KEY = "public:remote";
+
+    private final ObjectMapper objectMapper;
+    private final AccountRepository accountRepository;
+    private final UserListRepository userListRepository;
+    private final TokenRepository tokenRepository;
+    private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    public StreamingService(ObjectMapper objectMapper, AccountRepository accountRepository,
+                            UserListRepository userListRepository, TokenRepository tokenRepository) {
+        this.objectMapper = objectMapper;
+        this.accountRepository = accountRepository;
+        this.userListRepository = userListRepository;
+        this.tokenRepository = tokenRepository;
+    }
+
+    /**
+     * the account id of the viewer. streaming clients authenticate either with the usual bearer token (user) or,
+     * since browsers cannot set headers on websockets and event sources, with an access_token parameter.
+     */
+    public Mono<String> viewerAccountId(Principal user, String accessToken) {
+        Mono<String> username = user != null ? Mono.just(user.getName()) :
+                accessToken == null || accessToken.isBlank() ? Mono.empty() :
+                        tokenRepository.findItemByToken(accessToken).mapNotNull(token -> token.user);
+        return username.flatMap(accountRepository::findItemByAcct).map(account -> account.id);
+    }
+
+    public static String userKey(String accountId) {return "user:" + accountId;}
+
+    public static String notificationKey(String accountId) {return "user:notification:" + accountId;}
+
+    public static String hashtagKey(String tag) {return "hashtag:" + tag.toLowerCase();}
+
+    public static String localHashtagKey(String tag) {return "hashtag:local:" + tag.toLowerCase();}
+
+    public static String listKey(String listId) {return "list:" + listId;}
+
+    /**
+     * where a subscription is registered (key) and the stream name that is reported back to websocket clients
+     */
+    public record StreamTarget(String key, List<String> stream) {}
+
+    private record Subscription(Subscriber<?> subscriber, List<String> stream) {}
+
+    /**
+     * map a mastodon stream name and its parameters to a target. user and list streams need the viewer's account
+     * id, and lists must belong to the viewer. empty if the stream is unknown or not allowed.
+     */
+    public Mono<StreamTarget> resolve(String stream, String tag, String listId, String accountId) {
+        if (stream == null) return Mono.empty();
+        return switch (stream) {
+            case "public" -> Mono.just(new StreamTarget(PUBLIC_KEY, List.of(stream)));
+            case "public:local" -> Mono.just(new StreamTarget(PUBLIC_LOCAL_KEY, List.of(stream)));
+            case "public:remote" -> Mono.just(new StreamTarget(PUBLIC_REMOTE_KEY, List.of(stream)));
+            case "hashtag" -> tag == null || tag.isBlank() ? Mono.empty() :
+                    Mono.just(new StreamTarget(hashtagKey(tag), List.of(stream, tag)));
+            case "hashtag:local" -> tag == null || tag.isBlank() ? Mono.empty() :
+                    Mono.just(new StreamTarget(localHashtagKey(tag), List.of(stream, tag)));
+            case "user" -> accountId == null ? Mono.empty() :
+                    Mono.just(new StreamTarget(userKey(accountId), List.of(stream)));
+            case "user:notification" -> accountId == null ? Mono.empty() :
+                    Mono.just(new StreamTarget(notificationKey(accountId), List.of(stream)));
+            case "list" -> accountId == null || listId == null ? Mono.empty() :
+                    userListRepository.findById(listId).filter(list -> accountId.equals(list.owner_id))
+                            .map(list -> new StreamTarget(listKey(list.id), List.of(stream, list.id)));
+            default -> Mono.empty();
+        };
+    }
+
+    public void subscribe(Subscriber<?> subscriber, StreamTarget target) {
+        if (subscriber.isClosed()) return;
+        subscriptions.computeIfAbsent(target.key(), k -> ConcurrentHashMap.newKeySet())
+                .add(new Subscription(subscriber, target.stream()));
+        subscriber.keys.add(target.key());
+    }
+
+    public void unsubscribe(Subscriber<?> subscriber, StreamTarget target) {
+        removeSubscription(subscriber, target.key());
+        subscriber.keys.remove(target.key());
+    }
+
+    public void unsubscribeAll(Subscriber<?> subscriber) {
+        for (var key : subscriber.keys) removeSubscription(subscriber, key);
+        subscriber.keys.clear();
+    }
+
+    private void removeSubscription(Subscriber<?> subscriber, String key) {
+        subscriptions.computeIfPresent(key, (k, subs) -> {
+            subs.removeIf(s -> s.subscriber() == subscriber);
+            return subs.isEmpty() ? null : subs;
+        });
+    }
+
+    public int subscriberCount(String key) {
+        var subs = subscriptions.get(key);
+        return subs == null ? 0 : subs.size();
+    }
+
+    /**
+     * publish a new status to the home streams of homeOwnerIds and, if it is public, to the public, hashtag and
+     * list streams.
+     */
+    public Mono<Void> publishStatus(Status status, Collection<String> homeOwnerIds) {
+        var keys = new ArrayList<String>();
+        homeOwnerIds.forEach(id -> keys.add(userKey(id)));
+        if ("public".equals(status.visibility)) {
+            boolean local = !(status instanceof ExternalStatus);
+            keys.add(PUBLIC_KEY);
+            keys.add(local ? PUBLIC_LOCAL_KEY : PUBLIC_REMOTE_KEY);
+            if (status.tags != null) {
+                for (var tag : status.tags) {
+                    if (tag == null || tag.name == null) continue;
+                    keys.add(hashtagKey(tag.name));
+                    if (local) keys.add(localHashtagKey(tag.name));
+                }
+            }
+        }
+        return listKeysFor(status).collectList().doOnNext(keys::addAll)
+                .doOnNext(ignored -> publish(keys, "update", () -> serialize(status))).then()
+                .onErrorResume(e -> {
+                    log.error("could not stream status " + status.id, e);
+                    return Mono.empty();
+                });
+    }
+
+    // only look lists up when someone is actually listening to a list stream
+    private Flux<String> listKeysFor(Status status) {
+        if (status.account == null || "direct".equals(status.visibility) ||
+                subscriptions.keySet().stream().noneMatch(k -> k.startsWith("list:"))) return Flux.empty();
+        var authorIds = Mono.justOrEmpty(status.account.id).flux();
+        if (status.account.acct != null) {
+            authorIds = authorIds.concatWith(accountRepository.findItemByAcct(status.account.acct).map(a -> a.id));
+        }
+        return authorIds.filter(Objects::nonNull).distinct().concatMap(userListRepository::findAllContainingAccount)
+                .map(list -> listKey(list.id)).distinct();
+    }
+
+    public void publishNotification(String accountId, Object notification) {
+        publish(List.of(userKey(accountId), notificationKey(accountId)), "notification", () -> serialize(notification));
+    }
+
+    /**
+     * deletes go to every subscriber since we do not track who has seen which status
+     */
+    public void publishDelete(String statusId) {
+        publish(subscriptions.keySet(), "delete", () -> statusId);
+    }
+
+    private void publish(Collection<String> keys, String eventName, Supplier<String> payload) {
+        Event event = null;
+        for (var key : keys) {
+            var subs = subscriptions.get(key);
+            if (subs == null) continue;
+            for (var sub : subs) {
+                // serialize lazily so that events nobody listens to cost nothing
+                if (event == null) event = new Event(eventName, payload.get(), objectMapper);
+                if (!sub.subscriber().offer(event, sub.stream())) unsubscribeAll(sub.subscriber());
+            }
+        }
+    }
+
+    private String serialize(Object o) {
+        try {
+            return objectMapper.writeValueAsString(o);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * a published event. the payload is serialized once, websocket frames are built once per stream name.
+     */
+    public static class Event {
+        public final String event;
+        public final String payload;
+        private final ObjectMapper objectMapper;
+        private final Map<List<String>, String> frames = new ConcurrentHashMap<>();
+
+        Event(String event, String payload, ObjectMapper objectMapper) {
+            this.event = event;
+            this.payload = payload;
+            this.objectMapper = objectMapper;
+        }
+
+        /**
+         * the websocket message: {"stream": [...], "event": "update", "payload": "{...}"}
+         */
+        public String frame(List<String> stream) {
+            return frames.computeIfAbsent(stream, s -> {
+                try {
+                    return objectMapper.writeValueAsString(Map.of("stream", s, "event", event, "payload", payload));
+                } catch (JsonProcessingException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * one connected client. events are encoded into T (a websocket frame or a server sent event) and buffered up to
+     * SUBSCRIBER_BUFFER_SIZE.
+     */
+    public static class Subscriber<T> {
+        private final Sinks.Many<T> sink =
+                Sinks.many().unicast().onBackpressureBuffer(Queues.<T>get(SUBSCRIBER_BUFFER_SIZE).get());
+        private final BiFunction<Event, List<String>, T> encoder;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+        private int consecutiveDrops;
+        private boolean closed;
+
+        public Subscriber(BiFunction<Event, List<String>, T> encoder) {
+            this.encoder = encoder;
+        }
+
+        public Flux<T> flux() {
+            return sink.asFlux();
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return false if the subscriber is gone and should be unsubscribed
+         */
+        synchronized boolean offer(Event event, List<String> stream) {
+            if (closed) return false;
+            var result = sink.tryEmitNext(encoder.apply(event, stream));
+            if (result.isSuccess()) {
+                consecutiveDrops = 0;
+                return true;
+            }
+            if (result == Sinks.EmitResult.FAIL_OVERFLOW && ++consecutiveDrops < MAX_CONSECUTIVE_DROPS) return true;
+            log.info("disconnecting streaming subscriber: " + result);
+            close();
+            return false;
+        }
+
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            sink.tryEmitComplete();
+        }
+    }
+}
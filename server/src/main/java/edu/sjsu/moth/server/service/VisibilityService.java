@@ -1,7 +1,6 @@
 package edu.sjsu.moth.server.service;
 
 import edu.sjsu.moth.generated.Status;
-import edu.sjsu.moth.server.db.FollowRepository;
 import edu.sjsu.moth.server.db.StatusMention;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,7 +19,7 @@ public class VisibilityService {
     AccountService accountService;
 
     @Autowired
-    FollowRepository followRepository;
+    FollowSetCache followSetCache;
 
     final String PUBLIC_VISIBILITY = "public";
     final String QUITE_PUBLIC = "unlisted";
@@ -49,14 +48,12 @@ public class VisibilityService {
     public Flux<Status> homefeedViewable(Principal user, Status status) {
         return accountService.getAccount(user.getName())
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException("User not found")))
-                .flatMapMany(userAccount -> followRepository.findAllByFollowerId(userAccount.id).flatMap(follow -> {
-                    if ((follow.id.followed_id.equals(status.account.id) &&
-                            validHomeFeedVisibility(status.visibility)) ||
-                            (user.getName().equals(status.account.username))) {
-                        return Flux.just(status);
-                    }
-                    return Flux.empty();
-                }));
+                .flatMapMany(userAccount -> {
+                    if (user.getName().equals(status.account.username)) return Flux.just(status);
+                    if (!validHomeFeedVisibility(status.visibility)) return Flux.empty();
+                    return followSetCache.follows(userAccount.id, status.account.id)
+                            .flatMapMany(follows -> follows ? Flux.just(status) : Flux.empty());
+                });
     }
 
     private boolean validHomeFeedVisibility(String visibility) {
@@ -89,12 +86,8 @@ public class VisibilityService {
                     }
 
                     if (PRIVATE_VISIBILITY.equals(status.visibility)) {
-                        return followRepository.findAllByFollowerId(account.id).flatMap(follow -> {
-                            if (follow.id.followed_id.equals(status.account.id)) {
-                                return Flux.just(status);
-                            }
-                            return Flux.empty();
-                        });
+                        return followSetCache.follows(account.id, status.account.id)
+                                .flatMapMany(follows -> follows ? Flux.just(status) : Flux.empty());
                     }
                     return Flux.empty();
                 });
@@ -0,0 +1,101 @@
+package edu.sjsu.moth.server.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * encodes the blurhash placeholder of an image. see https://github.com/woltapp/blurhash/blob/master/Algorithm.md
+ * <p>
+ * the cost is width * height * components, so pass a small rendition of the image, a few dozen pixels on a side is
+ * all the detail a blurhash can hold.
+ */
+public class Blurhash {
+    private static final String BASE83 =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+    private static final double[] SRGB_TO_LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double v = i / 255.0;
+            SRGB_TO_LINEAR[i] = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    /**
+     * @param xComponents horizontal detail, 1 to 9
+     * @param yComponents vertical detail, 1 to 9
+     */
+    public static String encode(BufferedImage image, int xComponents, int yComponents) {
+        if (xComponents < 1 || xComponents > 9 || yComponents < 1 || yComponents > 9) {
+            throw new IllegalArgumentException("blurhash components must be between 1 and 9");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        var pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        var factors = new double[xComponents * yComponents][];
+        for (int j = 0; j < yComponents; j++) {
+            var cosY = cosines(j, height);
+            for (int i = 0; i < xComponents; i++) {
+                var cosX = cosines(i, width);
+                double r = 0, g = 0, b = 0;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        double basis = cosX[x] * cosY[y];
+                        int pixel = pixels[y * width + x];
+                        r += basis * SRGB_TO_LINEAR[(pixel >> 16) & 0xff];
+                        g += basis * SRGB_TO_LINEAR[(pixel >> 8) & 0xff];
+                        b += basis * SRGB_TO_LINEAR[pixel & 0xff];
+                    }
+                }
+                double scale = (i == 0 && j == 0 ? 1.0 : 2.0) / (width * height);
+                factors[j * xComponents + i] = new double[] { r * scale, g * scale, b * scale };
+            }
+        }
+
+        var hash = new StringBuilder();
+        base83(hash, (xComponents - 1) + (yComponents - 1) * 9, 1);
+        double maximum = 1;
+        if (factors.length > 1) {
+            double actualMaximum = 0;
+            for (int f = 1; f < factors.length; f++) {
+                for (double v : factors[f]) actualMaximum = Math.max(actualMaximum, Math.abs(v));
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximum = (quantisedMaximum + 1) / 166.0;
+            base83(hash, quantisedMaximum, 1);
+        } else {
+            base83(hash, 0, 1);
+        }
+        var dc = factors[0];
+        base83(hash, (linearToSrgb(dc[0]) << 16) + (linearToSrgb(dc[1]) << 8) + linearToSrgb(dc[2]), 4);
+        for (int f = 1; f < factors.length; f++) {
+            var ac = factors[f];
+            base83(hash, quantise(ac[0], maximum) * 19 * 19 + quantise(ac[1], maximum) * 19 +
+                    quantise(ac[2], maximum), 2);
+        }
+        return hash.toString();
+    }
+
+    private static double[] cosines(int component, int size) {
+        var cosines = new double[size];
+        for (int p = 0; p < size; p++) cosines[p] = Math.cos(Math.PI * component * p / size);
+        return cosines;
+    }
+
+    private static int linearToSrgb(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        return (int) (v <= 0.0031308 ? v * 12.92 * 255 + 0.5 : (1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+
+    private static int quantise(double value, double maximum) {
+        double v = value / maximum;
+        double signedRoot = Math.copySign(Math.sqrt(Math.abs(v)), v);
+        return (int) Math.max(0, Math.min(18, Math.floor(signedRoot * 9 + 9.5)));
+    }
+
+    private static void base83(StringBuilder hash, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (value / (int) Math.pow(83, length - i)) % 83;
+            hash.append(BASE83.charAt(digit));
+        }
+    }
+}
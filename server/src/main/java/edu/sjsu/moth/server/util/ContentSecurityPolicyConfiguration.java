@@ -72,7 +72,8 @@ public class ContentSecurityPolicyConfiguration {
 
     @Bean
     public HttpSignatureWebFilter httpSignatureWebFilter() {
-        return new HttpSignatureWebFilter(httpSignatureService);
+        return new HttpSignatureWebFilter(httpSignatureService,
+                                          MothConfiguration.mothConfiguration.getInboxMaxPayload());
     }
 
     public static class LocaleChangeFilter implements WebFilter {
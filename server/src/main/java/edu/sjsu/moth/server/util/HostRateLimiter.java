@@ -0,0 +1,68 @@
+package edu.sjsu.moth.server.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * a token bucket per remote host, so that a burst of work for one server is spread out instead of hammering it.
+ * permits are reserved rather than waited for: acquire() takes a token right away, possibly going into debt, and
+ * completes once the token would have been there, so no thread is held while waiting.
+ * <p>
+ * hosts we have not talked to in a while are forgotten, which is the same as a full bucket.
+ */
+public class HostRateLimiter {
+    private static final int MAX_HOSTS = 10_000;
+    private final double permitsPerSecond;
+    private final double burst;
+    private final Cache<String, Bucket> buckets;
+
+    /**
+     * @param permitsPerSecond the sustained rate per host
+     * @param burst            how many permits a host that has been quiet can have at once
+     */
+    public HostRateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        // a bucket that has been idle this long has filled up again
+        var idle = Duration.ofMillis((long) Math.ceil(burst / permitsPerSecond * 1000)).plusMinutes(1);
+        this.buckets = Caffeine.newBuilder().maximumSize(MAX_HOSTS).expireAfterAccess(idle).build();
+    }
+
+    /**
+     * reserve a permit for host and return how long to wait before using it
+     */
+    public Duration reserve(String host) {
+        var bucket = buckets.get(host == null ? "" : host, h -> new Bucket(burst, System.nanoTime()));
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updatedAt) / 1e9 * permitsPerSecond);
+            bucket.updatedAt = now;
+            bucket.tokens -= 1;
+            return bucket.tokens >= 0 ? Duration.ZERO :
+                    Duration.ofNanos((long) Math.ceil(-bucket.tokens / permitsPerSecond * 1e9));
+        }
+    }
+
+    /**
+     * completes when the reserved permit for host may be used
+     */
+    public Mono<Void> acquire(String host) {
+        return Mono.defer(() -> {
+            var wait = reserve(host);
+            return wait.isZero() ? Mono.empty() : Mono.delay(wait).then();
+        });
+    }
+
+    private static class Bucket {
+        double tokens;
+        long updatedAt;
+
+        Bucket(double tokens, long updatedAt) {
+            this.tokens = tokens;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
@@ -17,6 +17,7 @@ public class MothConfiguration {
                     new RequiredProperty("account", "account of user"),
                     new RequiredProperty("contact.email", "email of contact account"));
 
+    public static final int DEFAULT_INBOX_MAX_PAYLOAD = 1024 * 1024;
     public static MothConfiguration mothConfiguration;
     public final Properties properties = new Properties();
 
@@ -88,5 +89,19 @@ public class MothConfiguration {
 
     public int getSMTPServerPort() {return getPort(properties.getProperty("smtp.server"));}
 
+    /**
+     * the largest activity, in bytes, that we accept on an inbox
+     */
+    public int getInboxMaxPayload() {
+        return Integer.parseInt(properties.getProperty("inbox.maxPayload", String.valueOf(DEFAULT_INBOX_MAX_PAYLOAD)));
+    }
+
+    /**
+     * how many pages of a remote outbox we fetch ahead of the one being ingested
+     */
+    public int getOutboxPipelineDepth() {
+        return Integer.parseInt(properties.getProperty("outbox.pipelineDepth", "2"));
+    }
+
     record RequiredProperty(String name, String description) {}
 }
@@ -0,0 +1,47 @@
+package edu.sjsu.moth.server.util;
+
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * coalesces concurrent requests for the same key: the first caller starts the work and everyone who asks for the
+ * same key before it finishes gets the same result. nothing is remembered once the work is done, that is the job of
+ * a cache.
+ * <p>
+ * the work runs to completion even if the caller that started it cancels, since others may be waiting on it, so it
+ * should carry its own timeout.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> work) {
+        return Mono.defer(() -> {
+            var flight = new CompletableFuture<V>();
+            var existing = inFlight.putIfAbsent(key, flight);
+            if (existing != null) return Mono.fromFuture(existing, true);
+            // forget the flight before anyone sees its result, so that a caller who comes after starts a new one
+            Mono.defer(work).subscribe(value -> {
+                inFlight.remove(key, flight);
+                flight.complete(value);
+            }, e -> {
+                inFlight.remove(key, flight);
+                flight.completeExceptionally(e);
+            }, () -> {
+                inFlight.remove(key, flight);
+                flight.complete(null);
+            });
+            return Mono.fromFuture(flight, true);
+        });
+    }
+
+    /**
+     * the number of keys with work in progress
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
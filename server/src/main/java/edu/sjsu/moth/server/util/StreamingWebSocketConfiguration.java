@@ -0,0 +1,21 @@
+package edu.sjsu.moth.server.util;
+
+import edu.sjsu.moth.server.controller.StreamingWebSocketHandler;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+
+import java.util.Map;
+
+@Configuration
+public class StreamingWebSocketConfiguration {
+    /**
+     * the websocket endpoint has to be mapped ahead of the annotated controllers, the server sent event endpoints
+     * live under /api/v1/streaming/... in StreamingController.
+     */
+    @Bean
+    public HandlerMapping streamingWebSocketHandlerMapping(StreamingWebSocketHandler handler) {
+        return new SimpleUrlHandlerMapping(Map.of("/api/v1/streaming", handler), -1);
+    }
+}
@@ -2,6 +2,8 @@ package edu.sjsu.moth.server.util;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import edu.sjsu.moth.util.EmailCodeUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Mono;
 
 import java.lang.ref.WeakReference;
@@ -10,9 +12,11 @@ import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
@@ -79,6 +83,39 @@ public class Util {
         return Math.max(min, Math.min(max, value));
     }
 
+    /**
+     * exponential backoff with equal jitter: the delay before retry number attempts doubles from base up to max, and
+     * half of it is random so that a burst of failures does not come back as a burst.
+     *
+     * @param random uniformly distributed in [0, 1)
+     */
+    public static Duration backoff(Duration base, Duration max, int attempts, double random) {
+        long delay = Math.min(base.toMillis() << Math.min(Math.max(attempts - 1, 0), 20), max.toMillis());
+        return Duration.ofMillis(delay / 2 + (long) (random * (delay / 2)));
+    }
+
+    /**
+     * mastodon style Link header for a page of a timeline. next continues back in time from the oldest id on the page
+     * and prev continues forward from the newest. ids must be in newest first order. extraParams (e.g. local=true)
+     * are carried over to both links.
+     */
+    public static HttpHeaders timelineLinkHeaders(String path, List<String> ids, int limit,
+                                                  Map<String, String> extraParams) {
+        var headers = new HttpHeaders();
+        if (ids.isEmpty()) return headers;
+        headers.add(HttpHeaders.LINK, timelineLink(path, limit, extraParams, "max_id", ids.get(ids.size() - 1), "next"));
+        headers.add(HttpHeaders.LINK, timelineLink(path, limit, extraParams, "min_id", ids.get(0), "prev"));
+        return headers;
+    }
+
+    private static String timelineLink(String path, int limit, Map<String, String> extraParams, String cursorName,
+                                       String cursor, String rel) {
+        var uriBuilder = UriComponentsBuilder.fromPath(path).queryParam("limit", limit);
+        extraParams.forEach(uriBuilder::queryParam);
+        uriBuilder.queryParam(cursorName, cursor);
+        return "<" + uriBuilder.encode().build().toUriString() + ">; rel=\"" + rel + "\"";
+    }
+
     /**
      * escape regex metacharacters so the result matches the input literally (as a substring)
      * when handed to a regex engine like MongoDB's $regex. user input must go through this
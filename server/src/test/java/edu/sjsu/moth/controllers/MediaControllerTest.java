@@ -0,0 +1,163 @@
+package edu.sjsu.moth.controllers;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import edu.sjsu.moth.server.controller.MediaController;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.TokenRepository;
+import edu.sjsu.moth.server.service.AccountService;
+import edu.sjsu.moth.server.service.HttpSignatureService;
+import edu.sjsu.moth.server.service.MediaProcessingService;
+import edu.sjsu.moth.server.service.MediaService;
+import edu.sjsu.moth.server.util.ContentSecurityPolicyConfiguration;
+import edu.sjsu.moth.util.MothTestInitializer;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.security.test.web.reactive.server.SecurityMockServerConfigurers.mockJwt;
+
+@WebFluxTest()
+@ContextConfiguration(classes = { MediaController.class,
+        ContentSecurityPolicyConfiguration.class }, initializers = MothTestInitializer.class)
+public class MediaControllerTest {
+    private static final String FILE_NAME = "/media/attachments/uploads/1";
+    private static final byte[] CONTENT = new byte[100];
+    private static final String SHA256 = "ab".repeat(32);
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) CONTENT[i] = (byte) i;
+    }
+
+    @MockBean
+    TokenRepository tokenRepository;
+    @MockBean
+    AccountService accountService;
+    @MockBean
+    AccountRepository accountRepository;
+    @MockBean
+    HttpSignatureService httpSignatureService;
+    @MockBean
+    MediaService mediaService;
+    @MockBean
+    MediaProcessingService mediaProcessingService;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @BeforeEach
+    public void setup() {
+        var file = new GridFSFile(new BsonObjectId(new ObjectId()), FILE_NAME, CONTENT.length, 32,
+                                  new Date(1_700_000_000_000L),
+                                  new Document("_contentType", "image/png").append("sha256", SHA256));
+        when(mediaService.uploadFileNameFromId(1L)).thenReturn(FILE_NAME);
+        when(mediaService.findMedia(FILE_NAME)).thenReturn(Mono.just(file));
+        when(mediaService.readRange(any(), anyLong(), anyLong())).thenAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            long end = invocation.getArgument(2);
+            return Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(
+                    Arrays.copyOfRange(CONTENT, (int) start, (int) end + 1)));
+        });
+    }
+
+    @Test
+    public void testWholeFileIsCacheable() {
+        webTestClient.get().uri(FILE_NAME).exchange().expectStatus().isOk().expectHeader()
+                .valueEquals(HttpHeaders.ETAG, "\"" + SHA256 + "\"").expectHeader()
+                .valueEquals(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable").expectHeader()
+                .valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes").expectHeader().contentLength(CONTENT.length)
+                .expectBody(byte[].class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testRangeIsServedPartially() {
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.RANGE, "bytes=10-19").exchange().expectStatus()
+                .isEqualTo(HttpStatus.PARTIAL_CONTENT).expectHeader()
+                .valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 10-19/100").expectHeader().contentLength(10)
+                .expectBody(byte[].class).isEqualTo(Arrays.copyOfRange(CONTENT, 10, 20));
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.RANGE, "bytes=-5").exchange().expectStatus()
+                .isEqualTo(HttpStatus.PARTIAL_CONTENT).expectHeader()
+                .valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 95-99/100");
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.RANGE, "bytes=200-").exchange().expectStatus()
+                .isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).expectHeader()
+                .valueEquals(HttpHeaders.CONTENT_RANGE, "bytes */100");
+    }
+
+    @Test
+    public void testStaleIfRangeGetsTheWholeFile() {
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.RANGE, "bytes=10-19")
+                .header(HttpHeaders.IF_RANGE, "\"something-else\"").exchange().expectStatus().isOk()
+                .expectBody(byte[].class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testRevalidationDoesNotReadTheFile() {
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.IF_NONE_MATCH, "\"" + SHA256 + "\"").exchange()
+                .expectStatus().isNotModified().expectHeader().valueEquals(HttpHeaders.ETAG, "\"" + SHA256 + "\"");
+        webTestClient.get().uri(FILE_NAME).header(HttpHeaders.IF_MODIFIED_SINCE, "Tue, 14 Nov 2023 22:13:20 GMT")
+                .exchange().expectStatus().isNotModified();
+        verify(mediaService, never()).readRange(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testFailedUploadLeavesNoFilesBehind() throws IOException {
+        var image = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", image);
+        when(mediaService.uploadFileNameFromId(anyLong())).thenReturn(FILE_NAME);
+        when(mediaService.uploadPreviewNameFromId(anyLong())).thenReturn(FILE_NAME + "/preview");
+        when(mediaService.storeMedia(any(), any(), any(), anyLong())).thenAnswer(
+                invocation -> Flux.from(invocation.<Publisher<?>>getArgument(2)).then(Mono.just(
+                        new MediaService.StoredMedia(new ObjectId(), image.size(), SHA256, image.toByteArray()))));
+        when(mediaService.deleteMedia(anyCollection())).thenReturn(Mono.just(1L));
+        // a thumbnail without the file it is a thumbnail of
+        var builder = new MultipartBodyBuilder();
+        builder.part("thumbnail", image.toByteArray(), MediaType.IMAGE_PNG).filename("thumbnail.png");
+
+        webTestClient.mutateWith(mockJwt().jwt(jwt -> jwt.claim("sub", "testUser"))).post().uri("/api/v2/media")
+                .contentType(MediaType.MULTIPART_FORM_DATA).body(BodyInserters.fromMultipartData(builder.build()))
+                .exchange().expectStatus().is5xxServerError();
+
+        verify(mediaService).deleteMedia(List.of(FILE_NAME, FILE_NAME + "/preview"));
+        verify(mediaService, never()).saveUpload(any(), any(), any());
+    }
+
+    @Test
+    public void testMissingFile() {
+        when(mediaService.uploadFileNameFromId(2L)).thenReturn("/media/attachments/uploads/2");
+        when(mediaService.findMedia("/media/attachments/uploads/2")).thenReturn(Mono.empty());
+        webTestClient.get().uri("/media/attachments/uploads/2").exchange().expectStatus().isNotFound();
+    }
+}
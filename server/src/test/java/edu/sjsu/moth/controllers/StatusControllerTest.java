@@ -22,6 +22,7 @@ import edu.sjsu.moth.server.db.FollowRepository;
 import edu.sjsu.moth.server.db.OutboxRepository;
 import edu.sjsu.moth.server.db.StatusRepository;
 import edu.sjsu.moth.server.db.TokenRepository;
+import edu.sjsu.moth.server.service.HomeFeedService;
 import edu.sjsu.moth.server.service.StatusService;
 import edu.sjsu.moth.server.util.MothConfiguration;
 import org.junit.jupiter.api.AfterAll;
@@ -65,6 +66,7 @@ public class StatusControllerTest {
     final StatusRepository statusRepository;
     final FollowRepository followRepository;
     final OutboxRepository outboxRepository;
+    final HomeFeedService homeFeedService;
 
     static {
         try {
@@ -82,7 +84,7 @@ public class StatusControllerTest {
     public StatusControllerTest(WebTestClient webTestClient, TokenRepository tokenRepository,
                                 AccountRepository accountRepository, StatusService statusService,
                                 StatusRepository statusRepository, FollowRepository followRepository,
-                                OutboxRepository outboxRepository) {
+                                OutboxRepository outboxRepository, HomeFeedService homeFeedService) {
         this.webTestClient = webTestClient;
         this.tokenRepository = tokenRepository;
         this.accountRepository = accountRepository;
@@ -90,6 +92,7 @@ public class StatusControllerTest {
         this.statusRepository = statusRepository;
         this.followRepository = followRepository;
         this.outboxRepository = outboxRepository;
+        this.homeFeedService = homeFeedService;
     }
 
     @AfterAll
@@ -194,6 +197,8 @@ public class StatusControllerTest {
 
         Account fetchAccount = accountRepository.save(new Account(statusFetcher)).block();
         followRepository.save(new Follow(fetchAccount.id, creatorAccount.id)).block();
+        // the follow is written directly, so pull the creator's statuses in the way FollowService does
+        homeFeedService.mergeAuthor(fetchAccount.id, creatorAccount).block();
         // Mock the authentication
         webTestClient.mutateWith(mockJwt().jwt(jwt -> jwt.claim("sub", statusFetcher))).get().uri(HOME_FEED_END_POINT)
                 .exchange().expectStatus().isOk().expectBody().jsonPath("$.length()").isEqualTo(3);
@@ -1,7 +1,9 @@
 package edu.sjsu.moth.filter;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import edu.sjsu.moth.server.filter.HttpSignatureWebFilter;
 import edu.sjsu.moth.server.service.HttpSignatureService;
+import edu.sjsu.moth.server.util.MothConfiguration;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -11,6 +13,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
@@ -24,12 +27,17 @@ import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilterChain;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import reactor.test.StepVerifier;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -199,6 +207,124 @@ class HttpSignatureWebFilterTest {
         verify(mockWebFilterChain, never()).filter(any());
     }
 
+    @Test
+    void filterPostWhenVerificationIsOverloadedShouldReturnServiceUnavailable() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "some-signature");
+        byte[] requestBody = "{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8);
+        MockServerWebExchange exchange = createExchange(HttpMethod.POST, "/inbox", headers, requestBody);
+        when(mockHttpSignatureService.verifySignature(any(ServerWebExchange.class), eq(requestBody))).thenReturn(
+                Mono.error(new HttpSignatureService.OverloadedException(30)));
+
+        StepVerifier.create(httpSignatureWebFilter.filter(exchange, mockWebFilterChain)).verifyComplete();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exchange.getResponse().getStatusCode());
+        assertEquals("30", exchange.getResponse().getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        verify(mockWebFilterChain, never()).filter(any());
+    }
+
+    @Test
+    void filterPostShouldShareParsedActivityAndBodyDigest() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "valid-signature");
+        byte[] requestBody = "{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8);
+        MockServerWebExchange exchange = createExchange(HttpMethod.POST, "/inbox", headers, requestBody);
+        when(mockHttpSignatureService.verifySignature(any(ServerWebExchange.class), eq(requestBody))).thenReturn(
+                Mono.just(true));
+
+        StepVerifier.create(httpSignatureWebFilter.filter(exchange, mockWebFilterChain)).verifyComplete();
+
+        verify(mockWebFilterChain).filter(exchangeCaptor.capture());
+        ServerWebExchange passed = exchangeCaptor.getValue();
+        JsonNode activity = passed.getAttribute(HttpSignatureWebFilter.ACTIVITY_ATTRIBUTE);
+        assertNotNull(activity);
+        assertEquals("Create", activity.get("type").asText());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(requestBody),
+                          passed.getAttribute(HttpSignatureService.BODY_DIGEST_ATTRIBUTE));
+    }
+
+    @Test
+    void filterPostWithSignedBodyThatIsNotJsonShouldReturnBadRequest() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "valid-signature");
+        byte[] requestBody = "not json".getBytes(StandardCharsets.UTF_8);
+        MockServerWebExchange exchange = createExchange(HttpMethod.POST, "/inbox", headers, requestBody);
+        when(mockHttpSignatureService.verifySignature(any(ServerWebExchange.class), eq(requestBody))).thenReturn(
+                Mono.just(true));
+
+        StepVerifier.create(httpSignatureWebFilter.filter(exchange, mockWebFilterChain)).verifyComplete();
+
+        assertEquals(HttpStatus.BAD_REQUEST, exchange.getResponse().getStatusCode());
+        verify(mockWebFilterChain, never()).filter(any());
+    }
+
+    @Test
+    void filterPostWithLargeContentLengthShouldReturnPayloadTooLargeWithoutReading() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "some-signature");
+        headers.setContentLength(MothConfiguration.DEFAULT_INBOX_MAX_PAYLOAD + 1);
+        MockServerWebExchange exchange = createExchange(HttpMethod.POST, "/inbox", headers, "{}".getBytes());
+
+        StepVerifier.create(httpSignatureWebFilter.filter(exchange, mockWebFilterChain)).verifyComplete();
+
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exchange.getResponse().getStatusCode());
+        verify(mockHttpSignatureService, never()).verifySignature(any(), any());
+        verify(mockWebFilterChain, never()).filter(any());
+    }
+
+    @Test
+    void filterPostWithLargeBodyAndNoContentLengthShouldStopReadingAtTheLimit() {
+        var filter = new HttpSignatureWebFilter(mockHttpSignatureService, 10);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "some-signature");
+        var chunks = new AtomicInteger();
+        Flux<DataBuffer> body = Flux.range(0, 100).map(i -> {
+            chunks.incrementAndGet();
+            return dataBufferFactory.wrap("12345".getBytes(StandardCharsets.UTF_8));
+        });
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+                MockServerHttpRequest.method(HttpMethod.POST, "/inbox").headers(headers).body(body));
+
+        StepVerifier.create(filter.filter(exchange, mockWebFilterChain)).verifyComplete();
+
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exchange.getResponse().getStatusCode());
+        assertTrue(chunks.get() < 100, "should stop reading once over the limit");
+        verify(mockHttpSignatureService, never()).verifySignature(any(), any());
+    }
+
+    @Test
+    void filterPostInChunksShouldReadTheBodyAndLeaveTheVerifyThreads() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Signature", "valid-signature");
+        byte[] requestBody = "{\"type\":\"Create\",\"id\":\"https://remote.example/1\"}".getBytes(
+                StandardCharsets.UTF_8);
+        // a Content-Length that is too small, so the body outgrows the array it is read into
+        headers.setContentLength(4);
+        Flux<DataBuffer> body = Flux.range(0, requestBody.length).map(
+                i -> dataBufferFactory.wrap(new byte[]{ requestBody[i] }));
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+                MockServerHttpRequest.method(HttpMethod.POST, "/inbox").headers(headers).body(body));
+        var verifyScheduler = Schedulers.newSingle("signature-verify");
+        when(mockHttpSignatureService.verifySignature(any(ServerWebExchange.class), eq(requestBody))).thenReturn(
+                Mono.just(true).subscribeOn(verifyScheduler));
+        var chainThread = new AtomicReference<String>();
+        when(mockWebFilterChain.filter(any(ServerWebExchange.class))).thenAnswer(invocation -> {
+            chainThread.set(Thread.currentThread().getName());
+            return Mono.empty();
+        });
+
+        try {
+            StepVerifier.create(httpSignatureWebFilter.filter(exchange, mockWebFilterChain)).verifyComplete();
+        } finally {
+            verifyScheduler.dispose();
+        }
+
+        verify(mockWebFilterChain).filter(exchangeCaptor.capture());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(requestBody),
+                          exchangeCaptor.getValue().getAttribute(HttpSignatureService.BODY_DIGEST_ATTRIBUTE));
+        assertFalse(chainThread.get().startsWith("signature-verify"), chainThread.get());
+    }
+
     @Test
     void filterBypassesSignatureCheckForNonProtectedPaths() {
         HttpHeaders postHeaders = new HttpHeaders();
@@ -2,32 +2,46 @@ package edu.sjsu.moth.keyManger;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
+import edu.sjsu.moth.server.db.RemotePublicKey;
 import edu.sjsu.moth.server.keyManager.RemotePublicKeyResolver;
 import edu.sjsu.moth.util.HttpSignature;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -54,6 +68,8 @@ class RemotePublicKeyResolverTest {
     private WebClient.RequestHeadersSpec requestHeadersSpecMock;
     @Mock
     private WebClient.ResponseSpec responseSpecMock;
+    @Mock
+    private ReactiveMongoTemplate mongoTemplateMock;
     private RemotePublicKeyResolver publicKeyResolver;
 
     @BeforeEach
@@ -88,7 +104,7 @@ class RemotePublicKeyResolverTest {
     void resolveWhenCacheMissAndFetchSuccessWithKnownGoodPemReturnsKeyAndCaches() throws InterruptedException {
         String keyId = "http://example.com/users/fetchUserGoodKey#main-key";
         JsonNode actorResponse = createActorJsonNode(KNOWN_GOOD_PUBLIC_KEY_PEM);
-        when(responseSpecMock.bodyToMono(JsonNode.class)).thenReturn(Mono.just(actorResponse));
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(actorResponse)));
 
         StepVerifier.create(publicKeyResolver.resolve(keyId)).expectNext(expectedTestPublicKey).verifyComplete();
 
@@ -112,7 +128,7 @@ class RemotePublicKeyResolverTest {
     @Test
     void resolveWhenCacheMissAndFetchNotFoundReturnsEmptyAndCachesNegative() throws InterruptedException {
         String keyId = "http://example.com/users/notFoundUser#main-key";
-        when(responseSpecMock.bodyToMono(JsonNode.class)).thenReturn(Mono.error(
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.error(
                 WebClientResponseException.create(HttpStatus.NOT_FOUND.value(), "Not Found", null, null, null)));
 
         StepVerifier.create(publicKeyResolver.resolve(keyId)).verifyComplete();
@@ -138,7 +154,7 @@ class RemotePublicKeyResolverTest {
     void resolveWhenCacheMissAndActorMissingPemReturnsEmptyAndCachesNegative() throws InterruptedException {
         String keyId = "http://example.com/users/noPemUser#main-key";
         JsonNode actorResponse = createActorJsonNodeWithoutPem();
-        when(responseSpecMock.bodyToMono(JsonNode.class)).thenReturn(Mono.just(actorResponse));
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(actorResponse)));
 
         StepVerifier.create(publicKeyResolver.resolve(keyId)).verifyComplete();
 
@@ -152,7 +168,7 @@ class RemotePublicKeyResolverTest {
     void resolveWhenCacheMissAndInvalidPemFormatInResponseReturnsEmptyAndCachesNegative() throws InterruptedException {
         String keyId = "http://example.com/users/invalidPemUser#main-key";
         JsonNode actorResponse = createActorJsonNode("THIS IS NOT A VALID PEM AT ALL TRUST ME ");
-        when(responseSpecMock.bodyToMono(JsonNode.class)).thenReturn(Mono.just(actorResponse));
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(actorResponse)));
 
         StepVerifier.create(publicKeyResolver.resolve(keyId)).verifyComplete();
 
@@ -163,4 +179,162 @@ class RemotePublicKeyResolverTest {
         assertNull(publicKeyResolver.publicKeyCache.getIfPresent(keyId), "Key should not be in positive cache");
         verify(webClientMock).get();
     }
+
+    private RemotePublicKeyResolver resolverWithStore() {
+        when(mongoTemplateMock.find(any(Query.class), eq(RemotePublicKey.class))).thenReturn(Flux.empty());
+        return new RemotePublicKeyResolver(new ActorFetcher(webClientBuilderMock), mongoTemplateMock, null);
+    }
+
+    @Test
+    void resolveWhenKeyIsStoredReturnsItAndNoNetworkCall() {
+        String keyId = "http://example.com/users/storedUser#main-key";
+        RemotePublicKeyResolver resolver = resolverWithStore();
+        when(mongoTemplateMock.findById(keyId, RemotePublicKey.class)).thenReturn(Mono.just(
+                new RemotePublicKey(keyId, "http://example.com/users/storedUser", KNOWN_GOOD_PUBLIC_KEY_PEM,
+                                    Instant.now(), null, Instant.now())));
+        when(mongoTemplateMock.findAndModify(any(Query.class), any(Update.class), eq(RemotePublicKey.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(resolver.resolve(keyId)).expectNext(expectedTestPublicKey).verifyComplete();
+
+        assertNotNull(resolver.publicKeyCache.getIfPresent(keyId));
+        verify(webClientMock, never()).get();
+    }
+
+    @Test
+    void resolveWhenCacheMissAndNotStoredStoresFetchedKey() {
+        String keyId = "http://example.com/users/newUser#main-key";
+        RemotePublicKeyResolver resolver = resolverWithStore();
+        when(mongoTemplateMock.findById(keyId, RemotePublicKey.class)).thenReturn(Mono.empty());
+        when(mongoTemplateMock.save(any(RemotePublicKey.class))).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(
+                Mono.just(ResponseEntity.ok().eTag("\"v1\"").body(createActorJsonNode(KNOWN_GOOD_PUBLIC_KEY_PEM))));
+
+        StepVerifier.create(resolver.resolve(keyId)).expectNext(expectedTestPublicKey).verifyComplete();
+
+        ArgumentCaptor<RemotePublicKey> stored = ArgumentCaptor.forClass(RemotePublicKey.class);
+        verify(mongoTemplateMock).save(stored.capture());
+        assertEquals(keyId, stored.getValue().keyId);
+        assertEquals(KNOWN_GOOD_PUBLIC_KEY_PEM, stored.getValue().pem);
+        assertEquals("\"v1\"", stored.getValue().etag);
+    }
+
+    @Test
+    void resolveWhenStoredKeyIsStaleRefreshesItInTheBackground() {
+        String keyId = "http://example.com/users/staleUser#main-key";
+        RemotePublicKeyResolver resolver = resolverWithStore();
+        Instant fetchedAt = Instant.now().minus(Duration.ofDays(2));
+        when(mongoTemplateMock.findById(keyId, RemotePublicKey.class)).thenReturn(Mono.just(
+                new RemotePublicKey(keyId, "http://example.com/users/staleUser", KNOWN_GOOD_PUBLIC_KEY_PEM,
+                                    fetchedAt, null, fetchedAt)));
+        when(mongoTemplateMock.findAndModify(any(Query.class), any(Update.class), eq(RemotePublicKey.class)))
+                .thenReturn(Mono.empty());
+        when(mongoTemplateMock.save(any(RemotePublicKey.class))).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(
+                Mono.just(ResponseEntity.ok(createActorJsonNode(KNOWN_GOOD_PUBLIC_KEY_PEM))));
+
+        // the stored key is good enough for now
+        StepVerifier.create(resolver.resolve(keyId)).expectNext(expectedTestPublicKey).verifyComplete();
+
+        ArgumentCaptor<RemotePublicKey> stored = ArgumentCaptor.forClass(RemotePublicKey.class);
+        verify(mongoTemplateMock, timeout(5000)).save(stored.capture());
+        assertTrue(stored.getValue().fetchedAt.isAfter(fetchedAt));
+    }
+
+    @Test
+    void fetchedActorOnlyBringsAlongItsOwnKey() {
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(
+                objectMapper.createObjectNode().put("id", "http://evil.example/users/mallory")
+                        .set("publicKey", objectMapper.createObjectNode()
+                                .put("id", "http://victim.example/users/alice#main-key")
+                                .put("owner", "http://victim.example/users/alice")
+                                .put("publicKeyPem", KNOWN_GOOD_PUBLIC_KEY_PEM)))));
+        ActorFetcher actorFetcher = new ActorFetcher(webClientBuilderMock);
+        RemotePublicKeyResolver resolver = new RemotePublicKeyResolver(actorFetcher);
+
+        actorFetcher.fetchDocument("http://evil.example/users/mallory").block();
+
+        assertNull(resolver.publicKeyCache.getIfPresent("http://victim.example/users/alice#main-key"));
+    }
+
+    @Test
+    void fetchedActorBringsAlongItsKey() {
+        String keyId = "http://example.com/users/someUser#main-key";
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(
+                objectMapper.createObjectNode().put("id", "http://example.com/users/someUser")
+                        .set("publicKey", objectMapper.createObjectNode().put("id", keyId)
+                                .put("owner", "http://example.com/users/someUser")
+                                .put("publicKeyPem", KNOWN_GOOD_PUBLIC_KEY_PEM)))));
+        ActorFetcher actorFetcher = new ActorFetcher(webClientBuilderMock);
+        RemotePublicKeyResolver resolver = new RemotePublicKeyResolver(actorFetcher);
+
+        actorFetcher.fetchDocument("http://example.com/users/someUser").block();
+
+        assertNotNull(resolver.publicKeyCache.getIfPresent(keyId));
+        assertEquals(expectedTestPublicKey, resolver.publicKeyCache.getIfPresent(keyId).join());
+    }
+
+    @Test
+    void keyBroughtAlongByAnotherFetchIsNotStored() {
+        String keyId = "http://example.com/users/someUser#main-key";
+        when(mongoTemplateMock.find(any(Query.class), eq(RemotePublicKey.class))).thenReturn(Flux.empty());
+        when(responseSpecMock.toEntity(JsonNode.class)).thenReturn(Mono.just(ResponseEntity.ok(
+                objectMapper.createObjectNode().put("id", "http://example.com/users/someUser")
+                        .set("publicKey", objectMapper.createObjectNode().put("id", keyId)
+                                .put("publicKeyPem", KNOWN_GOOD_PUBLIC_KEY_PEM)))));
+        ActorFetcher actorFetcher = new ActorFetcher(webClientBuilderMock);
+        RemotePublicKeyResolver resolver = new RemotePublicKeyResolver(actorFetcher, mongoTemplateMock, null);
+
+        actorFetcher.fetchDocument("http://example.com/users/someUser").block();
+
+        assertNotNull(resolver.publicKeyCache.getIfPresent(keyId));
+        verify(mongoTemplateMock, never()).save(any(RemotePublicKey.class));
+    }
+
+    // a server that answers every url with documents, as GoToSocial lays out its keys
+    private ActorFetcher serving(Map<String, JsonNode> documents) {
+        return new ActorFetcher(WebClient.builder().exchangeFunction(request -> {
+            JsonNode document = documents.get(request.url().toString());
+            return Mono.just(document == null ? ClientResponse.create(HttpStatus.NOT_FOUND).build() :
+                                     ClientResponse.create(HttpStatus.OK)
+                                             .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                             .body(document.toString()).build());
+        }));
+    }
+
+    private JsonNode keyOf(String actor, String keyId) {
+        return objectMapper.createObjectNode().put("id", actor).set("publicKey", objectMapper.createObjectNode()
+                .put("id", keyId).put("owner", actor).put("publicKeyPem", KNOWN_GOOD_PUBLIC_KEY_PEM));
+    }
+
+    @Test
+    void keyDocumentOfAnActorOnTheSameServerIsAccepted() {
+        String actor = "https://gts.example/users/alice";
+        String keyId = actor + "/main-key";
+        RemotePublicKeyResolver resolver =
+                new RemotePublicKeyResolver(serving(Map.of(keyId, keyOf(actor, keyId), actor, keyOf(actor, keyId))));
+
+        StepVerifier.create(resolver.resolve(keyId)).expectNext(expectedTestPublicKey).verifyComplete();
+    }
+
+    @Test
+    void keyDocumentWhoseOwnerDoesNotListTheKeyIsRejected() {
+        String actor = "https://gts.example/users/alice";
+        String keyId = "https://gts.example/users/mallory/main-key";
+        RemotePublicKeyResolver resolver = new RemotePublicKeyResolver(
+                serving(Map.of(keyId, keyOf(actor, keyId), actor, keyOf(actor, actor + "/main-key"))));
+
+        StepVerifier.create(resolver.resolve(keyId)).verifyComplete();
+    }
+
+    @Test
+    void keyDocumentOwnedByAnotherServerIsRejected() {
+        String actor = "https://victim.example/users/alice";
+        String keyId = "https://evil.example/users/alice/main-key";
+        // even if the other server's actor happened to list it
+        RemotePublicKeyResolver resolver =
+                new RemotePublicKeyResolver(serving(Map.of(keyId, keyOf(actor, keyId), actor, keyOf(actor, keyId))));
+
+        StepVerifier.create(resolver.resolve(keyId)).verifyComplete();
+    }
 }
@@ -0,0 +1,59 @@
+package edu.sjsu.moth.server.activitypub.service;
+
+import edu.sjsu.moth.server.keyManager.RemotePublicKeyResolver;
+import edu.sjsu.moth.util.WebFingerUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class ActorFetcherTests {
+
+    private static final String ACTOR = "https://remote.example/users/bob";
+
+    @Test
+    public void concurrentLookupsShareOneFetch() {
+        var pem = WebFingerUtils.genPubPrivKeyPem().pubKey().replace("\n", "\\n");
+        var body = """
+                {"id":"%s","type":"Person","preferredUsername":"bob","inbox":"%s/inbox",
+                 "publicKey":{"id":"%s#main-key","owner":"%s","publicKeyPem":"%s"}}
+                """.formatted(ACTOR, ACTOR, ACTOR, ACTOR, pem);
+        var requests = new AtomicInteger();
+        // hold the response until every caller has asked
+        var release = Sinks.<ClientResponse>one();
+        var builder = WebClient.builder().exchangeFunction(request -> {
+            requests.incrementAndGet();
+            return release.asMono();
+        });
+        var actorFetcher = new ActorFetcher(builder);
+        var publicKeyResolver = new RemotePublicKeyResolver(actorFetcher);
+        var saved = new AtomicInteger();
+        actorFetcher.addListener(node -> Mono.fromRunnable(saved::incrementAndGet));
+
+        var keys = Flux.range(0, 10).flatMap(i -> publicKeyResolver.resolve(ACTOR + "#main-key")).collectList()
+                .toFuture();
+        var actors = Flux.range(0, 10).flatMap(i -> actorFetcher.fetchActor(ACTOR)).collectList().toFuture();
+        assertEquals(1, actorFetcher.inFlight());
+        release.tryEmitValue(ClientResponse.create(HttpStatus.OK)
+                                     .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE).body(body)
+                                     .build());
+
+        assertEquals(10, keys.join().size());
+        assertEquals(10, actors.join().size());
+        assertEquals("bob", actors.join().get(0).preferredUsername);
+        assertEquals(1, requests.get());
+        assertEquals(1, saved.get());
+        assertNotNull(publicKeyResolver.publicKeyCache.getIfPresent(ACTOR + "#main-key"));
+        assertEquals(0, actorFetcher.inFlight());
+    }
+}
@@ -0,0 +1,59 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AccountServiceConversionTest {
+
+    @BeforeAll
+    static void initMothConfig() throws IOException {
+        new MothConfiguration(new File(Objects.requireNonNull(
+                AccountServiceConversionTest.class.getResource("/test.cfg")).getFile()));
+    }
+
+    @Test
+    public void concurrentConversionsShareTheLookupButNotTheAccount() {
+        var stats = Sinks.<RemoteAccountStatsService.Stats>one();
+        var remoteAccountStatsService = Mockito.mock(RemoteAccountStatsService.class);
+        when(remoteAccountStatsService.statsOf(any())).thenReturn(stats.asMono());
+        var accountService = new AccountService();
+        ReflectionTestUtils.setField(accountService, "remoteAccountStatsService", remoteAccountStatsService);
+        var actor = new Actor();
+        actor.id = "https://remote.example/users/bob";
+        actor.url = "https://remote.example/@bob";
+        actor.preferredUsername = "bob";
+        actor.manuallyApprovesFollowers = false;
+        actor.discoverable = true;
+
+        var first = accountService.convertToAccount(actor).toFuture();
+        var second = accountService.convertToAccount(actor).toFuture();
+        stats.tryEmitValue(new RemoteAccountStatsService.Stats(3, 2, 1, Instant.now()));
+
+        var a = Mono.fromFuture(first).block();
+        var b = Mono.fromFuture(second).block();
+        verify(remoteAccountStatsService, times(1)).statsOf(any());
+        // one caller changing its account must not change the other's
+        assertNotSame(a, b);
+        assertEquals(a.id, b.id);
+        assertEquals("bob@remote.example", b.acct);
+        assertEquals(2, b.followers_count);
+    }
+}
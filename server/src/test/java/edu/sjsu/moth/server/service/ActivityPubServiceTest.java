@@ -0,0 +1,104 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.server.db.FederatedActivity;
+import edu.sjsu.moth.server.db.FederatedActivityRepository;
+import edu.sjsu.moth.util.HttpSignature;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ActivityPubServiceTest {
+
+    private HttpSignatureService httpSignatureService;
+    private FederatedActivityRepository federatedActivityRepository;
+    private final List<ClientRequest> requests = new ArrayList<>();
+    private ActivityPubService activityPubService;
+
+    @BeforeEach
+    public void setup() {
+        httpSignatureService = Mockito.mock(HttpSignatureService.class);
+        federatedActivityRepository = Mockito.mock(FederatedActivityRepository.class);
+        when(federatedActivityRepository.insert(any(FederatedActivity.class))).thenAnswer(
+                invocation -> Mono.just(invocation.getArgument(0)));
+        var builder = WebClient.builder().exchangeFunction(request -> {
+            requests.add(request);
+            return Mono.just(ClientResponse.create(HttpStatus.ACCEPTED).build());
+        });
+        activityPubService = new ActivityPubService(httpSignatureService, federatedActivityRepository, builder);
+    }
+
+    @Test
+    public void activityIsSerializedOnceForAllInboxes() throws Exception {
+        var message = new ObjectMapper().readTree("{\"id\":\"https://moth.example/1/activity\",\"type\":\"Create\"}");
+        activityPubService.sendSignedActivity(message, "alice", List.of("https://a.example/inbox",
+                                                                        "https://b.example/inbox",
+                                                                        "https://a.example/inbox")).block();
+
+        var queued = ArgumentCaptor.forClass(FederatedActivity.class);
+        verify(federatedActivityRepository, times(2)).insert(queued.capture());
+        var first = queued.getAllValues().get(0);
+        var second = queued.getAllValues().get(1);
+        assertEquals("https://moth.example/1/activity https://a.example/inbox", first.id);
+        assertSame(first.body, second.body);
+        assertEquals(HttpSignature.digest(first.body), first.digest);
+        assertEquals(message, new ObjectMapper().readTree(first.body));
+    }
+
+    @Test
+    public void deliverySignsTheStoredDigest() {
+        var headers = new HttpHeaders();
+        headers.add("Digest", "sha-256=stored");
+        headers.add("Signature", "signed");
+        when(httpSignatureService.prepareSignedHeadersForDigest(eq(HttpMethod.POST), eq("alice"), any(URI.class),
+                                                                eq("sha-256=stored"))).thenReturn(Mono.just(headers));
+        var job = new FederatedActivity("https://a.example/inbox", "alice",
+                                        "{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8), "sha-256=stored",
+                                        Instant.now());
+
+        activityPubService.deliver(job).block();
+
+        assertEquals(1, requests.size());
+        assertEquals(URI.create("https://a.example/inbox"), requests.get(0).url());
+        assertEquals("sha-256=stored", requests.get(0).headers().getFirst("Digest"));
+        assertEquals("signed", requests.get(0).headers().getFirst("Signature"));
+    }
+
+    @Test
+    public void legacyJobsSendTheirContent() {
+        var body = "{\"type\":\"Follow\"}";
+        when(httpSignatureService.prepareSignedHeadersForDigest(eq(HttpMethod.POST), eq("alice"), any(URI.class),
+                                                                any())).thenReturn(Mono.just(new HttpHeaders()));
+        var job = new FederatedActivity("https://a.example/inbox", "alice", null, null, Instant.now());
+        job.content = body;
+
+        activityPubService.deliver(job).block();
+
+        verify(httpSignatureService).prepareSignedHeadersForDigest(HttpMethod.POST, "alice",
+                                                                   URI.create("https://a.example/inbox"),
+                                                                   HttpSignature.digest(body.getBytes(
+                                                                           StandardCharsets.UTF_8)));
+    }
+}
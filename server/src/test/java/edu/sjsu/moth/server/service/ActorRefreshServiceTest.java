@@ -0,0 +1,149 @@
+package edu.sjsu.moth.server.service;
+
+import com.mongodb.client.result.UpdateResult;
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
+import edu.sjsu.moth.server.db.ActorFreshness;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ActorRefreshServiceTest {
+
+    private static final String UNCHANGED = "https://remote.example/users/bob";
+    private static final String CHANGED = "https://remote.example/users/carol";
+    private final List<ActorFreshness> stale = new ArrayList<>();
+    private final List<String> ifNoneMatch = new ArrayList<>();
+    private ReactiveMongoTemplate mongoTemplate;
+    private SimpleMeterRegistry registry;
+    private ActorRefreshService actorRefreshService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(ActorFreshness.class))).thenAnswer(invocation -> {
+            synchronized (stale) {
+                return Mono.justOrEmpty(stale.isEmpty() ? null : stale.remove(0));
+            }
+        });
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(ActorFreshness.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        // the server has "v2" of every actor
+        var builder = WebClient.builder().exchangeFunction(request -> {
+            synchronized (ifNoneMatch) {
+                ifNoneMatch.add(request.headers().getFirst(HttpHeaders.IF_NONE_MATCH));
+            }
+            if ("\"v2\"".equals(request.headers().getFirst(HttpHeaders.IF_NONE_MATCH))) {
+                return Mono.just(ClientResponse.create(HttpStatus.NOT_MODIFIED).build());
+            }
+            var url = request.url().toString();
+            return Mono.just(ClientResponse.create(HttpStatus.OK)
+                                     .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                     .header(HttpHeaders.ETAG, "\"v2\"")
+                                     .body("{\"id\":\"%s\",\"type\":\"Person\"}".formatted(url)).build());
+        });
+        registry = new SimpleMeterRegistry();
+        ObjectProvider<MeterRegistry> provider = Mockito.mock(ObjectProvider.class);
+        when(provider.getIfAvailable(any())).thenReturn(registry);
+        // polling is driven by the tests
+        actorRefreshService =
+                new ActorRefreshService(mongoTemplate, new ActorFetcher(builder), provider, Long.MAX_VALUE / 2);
+    }
+
+    @AfterEach
+    public void teardown() {
+        actorRefreshService.close();
+    }
+
+    private double outcome(String outcome) {
+        var counter = registry.find("moth.actor.refresh").tag("outcome", outcome).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    @Test
+    public void staleActorsAreRevalidatedConditionally() {
+        var old = Instant.now().minus(ActorRefreshService.STALE_AFTER.multipliedBy(2));
+        stale.add(new ActorFreshness(UNCHANGED, "\"v2\"", null, old, old, Instant.now()));
+        stale.add(new ActorFreshness(CHANGED, "\"v1\"", null, old, old, null));
+
+        actorRefreshService.pump();
+
+        assertEquals(List.of("\"v2\"", "\"v1\""), ifNoneMatch);
+        assertEquals(1, outcome("not_modified"));
+        assertEquals(1, outcome("changed"));
+        // only the changed actor has new validators to store
+        var query = ArgumentCaptor.forClass(Query.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).upsert(query.capture(), update.capture(), eq(ActorFreshness.class));
+        assertEquals(CHANGED, query.getValue().getQueryObject().get("_id"));
+        assertEquals("\"v2\"", update.getValue().getUpdateObject().get("$set", Document.class).get("etag"));
+    }
+
+    @Test
+    public void activityOnlyMarksActorActiveOncePerHour() {
+        actorRefreshService.markActive(UNCHANGED + "#main-key").block();
+        actorRefreshService.markActive(UNCHANGED).block();
+        actorRefreshService.markActive(null).block();
+
+        var query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(1)).upsert(query.capture(), any(Update.class), eq(ActorFreshness.class));
+        assertEquals(UNCHANGED, query.getValue().getQueryObject().get("_id"));
+    }
+
+    @Test
+    public void leaseWalksTheIndexInItsOrder() {
+        actorRefreshService.lease().block();
+
+        // nothing is due, so the active actors are asked for first and then everyone
+        var query = ArgumentCaptor.forClass(Query.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).findAndModify(query.capture(), update.capture(),
+                                                      any(FindAndModifyOptions.class), eq(ActorFreshness.class));
+        var queries = query.getAllValues();
+        assertEquals(Set.of("dueAt", "lastActiveAt"), queries.get(0).getQueryObject().keySet());
+        assertTrue(queries.get(0).getQueryObject().get("lastActiveAt", Document.class).containsKey("$gte"));
+        assertEquals(Set.of("dueAt"), queries.get(1).getQueryObject().keySet());
+        var index = ActorFreshness.class.getAnnotation(CompoundIndex.class);
+        for (var q : queries) {
+            // a range on the leading key of the index, and its own order, so nothing is sorted in memory
+            assertTrue(q.getQueryObject().get("dueAt", Document.class).containsKey("$lte"));
+            assertEquals(Document.parse(index.def()), q.getSortObject());
+        }
+        // the claimed actor is not due again for a day
+        var set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(ActorRefreshService.STALE_AFTER,
+                     Duration.between(set.get("checkedAt", Instant.class), set.get("dueAt", Instant.class)));
+    }
+}
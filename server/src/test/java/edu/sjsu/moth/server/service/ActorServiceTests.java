@@ -1,16 +1,34 @@
 package edu.sjsu.moth.server.service;
 
+import edu.sjsu.moth.server.activitypub.service.ActorFetcher;
 import edu.sjsu.moth.server.activitypub.service.WebfingerService;
 import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.ActorInbox;
+import edu.sjsu.moth.server.db.ActorInboxRepository;
 import edu.sjsu.moth.server.db.ExternalActorRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ActorServiceTests {
@@ -32,7 +50,8 @@ public class ActorServiceTests {
         account.url = "https://mastodon.social/@gargron";
         when(mockAccountService.convertToAccount(any())).thenReturn(Mono.just(account));
 
-        actorService = new ActorService(externalActorRepository, webfingerService, webClientBuilder);
+        actorService = new ActorService(externalActorRepository, Mockito.mock(ActorInboxRepository.class),
+                                        webfingerService, new ActorFetcher(webClientBuilder));
         ReflectionTestUtils.setField(actorService, "accountService", mockAccountService);
     }
 
@@ -54,4 +73,86 @@ public class ActorServiceTests {
             assert a.url != null && a.url.contains("mastodon.social");
         }).verifyComplete();
     }
+
+    @Test
+    public void followersOnOneServerShareOneInbox() {
+        ActorInboxRepository actorInboxRepository = Mockito.mock(ActorInboxRepository.class);
+        when(actorInboxRepository.findAllById(any(Iterable.class))).thenReturn(Flux.just(
+                new ActorInbox("a@big.example", "https://big.example/users/a", "https://big.example/users/a/inbox",
+                               "https://big.example/inbox", Instant.now()),
+                new ActorInbox("b@big.example", "https://big.example/users/b", "https://big.example/users/b/inbox",
+                               "https://big.example/inbox", Instant.now()),
+                new ActorInbox("c@small.example", "https://small.example/users/c",
+                               "https://small.example/users/c/inbox", null, Instant.now())));
+        WebfingerService webfingerService = Mockito.mock(WebfingerService.class);
+        when(webfingerService.discoverProfileUrl(any())).thenReturn(Mono.empty());
+        var service = new ActorService(Mockito.mock(ExternalActorRepository.class), actorInboxRepository,
+                                       webfingerService, new ActorFetcher(WebClient.builder()));
+
+        var accts = List.of("a@big.example", "b@big.example", "c@small.example", "d@gone.example");
+        // an account we cannot resolve falls back to the server's inbox
+        assertEquals(Set.of("https://big.example/inbox", "https://small.example/users/c/inbox",
+                            "https://gone.example/inbox"),
+                     Set.copyOf(service.getDeliveryInboxes(accts).collectList().block()));
+        assertEquals(3, service.getDeliveryInboxes(accts).count().block());
+        // the second fan-out is served from memory
+        verify(actorInboxRepository, times(1)).findAllById(any(Iterable.class));
+        verify(webfingerService, times(1)).discoverProfileUrl("d@gone.example");
+    }
+
+    @Test
+    public void fetchedActorIsOnlySavedFromItsOwnUrl() {
+        ExternalActorRepository externalActorRepository = Mockito.mock(ExternalActorRepository.class);
+        when(externalActorRepository.save(any())).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        // every url serves a document claiming to be the same actor
+        WebClient.Builder webClientBuilder = WebClient.builder().exchangeFunction(
+                request -> Mono.just(ClientResponse.create(HttpStatus.OK)
+                                             .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                             .body("{\"id\": \"https://victim.example/users/alice\"}").build()));
+        ActorFetcher actorFetcher = new ActorFetcher(webClientBuilder);
+        new ActorService(externalActorRepository, Mockito.mock(ActorInboxRepository.class),
+                         Mockito.mock(WebfingerService.class), actorFetcher);
+
+        actorFetcher.fetchDocument("https://evil.example/users/mallory").block();
+        verify(externalActorRepository, never()).save(any());
+
+        actorFetcher.fetchDocument("https://victim.example/users/alice").block();
+        verify(externalActorRepository).save(any());
+    }
+
+    @Test
+    public void inboxIsRememberedUnderEveryHandleOfTheActor() {
+        ActorInboxRepository actorInboxRepository = Mockito.mock(ActorInboxRepository.class);
+        when(actorInboxRepository.findAllById(any(Iterable.class))).thenReturn(Flux.empty());
+        when(actorInboxRepository.save(any())).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(actorInboxRepository.saveAll(any(Iterable.class))).thenAnswer(
+                inv -> Flux.fromIterable(inv.<Iterable<ActorInbox>>getArgument(0)));
+        ExternalActorRepository externalActorRepository = Mockito.mock(ExternalActorRepository.class);
+        when(externalActorRepository.save(any())).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(externalActorRepository.findItemById(any())).thenReturn(Mono.empty());
+        // the handle is on the webfinger domain, the actor lives on another host under an opaque id
+        WebfingerService webfingerService = Mockito.mock(WebfingerService.class);
+        when(webfingerService.discoverProfileUrl("bob@example.org")).thenReturn(
+                Mono.just("https://social.example.org/users/9f3a"));
+        WebClient.Builder webClientBuilder = WebClient.builder().exchangeFunction(
+                request -> Mono.just(ClientResponse.create(HttpStatus.OK)
+                                             .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                             .body("{\"id\": \"https://social.example.org/users/9f3a\", " +
+                                                   "\"preferredUsername\": \"bob\", " +
+                                                   "\"inbox\": \"https://social.example.org/users/9f3a/inbox\"}")
+                                             .build()));
+        var service = new ActorService(externalActorRepository, actorInboxRepository, webfingerService,
+                                       new ActorFetcher(webClientBuilder));
+
+        assertEquals(List.of("https://social.example.org/users/9f3a/inbox"),
+                     service.getDeliveryInboxes(List.of("bob@example.org")).collectList().block());
+
+        var saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(actorInboxRepository).saveAll(saved.capture());
+        assertEquals(Set.of("bob@social.example.org", "9f3a@social.example.org"),
+                     Set.copyOf(((List<ActorInbox>) saved.getValue()).stream().map(i -> i.acct).toList()));
+        var lookedUp = ArgumentCaptor.forClass(ActorInbox.class);
+        verify(actorInboxRepository).save(lookedUp.capture());
+        assertEquals("bob@example.org", lookedUp.getValue().acct);
+    }
 }
@@ -3,13 +3,25 @@ package edu.sjsu.moth.server.service;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.client.result.UpdateResult;
 import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.db.BackfillJob;
 import edu.sjsu.moth.server.db.ExternalStatus;
 import edu.sjsu.moth.server.util.MothConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.bson.Document;
 import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -22,9 +34,13 @@ import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.util.ReflectionTestUtils.setField;
 
@@ -34,9 +50,11 @@ public class BackfillServiceTest {
     private ActorService actorService;
     private RemoteOutboxFetcher outboxFetcher;
     private RemoteStatusIngestService ingestService;
+    private ReactiveMongoTemplate mongoTemplate;
     private BackfillService backfillService;
 
     @BeforeEach
+    @SuppressWarnings("unchecked")
     public void setup() throws IOException {
         try {
             var resource = BackfillServiceTest.class.getResource("/test.cfg");
@@ -56,9 +74,20 @@ public class BackfillServiceTest {
         outboxFetcher = Mockito.mock(RemoteOutboxFetcher.class);
         ingestService = Mockito.mock(RemoteStatusIngestService.class);
         AccountService accountService = Mockito.mock(AccountService.class);
-
-        backfillService = new BackfillService(actorService, outboxFetcher, ingestService);
+        HomeFeedService homeFeedService = Mockito.mock(HomeFeedService.class);
+        when(homeFeedService.fanOut(Mockito.<List<ExternalStatus>>any())).thenReturn(Mono.empty());
+
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        when(mongoTemplate.count(any(Query.class), eq(BackfillJob.class))).thenReturn(Mono.just(0L));
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(BackfillJob.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        ObjectProvider<MeterRegistry> provider = Mockito.mock(ObjectProvider.class);
+        when(provider.getIfAvailable(any())).thenReturn(new SimpleMeterRegistry());
+        // polling is driven by the tests
+        backfillService = new BackfillService(actorService, outboxFetcher, ingestService, mongoTemplate, provider,
+                                              Long.MAX_VALUE / 2);
         setField(backfillService, "accountService", accountService);
+        setField(backfillService, "homeFeedService", homeFeedService);
     }
 
     @Test
@@ -140,6 +169,70 @@ public class BackfillServiceTest {
         assertEquals(2, count.intValue(), "FOLLOW backfill should exclude items older than 30 days");
     }
 
+    @AfterEach
+    public void teardown() {
+        backfillService.close();
+    }
+
+    @Test
+    public void queuedBackfillIsOnlyUpgradedBySecondRequest() {
+        when(mongoTemplate.insert(any(BackfillJob.class))).thenReturn(Mono.error(new DuplicateKeyException("dup")));
+
+        backfillService.enqueue("bob@remote.example", BackfillService.BackfillType.FOLLOW).block();
+
+        var query = ArgumentCaptor.forClass(Query.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(BackfillJob.class));
+        // only a job that is still queued with a lower priority is upgraded
+        assertEquals(new Document("$lt", BackfillService.BackfillType.FOLLOW.priority),
+                     query.getValue().getQueryObject().get("priority"));
+        assertEquals("FOLLOW", update.getValue().getUpdateObject().get("$set", Document.class).get("type"));
+    }
+
+    @Test
+    public void interruptedBackfillResumesFromItsCursor() {
+        String actorId = "https://remote.example/users/dan";
+        Actor actor = new Actor();
+        actor.id = actorId;
+        actor.outbox = actorId + "/outbox";
+        when(actorService.getActor(actorId)).thenReturn(Mono.just(actor));
+        when(outboxFetcher.fetchPage(actor.outbox + "?page=2")).thenReturn(Mono.just(new RemoteOutboxFetcher.OutboxPage(
+                List.of(buildCreateNote("https://remote.example/a/2", Instant.now())), actor.outbox + "?page=3")));
+        when(outboxFetcher.fetchPage(actor.outbox + "?page=3")).thenReturn(Mono.just(new RemoteOutboxFetcher.OutboxPage(
+                List.of(buildCreateNote("https://remote.example/a/3", Instant.now())), null)));
+        when(ingestService.ingestCreateNotes(any(), eq(actor), any())).then(
+                inv -> inv.<Flux<JsonNode>>getArgument(0).map(item -> Mockito.mock(ExternalStatus.class))
+                        .collectList());
+
+        var job = new BackfillJob(actorId, "FOLLOW", 2, "remote.example", Instant.now());
+        job.cursor = actor.outbox + "?page=2";
+        job.taken = 10;
+        Integer taken = backfillService.process(job).block();
+
+        assertEquals(12, taken);
+        verify(outboxFetcher, never()).fetchPage(actor.outbox);
+        // the cursor is saved after every page so that the next attempt does not start over
+        var updates = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).updateFirst(any(Query.class), updates.capture(), eq(BackfillJob.class));
+        var first = updates.getAllValues().get(0).getUpdateObject().get("$set", Document.class);
+        assertEquals(actor.outbox + "?page=3", first.get("cursor"));
+        assertEquals(11, first.get("taken"));
+    }
+
+    @Test
+    public void followsAreLeasedBeforeSearches() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(BackfillJob.class))).thenReturn(Mono.empty());
+
+        backfillService.pump();
+
+        var query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).findAndModify(query.capture(), any(Update.class), any(FindAndModifyOptions.class),
+                                            eq(BackfillJob.class));
+        assertEquals(-1, query.getValue().getSortObject().get("priority"));
+        assertTrue(BackfillService.BackfillType.FOLLOW.priority > BackfillService.BackfillType.SEARCH.priority);
+    }
+
     private JsonNode buildCreateNote(String id, Instant published) {
         ObjectNode note = om.createObjectNode();
         note.put("type", "Note");
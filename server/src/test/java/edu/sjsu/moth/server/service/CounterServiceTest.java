@@ -0,0 +1,132 @@
+package edu.sjsu.moth.server.service;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.result.UpdateResult;
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.Account;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CounterServiceTest {
+
+    private ReactiveMongoTemplate mongoTemplate;
+    private ReactiveBulkOperations bulk;
+    private CounterService counterService;
+    private int stored;
+
+    @BeforeEach
+    public void setup() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        bulk = Mockito.mock(ReactiveBulkOperations.class);
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Status.class)).thenReturn(bulk);
+        when(bulk.execute()).thenReturn(Mono.just(BulkWriteResult.unacknowledged()));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(Status.class))).thenAnswer(invocation -> {
+            var status = new Status();
+            status.favouritesCount = ++stored;
+            return Mono.just(status);
+        });
+        // flushes are driven by the tests
+        counterService = new CounterService(mongoTemplate, Long.MAX_VALUE / 2);
+    }
+
+    @AfterEach
+    public void teardown() {
+        counterService.close();
+    }
+
+    @Test
+    public void hotStatusIsCoalescedIntoOneUpdatePerInterval() {
+        var counts = new ArrayList<Integer>();
+        for (int i = 0; i < CounterService.HOT_THRESHOLD + 20; i++) {
+            counts.add(counterService.incrementStatus("1", CounterService.FAVOURITES, 1).block());
+        }
+        // each click still sees the count go up
+        assertEquals(CounterService.HOT_THRESHOLD + 20, counts.get(counts.size() - 1));
+        verify(mongoTemplate, times(CounterService.HOT_THRESHOLD)).findAndModify(any(Query.class), any(Update.class),
+                                                                                 any(FindAndModifyOptions.class),
+                                                                                 eq(Status.class));
+
+        counterService.flush().block();
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(bulk, times(1)).updateOne(any(Query.class), update.capture());
+        assertEquals(List.of(20), List.copyOf(
+                update.getValue().getUpdateObject().get("$inc", Document.class).values()));
+        verify(bulk, times(1)).execute();
+    }
+
+    @Test
+    public void quietStatusesAreWrittenDirectly() {
+        counterService.incrementStatus("1", CounterService.FAVOURITES, 1).block();
+        counterService.incrementStatus("2", CounterService.FAVOURITES, 1).block();
+        counterService.flush().block();
+        verify(mongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(Status.class));
+
+        // a new interval starts from scratch
+        counterService.flush().block();
+        counterService.incrementStatus("1", CounterService.FAVOURITES, 1).block();
+        verify(mongoTemplate, times(3)).findAndModify(any(Query.class), any(Update.class),
+                                                      any(FindAndModifyOptions.class), eq(Status.class));
+    }
+
+    @Test
+    public void reconcileSkipsBusyAccountsAndResetsOrphansInOneUpdate() {
+        when(mongoTemplate.getCollectionName(any())).thenReturn("source");
+        // everything that is counted points at document 1 twice
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq("source"), eq(Document.class))).thenReturn(
+                Flux.just(new Document("_id", "1").append("count", 2)));
+        when(mongoTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), any(Class.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(mongoTemplate.updateMulti(any(Query.class), any(UpdateDefinition.class), any(Class.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(Account.class))).thenReturn(Mono.just(new Account()));
+        counterService.incrementAccount("1", CounterService.FOLLOWERS, 1).block();
+
+        assertEquals(3, counterService.reconcile().block());
+
+        // the followers of account 1 are being written, so they are left for the next run
+        var updates = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(mongoTemplate, times(3)).updateFirst(any(Query.class), updates.capture(), any(Class.class));
+        assertEquals(List.of(CounterService.FAVOURITES, CounterService.REBLOGS, CounterService.FOLLOWING),
+                     updates.getAllValues().stream().map(u -> u.getUpdateObject().get("$set", Document.class)
+                             .keySet().iterator().next()).toList());
+        var orphans = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(4)).updateMulti(orphans.capture(), any(UpdateDefinition.class), any(Class.class));
+        for (var query : orphans.getAllValues()) {
+            assertTrue(query.getQueryObject().toJson().contains("\"$nin\": [\"1\"]"), query.toString());
+        }
+
+        // once it has been idle for a whole interval it is reconciled again
+        counterService.flush().block();
+        counterService.flush().block();
+        counterService.reconcile().block();
+        verify(mongoTemplate, times(7)).updateFirst(any(Query.class), any(UpdateDefinition.class), any(Class.class));
+    }
+}
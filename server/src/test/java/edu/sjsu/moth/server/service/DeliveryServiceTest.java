@@ -0,0 +1,153 @@
+package edu.sjsu.moth.server.service;
+
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import edu.sjsu.moth.server.db.FederatedActivity;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeliveryServiceTest {
+
+    private ReactiveMongoTemplate mongoTemplate;
+    private ActivityPubService activityPubService;
+    private SimpleMeterRegistry registry;
+    private DeliveryService deliveryService;
+    private final List<FederatedActivity> due = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        activityPubService = Mockito.mock(ActivityPubService.class);
+        when(mongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(FederatedActivity.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(mongoTemplate.count(any(Query.class), eq(FederatedActivity.class))).thenReturn(Mono.just(0L));
+        // hand out the first due job whose host is not excluded, like the real findAndModify would
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(FederatedActivity.class))).thenAnswer(invocation -> {
+            Document host = invocation.getArgument(0, Query.class).getQueryObject().get("host", Document.class);
+            Collection<String> busy = host == null ? List.of() : (Collection<String>) host.get("$nin");
+            synchronized (due) {
+                var job = due.stream().filter(j -> !busy.contains(j.host)).findFirst();
+                job.ifPresent(due::remove);
+                return Mono.justOrEmpty(job);
+            }
+        });
+        when(mongoTemplate.remove(any(Query.class), eq(FederatedActivity.class))).thenReturn(
+                Mono.just(DeleteResult.acknowledged(1)));
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(FederatedActivity.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(mongoTemplate.save(any(FederatedActivity.class), eq(DeliveryService.DEAD_LETTER_COLLECTION))).thenAnswer(
+                invocation -> Mono.just(invocation.getArgument(0)));
+        registry = new SimpleMeterRegistry();
+        ObjectProvider<MeterRegistry> provider = Mockito.mock(ObjectProvider.class);
+        when(provider.getIfAvailable(any())).thenReturn(registry);
+        // polling is driven by the tests
+        deliveryService = new DeliveryService(mongoTemplate, activityPubService, provider, Long.MAX_VALUE / 2);
+    }
+
+    @AfterEach
+    public void teardown() {
+        deliveryService.close();
+    }
+
+    private FederatedActivity job(String id, String inbox) {
+        var job = new FederatedActivity(inbox, "alice", "{}".getBytes(), "sha-256=x", Instant.now());
+        job.id = id;
+        synchronized (due) {
+            due.add(job);
+        }
+        return job;
+    }
+
+    @Test
+    public void backoffGrowsWithJitterAndIsCapped() {
+        assertEquals(DeliveryService.BASE_BACKOFF.dividedBy(2), DeliveryService.backoff(1, 0));
+        assertTrue(DeliveryService.backoff(1, 0.99).compareTo(DeliveryService.BASE_BACKOFF) < 0);
+        assertEquals(DeliveryService.BASE_BACKOFF.multipliedBy(2), DeliveryService.backoff(3, 0));
+        assertEquals(DeliveryService.MAX_BACKOFF.dividedBy(2), DeliveryService.backoff(50, 0));
+        assertTrue(DeliveryService.backoff(50, 0.99).compareTo(DeliveryService.MAX_BACKOFF) <= 0);
+    }
+
+    @Test
+    public void busyHostDoesNotBlockOtherHosts() {
+        for (int i = 0; i < 10; i++) job("a" + i, "https://a.example/inbox");
+        job("b0", "https://b.example/inbox");
+        job("b1", "https://b.example/inbox");
+        when(activityPubService.deliver(any())).thenReturn(Mono.never());
+
+        deliveryService.pump();
+
+        var delivered = ArgumentCaptor.forClass(FederatedActivity.class);
+        verify(activityPubService, times(DeliveryService.MAX_IN_FLIGHT_PER_HOST + 2)).deliver(delivered.capture());
+        assertEquals(DeliveryService.MAX_IN_FLIGHT_PER_HOST,
+                     delivered.getAllValues().stream().filter(j -> j.host.equals("a.example")).count());
+        assertEquals(DeliveryService.MAX_IN_FLIGHT_PER_HOST + 2,
+                     registry.get("moth.delivery.in_flight").gauge().value());
+    }
+
+    @Test
+    public void rejectedActivitiesAreDeadLetteredAndOthersRetried() {
+        var rejected = job("1", "https://a.example/inbox");
+        var unavailable = job("2", "https://b.example/inbox");
+        when(activityPubService.deliver(rejected)).thenReturn(
+                Mono.error(WebClientResponseException.create(HttpStatus.FORBIDDEN.value(), "Forbidden", null, null,
+                                                             null)));
+        when(activityPubService.deliver(unavailable)).thenReturn(Mono.error(
+                WebClientResponseException.create(HttpStatus.SERVICE_UNAVAILABLE.value(), "Unavailable", null, null,
+                                                  null)));
+
+        deliveryService.pump();
+        // a finished delivery pumps again on the service's thread, which may pick up the second job
+        var deadline = Instant.now().plusSeconds(10);
+        while (outcomes() < 2 && Instant.now().isBefore(deadline)) Thread.onSpinWait();
+
+        assertEquals(2, outcomes());
+        verify(mongoTemplate, times(1)).save(rejected, DeliveryService.DEAD_LETTER_COLLECTION);
+        verify(mongoTemplate, never()).save(unavailable, DeliveryService.DEAD_LETTER_COLLECTION);
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(1)).updateFirst(any(Query.class), update.capture(), eq(FederatedActivity.class));
+        var set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(1, set.get("attempts"));
+        var next = (Instant) set.get("nextAttemptAt");
+        assertTrue(next.isAfter(
+                Instant.now().plus(DeliveryService.BASE_BACKOFF.dividedBy(2)).minus(Duration.ofSeconds(5))));
+        assertFalse(DeliveryService.isPermanentFailure(
+                WebClientResponseException.create(HttpStatus.TOO_MANY_REQUESTS.value(), "Slow down", null, null,
+                                                  null)));
+    }
+
+    private long outcomes() {
+        return registry.find("moth.delivery.duration").timers().stream().mapToLong(t -> t.count()).sum();
+    }
+}
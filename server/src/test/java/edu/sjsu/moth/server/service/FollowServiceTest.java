@@ -0,0 +1,69 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.Follow;
+import edu.sjsu.moth.server.db.FollowRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FollowServiceTest {
+    private final FollowService followService = new FollowService();
+    private FollowRepository followRepository;
+    private CounterService counterService;
+    private Account alice;
+
+    @BeforeEach
+    public void setup() {
+        followRepository = Mockito.mock(FollowRepository.class);
+        counterService = Mockito.mock(CounterService.class);
+        when(counterService.incrementAccount(anyString(), anyString(), anyInt())).thenReturn(Mono.just(1));
+        ReflectionTestUtils.setField(followService, "followRepository", followRepository);
+        ReflectionTestUtils.setField(followService, "counterService", counterService);
+        ReflectionTestUtils.setField(followService, "followSetCache", Mockito.mock(FollowSetCache.class));
+        alice = new Account();
+        alice.id = "1";
+    }
+
+    @Test
+    public void newFollowIsCounted() {
+        when(followRepository.insert(any(Follow.class))).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+
+        StepVerifier.create(followService.saveIncomingRemoteFollow("bob@remote.example", alice))
+                .expectNext("done").verifyComplete();
+
+        verify(counterService).incrementAccount("1", CounterService.FOLLOWERS, 1);
+    }
+
+    @Test
+    public void repeatedFollowIsNotCountedAgain() {
+        when(followRepository.insert(any(Follow.class))).thenReturn(Mono.error(new DuplicateKeyException("dup")));
+
+        StepVerifier.create(followService.saveIncomingRemoteFollow("bob@remote.example", alice))
+                .expectNext("done").verifyComplete();
+
+        verify(counterService, never()).incrementAccount(anyString(), anyString(), anyInt());
+    }
+
+    @Test
+    public void removingAMissingFollowIsNotCounted() {
+        when(followRepository.deleteIfFollows("bob@remote.example", "1")).thenReturn(Mono.just(0L));
+
+        StepVerifier.create(followService.removeIncomingRemoteFollow("bob@remote.example", alice))
+                .verifyError(ResponseStatusException.class);
+
+        verify(counterService, never()).incrementAccount(anyString(), anyString(), anyInt());
+    }
+}
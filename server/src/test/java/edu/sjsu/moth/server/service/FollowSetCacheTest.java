@@ -0,0 +1,77 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.server.db.Follow;
+import edu.sjsu.moth.server.db.FollowRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import reactor.core.publisher.Flux;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FollowSetCacheTest {
+
+    private FollowRepository followRepository;
+    private SimpleMeterRegistry registry;
+    private FollowSetCache cache;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        followRepository = Mockito.mock(FollowRepository.class);
+        when(followRepository.findAllByFollowerId("alice")).thenReturn(
+                Flux.just(new Follow("alice", "bob"), new Follow("alice", "carol")));
+        registry = new SimpleMeterRegistry();
+        ObjectProvider<MeterRegistry> provider = Mockito.mock(ObjectProvider.class);
+        doAnswer(invocation -> {
+            ((Consumer<MeterRegistry>) invocation.getArgument(0)).accept(registry);
+            return null;
+        }).when(provider).ifAvailable(any());
+        cache = new FollowSetCache(followRepository, provider);
+    }
+
+    @Test
+    public void loadsOnceAndCountsHitsAndMisses() {
+        assertEquals(Set.of("bob", "carol"), cache.getFollowedIds("alice").block());
+        assertTrue(cache.follows("alice", "bob").block());
+        assertFalse(cache.follows("alice", "dave").block());
+
+        verify(followRepository, times(1)).findAllByFollowerId("alice");
+        assertEquals(1, registry.get("cache.gets").tag("cache", "follow_set").tag("result", "miss")
+                .functionCounter().count());
+        assertEquals(2, registry.get("cache.gets").tag("cache", "follow_set").tag("result", "hit")
+                .functionCounter().count());
+    }
+
+    @Test
+    public void writesUpdateCachedSetsWithoutReloading() {
+        cache.getFollowedIds("alice").block();
+
+        cache.followAdded("alice", "dave");
+        cache.followRemoved("alice", "bob");
+
+        assertEquals(Set.of("carol", "dave"), cache.getFollowedIds("alice").block());
+        verify(followRepository, times(1)).findAllByFollowerId("alice");
+    }
+
+    @Test
+    public void writesForUncachedFollowersAreIgnored() {
+        cache.followAdded("zed", "bob");
+        when(followRepository.findAllByFollowerId("zed")).thenReturn(Flux.empty());
+
+        assertEquals(Set.of(), cache.getFollowedIds("zed").block());
+    }
+}
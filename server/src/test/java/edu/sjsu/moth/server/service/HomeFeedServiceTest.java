@@ -0,0 +1,274 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.ExternalStatusRepository;
+import edu.sjsu.moth.server.db.Follow;
+import edu.sjsu.moth.server.db.FollowRepository;
+import edu.sjsu.moth.server.db.HomeFeedEntry;
+import edu.sjsu.moth.server.db.HomeFeedRepository;
+import edu.sjsu.moth.server.db.StatusRepository;
+import edu.sjsu.moth.server.util.Util;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HomeFeedServiceTest {
+    private final List<HomeFeedEntry> feed = new ArrayList<>();
+    private ReactiveMongoTemplate mongoTemplate;
+    private HomeFeedRepository homeFeedRepository;
+    private FollowRepository followRepository;
+    private AccountRepository accountRepository;
+    private StreamingService streamingService;
+    private HomeFeedService homeFeedService;
+
+    private static Status status(String id, String createdAt) {
+        var status = new Status();
+        status.id = id;
+        status.createdAt = createdAt;
+        return status;
+    }
+
+    private static Account account(String id, String acct) {
+        var account = new Account();
+        account.id = id;
+        account.acct = acct;
+        return account;
+    }
+
+    // the position conditions of a home_feed query, wherever the criteria put them
+    private static LongPredicate positionFilter(Document filter) {
+        LongPredicate predicate = position -> true;
+        var conditions = new ArrayList<Document>();
+        if (filter.get("position") instanceof Document position) conditions.add(position);
+        if (filter.get("$and") instanceof List<?> and) {
+            for (var clause : and) {
+                if (((Document) clause).get("position") instanceof Document position) conditions.add(position);
+            }
+        }
+        for (var condition : conditions) {
+            if (condition.get("$lt") instanceof Long lt) predicate = predicate.and(position -> position < lt);
+            if (condition.get("$gt") instanceof Long gt) predicate = predicate.and(position -> position > gt);
+        }
+        return predicate;
+    }
+
+    // runs a query against the in-memory feed the way mongo would
+    private List<HomeFeedEntry> select(Query query) {
+        var filter = query.getQueryObject();
+        var positions = positionFilter(filter);
+        var sort = query.getSortObject().getInteger("position", -1);
+        Comparator<HomeFeedEntry> order = Comparator.comparingLong(e -> e.position);
+        return feed.stream().filter(e -> e.ownerId.equals(filter.get("ownerId")))
+                .filter(e -> positions.test(e.position)).sorted(sort > 0 ? order : order.reversed())
+                .skip(query.getSkip()).limit(query.getLimit() > 0 ? query.getLimit() : Long.MAX_VALUE).toList();
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        homeFeedRepository = Mockito.mock(HomeFeedRepository.class);
+        followRepository = Mockito.mock(FollowRepository.class);
+        accountRepository = Mockito.mock(AccountRepository.class);
+        var statusRepository = Mockito.mock(StatusRepository.class);
+        var externalStatusRepository = Mockito.mock(ExternalStatusRepository.class);
+        streamingService = Mockito.mock(StreamingService.class);
+        when(mongoTemplate.find(any(Query.class), eq(HomeFeedEntry.class))).thenAnswer(
+                invocation -> Flux.fromIterable(select(invocation.getArgument(0))));
+        when(mongoTemplate.findOne(any(Query.class), eq(HomeFeedEntry.class))).thenAnswer(
+                invocation -> Mono.justOrEmpty(select(invocation.getArgument(0)).stream().findFirst()));
+        when(mongoTemplate.remove(any(Query.class), eq(HomeFeedEntry.class))).thenAnswer(invocation -> {
+            Query query = invocation.getArgument(0);
+            var positions = positionFilter(query.getQueryObject());
+            feed.removeIf(e -> e.ownerId.equals(query.getQueryObject().get("ownerId")) && positions.test(e.position));
+            return Mono.empty();
+        });
+        when(homeFeedRepository.findById(anyString())).thenAnswer(invocation -> Mono.justOrEmpty(
+                feed.stream().filter(e -> e.id.equals(invocation.getArgument(0))).findFirst()));
+        // every status that is in a feed still exists
+        when(statusRepository.findAllById(any(Iterable.class))).thenAnswer(invocation -> Flux.fromIterable(
+                (Iterable<String>) invocation.getArgument(0)).map(id -> status(id, null)));
+        when(externalStatusRepository.findAllById(any(Iterable.class))).thenReturn(Flux.empty());
+        homeFeedService = new HomeFeedService(mongoTemplate, homeFeedRepository, followRepository, accountRepository,
+                                              statusRepository, externalStatusRepository, streamingService);
+    }
+
+    @AfterEach
+    public void teardown() {
+        homeFeedService.close();
+    }
+
+    private void addToFeed(String ownerId, long... positions) {
+        for (long position : positions) {
+            feed.add(new HomeFeedEntry(ownerId, Long.toString(position), position, "alice", false));
+        }
+    }
+
+    private List<String> read(String max_id, String since_id, String min_id, int limit) {
+        return homeFeedService.getHomeFeed("1", max_id, since_id, min_id, limit).block().stream()
+                .map(s -> s.id).toList();
+    }
+
+    @Test
+    public void positionOfLocalStatusIsItsId() {
+        assertEquals(123456789L, HomeFeedService.positionOf(status("123456789", "2024-01-01T00:00:00Z")));
+    }
+
+    @Test
+    public void positionOfRemoteStatusInterleavesWithLocalIds() {
+        var now = Instant.now();
+        var earlier = HomeFeedService.positionOf(
+                status("https://remote.example/statuses/1", now.minus(1, ChronoUnit.MINUTES).toString()));
+        var local = Util.generateUniqueId();
+        var later = HomeFeedService.positionOf(
+                status("https://remote.example/statuses/2", now.plus(1, ChronoUnit.MINUTES).toString()));
+        assertTrue(earlier < local);
+        assertTrue(local < later);
+    }
+
+    @Test
+    public void positionOfUnparseableStatusIsZero() {
+        assertEquals(0, HomeFeedService.positionOf(status("65f0c0ffee", "not a date")));
+    }
+
+    @Test
+    public void directStatusesStayOutOfHomeFeeds() {
+        assertTrue(HomeFeedService.isHomeFeedVisible("public"));
+        assertTrue(HomeFeedService.isHomeFeedVisible("unlisted"));
+        assertTrue(HomeFeedService.isHomeFeedVisible("private"));
+        assertTrue(HomeFeedService.isHomeFeedVisible(null));
+        assertFalse(HomeFeedService.isHomeFeedVisible("direct"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void fanOutReachesTheAuthorAndLocalFollowers() {
+        var alice = account("1", "alice");
+        when(accountRepository.findItemByAcct("alice")).thenReturn(Mono.just(alice));
+        when(followRepository.findAllByFollowedId("1")).thenReturn(
+                Flux.just(new Follow("2", "1"), new Follow("bob@remote.example", "1")));
+        var bulk = Mockito.mock(ReactiveBulkOperations.class);
+        when(bulk.upsert(any(Query.class), any(UpdateDefinition.class))).thenReturn(bulk);
+        when(bulk.execute()).thenReturn(Mono.empty());
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HomeFeedEntry.class)).thenReturn(bulk);
+        when(streamingService.publishStatus(any(), any())).thenReturn(Mono.empty());
+        var status = status("100", "2024-01-01T00:00:00Z");
+        status.account = alice;
+        status.visibility = "public";
+
+        homeFeedService.fanOut(status).block();
+
+        var upserts = ArgumentCaptor.forClass(Query.class);
+        verify(bulk, Mockito.times(2)).upsert(upserts.capture(), any(UpdateDefinition.class));
+        assertEquals(Set.of("1:100", "2:100"),
+                     Set.copyOf(upserts.getAllValues().stream().map(q -> q.getQueryObject().get("_id")).toList()));
+        var owners = ArgumentCaptor.forClass(Collection.class);
+        verify(streamingService).publishStatus(eq(status), owners.capture());
+        assertEquals(Set.of("1", "2"), Set.copyOf(owners.getValue()));
+    }
+
+    @Test
+    public void directStatusIsNotFannedOut() {
+        var status = status("100", "2024-01-01T00:00:00Z");
+        status.account = account("1", "alice");
+        status.visibility = "direct";
+
+        homeFeedService.fanOut(status).block();
+
+        verify(mongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(HomeFeedEntry.class));
+    }
+
+    @Test
+    public void homeFeedPagesWithCursors() {
+        addToFeed("1", 10, 20, 30, 40, 50);
+        addToFeed("2", 60);
+
+        assertEquals(List.of("50", "40"), read(null, null, null, 2));
+        // max_id pages back from a status id
+        assertEquals(List.of("30", "20"), read("40", null, null, 2));
+        // since_id gives the newest page above it, min_id the page right after it, both newest first
+        assertEquals(List.of("50", "40"), read(null, "10", null, 2));
+        assertEquals(List.of("30", "20"), read(null, null, "10", 2));
+        assertEquals(List.of("40", "30"), read("50", "20", null, 5));
+    }
+
+    @Test
+    public void removeAuthorDropsOnlyThatAuthorFromTheOwnersFeed() {
+        when(homeFeedRepository.deleteAllByOwnerIdAndAuthorAcct("2", "alice")).thenReturn(Mono.just(3L));
+
+        homeFeedService.removeAuthor("2", account("1", "alice")).block();
+        homeFeedService.removeAuthor("2", new Account()).block();
+
+        verify(homeFeedRepository).deleteAllByOwnerIdAndAuthorAcct("2", "alice");
+        verify(homeFeedRepository, Mockito.times(1)).deleteAllByOwnerIdAndAuthorAcct(anyString(), any());
+    }
+
+    @Test
+    public void trimKeepsTheNewestEntries() {
+        for (int i = 1; i <= HomeFeedService.MAX_ENTRIES + 5; i++) addToFeed("1", i);
+        addToFeed("2", 1);
+
+        homeFeedService.trim("1").block();
+
+        var kept = feed.stream().filter(e -> e.ownerId.equals("1")).mapToLong(e -> e.position).sorted().toArray();
+        assertEquals(HomeFeedService.MAX_ENTRIES, kept.length);
+        assertEquals(6, kept[0]);
+        assertEquals(1, feed.stream().filter(e -> e.ownerId.equals("2")).count());
+    }
+
+    @Test
+    public void onlyFeedsThatWereWrittenToAreTrimmed() {
+        for (int i = 1; i <= HomeFeedService.MAX_ENTRIES + 5; i++) addToFeed("1", i);
+        for (int i = 1; i <= HomeFeedService.MAX_ENTRIES + 5; i++) addToFeed("2", i);
+        var alice = account("1", "alice");
+        when(accountRepository.findItemByAcct("alice")).thenReturn(Mono.just(alice));
+        when(followRepository.findAllByFollowedId("1")).thenReturn(Flux.empty());
+        var bulk = Mockito.mock(ReactiveBulkOperations.class);
+        when(bulk.upsert(any(Query.class), any(UpdateDefinition.class))).thenReturn(bulk);
+        when(bulk.execute()).thenReturn(Mono.empty());
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HomeFeedEntry.class)).thenReturn(bulk);
+        var status = status("100", "2024-01-01T00:00:00Z");
+        status.account = alice;
+        status.visibility = "public";
+        homeFeedService.fanOut(List.of(status)).block();
+
+        homeFeedService.trimWritten().block();
+        // nothing was written since
+        homeFeedService.trimWritten().block();
+
+        assertEquals(HomeFeedService.MAX_ENTRIES, feed.stream().filter(e -> e.ownerId.equals("1")).count());
+        assertEquals(HomeFeedService.MAX_ENTRIES + 5, feed.stream().filter(e -> e.ownerId.equals("2")).count());
+        verify(mongoTemplate, Mockito.times(1)).findOne(any(Query.class), eq(HomeFeedEntry.class));
+    }
+}
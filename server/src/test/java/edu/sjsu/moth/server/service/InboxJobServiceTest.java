@@ -0,0 +1,208 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.result.UpdateResult;
+import edu.sjsu.moth.server.db.InboxJob;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InboxJobServiceTest {
+
+    private static final String SIGNER = "https://remote.example/users/bob#main-key";
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<InboxJob> due = new ArrayList<>();
+    private final Set<String> inserted = ConcurrentHashMap.newKeySet();
+    private ReactiveMongoTemplate mongoTemplate;
+    private InboxService inboxService;
+    private AccountService accountService;
+    private ActorRefreshService actorRefreshService;
+    private SimpleMeterRegistry registry;
+    private InboxJobService inboxJobService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        inboxService = Mockito.mock(InboxService.class);
+        accountService = Mockito.mock(AccountService.class);
+        actorRefreshService = Mockito.mock(ActorRefreshService.class);
+        when(actorRefreshService.markActive(any())).thenReturn(Mono.empty());
+        when(mongoTemplate.count(any(Query.class), eq(InboxJob.class))).thenReturn(Mono.just(0L));
+        // hand out the first due job whose type is not excluded, like the real findAndModify would
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                                         eq(InboxJob.class))).thenAnswer(invocation -> {
+            Document type = invocation.getArgument(0, Query.class).getQueryObject().get("type", Document.class);
+            Collection<String> busy = type == null ? List.of() : (Collection<String>) type.get("$nin");
+            synchronized (due) {
+                var job = due.stream().filter(j -> !busy.contains(j.type)).findFirst();
+                job.ifPresent(due::remove);
+                return Mono.justOrEmpty(job);
+            }
+        });
+        // the activity id is the _id, so inserting it again fails
+        when(mongoTemplate.insert(any(InboxJob.class))).thenAnswer(invocation -> {
+            InboxJob job = invocation.getArgument(0);
+            return inserted.add(job.id) ? Mono.just(job) : Mono.error(new DuplicateKeyException(job.id));
+        });
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(InboxJob.class))).thenReturn(
+                Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        registry = new SimpleMeterRegistry();
+        ObjectProvider<MeterRegistry> provider = Mockito.mock(ObjectProvider.class);
+        when(provider.getIfAvailable(any())).thenReturn(registry);
+        // polling is driven by the tests
+        inboxJobService = new InboxJobService(mongoTemplate, inboxService, accountService, actorRefreshService,
+                                              objectMapper, provider, Long.MAX_VALUE / 2);
+    }
+
+    @AfterEach
+    public void teardown() {
+        inboxJobService.close();
+    }
+
+    private JsonNode activity(String id, String type) throws Exception {
+        return objectMapper.readTree("{\"id\":\"%s\",\"type\":\"%s\",\"actor\":\"https://remote.example/users/bob\"}"
+                                             .formatted(id, type));
+    }
+
+    private InboxJob job(String id, String type, String target) throws Exception {
+        var job = new InboxJob(id, type, target, activity(id, type).toString(), Instant.now());
+        synchronized (due) {
+            due.add(job);
+        }
+        return job;
+    }
+
+    private long outcomes() {
+        return registry.find("moth.inbox.duration").timers().stream().mapToLong(t -> t.count()).sum();
+    }
+
+    @Test
+    public void redeliveredActivitiesAreQueuedOnce() throws Exception {
+        var follow = activity("https://remote.example/follows/1", "Follow");
+
+        inboxJobService.enqueue("alice", follow, SIGNER).block();
+        inboxJobService.enqueue("alice", follow, SIGNER).block();
+        // nothing we would do anything with
+        inboxJobService.enqueue(null, activity("https://remote.example/users/bob#delete", "Delete"), SIGNER).block();
+
+        var queued = ArgumentCaptor.forClass(InboxJob.class);
+        verify(mongoTemplate, times(2)).insert(queued.capture());
+        assertEquals("https://remote.example/follows/1", queued.getValue().id);
+        assertEquals("alice", queued.getValue().target);
+        assertEquals(follow, objectMapper.readTree(queued.getValue().payload));
+        assertEquals(SIGNER, queued.getValue().signer);
+    }
+
+    @Test
+    public void activityIdsOfAnotherServerCannotBeClaimed() throws Exception {
+        var follow = activity("https://remote.example/follows/1", "Follow");
+
+        // signed by a different server, so it must not keep the real activity out
+        inboxJobService.enqueue("alice", follow, "https://evil.example/users/mallory#main-key").block();
+        inboxJobService.enqueue("alice", follow, SIGNER).block();
+
+        assertEquals(Set.of("evil.example https://remote.example/follows/1", "https://remote.example/follows/1"),
+                     inserted);
+    }
+
+    @Test
+    public void undoWaitsForTheFollowItUndoes() throws Exception {
+        var undo = objectMapper.readTree("{\"id\":\"https://remote.example/follows/1/undo\",\"type\":\"Undo\"," +
+                                                 "\"object\":{\"id\":\"https://remote.example/follows/1\"}}");
+        var job = new InboxJob("https://remote.example/follows/1/undo", "Undo", "alice", undo.toString(),
+                               Instant.now());
+        job.signer = SIGNER;
+        synchronized (due) {
+            due.add(job);
+        }
+        // the follow is still queued
+        when(mongoTemplate.exists(any(Query.class), eq(InboxJob.class))).thenReturn(Mono.just(true));
+
+        inboxJobService.pump();
+        var deadline = Instant.now().plusSeconds(10);
+        while (outcomes() < 1 && Instant.now().isBefore(deadline)) Thread.onSpinWait();
+
+        var pending = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).exists(pending.capture(), eq(InboxJob.class));
+        assertEquals("https://remote.example/follows/1", pending.getValue().getQueryObject().get("_id"));
+        verify(accountService, never()).followerHandler(anyString(), any(), anyBoolean());
+        assertEquals(1, registry.get("moth.inbox.duration").tag("outcome", "deferred").timer().count());
+        // a deferral is not an attempt
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(InboxJob.class));
+        var set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertTrue(set.get("nextAttemptAt") != null && set.get("attempts") == null);
+    }
+
+    @Test
+    public void busyTypeDoesNotBlockOtherTypes() throws Exception {
+        for (int i = 0; i < 20; i++) job("create" + i, "Create", null);
+        job("follow", "Follow", "alice");
+        when(inboxService.createHandler(any())).thenReturn(Mono.never());
+        when(accountService.followerHandler(anyString(), any(), anyBoolean())).thenReturn(Mono.never());
+
+        inboxJobService.pump();
+
+        verify(inboxService, times(InboxJobService.maxInFlight("Create"))).createHandler(any());
+        verify(accountService).followerHandler(eq("alice"), any(), eq(false));
+        assertEquals(InboxJobService.maxInFlight("Create") + 1,
+                     registry.get("moth.inbox.in_flight").gauge().value());
+        verify(actorRefreshService, times(InboxJobService.maxInFlight("Create") + 1)).markActive(
+                "https://remote.example/users/bob");
+    }
+
+    @Test
+    public void failedJobsAreRetriedThenMarkedFailed() throws Exception {
+        job("accept", "Accept", "alice").attempts = InboxJobService.MAX_ATTEMPTS - 1;
+        job("undo", "Undo", "alice");
+        when(accountService.acceptHandler(anyString(), any())).thenReturn(Mono.error(new RuntimeException("down")));
+        when(accountService.followerHandler(anyString(), any(), anyBoolean())).thenReturn(
+                Mono.error(new RuntimeException("down")));
+
+        inboxJobService.pump();
+        // a finished job pumps again on the service's thread, which may pick up the second job
+        var deadline = Instant.now().plusSeconds(10);
+        while (outcomes() < 2 && Instant.now().isBefore(deadline)) Thread.onSpinWait();
+
+        assertEquals(1, registry.get("moth.inbox.duration").tag("outcome", "failed").timer().count());
+        assertEquals(1, registry.get("moth.inbox.duration").tag("outcome", "retry").timer().count());
+        var updates = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).updateFirst(any(Query.class), updates.capture(), eq(InboxJob.class));
+        var sets = updates.getAllValues().stream().map(u -> u.getUpdateObject().get("$set", Document.class)).toList();
+        assertTrue(sets.stream().anyMatch(s -> Boolean.TRUE.equals(s.get("failed")) && s.get("completedAt") != null));
+        assertTrue(sets.stream().anyMatch(s -> s.get("failed") == null && s.get("nextAttemptAt") != null));
+        verify(inboxService, never()).createHandler(any());
+    }
+}
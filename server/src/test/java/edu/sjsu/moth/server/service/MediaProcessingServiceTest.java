@@ -0,0 +1,171 @@
+package edu.sjsu.moth.server.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import edu.sjsu.moth.generated.MediaAttachment;
+import edu.sjsu.moth.server.db.MediaBlob;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MediaProcessingServiceTest {
+    private static final String URL = "https://moth.example/media/attachments/uploads/1";
+    private static final String PREVIEW_URL = URL + "/preview";
+    private final AtomicReference<byte[]> preview = new AtomicReference<>();
+    private MediaService mediaService;
+    private MediaProcessingService mediaProcessingService;
+
+    private static byte[] png(int width, int height) throws IOException {
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var graphics = image.createGraphics();
+        graphics.setColor(Color.ORANGE);
+        graphics.fillRect(0, 0, width / 2, height);
+        graphics.dispose();
+        var bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    private static MediaAttachment uploaded() {
+        var meta = new HashMap<String, Object>();
+        meta.put("original", Map.of("width", 2000, "height", 1000));
+        return new MediaAttachment("1", "image", null, null, null, null, meta, "", null);
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mediaService = Mockito.mock(MediaService.class);
+        when(mediaService.storeMedia(any(), eq("/media/attachments/uploads/1/preview"), any(), anyLong())).thenAnswer(
+                invocation -> DataBufferUtils.join((Publisher<DataBuffer>) invocation.getArgument(2)).map(buffer -> {
+                    var bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    preview.set(bytes);
+                    return new MediaService.StoredMedia(new ObjectId(), bytes.length, "preview", bytes);
+                }));
+        when(mediaService.updateUpload(any())).thenReturn(Mono.empty());
+        when(mediaService.findBlob(any())).thenReturn(Mono.empty());
+        when(mediaService.readMedia(any(), any(), any())).thenCallRealMethod();
+        mediaProcessingService = new MediaProcessingService(mediaService);
+    }
+
+    @AfterEach
+    public void teardown() {
+        mediaProcessingService.close();
+    }
+
+    private void stored(byte[] content) {
+        when(mediaService.getMongoFileInputStreamResource("/media/attachments/uploads/1")).thenReturn(
+                Mono.just(new MediaService.GridFSStream(Mockito.mock(GridFSFile.class), Flux.just(
+                        DefaultDataBufferFactory.sharedInstance.wrap(content)))));
+    }
+
+    @Test
+    public void previewAndBlurhashAreMadeBeforeTheUrlIsPublished() throws IOException {
+        stored(png(2000, 1000));
+
+        var finished = mediaProcessingService.process(uploaded(), "/media/attachments/uploads/1", URL,
+                                                      "/media/attachments/uploads/1/preview", PREVIEW_URL).block();
+
+        assertNotNull(finished);
+        assertEquals(URL, finished.url);
+        assertEquals(PREVIEW_URL, finished.previewUrl);
+        assertEquals(28, finished.blurhash.length());
+        assertEquals(Map.of("width", 640, "height", 320, "size", "640x320", "aspect", 2.0f),
+                     finished.meta.get("small"));
+        var image = ImageIO.read(new ByteArrayInputStream(preview.get()));
+        assertEquals(640, image.getWidth());
+        verify(mediaService).updateUpload(finished);
+    }
+
+    @Test
+    public void clientPreviewIsKept() throws IOException {
+        stored(png(300, 200));
+        var uploaded = uploaded();
+        uploaded.previewUrl = PREVIEW_URL;
+
+        var finished = mediaProcessingService.process(uploaded, "/media/attachments/uploads/1", URL, null,
+                                                      PREVIEW_URL).block();
+
+        assertEquals(URL, finished.url);
+        assertEquals(PREVIEW_URL, finished.previewUrl);
+        assertNotNull(finished.blurhash);
+        verify(mediaService, never()).storeMedia(any(), any(), any(), anyLong());
+    }
+
+    @Test
+    public void unreadableImageIsStillPublished() {
+        stored(new byte[] { 1, 2, 3 });
+
+        var finished = mediaProcessingService.process(uploaded(), "/media/attachments/uploads/1", URL,
+                                                      "/media/attachments/uploads/1/preview", PREVIEW_URL).block();
+
+        assertEquals(URL, finished.url);
+        assertEquals(URL, finished.previewUrl);
+        assertNull(finished.blurhash);
+        verify(mediaService).updateUpload(finished);
+    }
+
+    @Test
+    public void renditionsAreRecordedOnTheBlob() throws IOException {
+        stored(png(2000, 1000));
+        when(mediaService.findBlob("/media/attachments/uploads/1")).thenReturn(
+                Mono.just(new MediaBlob("original", new ObjectId(), 1)));
+        when(mediaService.saveRenditions(any(), any(), any(), any())).thenReturn(Mono.empty());
+
+        var finished = mediaProcessingService.process(uploaded(), "/media/attachments/uploads/1", URL,
+                                                      "/media/attachments/uploads/1/preview", PREVIEW_URL).block();
+
+        verify(mediaService).saveRenditions("original", "preview", Map.of("width", 640, "height", 320, "size", "640x320",
+                                                                             "aspect", 2.0f), finished.blurhash);
+    }
+
+    @Test
+    public void reuploadReusesTheRenditions() {
+        var blob = new MediaBlob("original", new ObjectId(), 2);
+        blob.previewId = "preview";
+        blob.small = Map.of("width", 640, "height", 320, "size", "640x320", "aspect", 2.0f);
+        blob.blurhash = "LJQ]+wj[~qfQ-;fQj[fQ%Mj[ayfQ";
+        when(mediaService.findBlob("/media/attachments/uploads/1")).thenReturn(Mono.just(blob));
+        when(mediaService.aliasMedia("/media/attachments/uploads/1/preview", "preview")).thenReturn(
+                Mono.just(new MediaBlob("preview", new ObjectId(), 2)));
+
+        var finished = mediaProcessingService.process(uploaded(), "/media/attachments/uploads/1", URL,
+                                                      "/media/attachments/uploads/1/preview", PREVIEW_URL).block();
+
+        assertEquals(URL, finished.url);
+        assertEquals(PREVIEW_URL, finished.previewUrl);
+        assertEquals(blob.blurhash, finished.blurhash);
+        assertEquals(blob.small, finished.meta.get("small"));
+        verify(mediaService, never()).getMongoFileInputStreamResource(any());
+        verify(mediaService, never()).storeMedia(any(), any(), any(), anyLong());
+        verify(mediaService).updateUpload(finished);
+    }
+}
@@ -0,0 +1,335 @@
+package edu.sjsu.moth.server.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import edu.sjsu.moth.generated.MediaAttachment;
+import edu.sjsu.moth.server.db.MediaAlias;
+import edu.sjsu.moth.server.db.MediaBlob;
+import edu.sjsu.moth.server.db.UploadedMedia;
+import org.bson.BsonObjectId;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MediaServiceTest {
+    private static final ObjectId ID = new ObjectId();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private MediaService mediaService;
+
+    private static Flux<DataBuffer> chunks(byte[] content, int chunkSize) {
+        return Flux.range(0, (content.length + chunkSize - 1) / chunkSize).map(
+                i -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        Arrays.copyOfRange(content, i * chunkSize, Math.min(content.length, (i + 1) * chunkSize))));
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mediaService = new MediaService();
+        mediaService.mongoStorage = Mockito.mock(ReactiveGridFsTemplate.class);
+        mediaService.mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        // gridfs consumes the upload one buffer at a time
+        when(mediaService.mongoStorage.store(any(Publisher.class), anyString(), anyString())).thenAnswer(
+                invocation -> Flux.from((Publisher<DataBuffer>) invocation.getArgument(0)).doOnNext(buffer -> {
+                    storedBytes.addAndGet(buffer.readableByteCount());
+                    DataBufferUtils.release(buffer);
+                }).then(Mono.just(ID)));
+        when(mediaService.mongoTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), anyString()))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(mediaService.mongoTemplate.insert(any(MediaBlob.class))).thenAnswer(
+                invocation -> Mono.just(invocation.getArgument(0)));
+        when(mediaService.mongoTemplate.save(any(MediaAlias.class))).thenAnswer(
+                invocation -> Mono.just(invocation.getArgument(0)));
+        when(mediaService.mongoTemplate.findAllAndRemove(any(Query.class), eq(MediaAlias.class))).thenReturn(
+                Flux.empty());
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(MediaBlob.class))).thenReturn(Flux.empty());
+    }
+
+    @Test
+    public void uploadIsDigestedWhileItStreams() throws Exception {
+        var content = new byte[MediaService.HEAD_BYTES * 3 + 17];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        var sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+
+        var stored = mediaService.storeMedia("image/png", "/media/1", chunks(content, 8192), content.length).block();
+
+        assertEquals(ID, stored.id());
+        assertEquals(content.length, stored.length());
+        assertEquals(content.length, storedBytes.get());
+        assertEquals(sha256, stored.sha256());
+        assertArrayEquals(Arrays.copyOf(content, MediaService.HEAD_BYTES), stored.head());
+        var update = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(mediaService.mongoTemplate).updateFirst(any(Query.class), update.capture(), eq("fs.files"));
+        assertEquals(sha256, update.getValue().getUpdateObject().get("$set", org.bson.Document.class)
+                .get("metadata.sha256"));
+    }
+
+    @Test
+    public void uploadFailsAsSoonAsItIsTooLarge() {
+        var pulledRest = new AtomicBoolean();
+        var content = Flux.concat(chunks(new byte[6000], 2000), Flux.defer(() -> {
+            pulledRest.set(true);
+            return chunks(new byte[2000], 2000);
+        }));
+
+        StepVerifier.create(mediaService.storeMedia("image/png", "/media/1", content, 5000))
+                .expectErrorMatches(e -> e instanceof ResponseStatusException rse &&
+                        rse.getStatusCode() == HttpStatus.PAYLOAD_TOO_LARGE).verify();
+        assertFalse(pulledRest.get());
+        assertEquals(4000, storedBytes.get());
+    }
+
+    @Test
+    public void rangeOnlyReadsTheChunksItOverlaps() {
+        // 3 chunks of 10 bytes
+        var id = new ObjectId();
+        var file = new GridFSFile(new BsonObjectId(id), "/media/1", 30, 10, new Date(), new org.bson.Document());
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(org.bson.Document.class), eq("fs.chunks")))
+                .thenReturn(Flux.range(1, 2).map(n -> {
+                    var data = new byte[10];
+                    for (int i = 0; i < 10; i++) data[i] = (byte) (n * 10 + i);
+                    return new org.bson.Document("files_id", id).append("n", n).append("data", new Binary(data));
+                }));
+
+        var bytes = DataBufferUtils.join(mediaService.readRange(file, 15, 24)).map(buffer -> {
+            var read = new byte[buffer.readableByteCount()];
+            buffer.read(read);
+            return read;
+        }).block();
+
+        assertArrayEquals(new byte[] { 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 }, bytes);
+        var query = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).find(query.capture(), eq(org.bson.Document.class), eq("fs.chunks"));
+        var n = query.getValue().getQueryObject().get("n", org.bson.Document.class);
+        assertEquals(1, n.get("$gte"));
+        assertEquals(2, n.get("$lte"));
+    }
+
+    // a JPEG whose frame header comes after more than HEAD_BYTES of application segments, like a big EXIF thumbnail
+    private static byte[] jpegWithLongHeaders() throws IOException {
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB), "jpg", out);
+        var jpeg = out.toByteArray();
+        var padded = new ByteArrayOutputStream();
+        padded.write(jpeg, 0, 2);
+        for (int i = 0; i < 3; i++) {
+            // APP2 with 30000 bytes of payload
+            padded.write(new byte[] { (byte) 0xff, (byte) 0xe2, (byte) (30002 >> 8), (byte) (30002 & 0xff) });
+            padded.write(new byte[30000]);
+        }
+        padded.write(jpeg, 2, jpeg.length - 2);
+        return padded.toByteArray();
+    }
+
+    private static int widthOf(InputStream content) throws IOException {
+        try (var input = ImageIO.createImageInputStream(content)) {
+            var reader = ImageIO.getImageReaders(input).next();
+            try {
+                reader.setInput(input, true, true);
+                return reader.getWidth(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void mediaIsStreamedIntoTheReader() throws IOException {
+        var jpeg = jpegWithLongHeaders();
+        assertThrows(IOException.class,
+                     () -> widthOf(new ByteArrayInputStream(Arrays.copyOf(jpeg, MediaService.HEAD_BYTES))));
+        var file = new GridFSFile(new BsonObjectId(new ObjectId()), "/media/1", jpeg.length, 8192, new Date(),
+                                  new org.bson.Document());
+        var resource = Mockito.mock(ReactiveGridFsResource.class);
+        when(mediaService.mongoTemplate.findById("/media/1", MediaAlias.class)).thenReturn(Mono.empty());
+        when(mediaService.mongoStorage.findOne(any(Query.class))).thenReturn(Mono.just(file));
+        when(mediaService.mongoStorage.getResource(file)).thenReturn(Mono.just(resource));
+        when(resource.getDownloadStream(8192)).thenReturn(chunks(jpeg, 8192));
+
+        assertEquals(40, mediaService.readMedia("/media/1", MediaServiceTest::widthOf).block());
+    }
+
+    private static UploadedMedia upload(String id) {
+        return new UploadedMedia(id, "alice", Instant.now(), new MediaAttachment(id, "image", null, null, null, null,
+                                                                                  Map.of(), "", null),
+                                 List.of("/media/attachments/uploads/" + id));
+    }
+
+    @Test
+    public void uploadsMissingFromTheCacheAreLookedUpTogether() {
+        when(mediaService.mongoTemplate.insert(any(UploadedMedia.class))).thenAnswer(
+                invocation -> Mono.just(invocation.getArgument(0)));
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(UploadedMedia.class))).thenReturn(
+                Flux.just(upload("2"), upload("3")));
+        mediaService.saveUpload("alice", upload("1").attachment, List.of("/media/attachments/uploads/1")).block();
+
+        var found = mediaService.lookupUploads(List.of("1", "2", "3", "4")).block();
+
+        assertEquals(Set.of("1", "2", "3"), found.keySet());
+        var query = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).find(query.capture(), eq(UploadedMedia.class));
+        assertEquals(Set.of("2", "3", "4"), Set.copyOf(
+                (Collection<?>) query.getValue().getQueryObject().get("_id", org.bson.Document.class).get("$in")));
+        // now they are all cached
+        assertEquals("2", mediaService.lookupUpload("2").block().id);
+        verify(mediaService.mongoTemplate, never()).findById(any(), eq(UploadedMedia.class));
+    }
+
+    @Test
+    public void uploadStillProcessingIsReadAgainOnTheNextPoll() throws InterruptedException {
+        var processing = upload("1");
+        var done = upload("1");
+        done.attachment.url = "/media/attachments/uploads/1";
+        when(mediaService.mongoTemplate.findById("1", UploadedMedia.class)).thenReturn(Mono.just(processing),
+                                                                                       Mono.just(done));
+
+        assertNull(mediaService.lookupUpload("1").block().attachment.url);
+        // another node finishes the processing
+        Thread.sleep(2_500);
+        assertEquals("/media/attachments/uploads/1", mediaService.lookupUpload("1").block().attachment.url);
+        // a finished upload stays cached
+        mediaService.lookupUpload("1").block();
+        verify(mediaService.mongoTemplate, times(2)).findById("1", UploadedMedia.class);
+    }
+
+    @Test
+    public void sweptUploadsTakeTheirFilesWithThem() {
+        var fileIds = List.of(new ObjectId(), new ObjectId());
+        when(mediaService.mongoTemplate.findAllAndRemove(any(Query.class), eq(UploadedMedia.class))).thenReturn(
+                Flux.just(upload("1"), upload("2")));
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(org.bson.Document.class), eq("fs.files")))
+                .thenReturn(Flux.fromIterable(fileIds).map(id -> new org.bson.Document("_id", id)));
+        when(mediaService.mongoTemplate.remove(any(Query.class), anyString())).thenReturn(
+                Mono.just(DeleteResult.acknowledged(2)));
+
+        assertEquals(2, mediaService.sweepUploads(Instant.now(), 100).block());
+
+        var sweep = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).findAllAndRemove(sweep.capture(), eq(UploadedMedia.class));
+        assertEquals(100, sweep.getValue().getLimit());
+        var files = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).find(files.capture(), eq(org.bson.Document.class), eq("fs.files"));
+        assertEquals(Set.of("/media/attachments/uploads/1", "/media/attachments/uploads/2"), Set.copyOf(
+                (Collection<?>) files.getValue().getQueryObject().get("filename", org.bson.Document.class).get("$in")));
+        var chunks = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).remove(chunks.capture(), eq("fs.chunks"));
+        assertEquals(fileIds, chunks.getValue().getQueryObject().get("files_id", org.bson.Document.class).get("$in"));
+        verify(mediaService.mongoTemplate).remove(any(Query.class), eq("fs.files"));
+    }
+
+    @Test
+    public void secondUploadOfTheSameBytesKeepsTheFirstFile() {
+        var first = new ObjectId();
+        when(mediaService.mongoTemplate.insert(any(MediaBlob.class))).thenReturn(
+                Mono.error(new DuplicateKeyException("media_blob")));
+        when(mediaService.mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class),
+                                                      any(FindAndModifyOptions.class), eq(MediaBlob.class)))
+                .thenAnswer(invocation -> Mono.just(new MediaBlob("sha", first, 2)));
+        when(mediaService.mongoStorage.delete(any(Query.class))).thenReturn(Mono.empty());
+
+        var stored = mediaService.storeMedia("image/png", "/media/2", chunks(new byte[100], 100), 1000).block();
+
+        assertEquals(first, stored.id());
+        var deleted = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoStorage).delete(deleted.capture());
+        assertEquals(ID, deleted.getValue().getQueryObject().get("_id"));
+        var alias = ArgumentCaptor.forClass(MediaAlias.class);
+        verify(mediaService.mongoTemplate).save(alias.capture());
+        assertEquals("/media/2", alias.getValue().id);
+        assertEquals(first, alias.getValue().fileId);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void blobIsDeletedWithItsLastAlias() {
+        var shared = new ObjectId();
+        var legacy = new ObjectId();
+        when(mediaService.mongoTemplate.findAllAndRemove(any(Query.class), eq(MediaAlias.class))).thenReturn(
+                Flux.just(new MediaAlias("/media/1", "abc", shared), new MediaAlias("/media/2", "abc", shared),
+                          new MediaAlias("/media/3", "def", new ObjectId())));
+        var bulk = Mockito.mock(ReactiveBulkOperations.class);
+        when(bulk.updateOne(any(Query.class), any(UpdateDefinition.class))).thenReturn(bulk);
+        when(bulk.execute()).thenReturn(Mono.empty());
+        when(mediaService.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MediaBlob.class)).thenReturn(bulk);
+        // only abc has no references left, and no blob was stored as /media/4
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(MediaBlob.class))).thenAnswer(
+                invocation -> invocation.getArgument(0, Query.class).getQueryObject().containsKey("refs") ?
+                        Flux.just(new MediaBlob("abc", shared, 0)) : Flux.empty());
+        when(mediaService.mongoTemplate.remove(any(Query.class), eq(MediaBlob.class))).thenReturn(
+                Mono.just(DeleteResult.acknowledged(1)));
+        when(mediaService.mongoTemplate.find(any(Query.class), eq(org.bson.Document.class), eq("fs.files")))
+                .thenReturn(Flux.just(new org.bson.Document("_id", legacy)));
+        when(mediaService.mongoTemplate.remove(any(Query.class), anyString())).thenReturn(
+                Mono.just(DeleteResult.acknowledged(2)));
+
+        mediaService.deleteMedia(List.of("/media/1", "/media/2", "/media/3", "/media/4")).block();
+
+        var released = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(bulk, Mockito.times(2)).updateOne(any(Query.class), released.capture());
+        assertEquals(Set.of(-2L, -1L), released.getAllValues().stream().map(
+                update -> update.getUpdateObject().get("$inc", org.bson.Document.class).get("refs")).collect(
+                Collectors.toSet()));
+        var legacyNames = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).find(legacyNames.capture(), eq(org.bson.Document.class), eq("fs.files"));
+        assertEquals(List.of("/media/4"), List.copyOf((Collection<?>) legacyNames.getValue().getQueryObject()
+                .get("filename", org.bson.Document.class).get("$in")));
+        var chunks = ArgumentCaptor.forClass(Query.class);
+        verify(mediaService.mongoTemplate).remove(chunks.capture(), eq("fs.chunks"));
+        assertEquals(Set.of(shared, legacy), Set.copyOf((Collection<?>) chunks.getValue().getQueryObject()
+                .get("files_id", org.bson.Document.class).get("$in")));
+    }
+}
@@ -0,0 +1,94 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Actor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RemoteAccountStatsServiceTest {
+
+    private static final String ACTOR = "https://remote.example/users/bob";
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final Map<String, Integer> totals = new ConcurrentHashMap<>();
+    private Sinks.Empty<Void> release;
+    private RemoteAccountStatsService service;
+
+    @BeforeEach
+    void setUp() {
+        totals.putAll(Map.of(ACTOR + "/outbox", 12, ACTOR + "/followers", 34, ACTOR + "/following", 56));
+        release = Sinks.empty();
+        release.tryEmitEmpty();
+        var builder = WebClient.builder().exchangeFunction(request -> {
+            var url = request.url().toString();
+            requests.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+            var total = totals.get(url);
+            var response = total == null ? ClientResponse.create(HttpStatus.SERVICE_UNAVAILABLE).build() :
+                    ClientResponse.create(HttpStatus.OK)
+                            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .body("{\"totalItems\":" + total + "}").build();
+            return release.asMono().then(Mono.just(response));
+        });
+        service = new RemoteAccountStatsService(builder);
+    }
+
+    private static Actor actor() {
+        var actor = new Actor();
+        actor.id = ACTOR;
+        actor.outbox = ACTOR + "/outbox";
+        actor.followers = ACTOR + "/followers";
+        actor.following = ACTOR + "/following";
+        return actor;
+    }
+
+    private int requestCount() {
+        return requests.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    @Test
+    public void concurrentConversionsShareTheCollectionFetches() {
+        // hold the responses until every caller has asked
+        release = Sinks.empty();
+        var stats = Flux.range(0, 10).flatMap(i -> service.statsOf(actor())).collectList().toFuture();
+        release.tryEmitEmpty();
+
+        assertEquals(10, stats.join().size());
+        assertEquals(34, stats.join().get(9).followers());
+        assertEquals(3, requestCount());
+    }
+
+    @Test
+    public void countsAreCachedPerActor() {
+        var first = service.statsOf(actor()).block();
+        var second = service.statsOf(actor()).block();
+
+        assertEquals(12, second.statuses());
+        assertEquals(56, second.following());
+        assertEquals(first, second);
+        assertEquals(3, requestCount());
+    }
+
+    @Test
+    public void failedCountsAreNotCached() {
+        totals.remove(ACTOR + "/followers");
+        var stats = service.statsOf(actor()).block();
+        assertEquals(0, stats.followersOrZero());
+        assertEquals(12, stats.statusesOrZero());
+
+        totals.put(ACTOR + "/followers", 34);
+        assertEquals(34, service.statsOf(actor()).block().followers());
+        assertEquals(6, requestCount());
+    }
+}
@@ -2,6 +2,7 @@ package edu.sjsu.moth.server.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -13,6 +14,16 @@ import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class RemoteOutboxFetcherTest {
 
@@ -93,6 +104,125 @@ public class RemoteOutboxFetcherTest {
                 .verifyComplete();
     }
 
+    private static String page(String id, String next, int... items) {
+        var orderedItems = new StringBuilder();
+        for (int item : items) {
+            if (!orderedItems.isEmpty()) orderedItems.append(',');
+            orderedItems.append("""
+                                        { "id": "https://example.com/activities/%d", "type": "Create",
+                                          "object": { "type": "Note", "content": "hi" } }
+                                        """.formatted(item));
+        }
+        return """
+                { "id": "%s", "type": "OrderedCollectionPage", %s "orderedItems": [ %s ] }
+                """.formatted(id, next == null ? "" : "\"next\": \"%s\",".formatted(next), orderedItems);
+    }
+
+    private static ClientResponse streamed(Flux<String> chunks) {
+        return ClientResponse.create(HttpStatus.OK).header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body(chunks.map(chunk -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        chunk.getBytes(StandardCharsets.UTF_8)))).build();
+    }
+
+    @Test
+    public void nextPageIsFetchedWhileCurrentPageIsConsumed() {
+        var requested = new CopyOnWriteArrayList<String>();
+        WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+            var url = request.url().toString();
+            requested.add(url);
+            return Mono.just(streamed(Flux.just(switch (url) {
+                case "https://example.com/page1" -> page(url, "https://example.com/page2", 1, 2);
+                case "https://example.com/page2" -> page(url, "https://example.com/page3", 3);
+                default -> page(url, null, 4);
+            })));
+        });
+        var fetcher = new RemoteOutboxFetcher(builder, 2);
+
+        // nothing has been consumed from the first page yet
+        StepVerifier.create(fetcher.fetchCreateActivities("https://example.com/page1", null), 0)
+                .then(() -> assertEquals(List.of("https://example.com/page1", "https://example.com/page2"),
+                                         requested))
+                .thenRequest(Long.MAX_VALUE)
+                .expectNextMatches(node -> node.get("id").asText().endsWith("/1"))
+                .expectNextMatches(node -> node.get("id").asText().endsWith("/2"))
+                .expectNextMatches(node -> node.get("id").asText().endsWith("/3"))
+                .expectNextMatches(node -> node.get("id").asText().endsWith("/4"))
+                .verifyComplete();
+    }
+
+    @Test
+    public void itemsAreParsedAsThePageStreamsAndTakeCancelsTheFetch() {
+        var cancelled = new AtomicBoolean();
+        var page = page("https://example.com/page1", "https://example.com/page2", 1, 2);
+        var secondItem = page.indexOf("https://example.com/activities/2");
+        WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> Mono.just(streamed(
+                // the rest of the page never arrives
+                Flux.concat(Flux.just(page.substring(0, secondItem)), Flux.<String>never())
+                        .doOnCancel(() -> cancelled.set(true)))));
+        var fetcher = new RemoteOutboxFetcher(builder, 2);
+
+        StepVerifier.create(fetcher.fetchCreateActivities("https://example.com/page1", 1))
+                .expectNextMatches(node -> node.get("id").asText().endsWith("/1"))
+                .verifyComplete();
+        assertTrue(cancelled.get());
+    }
+
+    @Test
+    public void prefetchedPageIsOnlyReadAheadSoFar() {
+        var items = new int[2000];
+        for (int i = 0; i < items.length; i++) items[i] = i + 2;
+        var longPage = page("https://example.com/page2", null, items);
+        var chunks = new ArrayList<String>();
+        for (int i = 0; i < longPage.length(); i += 100) {
+            chunks.add(longPage.substring(i, Math.min(longPage.length(), i + 100)));
+        }
+        var sent = new AtomicInteger();
+        WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+            var url = request.url().toString();
+            return Mono.just(streamed(url.endsWith("1") ? Flux.just(page(url, "https://example.com/page2", 1)) :
+                                              Flux.fromIterable(chunks).doOnNext(chunk -> sent.incrementAndGet())));
+        });
+        var fetcher = new RemoteOutboxFetcher(builder, 2);
+
+        // the first page is not consumed, so the second one is held to the prefetch
+        StepVerifier.create(fetcher.fetchCreateActivities("https://example.com/page1", null), 0)
+                .then(() -> assertTrue(sent.get() < chunks.size() / 2))
+                .thenRequest(Long.MAX_VALUE).expectNextCount(items.length + 1).verifyComplete();
+        assertEquals(chunks.size(), sent.get());
+    }
+
+    @Test
+    public void linkBackToAnEarlierPageEndsTheWalk() {
+        WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+            var url = request.url().toString();
+            return Mono.just(streamed(Flux.just(url.endsWith("1") ? page(url, "https://example.com/page2", 1) :
+                                                        page(url, "https://example.com/page1", 2))));
+        });
+        var fetcher = new RemoteOutboxFetcher(builder, 2);
+
+        StepVerifier.create(fetcher.fetchCreateActivities("https://example.com/page1", null)).expectNextCount(2)
+                .verifyComplete();
+    }
+
+    @Test
+    public void fetchPageTreatsTheCollectionAsAPageLinkingToTheFirstPage() {
+        WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+            var url = request.url().toString();
+            return Mono.just(streamed(Flux.just(url.endsWith("outbox") ?
+                                                        """
+                                                        { "type": "OrderedCollection", "first": "%s?page=1" }
+                                                        """.formatted(url) : page(url, null, 1, 2))));
+        });
+        var fetcher = new RemoteOutboxFetcher(builder, 2);
+
+        var collection = fetcher.fetchPage("https://example.com/outbox").block();
+        assertEquals(List.of(), collection.items());
+        assertEquals("https://example.com/outbox?page=1", collection.next());
+        var page = fetcher.fetchPage(collection.next()).block();
+        assertEquals(2, page.items().size());
+        assertNull(page.next());
+    }
+
     @Test
     public void testFetchGargronOutboxAndPrint() {
         WebClient.Builder realWebClientBuilder = WebClient.builder();
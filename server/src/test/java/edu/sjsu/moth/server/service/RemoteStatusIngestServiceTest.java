@@ -7,27 +7,69 @@ import edu.sjsu.moth.generated.Actor;
 import edu.sjsu.moth.server.db.Account;
 import edu.sjsu.moth.server.db.ExternalStatus;
 import edu.sjsu.moth.server.db.ExternalStatusRepository;
+import com.mongodb.bulk.BulkWriteResult;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RemoteStatusIngestServiceTest {
 
+    private ReactiveBulkOperations bulk;
+
+    private RemoteStatusIngestService service(ExternalStatusRepository repo) {
+        ReactiveMongoTemplate mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        bulk = Mockito.mock(ReactiveBulkOperations.class);
+        when(mongoTemplate.getConverter()).thenReturn(
+                new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext()));
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(ExternalStatus.class))).thenReturn(bulk);
+        when(bulk.upsert(any(Query.class), any(UpdateDefinition.class))).thenReturn(bulk);
+        when(bulk.execute()).thenReturn(Mono.just(BulkWriteResult.unacknowledged()));
+        return new RemoteStatusIngestService(repo, mongoTemplate);
+    }
+
+    private static JsonNode create(ObjectMapper om, String id) {
+        ObjectNode note = om.createObjectNode();
+        note.put("type", "Note");
+        note.put("id", id);
+        note.put("content", "<p>" + id + "</p>");
+        ObjectNode create = om.createObjectNode();
+        create.put("type", "Create");
+        create.put("published", "2025-01-01T00:00:00Z");
+        create.set("object", note);
+        return create;
+    }
+
     @Test
     public void testIngestSingleCreateNote() throws Exception {
         ExternalStatusRepository repo = Mockito.mock(ExternalStatusRepository.class);
-        RemoteStatusIngestService svc = new RemoteStatusIngestService(repo);
+        RemoteStatusIngestService svc = service(repo);
 
         ObjectMapper om = new ObjectMapper();
         // Build a minimal Create(Note) activity
@@ -57,8 +99,7 @@ public class RemoteStatusIngestServiceTest {
             return Mono.just(acc);
         };
 
-        when(repo.findById(Mockito.anyString())).thenReturn(Mono.empty());
-        when(repo.save(any())).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(repo.findAllById(any(Iterable.class))).thenReturn(Flux.empty());
 
         List<ExternalStatus> saved = svc.ingestCreateNotes(activities, actor, provider).block();
         assertNotNull(saved);
@@ -70,7 +111,7 @@ public class RemoteStatusIngestServiceTest {
     @Test
     public void testIngestSanitizesHostileHtml() throws Exception {
         ExternalStatusRepository repo = Mockito.mock(ExternalStatusRepository.class);
-        RemoteStatusIngestService svc = new RemoteStatusIngestService(repo);
+        RemoteStatusIngestService svc = service(repo);
 
         ObjectMapper om = new ObjectMapper();
         ObjectNode note = om.createObjectNode();
@@ -95,8 +136,7 @@ public class RemoteStatusIngestServiceTest {
             return Mono.just(acc);
         };
 
-        when(repo.findById(Mockito.anyString())).thenReturn(Mono.empty());
-        when(repo.save(any())).thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+        when(repo.findAllById(any(Iterable.class))).thenReturn(Flux.empty());
 
         List<ExternalStatus> saved = svc.ingestCreateNotes(Flux.just((JsonNode) create), actor, provider).block();
         assertNotNull(saved);
@@ -108,4 +148,44 @@ public class RemoteStatusIngestServiceTest {
         assertFalse(content.contains("onerror"), "event handlers must be stripped: " + content);
         assertFalse(content.contains("javascript:"), "javascript: URLs must be stripped: " + content);
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void windowIsCheckedWithOneQueryAndWrittenWithOneBulk() {
+        ExternalStatusRepository repo = Mockito.mock(ExternalStatusRepository.class);
+        RemoteStatusIngestService svc = service(repo);
+        ObjectMapper om = new ObjectMapper();
+        var id = "https://remote.example/users/alice/statuses/1";
+        var known = new ExternalStatus(id, null, null, null, false, "", "public", null, id, id, 0, 0, 0, false, false,
+                                       false, false, "", null, null, null, List.of(), List.of(), List.of(), List.of(),
+                                       null, null, "", null);
+        when(repo.findAllById(any(Iterable.class))).thenReturn(Flux.just(known));
+        // the second note shows up twice
+        var activities = Flux.just(create(om, "https://remote.example/users/alice/statuses/1"),
+                                   create(om, "https://remote.example/users/alice/statuses/2"),
+                                   create(om, "https://remote.example/users/alice/statuses/2"),
+                                   create(om, "https://remote.example/users/alice/statuses/3"));
+        Account account = new Account();
+        account.id = "alice@remote.example";
+
+        List<ExternalStatus> saved = svc.ingestCreateNotes(activities, new Actor(), a -> Mono.just(account)).block();
+
+        assertNotNull(saved);
+        assertEquals(Set.of("https://remote.example/users/alice/statuses/1",
+                            "https://remote.example/users/alice/statuses/2",
+                            "https://remote.example/users/alice/statuses/3"),
+                     saved.stream().map(status -> status.id).collect(Collectors.toSet()));
+        assertEquals(3, saved.size());
+        var ids = ArgumentCaptor.forClass(Iterable.class);
+        verify(repo, times(1)).findAllById(ids.capture());
+        assertEquals(3, ((Collection<?>) ids.getValue()).size());
+        // only the new notes are written, insert-only so a concurrent writer is not overwritten
+        var update = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(bulk, times(2)).upsert(any(Query.class), update.capture());
+        verify(bulk, times(1)).execute();
+        var document = update.getValue().getUpdateObject();
+        assertNull(document.get("$set"));
+        assertEquals("<p>https://remote.example/users/alice/statuses/3</p>",
+                     document.get("$setOnInsert", org.bson.Document.class).get("content"));
+    }
 }
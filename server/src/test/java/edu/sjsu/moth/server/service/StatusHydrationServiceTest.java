@@ -0,0 +1,114 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.Bookmark;
+import edu.sjsu.moth.server.db.BookmarkRepository;
+import edu.sjsu.moth.server.db.Favourite;
+import edu.sjsu.moth.server.db.FavouriteRepository;
+import edu.sjsu.moth.server.db.Pin;
+import edu.sjsu.moth.server.db.PinRepository;
+import edu.sjsu.moth.server.db.Reblog;
+import edu.sjsu.moth.server.db.ReblogRepository;
+import edu.sjsu.moth.server.db.StatusMuteRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StatusHydrationServiceTest {
+
+    private FavouriteRepository favouriteRepository;
+    private ReblogRepository reblogRepository;
+    private BookmarkRepository bookmarkRepository;
+    private StatusMuteRepository statusMuteRepository;
+    private PinRepository pinRepository;
+    private StatusHydrationService hydrationService;
+
+    @BeforeEach
+    public void setup() {
+        favouriteRepository = Mockito.mock(FavouriteRepository.class);
+        reblogRepository = Mockito.mock(ReblogRepository.class);
+        bookmarkRepository = Mockito.mock(BookmarkRepository.class);
+        statusMuteRepository = Mockito.mock(StatusMuteRepository.class);
+        pinRepository = Mockito.mock(PinRepository.class);
+        when(favouriteRepository.findAllByAccountIdAndStatusIdIn(eq("viewer"), anyCollection())).thenReturn(
+                Flux.just(new Favourite("viewer", "1", ""), new Favourite("viewer", "3", "")));
+        when(reblogRepository.findAllByAccountIdAndStatusIdIn(eq("viewer"), anyCollection())).thenReturn(
+                Flux.just(new Reblog("viewer", "3", "4", "")));
+        when(bookmarkRepository.findAllByAccountIdAndStatusIdIn(eq("viewer"), anyCollection())).thenReturn(
+                Flux.just(new Bookmark("viewer", "2", "")));
+        when(statusMuteRepository.findAllByAccountIdAndStatusIdIn(eq("viewer"), anyCollection())).thenReturn(
+                Flux.empty());
+        when(pinRepository.findAllByAccountIdAndStatusIdIn(eq("viewer"), anyCollection())).thenReturn(
+                Flux.just(new Pin("viewer", "2", "")));
+        hydrationService = new StatusHydrationService(Mockito.mock(AccountRepository.class), favouriteRepository,
+                                                      reblogRepository, bookmarkRepository, statusMuteRepository,
+                                                      pinRepository);
+    }
+
+    private static Status status(String id, String authorId) {
+        var status = new Status();
+        status.id = id;
+        status.account = new Account();
+        status.account.id = authorId;
+        // stale values left on the shared document by whoever clicked last
+        status.favourited = true;
+        status.bookmarked = true;
+        return status;
+    }
+
+    @Test
+    public void pageIsHydratedWithOneQueryPerCollection() {
+        var favourited = status("1", "other");
+        var own = status("2", "viewer");
+        var reblog = status("4", "viewer");
+        reblog.reblog = status("3", "other");
+
+        var page = hydrationService.hydrate("viewer", List.of(favourited, own, reblog)).block();
+        assertEquals(3, page.size());
+
+        assertTrue(favourited.favourited);
+        assertFalse(favourited.bookmarked);
+        assertNull(favourited.pinned);
+        assertFalse(own.favourited);
+        assertTrue(own.bookmarked);
+        assertTrue(own.pinned);
+        assertTrue(reblog.reblog.favourited);
+        assertTrue(reblog.reblog.reblogged);
+        assertFalse(reblog.reblogged);
+
+        verify(favouriteRepository, times(1)).findAllByAccountIdAndStatusIdIn(eq("viewer"), eq(
+                Set.of("1", "2", "3", "4")));
+        verify(reblogRepository, times(1)).findAllByAccountIdAndStatusIdIn(any(), anyCollection());
+        verify(bookmarkRepository, times(1)).findAllByAccountIdAndStatusIdIn(any(), anyCollection());
+        verify(statusMuteRepository, times(1)).findAllByAccountIdAndStatusIdIn(any(), anyCollection());
+        verify(pinRepository, times(1)).findAllByAccountIdAndStatusIdIn(any(), anyCollection());
+    }
+
+    @Test
+    public void anonymousViewersSeeNoFlags() {
+        var s = status("1", "other");
+        hydrationService.hydrate((String) null, List.of(s)).block();
+        assertFalse(s.favourited);
+        assertFalse(s.bookmarked);
+        assertNull(s.pinned);
+        verify(favouriteRepository, never()).findAllByAccountIdAndStatusIdIn(any(), anyCollection());
+    }
+}
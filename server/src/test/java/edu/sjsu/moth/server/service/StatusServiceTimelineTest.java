@@ -0,0 +1,45 @@
+package edu.sjsu.moth.server.service;
+
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.util.EmailCodeUtils;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatusServiceTimelineTest {
+
+    private static Status status(String id, String createdAt) {
+        var status = new Status();
+        status.id = id;
+        status.createdAt = createdAt;
+        return status;
+    }
+
+    @Test
+    public void timelineKeyFromLocalIdRecoversCreationTime() {
+        var millis = Instant.parse("2024-05-01T12:00:00Z").toEpochMilli() - EmailCodeUtils.NEW_EPOCH;
+        var id = Long.toString(millis << 24);
+        var key = StatusService.timelineKeyFromId(id).orElseThrow();
+        assertEquals("2024-05-01T12:00:00Z", key.createdAt());
+        assertEquals(id, key.id());
+    }
+
+    @Test
+    public void timelineKeyFromRemoteIdIsEmpty() {
+        assertTrue(StatusService.timelineKeyFromId("https://remote.example/statuses/1").isEmpty());
+    }
+
+    @Test
+    public void newestFirstBreaksTiesById() {
+        var statuses = new ArrayList<>(List.of(status("1", "2024-01-01T00:00:00Z"),
+                                               status("3", "2024-01-01T00:00:00Z"),
+                                               status("2", "2024-01-02T00:00:00Z")));
+        statuses.sort(StatusService.TimelineKey.NEWEST_FIRST);
+        assertEquals(List.of("2", "3", "1"), statuses.stream().map(s -> s.id).toList());
+    }
+}
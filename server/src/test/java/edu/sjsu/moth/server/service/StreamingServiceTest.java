@@ -0,0 +1,121 @@
+package edu.sjsu.moth.server.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.moth.IntegrationTest;
+import edu.sjsu.moth.generated.Status;
+import edu.sjsu.moth.server.db.AccountRepository;
+import edu.sjsu.moth.server.db.StatusTag;
+import edu.sjsu.moth.server.db.TokenRepository;
+import edu.sjsu.moth.server.db.UserListRepository;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import reactor.test.StepVerifier;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class StreamingServiceTest {
+    static {
+        try {
+            var fullname = IntegrationTest.class.getResource("/test.cfg").getFile();
+            new MothConfiguration(new File(fullname));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectMapper objectMapper;
+    private StreamingService streamingService;
+
+    @BeforeEach
+    public void setup() {
+        objectMapper = Mockito.spy(new ObjectMapper());
+        streamingService = new StreamingService(objectMapper, Mockito.mock(AccountRepository.class),
+                                                Mockito.mock(UserListRepository.class),
+                                                Mockito.mock(TokenRepository.class));
+    }
+
+    private static Status status(String visibility, String... tags) {
+        var status = new Status();
+        status.id = "1";
+        status.visibility = visibility;
+        status.tags = Arrays.stream(tags).map(t -> new StatusTag(t, "")).toList();
+        return status;
+    }
+
+    private StreamingService.Subscriber<String> subscribe(String stream, String tag, String accountId) {
+        var subscriber = new StreamingService.Subscriber<>((event, s) -> event.frame(s));
+        streamingService.subscribe(subscriber, streamingService.resolve(stream, tag, null, accountId).block());
+        return subscriber;
+    }
+
+    @Test
+    public void publicStatusReachesPublicHashtagAndHomeStreams() throws Exception {
+        var publicSub = subscribe("public", null, null);
+        var tagSub = subscribe("hashtag", "Moth", null);
+        var homeSub = subscribe("user", null, "42");
+        var otherHomeSub = subscribe("user", null, "43");
+
+        var status = status("public", "moth");
+        streamingService.publishStatus(status, List.of("42")).block();
+        otherHomeSub.close();
+
+        StepVerifier.create(publicSub.flux().take(1))
+                .assertNext(frame -> assertTrue(frame.contains("\"stream\":[\"public\"]")))
+                .verifyComplete();
+        StepVerifier.create(tagSub.flux().take(1))
+                .assertNext(frame -> assertTrue(frame.contains("\"stream\":[\"hashtag\",\"Moth\"]")))
+                .verifyComplete();
+        StepVerifier.create(homeSub.flux().take(1))
+                .assertNext(frame -> assertTrue(frame.contains("\"event\":\"update\""))).verifyComplete();
+        StepVerifier.create(otherHomeSub.flux()).verifyComplete();
+
+        // one status, four subscribers, serialized once
+        verify(objectMapper, times(1)).writeValueAsString(status);
+    }
+
+    @Test
+    public void privateStatusOnlyReachesHomeStreams() {
+        var publicSub = subscribe("public", null, null);
+        var homeSub = subscribe("user", null, "42");
+
+        streamingService.publishStatus(status("private"), List.of("42")).block();
+        publicSub.close();
+
+        StepVerifier.create(publicSub.flux()).verifyComplete();
+        StepVerifier.create(homeSub.flux().take(1)).expectNextCount(1).verifyComplete();
+    }
+
+    @Test
+    public void nothingIsSerializedWithoutSubscribers() throws Exception {
+        streamingService.publishStatus(status("public"), List.of("42")).block();
+        verify(objectMapper, times(0)).writeValueAsString(any());
+    }
+
+    @Test
+    public void slowSubscriberIsDisconnected() {
+        var slow = subscribe("public", null, null);
+        for (int i = 0; i < StreamingService.SUBSCRIBER_BUFFER_SIZE + StreamingService.MAX_CONSECUTIVE_DROPS; i++) {
+            streamingService.publishStatus(status("public"), List.of()).block();
+        }
+        assertTrue(slow.isClosed());
+        assertEquals(0, streamingService.subscriberCount(StreamingService.PUBLIC_KEY));
+        // what was buffered before the disconnect is still delivered
+        StepVerifier.create(slow.flux()).expectNextCount(StreamingService.SUBSCRIBER_BUFFER_SIZE).verifyComplete();
+    }
+
+    @Test
+    public void userStreamsNeedAViewer() {
+        StepVerifier.create(streamingService.resolve("user", null, null, null)).verifyComplete();
+        StepVerifier.create(streamingService.resolve("nonsense", null, null, "42")).verifyComplete();
+    }
+}
@@ -18,6 +18,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
 import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
@@ -30,6 +31,7 @@ import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
@@ -448,4 +450,85 @@ class HttpSignatureServiceTest {
             return true;
         }).verifyComplete();
     }
+
+    @Test
+    void prepareSignedHeadersDecodesThePrivateKeyOnce() throws Exception {
+        PubKeyPair keyPair = new PubKeyPair(TEST_ACCOUNT_ID, HARDCODED_PUBLIC_KEY_PEM, HARDCODED_PRIVATE_KEY_PEM);
+        when(pubKeyPairRepository.findItemByAcct(TEST_ACCOUNT_ID)).thenReturn(Mono.just(keyPair));
+        String digest = HttpSignature.digest(EXAMPLE_BODY);
+
+        for (int i = 0; i < 3; i++) {
+            HttpHeaders headers = httpSignatureService.prepareSignedHeadersForDigest(HttpMethod.POST, TEST_ACCOUNT_ID,
+                                                                                     TEST_TARGET_URI, digest).block();
+            Map<String, String> sigFields = HttpSignature.extractFields(headers.getFirst("Signature"));
+            assertTrue(HttpSignature.validateSignatureHeader("POST", TEST_TARGET_URI, headers, sigFields.get("headers"),
+                                                             HARDCODED_PUBLIC_KEY, sigFields.get("signature")),
+                       "signature made with the cached key should verify");
+        }
+        verify(pubKeyPairRepository, times(1)).findItemByAcct(TEST_ACCOUNT_ID);
+
+        // a new key pair is picked up after invalidation
+        httpSignatureService.invalidateSigningKey(TEST_ACCOUNT_ID);
+        httpSignatureService.prepareSignedHeadersForDigest(HttpMethod.POST, TEST_ACCOUNT_ID, TEST_TARGET_URI, digest)
+                .block();
+        verify(pubKeyPairRepository, times(2)).findItemByAcct(TEST_ACCOUNT_ID);
+    }
+
+    @Test
+    void redeliveredSignatureShouldNotBeVerifiedAgain() {
+        PubKeyPair keyPair = new PubKeyPair(TEST_ACCOUNT_ID, HARDCODED_PUBLIC_KEY_PEM, HARDCODED_PRIVATE_KEY_PEM);
+        when(pubKeyPairRepository.findItemByAcct(TEST_ACCOUNT_ID)).thenReturn(Mono.just(keyPair));
+        HttpHeaders signedHeaders =
+                httpSignatureService.prepareSignedHeaders(HttpMethod.POST, TEST_ACCOUNT_ID, TEST_TARGET_URI,
+                                                          EXAMPLE_BODY).block();
+        assertNotNull(signedHeaders);
+        when(publicKeyResolver.resolve(EXPECTED_KEY_ID)).thenReturn(Mono.just(HARDCODED_PUBLIC_KEY));
+
+        for (int i = 0; i < 3; i++) {
+            MockServerWebExchange exchange = MockServerWebExchange.from(
+                    MockServerHttpRequest.post(TEST_TARGET_URI.toString()).headers(signedHeaders).build());
+            StepVerifier.create(httpSignatureService.verifySignature(exchange, EXAMPLE_BODY)).expectNext(true)
+                    .verifyComplete();
+        }
+        verify(publicKeyResolver, times(1)).resolve(EXPECTED_KEY_ID);
+
+        // the same signature on a different body still has to match the digest
+        MockServerWebExchange tampered = MockServerWebExchange.from(
+                MockServerHttpRequest.post(TEST_TARGET_URI.toString()).headers(signedHeaders).build());
+        StepVerifier.create(httpSignatureService.verifySignature(tampered, "{}".getBytes(StandardCharsets.UTF_8)))
+                .expectNext(false).verifyComplete();
+
+        // nor does it count for another request target
+        URI otherTarget = URI.create("https://verify.example.com/users/someone/inbox");
+        MockServerWebExchange retargeted = MockServerWebExchange.from(
+                MockServerHttpRequest.post(otherTarget.toString()).headers(signedHeaders).build());
+        StepVerifier.create(httpSignatureService.verifySignature(retargeted, EXAMPLE_BODY)).expectNext(false)
+                .verifyComplete();
+        verify(publicKeyResolver, times(2)).resolve(EXPECTED_KEY_ID);
+    }
+
+    @Test
+    void keysBeingFetchedDoNotHoldVerificationSlots() {
+        PubKeyPair keyPair = new PubKeyPair(TEST_ACCOUNT_ID, HARDCODED_PUBLIC_KEY_PEM, HARDCODED_PRIVATE_KEY_PEM);
+        when(pubKeyPairRepository.findItemByAcct(TEST_ACCOUNT_ID)).thenReturn(Mono.just(keyPair));
+        HttpHeaders signedHeaders =
+                httpSignatureService.prepareSignedHeaders(HttpMethod.POST, TEST_ACCOUNT_ID, TEST_TARGET_URI,
+                                                          EXAMPLE_BODY).block();
+        assertNotNull(signedHeaders);
+        // more slow key fetches than there are verification slots
+        when(publicKeyResolver.resolve(EXPECTED_KEY_ID)).thenReturn(Mono.never());
+        var stalled = new ArrayList<Disposable>();
+        for (int i = 0; i < HttpSignatureService.MAX_PENDING_VERIFICATIONS + 1; i++) {
+            MockServerWebExchange exchange = MockServerWebExchange.from(
+                    MockServerHttpRequest.post(TEST_TARGET_URI.toString()).headers(signedHeaders).build());
+            stalled.add(httpSignatureService.verifySignature(exchange, EXAMPLE_BODY).subscribe());
+        }
+
+        when(publicKeyResolver.resolve(EXPECTED_KEY_ID)).thenReturn(Mono.just(HARDCODED_PUBLIC_KEY));
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+                MockServerHttpRequest.post(TEST_TARGET_URI.toString()).headers(signedHeaders).build());
+        StepVerifier.create(httpSignatureService.verifySignature(exchange, EXAMPLE_BODY)).expectNext(true)
+                .verifyComplete();
+        stalled.forEach(Disposable::dispose);
+    }
 }
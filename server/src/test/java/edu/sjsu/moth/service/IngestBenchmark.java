@@ -0,0 +1,113 @@
+package edu.sjsu.moth.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.reactivestreams.client.MongoClients;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.process.io.ProcessOutput;
+import de.flapdoodle.reverse.transitions.Start;
+import edu.sjsu.moth.generated.Actor;
+import edu.sjsu.moth.server.db.Account;
+import edu.sjsu.moth.server.db.ExternalStatus;
+import edu.sjsu.moth.server.db.ExternalStatusRepository;
+import edu.sjsu.moth.server.service.RemoteStatusIngestService;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.repository.support.ReactiveMongoRepositoryFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * measures ingesting a backfill of Create(Note) activities into an embedded mongo:
+ * <ul>
+ *     <li>per-note: a findById and a save for every note, the way notes used to be ingested</li>
+ *     <li>bulk: RemoteStatusIngestService, one $in query and one bulk upsert per window</li>
+ *     <li>again: the same notes ingested a second time, so every note is already there</li>
+ * </ul>
+ * not part of the test run, start main() with the test classpath.
+ */
+public class IngestBenchmark {
+    private static final int NOTES = 500;
+    private static final int ROUNDS = 10;
+    private static final int PORT = 27017 + 41;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static List<JsonNode> backfill(String prefix) {
+        var activities = new ArrayList<JsonNode>();
+        for (int i = 0; i < NOTES; i++) {
+            ObjectNode note = OBJECT_MAPPER.createObjectNode();
+            note.put("type", "Note");
+            note.put("id", "https://remote.example/users/alice/statuses/" + prefix + i);
+            note.put("content", "<p>status number " + i + " with a <a href=\"https://example.com\">link</a></p>");
+            ObjectNode tag = note.putArray("tag").addObject();
+            tag.put("type", "Hashtag");
+            tag.put("name", "#moth");
+            ObjectNode create = OBJECT_MAPPER.createObjectNode();
+            create.put("type", "Create");
+            create.put("published", "2025-01-01T00:00:00Z");
+            create.set("object", note);
+            activities.add(create);
+        }
+        return activities;
+    }
+
+    // the ingestion we replaced: a round-trip to look for the note and one to save it
+    private static Mono<Long> perNote(ExternalStatusRepository repo, List<JsonNode> activities, Account account) {
+        return Flux.fromIterable(activities).flatMap(create -> {
+            var id = create.path("object").path("id").asText();
+            var content = create.path("object").path("content").asText();
+            return repo.findById(id).switchIfEmpty(Mono.defer(() -> repo.save(
+                    new ExternalStatus(id, "2025-01-01T00:00:00Z", null, null, false, "", "public", null, id, id, 0,
+                                       0, 0, false, false, false, false, content, null, null, account, List.of(),
+                                       List.of(), List.of(), List.of(), null, null, content, null))));
+        }).count();
+    }
+
+    private static void report(String name, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-8s %10.0f notes/s%n", name, NOTES * ROUNDS / seconds);
+    }
+
+    public static void main(String[] args) {
+        try (var mongod = Mongod.builder()
+                .processOutput(Start.to(ProcessOutput.class).initializedWith(ProcessOutput.silent()))
+                .net(Start.to(Net.class).initializedWith(Net.defaults().withPort(PORT))).build()
+                .start(Version.Main.V6_0); var client = MongoClients.create("mongodb://localhost:" + PORT)) {
+            var mongoTemplate = new ReactiveMongoTemplate(client, "ingest-benchmark");
+            var repo = new ReactiveMongoRepositoryFactory(mongoTemplate).getRepository(ExternalStatusRepository.class);
+            var service = new RemoteStatusIngestService(repo, mongoTemplate);
+            var account = new Account();
+            account.id = "alice@remote.example";
+            var actor = new Actor();
+
+            // warm up both paths
+            perNote(repo, backfill("warmup-a"), account).block();
+            service.ingestCreateNotes(Flux.fromIterable(backfill("warmup-b")), actor, a -> Mono.just(account)).block();
+
+            var rounds = new ArrayList<List<JsonNode>>();
+            for (int r = 0; r < ROUNDS; r++) rounds.add(backfill("per-note-" + r + "-"));
+            long start = System.nanoTime();
+            for (var round : rounds) perNote(repo, round, account).block();
+            report("per-note", start);
+
+            rounds.clear();
+            for (int r = 0; r < ROUNDS; r++) rounds.add(backfill("bulk-" + r + "-"));
+            start = System.nanoTime();
+            for (var round : rounds) {
+                service.ingestCreateNotes(Flux.fromIterable(round), actor, a -> Mono.just(account)).block();
+            }
+            report("bulk", start);
+
+            start = System.nanoTime();
+            for (var round : rounds) {
+                service.ingestCreateNotes(Flux.fromIterable(round), actor, a -> Mono.just(account)).block();
+            }
+            report("again", start);
+        }
+    }
+}
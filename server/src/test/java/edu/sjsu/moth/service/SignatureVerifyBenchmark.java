@@ -0,0 +1,99 @@
+package edu.sjsu.moth.service;
+
+import edu.sjsu.moth.server.db.PubKeyPair;
+import edu.sjsu.moth.server.db.PubKeyPairRepository;
+import edu.sjsu.moth.server.keyManager.PublicKeyResolver;
+import edu.sjsu.moth.server.service.HttpSignatureService;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import edu.sjsu.moth.util.HttpSignature;
+import edu.sjsu.moth.util.WebFingerUtils;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * measures verifying inbound signatures with a 2048 bit key:
+ * <ul>
+ *     <li>raw: HttpSignature.validateSignature on one thread, the floor for a single core</li>
+ *     <li>verify: HttpSignatureService.verifySignature with a distinct signature per request, from as many callers
+ *     as there are cores, reported per core</li>
+ *     <li>replay: the same requests delivered again, answered from the recently verified cache</li>
+ * </ul>
+ * not part of the test run, start main() with the test classpath.
+ */
+public class SignatureVerifyBenchmark {
+    private static final int REQUESTS = 4_000;
+    private static final String ACCT = "alice";
+    private static final byte[] BODY = "{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8);
+
+    private static void report(String name, int ops, long startNanos, int cores) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-8s %10.0f ops/s %10.0f ops/s/core%n", name, ops / seconds, ops / seconds / cores);
+    }
+
+    private static long verifyAll(HttpSignatureService service, List<HttpHeaders> requests, int concurrency) {
+        long start = System.nanoTime();
+        var verified = Flux.range(0, requests.size()).flatMap(i -> service.verifySignature(
+                MockServerWebExchange.from(MockServerHttpRequest.post(inbox(i).toString()).headers(requests.get(i))
+                                                   .build()), BODY), concurrency).filter(Boolean::booleanValue)
+                .count().block();
+        if (!Objects.equals(verified, (long) requests.size())) throw new IllegalStateException(verified + " verified");
+        return start;
+    }
+
+    private static URI inbox(int i) {
+        return URI.create("https://localhost/users/u" + i + "/inbox");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MothConfiguration(new File(
+                Objects.requireNonNull(SignatureVerifyBenchmark.class.getResource("/test.cfg")).getFile()));
+        var pem = WebFingerUtils.genPubPrivKeyPem();
+        var publicKey = HttpSignature.pemToPublicKey(pem.pubKey());
+        var repository = Mockito.mock(PubKeyPairRepository.class);
+        when(repository.findItemByAcct(ACCT)).thenReturn(Mono.just(new PubKeyPair(ACCT, pem.pubKey(), pem.privKey())));
+        var resolver = Mockito.mock(PublicKeyResolver.class);
+        when(resolver.resolve(anyString())).thenReturn(Mono.just(publicKey));
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // every request goes to a different inbox so that every signature is different
+        var signer = new HttpSignatureService(repository, resolver);
+        var requests = new ArrayList<HttpHeaders>();
+        for (int i = 0; i < REQUESTS; i++) {
+            requests.add(signer.prepareSignedHeaders(HttpMethod.POST, ACCT, inbox(i), BODY).block());
+        }
+        signer.close();
+
+        var first = requests.get(0);
+        var signedBytes = HttpSignature.generateHeadersToSign("POST", inbox(0), first,
+                                                              List.of(HttpSignature.REQUEST_TARGET, "host", "date",
+                                                                      "digest"));
+        var signature = HttpSignature.extractSignature(first.getFirst("Signature"));
+        for (int i = 0; i < REQUESTS; i++) HttpSignature.validateSignature(signedBytes, publicKey, signature);
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) HttpSignature.validateSignature(signedBytes, publicKey, signature);
+        report("raw", REQUESTS, start, 1);
+
+        try (var warmup = new HttpSignatureService(repository, resolver)) {
+            verifyAll(warmup, requests, cores);
+        }
+        try (var service = new HttpSignatureService(repository, resolver)) {
+            report("verify", REQUESTS, verifyAll(service, requests, cores * 4), cores);
+            report("replay", REQUESTS, verifyAll(service, requests, cores * 4), cores);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package edu.sjsu.moth.service;
+
+import edu.sjsu.moth.server.db.PubKeyPair;
+import edu.sjsu.moth.server.db.PubKeyPairRepository;
+import edu.sjsu.moth.server.keyManager.PublicKeyResolver;
+import edu.sjsu.moth.server.service.HttpSignatureService;
+import edu.sjsu.moth.server.util.MothConfiguration;
+import edu.sjsu.moth.util.HttpSignature;
+import edu.sjsu.moth.util.WebFingerUtils;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * measures signing one outbound request the way a fan-out does, with a 2048 bit key:
+ * <ul>
+ *     <li>decode: decode the PEM and sign every time, what prepareSignedHeaders used to do</li>
+ *     <li>cached: prepareSignedHeadersForDigest with the decoded key cache</li>
+ * </ul>
+ * not part of the test run, start main() with the test classpath.
+ */
+public class SigningKeyCacheBenchmark {
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 10_000;
+    private static final String ACCT = "alice";
+    private static final URI INBOX = URI.create("https://remote.example/inbox");
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    private static void measure(String name, Op op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) op.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) op.run();
+        double micros = (System.nanoTime() - start) / 1_000.0 / ITERATIONS;
+        System.out.printf("%-8s %10.1f us/op %10.0f ops/s%n", name, micros, 1_000_000 / micros);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MothConfiguration(new File(
+                Objects.requireNonNull(SigningKeyCacheBenchmark.class.getResource("/test.cfg")).getFile()));
+        var pem = WebFingerUtils.genPubPrivKeyPem();
+        var repository = Mockito.mock(PubKeyPairRepository.class);
+        when(repository.findItemByAcct(ACCT)).thenReturn(Mono.just(new PubKeyPair(ACCT, pem.pubKey(), pem.privKey())));
+        var service = new HttpSignatureService(repository, Mockito.mock(PublicKeyResolver.class));
+        var digest = HttpSignature.digest("{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8));
+        var headers = new HttpHeaders();
+        headers.set(HttpHeaders.HOST, INBOX.getHost());
+        headers.set(HttpHeaders.DATE, "Sun, 18 Oct 2026 12:00:00 GMT");
+        headers.set("Digest", digest);
+        var signed = List.of(HttpSignature.REQUEST_TARGET, "host", "date", "digest");
+
+        measure("decode", () -> HttpSignature.generateSignatureHeader(
+                "POST", INBOX, headers, signed, HttpSignature.pemToPrivateKey(pem.privKey()), ACCT));
+        measure("cached", () -> service.prepareSignedHeadersForDigest(HttpMethod.POST, ACCT, INBOX, digest).block());
+    }
+}
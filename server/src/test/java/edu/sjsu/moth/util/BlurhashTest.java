@@ -0,0 +1,50 @@
+package edu.sjsu.moth.util;
+
+import edu.sjsu.moth.server.util.Blurhash;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BlurhashTest {
+    private static BufferedImage solid(Color color) {
+        var image = new BufferedImage(16, 12, BufferedImage.TYPE_INT_RGB);
+        var graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 16, 12);
+        graphics.dispose();
+        return image;
+    }
+
+    @Test
+    public void testAverageColorIsTheDCComponent() {
+        // size flag 0 for 1x1, no AC maximum, and white
+        assertEquals("00TSUA", Blurhash.encode(solid(Color.WHITE), 1, 1));
+        // size flag L for 4x3, then the AC maximum, the same DC and 11 AC components
+        var hash = Blurhash.encode(solid(Color.WHITE), 4, 3);
+        assertEquals(28, hash.length());
+        assertEquals("L", hash.substring(0, 1));
+        assertEquals("TSUA", hash.substring(2, 6));
+    }
+
+    @Test
+    public void testDetailShowsUpInTheACComponents() {
+        var image = solid(Color.WHITE);
+        var graphics = image.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, 8, 12);
+        graphics.dispose();
+        var hash = Blurhash.encode(image, 4, 3);
+        assertEquals(28, hash.length());
+        assertNotEquals("0", hash.substring(1, 2));
+    }
+
+    @Test
+    public void testComponentsAreBounded() {
+        assertThrows(IllegalArgumentException.class, () -> Blurhash.encode(solid(Color.WHITE), 10, 3));
+    }
+}
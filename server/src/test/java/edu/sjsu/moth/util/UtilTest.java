@@ -2,8 +2,11 @@ package edu.sjsu.moth.util;
 
 import edu.sjsu.moth.server.util.Util;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
 
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -32,6 +35,17 @@ public class UtilTest {
         assertEquals("", Util.escapeRegex(null));
     }
 
+    @Test
+    public void testTimelineLinkHeaders() {
+        var headers = Util.timelineLinkHeaders("/api/v1/timelines/public", List.of("30", "20", "10"), 3,
+                                               Map.of("local", "true"));
+        assertEquals(List.of("</api/v1/timelines/public?limit=3&local=true&max_id=10>; rel=\"next\"",
+                             "</api/v1/timelines/public?limit=3&local=true&min_id=30>; rel=\"prev\""),
+                     headers.get(HttpHeaders.LINK));
+        assertFalse(Util.timelineLinkHeaders("/api/v1/timelines/home", List.of(), 20, Map.of())
+                            .containsKey(HttpHeaders.LINK));
+    }
+
     @Test
     public void testClamp() {
         assertEquals(1, Util.clamp(-5, 1, 40));
@@ -41,6 +41,9 @@ public class HttpSignature {
             Pattern.compile("(?<key>\\p{Alnum}+)=\"(?<value>([^\"])*)\"");
     static public final Pattern KEY_ID_PATTERN = Pattern.compile("keyId=\"([^\"]+)\"");
     static public final Pattern SIGNATURE_PATTERN = Pattern.compile("signature=\"([^\"]+)\"");
+    // Signature objects are not thread safe, but they can be reused: initSign() resets them for the next key
+    private static final ThreadLocal<Signature> SIGNER = ThreadLocal.withInitial(HttpSignature::newSigner);
+    private static final ThreadLocal<Signature> VERIFIER = ThreadLocal.withInitial(HttpSignature::newSigner);
 
     public static Signature newSigner() {
         try {
@@ -86,14 +89,17 @@ public class HttpSignature {
     public static String generateSignatureHeader(String requestMethod, URI requestURI, HttpHeaders requestHeaders,
                                                  List<String> headers, PrivateKey signingKey, String keyUri) throws SignatureException, InvalidKeyException {
         var toSign = generateHeadersToSign(requestMethod, requestURI, requestHeaders, headers);
-        var signer = newSigner();
+        var signer = SIGNER.get();
         signer.initSign(signingKey);
         signer.update(toSign);
         var signature = Base64.getEncoder().encodeToString(signer.sign());
         return "keyId=\"%s\",headers=\"%s\",signature=\"%s\"".formatted(keyUri, String.join(" ", headers), signature);
     }
 
-    private static byte[] generateHeadersToSign(String requestMethod, URI requestURI, HttpHeaders requestHeaders,
+    /**
+     * the bytes that are signed for a request, a signature verifies only against exactly these
+     */
+    public static byte[] generateHeadersToSign(String requestMethod, URI requestURI, HttpHeaders requestHeaders,
                                                 List<String> headers) {
         var toSign = headers.stream().map(h -> {
             if (h.equalsIgnoreCase(REQUEST_TARGET)) {
@@ -114,12 +120,15 @@ public class HttpSignature {
                                                   PublicKey publicKey, String signature) throws InvalidKeyException,
             SignatureException {
         var toValidate = generateHeadersToSign(method, uri, headers, List.of(signedHeaders.split(" ")));
-        var signer = newSigner();
-        String sigLine = null;
-        signer.initVerify(publicKey);
-        signer.update(toValidate);
-        return signer.verify(Base64.getMimeDecoder().decode(signature));
+        return validateSignature(toValidate, publicKey, signature);
+    }
 
+    public static boolean validateSignature(byte[] toValidate, PublicKey publicKey, String signature)
+            throws InvalidKeyException, SignatureException {
+        var verifier = VERIFIER.get();
+        verifier.initVerify(publicKey);
+        verifier.update(toValidate);
+        return verifier.verify(Base64.getMimeDecoder().decode(signature));
     }
 
     public static PublicKey pemToPublicKey(String publicKeyPEM) {
@@ -171,8 +180,12 @@ public class HttpSignature {
     }
 
     public static void addDigest(HttpHeaders headers, byte[] body) {
+        headers.add("Digest", digest(body));
+    }
+
+    // the value of the Digest header for body, computed once when a body is sent to many inboxes
+    public static String digest(byte[] body) {
         // https://docs.joinmastodon.org/spec/security/ says we should use SHA-256
-        headers.add("Digest",
-                    "sha-256=%s".formatted(Base64.getMimeEncoder().encodeToString(newSHA256Digest().digest(body))));
+        return "sha-256=%s".formatted(Base64.getMimeEncoder().encodeToString(newSHA256Digest().digest(body)));
     }
 }